@@ -0,0 +1,104 @@
+package org.van.benchmarks;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.van.Accumulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Grouping CSV-like rows (item name, attribute name, attribute value) into items with their
+ * attributes, as the CSV import used to, with {@link Accumulator} and with the
+ * {@link LegacyAccumulator} it replaced. Scores are per row.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccumulatorBenchmark {
+
+    private static final int ROWS = 100_000;
+
+    @Param({"1", "10", "100"})
+    public int rowsPerItem;
+
+    private List<List<String>> rows;
+
+    @Setup
+    public void setUp() {
+        rows = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            int item = i / rowsPerItem;
+            int attribute = i % rowsPerItem;
+            rows.add(Arrays.asList("item" + item, "attribute" + (attribute % 8), "value" + attribute));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void accumulator(Blackhole blackhole) {
+        Accumulator<Void,Item,List<String>,String> accumulator = new Accumulator<Void,Item,List<String>,String>(
+            row -> row.get(0),
+            row -> new Item().withName(row.get(0)),
+            blackhole::consume
+        ).withChained(
+            // Rows are only compared within an item, so the whole row keys its attribute
+            new Accumulator<Item,Attribute,List<String>,List<String>>(
+                row -> row,
+                row -> new Attribute(row.get(1), row.get(2)),
+                null),
+            (item, attribute) -> item.getAttributes().add(attribute));
+        accumulator.accumulate(rows);
+        accumulator.flush();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void legacyAccumulator(Blackhole blackhole) {
+        LegacyAccumulator<Void,Item,List<String>,String> accumulator = new LegacyAccumulator<>(
+            row -> row.get(0),
+            Item::getName,
+            row -> new Item().withName(row.get(0)),
+            blackhole::consume
+        );
+        accumulator.withChained(
+            new LegacyAccumulator<Item,Attribute,List<String>,String>(
+                row -> row.get(1) + row.get(2),
+                attribute -> attribute.getName() + attribute.getValue(),
+                row -> new Attribute(row.get(1), row.get(2)),
+                attribute -> {}
+            ) {
+                @Override
+                protected Optional<Attribute> transition(Optional<Item> item, List<String> row) {
+                    Optional<Attribute> ra = super.transition(item, row);
+                    if (ra.isPresent() && item.isPresent()) {
+                        item.get().getAttributes().add(ra.get());
+                    }
+                    return ra;
+                }
+            }
+        );
+        for (List<String> row : rows) {
+            accumulator.accumulate(row);
+        }
+    }
+}
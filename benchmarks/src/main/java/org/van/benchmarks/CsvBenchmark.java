@@ -0,0 +1,77 @@
+package org.van.benchmarks;
+
+import com.amazonaws.services.simpledb.model.Item;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.van.providers.ItemSourceProvider;
+import org.van.providers.ItemStoreProvider;
+import org.van.providers.impl.CsvSourceProvider;
+import org.van.providers.impl.CsvStoreProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing items to CSV with {@link CsvStoreProvider#storeItem(Item)} and reading them back with
+ * {@link CsvSourceProvider#iterateItems(java.util.function.Consumer)}, in memory. Scores are per
+ * item.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CsvBenchmark {
+
+    private static final int ITEMS = 10_000;
+
+    @Param({"SMALL", "WIDE", "LARGE"})
+    public Domains shape;
+
+    private List<Item> items;
+    private byte[] csv;
+
+    @Setup
+    public void setUp() throws IOException {
+        items = shape.items(ITEMS);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ItemStoreProvider store = new CsvStoreProvider(out).initialize()) {
+            items.forEach(store::storeItem);
+        }
+        csv = out.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public void storeItem() throws IOException {
+        try (ItemStoreProvider store = new CsvStoreProvider(new NullOutputStream()).initialize()) {
+            for (int i = 0; i < ITEMS; i++) {
+                store.storeItem(items.get(i));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public void iterateItems(Blackhole blackhole) throws IOException {
+        try (ItemSourceProvider source = new CsvSourceProvider(new ByteArrayInputStream(csv)).initialize()) {
+            source.iterateItems(blackhole::consume);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.van.benchmarks;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic domains of the shapes the benchmarks run on.
+ */
+public enum Domains {
+
+    /**
+     * Items of 2 short attributes
+     */
+    SMALL(2, 16),
+
+    /**
+     * Items of 50 short attributes
+     */
+    WIDE(50, 16),
+
+    /**
+     * Items of 4 attributes of the largest value SimpleDB accepts (1024 bytes)
+     */
+    LARGE(4, 1024);
+
+    private final int attributes;
+    private final int valueLength;
+
+    Domains(int attributes, int valueLength) {
+        this.attributes = attributes;
+        this.valueLength = valueLength;
+    }
+
+    /**
+     * Generate the items of a domain of this shape, the same for the same count.
+     *
+     * @param count the number of items
+     *
+     * @return the items, sorted by name
+     */
+    public List<Item> items(int count) {
+        Random random = new Random(count);
+        List<Item> items = new ArrayList<>(count);
+        char[] value = new char[valueLength];
+        for (int i = 0; i < count; i++) {
+            Item item = new Item().withName(String.format("item%08d", i));
+            for (int a = 0; a < attributes; a++) {
+                for (int c = 0; c < valueLength; c++) {
+                    // Mostly letters, with the odd character the CSV has to quote
+                    int r = random.nextInt(64);
+                    value[c] = (r < 62) ? (char) ('a' + (r % 26)) : ((r == 62) ? ',' : '"');
+                }
+                item.getAttributes().add(new Attribute("attribute" + a, new String(value)));
+            }
+            items.add(item);
+        }
+        return items;
+    }
+}
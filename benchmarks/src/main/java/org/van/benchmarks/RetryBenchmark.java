@@ -0,0 +1,50 @@
+package org.van.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.van.RetryUtility;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The overhead {@link RetryUtility} adds to calls that succeed at once, the common case, on one
+ * thread and on several sharing the retry budget.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RetryBenchmark {
+
+    private long counter = 0;
+
+    private long work(long param) {
+        return param + counter++;
+    }
+
+    @Benchmark
+    public long direct() {
+        return work(1);
+    }
+
+    @Benchmark
+    public long performWithRetry() {
+        return RetryUtility.performWithRetry((param, trial) -> work(param), 1L, 3);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long performWithRetryContended() {
+        return RetryUtility.performWithRetry((param, trial) -> work(param), 1L, 3);
+    }
+}
@@ -0,0 +1,101 @@
+package org.van.benchmarks;
+
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.van.SimpleDbBackupApplication;
+import org.van.providers.impl.LocalSimpleDb;
+import org.van.providers.impl.SourceStoreProviderFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Whole transfers through {@link SimpleDbBackupApplication#run(URI, URI)}, between a
+ * {@link LocalSimpleDb} domain and a CSV file: an export, and an import with batched writes.
+ * Scores are per item.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+
+    private static final int ITEMS = 10_000;
+
+    private static final String DOMAIN = "Benchmark";
+
+    @Param({"SMALL", "WIDE", "LARGE"})
+    public Domains shape;
+
+    private LocalSimpleDb simpleDb;
+    private File directory;
+    private URI exportUri;
+    private URI importUri;
+
+    @Setup
+    public void setUp() throws Exception {
+        Logger.getRootLogger().setLevel(Level.WARN);
+        simpleDb = new LocalSimpleDb();
+        simpleDb.createDomain(new CreateDomainRequest(DOMAIN));
+        List<Item> items = shape.items(ITEMS);
+        for (int i = 0; i < ITEMS; i += LocalSimpleDb.MAX_BATCH_ITEMS) {
+            List<ReplaceableItem> batch = new ArrayList<>();
+            for (Item item : items.subList(i, Math.min(i + LocalSimpleDb.MAX_BATCH_ITEMS, ITEMS))) {
+                batch.add(new ReplaceableItem(item.getName(), item.getAttributes().stream()
+                    .map(a -> new ReplaceableAttribute(a.getName(), a.getValue(), false))
+                    .collect(Collectors.toList())));
+            }
+            simpleDb.batchPutAttributes(new BatchPutAttributesRequest(DOMAIN, batch));
+        }
+        directory = Files.createTempDirectory("transfer-benchmark").toFile();
+        exportUri = SourceStoreProviderFactory.fileUri(new File(directory, "export.csv").getAbsoluteFile());
+        importUri = SourceStoreProviderFactory.fileUri(new File(directory, "import.csv").getAbsoluteFile());
+        new SimpleDbBackupApplication().withSimpleDbClient(simpleDb).run(new URI("sdb:///" + DOMAIN), importUri);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (File file : directory.listFiles()) {
+            Files.delete(file.toPath());
+        }
+        Files.delete(directory.toPath());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public void export() throws Exception {
+        new SimpleDbBackupApplication().withSimpleDbClient(simpleDb).run(new URI("sdb:///" + DOMAIN), exportUri);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public void restore() throws Exception {
+        new SimpleDbBackupApplication().withSimpleDbClient(simpleDb).run(importUri, new URI("sdb:///Restored?batch=25"));
+    }
+}
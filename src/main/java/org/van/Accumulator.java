@@ -4,17 +4,21 @@ package org.van;
  * Created by vly on 11/15/2015.
  */
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.RandomAccess;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.ToLongFunction;
 
 /**
  * Given a list of records, this class is used to iterate each record (via a call to
  * {@link #accumulate(Object)}) and aggregate them into instances of T. A new instance of T is
- * created when a new K is detected in the records accumulated.
+ * created when a new K is detected in the records accumulated, and the previous instance is
+ * emitted then, complete. The last instance is emitted by {@link #flush()} at the end of the
+ * records.
  * <br>
  * Accumulators can be chained to build up sub-collections.
  * <br>
@@ -39,6 +43,10 @@ import java.util.function.Function;
  *     <li>Person: {1, Joe Slim} with a collection of Dish: {Chicken}</li>
  *     <li>Person: {2, Bob Portly} with a collection of Dish: {Steak, Fish, Spinach}</li>
  * </ul>
+ * <br>
+ * The key of a row is extracted once and kept for the comparison with the next rows, and no
+ * wrapper is allocated per row. Keys that are numbers can be kept unboxed (see
+ * {@link #byLongKey(ToLongFunction, Function, Consumer)}).
  *
  * @param <P> the type of the parent entity (for chaining)
  * @param <T> the type of the entity to build off of the rows
@@ -47,62 +55,65 @@ import java.util.function.Function;
  */
 public class Accumulator<P,T,R,K> {
 
-    Function<R,K> rowKeyExtractor;
-    Function<T,K> accumulatedKeyExtractor;
-    Function<R,T> accumulateMapper;
-    Consumer<T> emitter;
+    private final Function<R,K> rowKeyExtractor;
+    private final ToLongFunction<R> rowLongKeyExtractor;
+    private final Function<R,T> accumulateMapper;
+    private Consumer<T> emitter;
+
+    // Set when chained, to add the accumulated entities to the parent's
+    private BiConsumer<P,T> attacher;
 
-    // accumulation entity
-    T accumulated;
+    private final List<Accumulator<T,?,R,?>> chained = new ArrayList<>();
 
-    List<Accumulator> chained;
+    // accumulation entity, the parent it belongs to and its key
+    private T accumulated;
+    private P parent;
+    private K key;
+    private long longKey;
 
     /**
      * Create an instance of the accumulator with the various operational closures
      *
      * @param rowKeyExtractor closure to compute a key from a row
-     * @param accumulatedRowExtractor closure to access the current key from an instance of T
-     * @param accumulateMapper maps a row into an instance of T
-     * @param emitter closure to emit an instance of T created from a row of data. NOTE that, if there
-     *                are contiguous rows of data corresponding to the same instance (i.e. matching "key" properties),
-     *                then this instance will not be complete yet because those subsequent rows have yet to be
-     *                processed. Only when processing a new entity (or end of data is reached) will the current entity
-     *                be completely built.
+     * @param accumulateMapper maps a row into an instance of T; rows mapped to null are ignored
+     * @param emitter closure to emit an instance of T once all its rows are accumulated, i.e. when
+     *                a row of another key is accumulated or on {@link #flush()}
      */
-    public Accumulator(
-        Function<R,K> rowKeyExtractor, Function<T,K> accumulatedRowExtractor,
-        Function<R,T> accumulateMapper,
-        Consumer<T> emitter) {
-        accumulated = null;
+    public Accumulator(Function<R,K> rowKeyExtractor, Function<R,T> accumulateMapper, Consumer<T> emitter) {
+        this(Objects.requireNonNull(rowKeyExtractor), null, accumulateMapper, emitter);
+    }
 
+    private Accumulator(
+        Function<R,K> rowKeyExtractor, ToLongFunction<R> rowLongKeyExtractor,
+        Function<R,T> accumulateMapper, Consumer<T> emitter) {
+        Objects.requireNonNull(accumulateMapper);
         this.rowKeyExtractor = rowKeyExtractor;
-        this.accumulatedKeyExtractor = accumulatedRowExtractor;
+        this.rowLongKeyExtractor = rowLongKeyExtractor;
         this.accumulateMapper = accumulateMapper;
         this.emitter = emitter;
-        this.chained = new LinkedList<>();
     }
 
     /**
-     * Create an instance of the accumulator with the various operational closures. Since this variant doesn't
-     * accept an emitter, the only way the caller will be able to access any accumulated value is to subclass
-     * and override {@link #transition(Optional, Object)}, so this ctor will be protected.
+     * Create an instance of the accumulator for rows whose key is a number, kept unboxed.
      *
      * @param rowKeyExtractor closure to compute a key from a row
-     * @param accumulatedRowExtractor closure to access the current key from an instance of T
-     * @param accumulateMapper maps a row into an instance of T
+     * @param accumulateMapper maps a row into an instance of T; rows mapped to null are ignored
+     * @param emitter closure to emit an instance of T once all its rows are accumulated
+     * @param <P> the type of the parent entity (for chaining)
+     * @param <T> the type of the entity to build off of the rows
+     * @param <R> the type of the rows
+     *
+     * @return a new accumulator
      */
-    protected Accumulator(
-        Function<R,K> rowKeyExtractor, Function<T,K> accumulatedRowExtractor,
-        Function<R,T> accumulateMapper) {
-        this(rowKeyExtractor, accumulatedRowExtractor, accumulateMapper, null);
+    public static <P,T,R> Accumulator<P,T,R,Long> byLongKey(
+        ToLongFunction<R> rowKeyExtractor, Function<R,T> accumulateMapper, Consumer<T> emitter) {
+        return new Accumulator<>(null, Objects.requireNonNull(rowKeyExtractor), accumulateMapper, emitter);
     }
 
     /**
-     * Sets the emitter closure for emitting any new accumulated values. NOTE that the new accumulated value/entity
-     * MAY NOT be fully completed yet because subsequent rows have yet to be processed. Only when processing a
-     * new entity (or end of data is reached) will the current entity be completely built.
+     * Sets the emitter closure for emitting the accumulated values/entities, once complete.
      *
-     * @param emitter a closure to accept a new accumulated value/entity
+     * @param emitter a closure to accept an accumulated value/entity
      *
      * @return this instance
      */
@@ -113,14 +124,20 @@ public class Accumulator<P,T,R,K> {
 
     /**
      * Chain the provided accumulator to this accumulator. As this accumulator works with rows
-     * of data, it calls the chained accumulators at the appropriate times to allow the chained
-     * accumulators to handle subsets of data.
+     * of data, it passes them on to the chained accumulators, which group the rows of each
+     * entity of this one into sub-entities. The sub-entities are attached to their entity once
+     * complete, before the entity itself is emitted; the emitter of the chained accumulator is
+     * not used.
      *
      * @param a the accumulator to chain into this one
+     * @param attacher closure adding a sub-entity to its entity
+     * @param <C> the type of the sub-entities
      *
      * @return this instance
      */
-    public Accumulator withChained(Accumulator a) {
+    public <C> Accumulator<P,T,R,K> withChained(Accumulator<T,C,R,?> a, BiConsumer<T,C> attacher) {
+        Objects.requireNonNull(attacher);
+        a.attacher = attacher;
         chained.add(a);
         return this;
     }
@@ -131,58 +148,74 @@ public class Accumulator<P,T,R,K> {
      * @param row the row of data to accumulate (if null, it will be ignored)
      */
     public void accumulate(R row) {
-        accumulate(Optional.<P>empty(), Optional.ofNullable(row));
+        if (null != row) {
+            accumulate(null, row);
+        }
     }
 
     /**
-     * Accumulate a row of data
+     * Accumulate rows of data, in order
      *
-     * @param parentAccumulated the accumulated entity from the parent accumulator, if any
-     *                          (used for chaining)
-     * @param row the row of data or empty if this is the end of data.
+     * @param rows the rows of data to accumulate (null rows are ignored)
      */
-    @SuppressWarnings("unchecked")
-    protected void accumulate(Optional<P> parentAccumulated, Optional<R> row) {
-        if (row.isPresent()) {
-            if ( (null == accumulated) ||
-                !Objects.equals(rowKeyExtractor.apply(row.get()), accumulatedKeyExtractor.apply(accumulated)) ) {
-                // A new value should now be accumulated. A new (or first) accumulated value should be
-                // created for this row
-                transition(parentAccumulated, row.get());
-            } else {
-                for (Accumulator a: chained) {
-                    a.accumulate(Optional.of(accumulated), row);
-                }
+    public void accumulate(List<R> rows) {
+        if (rows instanceof RandomAccess) {
+            for (int i = 0, n = rows.size(); i < n; i++) {
+                accumulate(rows.get(i));
+            }
+        } else {
+            for (R row : rows) {
+                accumulate(row);
             }
         }
     }
 
     /**
-     * Emit whatever accumulated entity so far and start a new entity based on the row of
-     * data provided. Chaining accumulators typically will aggregate their accumulated entity
-     * into the parent accumulated entity.
-     *
-     * @param parentAccumulated when chaining, this is the parent's accumulated value
-     *                          if available.
-     * @param row the data to create a new entity for, can be null when the row signifies
-     *            the end of the data stream.
-     *
-     * @return the emitted instance of T if available
+     * Emit the entity accumulated so far, at the end of the data. The next row accumulated starts
+     * a new entity, whatever its key.
      */
-    @SuppressWarnings("unchecked")
-    protected Optional<T> transition(Optional<P> parentAccumulated, R row) {
-        accumulated = accumulateMapper.apply(row);
-        Optional<T> toBeEmitted = Optional.ofNullable(accumulated);
-        if (toBeEmitted.isPresent()) {
-            for (Accumulator c: chained) {
-                c.transition(toBeEmitted, row);
-            }
-            if (null != emitter){
-                emitter.accept(toBeEmitted.get());
-            }
+    public void flush() {
+        if (null == accumulated) {
+            return;
+        }
+        for (int i = 0, n = chained.size(); i < n; i++) {
+            chained.get(i).flush();
+        }
+        T complete = accumulated;
+        accumulated = null;
+        key = null;
+        if (null != attacher) {
+            attacher.accept(parent, complete);
+            parent = null;
+        } else if (null != emitter) {
+            emitter.accept(complete);
         }
-        return toBeEmitted;
     }
 
+    private void accumulate(P parentAccumulated, R row) {
+        K rowKey = null;
+        long rowLongKey = 0;
+        boolean sameKey;
+        if (null == rowLongKeyExtractor) {
+            rowKey = rowKeyExtractor.apply(row);
+            sameKey = (null != accumulated) && Objects.equals(rowKey, key);
+        } else {
+            rowLongKey = rowLongKeyExtractor.applyAsLong(row);
+            sameKey = (null != accumulated) && (rowLongKey == longKey);
+        }
+        if (!sameKey) {
+            // A new (or first) accumulated value should be created for this row
+            flush();
+            accumulated = accumulateMapper.apply(row);
+            if (null == accumulated) {
+                return;
+            }
+            parent = parentAccumulated;
+            key = rowKey;
+            longKey = rowLongKey;
+        }
+        for (int i = 0, n = chained.size(); i < n; i++) {
+            chained.get(i).accumulate(accumulated, row);
+        }
+    }
 }
-
@@ -0,0 +1,275 @@
+package org.van;
+
+import org.apache.log4j.Logger;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of requests in flight with an additive-increase/multiplicative-decrease
+ * (AIMD) controller, the way TCP finds the capacity of a link.
+ * <br>
+ * Every request that completes without error within {@link #LATENCY_TOLERANCE} times the lowest
+ * recent latency raises the limit by 1/limit, i.e. by one for every full window of healthy
+ * requests. Every throttled request cuts the limit by {@link #DECREASE_FACTOR}, at most once per
+ * {@link #DECREASE_COOLDOWN_MILLIS} so a burst of throttling from one window counts only once.
+ * Slow or failed requests hold the limit where it is.
+ * <br>
+ * The lowest recent latency is that of the requests of the last one to two
+ * {@link #LATENCY_WINDOW_MILLIS}, and is learned again after every cut, so a service that has
+ * become slower for good is not held to how fast it once answered.
+ * <br>
+ * Controllers are shared by name (see {@link #named(String)}) so all the transfers of a process
+ * settle on one limit, and each is registered with JMX as
+ * "org.van:type=ConcurrencyController,name=&lt;name&gt;".
+ */
+public class AimdConcurrencyController implements AimdConcurrencyControllerMBean {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 256;
+
+    public static final double DECREASE_FACTOR = 0.5;
+    public static final double LATENCY_TOLERANCE = 2.0;
+    public static final long DECREASE_COOLDOWN_MILLIS = 1000;
+    public static final long LATENCY_WINDOW_MILLIS = 10000;
+
+    // Weight of the latest latency in the moving average
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    private static final Logger logger =
+        Logger.getLogger(AimdConcurrencyController.class);
+
+    private static final Map<String, AimdConcurrencyController> controllers = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final int minLimit;
+
+    // All guarded by this
+    private int maxLimit;
+    private double limit;
+    private int inFlight = 0;
+    private long increases = 0;
+    private long decreases = 0;
+    private long throttles = 0;
+    private long errors = 0;
+    private double averageLatencyMillis = 0;
+    // Lowest latencies of the current window and of the one before
+    private double minLatencyMillis = Double.MAX_VALUE;
+    private double previousMinLatencyMillis = Double.MAX_VALUE;
+    private long latencyWindowNanos = System.nanoTime();
+    private long lastDecreaseNanos = 0;
+
+    public AimdConcurrencyController(String name, int initialLimit, int minLimit, int maxLimit) {
+        Objects.requireNonNull(name);
+        if ((minLimit < 1) || (maxLimit < minLimit)) {
+            throw new IllegalArgumentException(String.format("Invalid limits [%d, %d]", minLimit, maxLimit));
+        }
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Get the controller shared under the name provided, creating (and registering with JMX) one
+     * with the default limits if needed.
+     *
+     * @param name the name of the controller
+     *
+     * @return the controller
+     */
+    public static AimdConcurrencyController named(String name) {
+        return controllers.computeIfAbsent(name, n -> {
+            AimdConcurrencyController controller = new AimdConcurrencyController(
+                n, DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(controller,
+                    new ObjectName("org.van:type=ConcurrencyController,name=" + ObjectName.quote(n)));
+            } catch (Exception ex) {
+                logger.warn(String.format("Cannot register concurrency controller %s with JMX", n), ex);
+            }
+            return controller;
+        });
+    }
+
+    /**
+     * Perform a request once the limit allows it, and adjust the limit based on its outcome.
+     *
+     * @param request the request to perform
+     * @param <T>
+     *
+     * @return the result of the request
+     */
+    public <T> T call(Supplier<T> request) {
+        acquire();
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            return request.get();
+        } catch (RuntimeException ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            record(System.nanoTime() - start, failure);
+            release();
+        }
+    }
+
+    /**
+     * Wait until there is room for one more request in flight and count it in. Callers must
+     * call {@link #release()} when the request is done.
+     */
+    public synchronized void acquire() {
+        try {
+            while (inFlight >= (int) limit) {
+                wait();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the concurrency limit", ex);
+        }
+        inFlight++;
+    }
+
+    /**
+     * Count a request acquired with {@link #acquire()} out.
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Adjust the limit based on the outcome of a request.
+     *
+     * @param latencyNanos how long the request took
+     * @param failure what the request failed with, or null if it succeeded
+     */
+    public synchronized void record(long latencyNanos, Throwable failure) {
+        if (null != failure) {
+            if (RetryUtility.isThrottling(failure)) {
+                throttles++;
+                long now = System.nanoTime();
+                if ((0 == lastDecreaseNanos) || (now - lastDecreaseNanos >= TimeUnit.MILLISECONDS.toNanos(DECREASE_COOLDOWN_MILLIS))) {
+                    lastDecreaseNanos = now;
+                    setLimit(limit * DECREASE_FACTOR);
+                    resetMinLatency(now);
+                }
+            } else {
+                errors++;
+            }
+            return;
+        }
+
+        double latencyMillis = latencyNanos / 1e6;
+        averageLatencyMillis = (0 == averageLatencyMillis) ? latencyMillis :
+            (LATENCY_SMOOTHING * latencyMillis) + ((1 - LATENCY_SMOOTHING) * averageLatencyMillis);
+        double recentMinLatencyMillis = recordMinLatency(latencyMillis);
+        if ((latencyMillis <= recentMinLatencyMillis * LATENCY_TOLERANCE) && (inFlight >= (int) limit - 1)) {
+            // Only raise the limit when it is actually what holds the requests back
+            setLimit(limit + (1.0 / limit));
+        }
+    }
+
+    /**
+     * Count a latency in the current window, starting a new window if its time is up.
+     *
+     * @return the lowest latency of the current and previous windows
+     */
+    private double recordMinLatency(double latencyMillis) {
+        long now = System.nanoTime();
+        if (now - latencyWindowNanos >= TimeUnit.MILLISECONDS.toNanos(LATENCY_WINDOW_MILLIS)) {
+            previousMinLatencyMillis = minLatencyMillis;
+            minLatencyMillis = Double.MAX_VALUE;
+            latencyWindowNanos = now;
+        }
+        minLatencyMillis = Math.min(minLatencyMillis, latencyMillis);
+        return Math.min(minLatencyMillis, previousMinLatencyMillis);
+    }
+
+    private void resetMinLatency(long now) {
+        minLatencyMillis = Double.MAX_VALUE;
+        previousMinLatencyMillis = Double.MAX_VALUE;
+        latencyWindowNanos = now;
+    }
+
+    /**
+     * Cap the limit, e.g. to hold all the transfers of a process to a budget of requests in
+     * flight. A limit above the new cap is cut to it right away.
+     *
+     * @param maxLimit the highest the limit can go (>= the lowest)
+     */
+    @Override
+    public synchronized void setMaxLimit(int maxLimit) {
+        if (maxLimit < minLimit) {
+            throw new IllegalArgumentException(String.format("Invalid limits [%d, %d]", minLimit, maxLimit));
+        }
+        this.maxLimit = maxLimit;
+        setLimit(limit);
+    }
+
+    @Override
+    public synchronized int getMaxLimit() {
+        return maxLimit;
+    }
+
+    private void setLimit(double newLimit) {
+        int before = (int) limit;
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        int after = (int) limit;
+        if (after > before) {
+            increases++;
+            logger.debug(String.format("Concurrency limit of %s raised to %d", name, after));
+        } else if (after < before) {
+            decreases++;
+            logger.info(String.format("Concurrency limit of %s cut to %d", name, after));
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized long getIncreases() {
+        return increases;
+    }
+
+    @Override
+    public synchronized long getDecreases() {
+        return decreases;
+    }
+
+    @Override
+    public synchronized long getThrottles() {
+        return throttles;
+    }
+
+    @Override
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    @Override
+    public synchronized double getAverageLatencyMillis() {
+        return averageLatencyMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Concurrency controller %s (limit:%d)", name, getLimit());
+    }
+}
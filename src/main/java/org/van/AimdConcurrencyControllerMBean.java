@@ -0,0 +1,52 @@
+package org.van;
+
+/**
+ * JMX view of an {@link AimdConcurrencyController}.
+ */
+public interface AimdConcurrencyControllerMBean {
+
+    /**
+     * @return the current limit of requests in flight
+     */
+    int getLimit();
+
+    /**
+     * @return the highest the limit can go
+     */
+    int getMaxLimit();
+
+    /**
+     * @param maxLimit the highest the limit can go, cutting the current limit if above it
+     */
+    void setMaxLimit(int maxLimit);
+
+    /**
+     * @return the number of requests in flight
+     */
+    int getInFlight();
+
+    /**
+     * @return the number of times the limit was raised
+     */
+    long getIncreases();
+
+    /**
+     * @return the number of times the limit was cut
+     */
+    long getDecreases();
+
+    /**
+     * @return the number of requests that were throttled
+     */
+    long getThrottles();
+
+    /**
+     * @return the number of requests that failed for reasons other than throttling
+     */
+    long getErrors();
+
+    /**
+     * @return the moving average of the request latency in milliseconds
+     */
+    double getAverageLatencyMillis();
+}
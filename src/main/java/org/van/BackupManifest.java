@@ -0,0 +1,198 @@
+package org.van;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+/**
+ * The chain of files of an incremental backup, saved to a small properties file: a full backup
+ * (the base) followed by the deltas holding the items changed since the file before, and the
+ * highest value the change-tracking attribute had when the last backup started (the high-water
+ * mark).
+ * <br>
+ * The files are named after the manifest and kept next to it: the files of "mydomain.manifest"
+ * are "mydomain-0000.csv" (the base), "mydomain-0001.csv" and so on. Restoring the files in
+ * order replays the changes on top of the base.
+ */
+public class BackupManifest {
+
+    public static final String EXTENSION = ".manifest";
+
+    private static final String SOURCE = "source";
+    private static final String ATTRIBUTE = "attribute";
+    private static final String HIGH_WATER_MARK = "highWaterMark";
+    private static final String FILES = "files";
+    private static final String FILE = "file.";
+
+    private final URI source;
+    private final String attribute;
+    private final List<String> files;
+    private final Optional<String> highWaterMark;
+
+    public BackupManifest(URI source, String attribute) {
+        this(source, attribute, Collections.emptyList(), Optional.empty());
+    }
+
+    private BackupManifest(URI source, String attribute, List<String> files, Optional<String> highWaterMark) {
+        Objects.requireNonNull(source);
+        Objects.requireNonNull(attribute);
+        Objects.requireNonNull(files);
+        Objects.requireNonNull(highWaterMark);
+        this.source = source;
+        this.attribute = attribute;
+        this.files = Collections.unmodifiableList(new ArrayList<>(files));
+        this.highWaterMark = highWaterMark;
+    }
+
+    public URI getSource() {
+        return source;
+    }
+
+    public String getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * @return the names of the files of the backup, base first
+     */
+    public List<String> getFiles() {
+        return files;
+    }
+
+    public Optional<String> getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Get the file the next backup recorded in the manifest provided should be written to.
+     *
+     * @param manifestFile the file this manifest is saved in
+     *
+     * @return the next file of the chain
+     */
+    public File nextFile(File manifestFile) {
+        String name = manifestFile.getName();
+        if (name.endsWith(EXTENSION)) {
+            name = name.substring(0, name.length() - EXTENSION.length());
+        }
+        return new File(manifestFile.getParentFile(), String.format("%s-%04d.csv", name, files.size()));
+    }
+
+    /**
+     * Get the files of the backup recorded in the manifest provided, base first.
+     *
+     * @param manifestFile the file this manifest is saved in
+     *
+     * @return the files of the chain
+     */
+    public List<File> resolveFiles(File manifestFile) {
+        return files.stream()
+            .map(f -> new File(manifestFile.getParentFile(), f))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Create a copy of this manifest with one more file in the chain.
+     *
+     * @param file the file holding the new backup
+     * @param mark the highest value of the change-tracking attribute when the new backup started
+     *     (see {@link org.van.providers.ItemSourceProvider#highestValueOf(String)}), if known
+     *
+     * @return a new manifest
+     */
+    public BackupManifest withBackup(File file, Optional<String> mark) {
+        List<String> newFiles = new ArrayList<>(files);
+        newFiles.add(file.getName());
+        Optional<String> newMark = highWaterMark;
+        if (mark.isPresent() && (!newMark.isPresent() || (mark.get().compareTo(newMark.get()) > 0))) {
+            newMark = mark;
+        }
+        return new BackupManifest(source, attribute, newFiles, newMark);
+    }
+
+    /**
+     * Save this manifest to the file provided. The file is replaced in one step so that a crash
+     * while saving leaves the previous manifest in place.
+     *
+     * @param file the file to save to
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(SOURCE, source.toString());
+        properties.setProperty(ATTRIBUTE, attribute);
+        highWaterMark.ifPresent(m -> properties.setProperty(HIGH_WATER_MARK, m));
+        properties.setProperty(FILES, String.valueOf(files.size()));
+        for (int i = 0; i < files.size(); i++) {
+            properties.setProperty(FILE + i, files.get(i));
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "simpledb-bkrs incremental backup manifest");
+            out.flush();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a manifest from the file provided.
+     *
+     * @param file the file to load from
+     *
+     * @return the manifest, or empty if the file does not exist
+     * @throws IOException if the file cannot be read or is not a manifest
+     */
+    public static Optional<BackupManifest> load(File file) throws IOException {
+        if (!file.exists()) {
+            return Optional.empty();
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        try {
+            int count = Integer.parseInt(required(properties, FILES, file));
+            List<String> files = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                files.add(required(properties, FILE + i, file));
+            }
+            return Optional.of(new BackupManifest(
+                new URI(required(properties, SOURCE, file)),
+                required(properties, ATTRIBUTE, file),
+                files,
+                Optional.ofNullable(properties.getProperty(HIGH_WATER_MARK))));
+        } catch (URISyntaxException | NumberFormatException ex) {
+            throw new IOException(String.format("Invalid manifest file %s", file), ex);
+        }
+    }
+
+    private static String required(Properties properties, String name, File file) throws IOException {
+        String value = properties.getProperty(name);
+        if (null == value) {
+            throw new IOException(String.format("Manifest file %s has no %s", file, name));
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Incremental backup of %s by %s (files:%d, high-water mark:%s)",
+            source, attribute, files.size(), highWaterMark.orElse("none"));
+    }
+}
@@ -0,0 +1,424 @@
+package org.van;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.AmazonSimpleDBAsyncClient;
+import org.apache.log4j.Logger;
+import org.van.providers.impl.SourceStoreProviderFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Transfers many domains in one process: the source and destination are URI templates holding
+ * {@link #DOMAIN_PLACEHOLDER}, and a transfer is run for each domain, a few at a time on a
+ * shared pool of threads. A domain failing does not stop the others; the outcome of each is
+ * logged and, optionally, written to a JSON summary.
+ * <br>
+ * The transfers share what the process shares: the {@link AimdConcurrencyController}s, which
+ * hold all of them to one budget of SimpleDB calls in flight, the {@link TransferMetrics}, and
+ * one SimpleDB client. The threads of the pool are virtual threads when the runtime has them
+ * (Java 21 and later), as they mostly wait for the transfers they run.
+ * <br>
+ * Domains are given as names and glob patterns ("orders-*"), the patterns being matched against
+ * the domains of the SimpleDB side of the transfers.
+ */
+public class BatchTransfer {
+
+    public static final String DOMAIN_PLACEHOLDER = "{domain}";
+    public static final int DEFAULT_JOBS = 8;
+
+    private static final Logger logger =
+        Logger.getLogger(BatchTransfer.class);
+
+    private final Function<String, SimpleDbBackupApplication> applicationFor;
+    private int jobs = DEFAULT_JOBS;
+    private long progressIntervalSeconds = 0;
+    private File summaryFile = null;
+    private Optional<AmazonSimpleDB> simpleDb = Optional.empty();
+
+    /**
+     * @param applicationFor creates the application transferring a domain, set up with the
+     *     options of the batch (e.g. its own checkpoint file)
+     */
+    public BatchTransfer(Function<String, SimpleDbBackupApplication> applicationFor) {
+        Objects.requireNonNull(applicationFor);
+        this.applicationFor = applicationFor;
+    }
+
+    /**
+     * Sets the number of domains transferred at the same time.
+     *
+     * @param jobs the number of transfers at once (>= 1)
+     *
+     * @return this instance
+     */
+    public BatchTransfer withJobs(int jobs) {
+        if (jobs < 1) {
+            throw new IllegalArgumentException(String.format("Invalid number of jobs %d", jobs));
+        }
+        this.jobs = jobs;
+        return this;
+    }
+
+    /**
+     * Log a line telling how far the batch has got at the interval provided: the items and
+     * bytes of all its transfers, and the share of the domains done.
+     *
+     * @param intervalSeconds the time between the lines, 0 for none (the default)
+     *
+     * @return this instance
+     */
+    public BatchTransfer withProgress(long intervalSeconds) {
+        if (intervalSeconds < 0) {
+            throw new IllegalArgumentException(String.format("Invalid progress interval %d", intervalSeconds));
+        }
+        this.progressIntervalSeconds = intervalSeconds;
+        return this;
+    }
+
+    /**
+     * Write a JSON summary of the batch, with the outcome of every domain, to the file provided
+     * when it ends.
+     *
+     * @param summaryFile the file to write the summary to
+     *
+     * @return this instance
+     */
+    public BatchTransfer withSummary(File summaryFile) {
+        Objects.requireNonNull(summaryFile);
+        this.summaryFile = summaryFile;
+        return this;
+    }
+
+    /**
+     * Sets the client to access SimpleDB with, instead of one created for the batch.
+     *
+     * @param simpleDb the client for "sdb" URIs
+     *
+     * @return this instance
+     */
+    public BatchTransfer withSimpleDbClient(AmazonSimpleDB simpleDb) {
+        Objects.requireNonNull(simpleDb);
+        this.simpleDb = Optional.of(simpleDb);
+        return this;
+    }
+
+    /**
+     * Parse a list of domains: names and patterns separated by commas, or "@file" for a file
+     * holding one per line (blank lines and lines starting with "#" are skipped).
+     *
+     * @param domains the list
+     *
+     * @return the names and patterns
+     * @throws IOException if the file cannot be read
+     */
+    public static List<String> parseDomains(String domains) throws IOException {
+        Objects.requireNonNull(domains);
+        List<String> names = domains.startsWith("@") ?
+            Files.readAllLines(new File(domains.substring(1)).toPath(), StandardCharsets.UTF_8) :
+            Arrays.asList(domains.split(","));
+        return names.stream()
+            .map(String::trim)
+            .filter(n -> !n.isEmpty() && !n.startsWith("#"))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Transfer every domain provided.
+     *
+     * @param sourceTemplate the source URI, with {@link #DOMAIN_PLACEHOLDER} for the domain
+     * @param destinationTemplate the destination URI, with {@link #DOMAIN_PLACEHOLDER} for the
+     *     domain
+     * @param domains the names and glob patterns of the domains
+     *
+     * @return the outcome of every domain, in the order of the domains
+     * @throws Exception if the domains cannot be listed or the batch is interrupted; the
+     *     failures of single domains are reported in their outcome instead
+     */
+    public List<Result> run(String sourceTemplate, String destinationTemplate, List<String> domains) throws Exception {
+        Objects.requireNonNull(sourceTemplate);
+        Objects.requireNonNull(destinationTemplate);
+        Objects.requireNonNull(domains);
+        if (!sourceTemplate.contains(DOMAIN_PLACEHOLDER) || !destinationTemplate.contains(DOMAIN_PLACEHOLDER)) {
+            throw new IllegalArgumentException(String.format(
+                "The source and destination of a batch must both hold %s", DOMAIN_PLACEHOLDER));
+        }
+        Optional<AmazonSimpleDB> sharedClient = simpleDb;
+        boolean ownClient = false;
+        if (!sharedClient.isPresent() && (isSimpleDb(sourceTemplate, SourceStoreProviderFactory.SCHEME_SIMPLEDB) ||
+            isSimpleDb(destinationTemplate, SourceStoreProviderFactory.SCHEME_SIMPLEDB))) {
+            // One client, and one pool of connections, for all the transfers
+            sharedClient = Optional.of(new AmazonSimpleDBAsyncClient().withRegion(Regions.US_WEST_2));
+            ownClient = true;
+        }
+        try {
+            List<String> names = resolveDomains(sourceTemplate, destinationTemplate, domains, sharedClient);
+            logger.info(String.format("Transferring %d domains, %d at a time...", names.size(), jobs));
+            return run(sourceTemplate, destinationTemplate, names, sharedClient);
+        } finally {
+            if (ownClient) {
+                ((AmazonSimpleDBAsyncClient) sharedClient.get()).shutdown();
+            }
+        }
+    }
+
+    private List<Result> run(String sourceTemplate, String destinationTemplate, List<String> names,
+                             Optional<AmazonSimpleDB> sharedClient) throws Exception {
+        AtomicInteger finished = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(jobs, transferThreads());
+        List<Result> results = new ArrayList<>();
+        try (TransferProgress progress = new TransferProgress(() -> names.isEmpty() ? OptionalDouble.empty() :
+                OptionalDouble.of((double) finished.get() / names.size()))) {
+            if (progressIntervalSeconds > 0) {
+                progress.withProgressLines(progressIntervalSeconds);
+            }
+            List<Future<Result>> futures = new ArrayList<>();
+            for (String name : names) {
+                futures.add(executor.submit(() -> {
+                    try {
+                        return transfer(name, sourceTemplate, destinationTemplate, sharedClient);
+                    } finally {
+                        finished.incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+            if (progressIntervalSeconds > 0) {
+                logger.info(progress.progressLine());
+            }
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Batch transfer failed", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<Result> failed = results.stream().filter(r -> !r.isSucceeded()).collect(Collectors.toList());
+        logger.info(String.format("Transferred %d of %d domains (%d items) in %d s", results.size() - failed.size(),
+            results.size(), results.stream().mapToLong(Result::getItems).sum(),
+            (System.currentTimeMillis() - start) / 1000));
+        for (Result result : failed) {
+            logger.error(String.format("Failed: %s (%s)", result.getDomain(), result.getError().orElse("")));
+        }
+        if (null != summaryFile) {
+            writeSummary(results, System.currentTimeMillis() - start);
+        }
+        return results;
+    }
+
+    private Result transfer(String name, String sourceTemplate, String destinationTemplate,
+                            Optional<AmazonSimpleDB> sharedClient) {
+        long start = System.currentTimeMillis();
+        String source = sourceTemplate.replace(DOMAIN_PLACEHOLDER, name);
+        String destination = destinationTemplate.replace(DOMAIN_PLACEHOLDER, name);
+        try {
+            SimpleDbBackupApplication app = applicationFor.apply(name);
+            sharedClient.ifPresent(app::withSimpleDbClient);
+            long items = app.run(new URI(source), new URI(destination));
+            return new Result(name, source, destination, items, System.currentTimeMillis() - start, Optional.empty());
+        } catch (Exception ex) {
+            logger.error(String.format("Transfer of %s failed", name), ex);
+            return new Result(name, source, destination, 0, System.currentTimeMillis() - start,
+                Optional.of(String.valueOf(ex.getMessage())));
+        }
+    }
+
+    /**
+     * Expand the patterns of the domains provided against the domains of the SimpleDB side of
+     * the transfers, the source if both are.
+     */
+    private static List<String> resolveDomains(String sourceTemplate, String destinationTemplate,
+                                               List<String> domains, Optional<AmazonSimpleDB> client)
+        throws URISyntaxException {
+        Set<String> names = new LinkedHashSet<>();
+        List<String> existing = null;
+        for (String domain : domains) {
+            if (!isPattern(domain)) {
+                names.add(domain);
+                continue;
+            }
+            if (null == existing) {
+                String side = isSimpleDb(sourceTemplate) ? sourceTemplate :
+                    isSimpleDb(destinationTemplate) ? destinationTemplate : null;
+                if (null == side) {
+                    throw new IllegalArgumentException(String.format(
+                        "Domain pattern %s needs a SimpleDB source or destination to list the domains of", domain));
+                }
+                existing = SourceStoreProviderFactory.listDomains(new URI(side.replace(DOMAIN_PLACEHOLDER, "")), client);
+            }
+            Pattern pattern = globPattern(domain);
+            List<String> matches = existing.stream().filter(d -> pattern.matcher(d).matches()).sorted()
+                .collect(Collectors.toList());
+            if (matches.isEmpty()) {
+                logger.warn(String.format("No domain matches %s", domain));
+            }
+            names.addAll(matches);
+        }
+        return new ArrayList<>(names);
+    }
+
+    private static boolean isPattern(String domain) {
+        return (domain.indexOf('*') >= 0) || (domain.indexOf('?') >= 0);
+    }
+
+    private static Pattern globPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (('*' == c) || ('?' == c)) {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(('*' == c) ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static boolean isSimpleDb(String template) {
+        return isSimpleDb(template, SourceStoreProviderFactory.SCHEME_SIMPLEDB) ||
+            isSimpleDb(template, SourceStoreProviderFactory.SCHEME_SIMPLEDB_LOCAL);
+    }
+
+    private static boolean isSimpleDb(String template, String scheme) {
+        return template.startsWith(scheme + ":");
+    }
+
+    /**
+     * Get a factory of virtual threads if the runtime has them (looked up by reflection, as the
+     * code is built for Java 8), or else of daemon platform threads.
+     */
+    static ThreadFactory transferThreads() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "transfer-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            logger.debug("Running the transfers on virtual threads");
+            return factory;
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            AtomicInteger count = new AtomicInteger();
+            return r -> {
+                Thread thread = new Thread(r, "transfer-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    private void writeSummary(List<Result> results, long elapsedMillis) {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append(String.format("  \"domains\": %d,\n", results.size()));
+        json.append(String.format("  \"failed\": %d,\n", results.stream().filter(r -> !r.isSucceeded()).count()));
+        json.append(String.format("  \"elapsedMillis\": %d,\n", elapsedMillis));
+        json.append(String.format("  \"items\": %d,\n", results.stream().mapToLong(Result::getItems).sum()));
+        json.append("  \"transfers\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append((0 == i) ? "\n" : ",\n");
+            json.append(String.format("    {\"domain\": \"%s\", \"source\": \"%s\", \"destination\": \"%s\", " +
+                    "\"succeeded\": %b, \"items\": %d, \"elapsedMillis\": %d",
+                TransferProgress.jsonEscape(result.getDomain()), TransferProgress.jsonEscape(result.getSource()),
+                TransferProgress.jsonEscape(result.getDestination()), result.isSucceeded(), result.getItems(),
+                result.getElapsedMillis()));
+            result.getError().ifPresent(e -> json.append(String.format(", \"error\": \"%s\"",
+                TransferProgress.jsonEscape(e))));
+            json.append("}");
+        }
+        json.append(results.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+        try (Writer writer = new OutputStreamWriter(Files.newOutputStream(summaryFile.toPath()), StandardCharsets.UTF_8)) {
+            writer.write(json.toString());
+        } catch (IOException ex) {
+            logger.warn(String.format("Cannot write the summary to %s", summaryFile), ex);
+        }
+    }
+
+    /**
+     * The outcome of the transfer of one domain.
+     */
+    public static final class Result {
+
+        private final String domain;
+        private final String source;
+        private final String destination;
+        private final long items;
+        private final long elapsedMillis;
+        private final Optional<String> error;
+
+        private Result(String domain, String source, String destination, long items, long elapsedMillis,
+                       Optional<String> error) {
+            this.domain = domain;
+            this.source = source;
+            this.destination = destination;
+            this.items = items;
+            this.elapsedMillis = elapsedMillis;
+            this.error = error;
+        }
+
+        public String getDomain() {
+            return domain;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getDestination() {
+            return destination;
+        }
+
+        public boolean isSucceeded() {
+            return !error.isPresent();
+        }
+
+        /**
+         * @return the number of items transferred
+         */
+        public long getItems() {
+            return items;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * @return what the transfer failed with, if it did
+         */
+        public Optional<String> getError() {
+            return error;
+        }
+    }
+}
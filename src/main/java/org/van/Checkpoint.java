@@ -0,0 +1,152 @@
+package org.van;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * Progress of a transfer, saved to a small properties file so that an interrupted transfer can
+ * be resumed: the source and destination, the positions each can resume from, the number
+ * of items stored so far and, for an incremental backup, the mark it records once complete.
+ */
+public class Checkpoint {
+
+    private static final String SOURCE = "source";
+    private static final String DESTINATION = "destination";
+    private static final String SOURCE_POSITION = "sourcePosition";
+    private static final String DESTINATION_POSITION = "destinationPosition";
+    private static final String ITEMS = "items";
+    private static final String MARK = "mark";
+
+    private final URI source;
+    private final URI destination;
+    private final String sourcePosition;
+    private final Optional<String> destinationPosition;
+    private final long items;
+    private final Optional<String> mark;
+
+    public Checkpoint(URI source, URI destination, String sourcePosition,
+                      Optional<String> destinationPosition, long items) {
+        this(source, destination, sourcePosition, destinationPosition, items, Optional.empty());
+    }
+
+    /**
+     * @param mark for an incremental backup, the mark it records once complete: taken when the
+     *     transfer first started, so a resumed transfer keeps it
+     */
+    public Checkpoint(URI source, URI destination, String sourcePosition,
+                      Optional<String> destinationPosition, long items, Optional<String> mark) {
+        Objects.requireNonNull(source);
+        Objects.requireNonNull(destination);
+        Objects.requireNonNull(sourcePosition);
+        Objects.requireNonNull(destinationPosition);
+        Objects.requireNonNull(mark);
+        this.source = source;
+        this.destination = destination;
+        this.sourcePosition = sourcePosition;
+        this.destinationPosition = destinationPosition;
+        this.items = items;
+        this.mark = mark;
+    }
+
+    public URI getSource() {
+        return source;
+    }
+
+    public URI getDestination() {
+        return destination;
+    }
+
+    public String getSourcePosition() {
+        return sourcePosition;
+    }
+
+    public Optional<String> getDestinationPosition() {
+        return destinationPosition;
+    }
+
+    public long getItems() {
+        return items;
+    }
+
+    public Optional<String> getMark() {
+        return mark;
+    }
+
+    /**
+     * Save this checkpoint to the file provided. The file is replaced in one step so that a crash
+     * while saving leaves the previous checkpoint in place.
+     *
+     * @param file the file to save to
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(SOURCE, source.toString());
+        properties.setProperty(DESTINATION, destination.toString());
+        properties.setProperty(SOURCE_POSITION, sourcePosition);
+        destinationPosition.ifPresent(p -> properties.setProperty(DESTINATION_POSITION, p));
+        properties.setProperty(ITEMS, String.valueOf(items));
+        mark.ifPresent(m -> properties.setProperty(MARK, m));
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "simpledb-bkrs transfer checkpoint");
+            out.flush();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a checkpoint from the file provided.
+     *
+     * @param file the file to load from
+     *
+     * @return the checkpoint, or empty if the file does not exist
+     * @throws IOException if the file cannot be read or is not a checkpoint
+     */
+    public static Optional<Checkpoint> load(File file) throws IOException {
+        if (!file.exists()) {
+            return Optional.empty();
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        try {
+            return Optional.of(new Checkpoint(
+                new URI(required(properties, SOURCE, file)),
+                new URI(required(properties, DESTINATION, file)),
+                required(properties, SOURCE_POSITION, file),
+                Optional.ofNullable(properties.getProperty(DESTINATION_POSITION)),
+                Long.parseLong(properties.getProperty(ITEMS, "0")),
+                Optional.ofNullable(properties.getProperty(MARK))));
+        } catch (URISyntaxException | NumberFormatException ex) {
+            throw new IOException(String.format("Invalid checkpoint file %s", file), ex);
+        }
+    }
+
+    private static String required(Properties properties, String name, File file) throws IOException {
+        String value = properties.getProperty(name);
+        if (null == value) {
+            throw new IOException(String.format("Checkpoint file %s has no %s", file, name));
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Checkpoint of %s to %s after %d items", source, destination, items);
+    }
+}
@@ -0,0 +1,556 @@
+package org.van;
+
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchDeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.DeletableItem;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import org.apache.log4j.Logger;
+import org.van.providers.ItemStoreProvider;
+import org.van.providers.impl.ItemNameRange;
+import org.van.providers.impl.ItemNameRangeSplitter;
+import org.van.providers.impl.SelectExpression;
+import org.van.providers.impl.SimpleDbSourceProvider;
+import org.van.providers.impl.SimpleDbStoreProvider;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Makes a SimpleDB domain the same as another one, writing only what differs between them.
+ * <br>
+ * Both domains are split into the same item name ranges (see {@link ItemNameRangeSplitter}), and
+ * each range is read from both domains at the same time to compute a digest of its content: the
+ * number of items and the sum of a hash of each item, so the order the items come in does not
+ * matter. A range with the same digest on both sides is left alone. A range that differs is split
+ * again, until it holds few enough items to be compared item by item: the items missing from the
+ * destination or different there are put, replacing their attributes; the attributes only the
+ * destination has are deleted; and the items missing from the source are deleted.
+ * <br>
+ * A range that differs is read once more for each level it is split down, so reads grow with the
+ * differences as well, but writes are only made for what differs.
+ * <br>
+ * Ranges are compared on a pool of threads, and the two sides of a range are read on a pool of
+ * their own, so reading a side never waits for a range. All calls go through the same
+ * {@link AimdConcurrencyController}s as transfers, and are counted in the
+ * {@link TransferMetrics} of the process.
+ */
+public class DomainSync implements Closeable {
+
+    public static final int MAXRETRIES = 3;
+    public static final int DEFAULT_LEAF_ITEMS = 2500;
+
+    // Number of ranges a range that differs is split into
+    private static final int FANOUT = 8;
+    // Ranges that still differ this deep are compared item by item whatever their size
+    private static final int MAX_DEPTH = 16;
+    private static final int MAX_DELETE_ITEMS = 25;
+
+    private static final Logger logger =
+        Logger.getLogger(DomainSync.class);
+
+    private final Side source;
+    private final Side destination;
+    private final ItemStoreProvider store;
+    private int threads = 1;
+    private int leafItems = DEFAULT_LEAF_ITEMS;
+    private final AimdConcurrencyController selects =
+        AimdConcurrencyController.named(SimpleDbSourceProvider.CONCURRENCY_CONTROLLER);
+    private final AimdConcurrencyController writes =
+        AimdConcurrencyController.named(SimpleDbStoreProvider.CONCURRENCY_CONTROLLER);
+    private final TransferMetrics metrics = TransferMetrics.global();
+
+    private final AtomicLong sourceItems = new AtomicLong(-1);
+    private final AtomicLong itemsSettled = new AtomicLong();
+    private final AtomicLong rangesSkipped = new AtomicLong();
+    private final AtomicLong rangesCompared = new AtomicLong();
+    private final AtomicLong itemsPut = new AtomicLong();
+    private final AtomicLong itemsDeleted = new AtomicLong();
+    private final AtomicLong attributesDeleted = new AtomicLong();
+
+    /**
+     * @param sourceClient the client to read the source domain with
+     * @param sourceDomain the domain to copy
+     * @param destinationClient the client to read and delete from the destination domain with
+     * @param destinationDomain the domain to make the same as the source
+     * @param store the store putting items to the destination domain, not initialized yet
+     */
+    public DomainSync(AmazonSimpleDB sourceClient, String sourceDomain, AmazonSimpleDB destinationClient,
+                      String destinationDomain, ItemStoreProvider store) {
+        Objects.requireNonNull(store);
+        this.source = new Side(sourceClient, sourceDomain);
+        this.destination = new Side(destinationClient, destinationDomain);
+        this.store = store;
+    }
+
+    /**
+     * Sets the number of ranges compared at the same time. The source is split into that many
+     * ranges to start with.
+     *
+     * @param threads the number of ranges (>= 1)
+     *
+     * @return this instance
+     */
+    public DomainSync withThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(String.format("Invalid number of threads %d", threads));
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Sets the number of items under which a range that differs is compared item by item instead
+     * of being split again. Both sides of such a range are held in memory.
+     *
+     * @param leafItems the number of items (>= 1)
+     *
+     * @return this instance
+     */
+    public DomainSync withLeafItems(int leafItems) {
+        if (leafItems < 1) {
+            throw new IllegalArgumentException(String.format("Invalid number of leaf items %d", leafItems));
+        }
+        this.leafItems = leafItems;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Sync of %s to %s", source.domain, destination.domain);
+    }
+
+    /**
+     * @return the share of the items of the source found the same or written so far, or empty
+     *     before the source is counted
+     */
+    public OptionalDouble getProgress() {
+        long total = sourceItems.get();
+        if (total < 0) {
+            return OptionalDouble.empty();
+        }
+        return OptionalDouble.of((0 == total) ? 1 : Math.min(1, (double) itemsSettled.get() / total));
+    }
+
+    /**
+     * Make the destination domain the same as the source domain.
+     *
+     * @return what was found and written
+     * @throws IOException if the destination cannot be written
+     * @throws InterruptedException if interrupted while waiting for the ranges
+     */
+    public Result sync() throws IOException, InterruptedException {
+        store.initialize();
+        sourceItems.set(source.splitter.count(new SelectExpression(source.domain)));
+        logger.info(String.format("%s: %d items in the source", this, sourceItems.get()));
+
+        ExecutorService ranges = Executors.newFixedThreadPool(threads);
+        ExecutorService reads = Executors.newFixedThreadPool(2 * threads);
+        // Every range is pending until it is settled or split
+        PendingRanges pending = new PendingRanges();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try {
+            for (ItemNameRange range : source.splitter.split(new SelectExpression(source.domain), threads)) {
+                submit(range, 0, ranges, reads, pending, failure);
+            }
+            pending.arrive();
+            pending.await();
+        } finally {
+            ranges.shutdownNow();
+            reads.shutdownNow();
+        }
+        if (null != failure.get()) {
+            throw new RuntimeException(String.format("Cannot complete %s", this), failure.get());
+        }
+        store.flush();
+        Result result = new Result(sourceItems.get(), rangesSkipped.get(), rangesCompared.get(), itemsPut.get(),
+            itemsDeleted.get(), attributesDeleted.get());
+        logger.info(String.format("%s: %s", this, result));
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+
+    private void submit(ItemNameRange range, int depth, ExecutorService ranges, ExecutorService reads,
+                        PendingRanges pending, AtomicReference<Throwable> failure) {
+        pending.register();
+        ranges.execute(() -> {
+            try {
+                if (null == failure.get()) {
+                    for (ItemNameRange part : diff(range, depth, reads)) {
+                        submit(part, depth + 1, ranges, reads, pending, failure);
+                    }
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                pending.arrive();
+            }
+        });
+    }
+
+    /**
+     * Compare a range of both domains, and settle it if it is the same on both sides or small
+     * enough to be compared item by item.
+     *
+     * @return the ranges to compare next, empty if the range is settled
+     */
+    private List<ItemNameRange> diff(ItemNameRange range, int depth, ExecutorService reads) throws Exception {
+        Future<Digest> sourceDigest = reads.submit(() -> source.digest(range));
+        Future<Digest> destinationDigest = reads.submit(() -> destination.digest(range));
+        Digest fromSource = await(sourceDigest);
+        Digest fromDestination = await(destinationDigest);
+        if (fromSource.equals(fromDestination)) {
+            logger.debug(String.format("%s: %s is the same (%d items)", this, range, fromSource.items));
+            rangesSkipped.incrementAndGet();
+            itemsSettled.addAndGet(fromSource.items);
+            return new ArrayList<>();
+        }
+
+        long items = Math.max(fromSource.items, fromDestination.items);
+        if ((items > leafItems) && (depth < MAX_DEPTH)) {
+            Side larger = (fromSource.items >= fromDestination.items) ? source : destination;
+            List<ItemNameRange> parts = within(range,
+                larger.splitter.split(new SelectExpression(larger.domain).withinRange(range), FANOUT));
+            if (parts.size() > 1) {
+                logger.debug(String.format("%s: %s differs (%d and %d items); splitting it into %d ranges", this,
+                    range, fromSource.items, fromDestination.items, parts.size()));
+                return parts;
+            }
+        }
+        if (items > leafItems) {
+            logger.warn(String.format("%s: cannot split %s any further; comparing its %d items at once", this,
+                range, items));
+        }
+        compare(range, reads);
+        itemsSettled.addAndGet(fromSource.items);
+        return new ArrayList<>();
+    }
+
+    /**
+     * Compare a range item by item, putting and deleting what differs.
+     */
+    private void compare(ItemNameRange range, ExecutorService reads) throws Exception {
+        Future<Map<String, Item>> sourceRead = reads.submit(() -> source.items(range));
+        Future<Map<String, Item>> destinationRead = reads.submit(() -> destination.items(range));
+        Map<String, Item> fromSource = await(sourceRead);
+        Map<String, Item> fromDestination = await(destinationRead);
+        rangesCompared.incrementAndGet();
+
+        MessageDigest md5 = md5();
+        List<DeletableItem> deletes = new ArrayList<>();
+        long put = 0;
+        for (Item item : fromSource.values()) {
+            Item existing = fromDestination.remove(item.getName());
+            if ((null == existing) || (hashOf(item, md5) != hashOf(existing, md5))) {
+                synchronized (store) {
+                    store.storeItem(item);
+                }
+                metrics.itemWritten(item);
+                put++;
+            }
+            if (null != existing) {
+                Set<String> names = item.getAttributes().stream().map(Attribute::getName).collect(Collectors.toSet());
+                List<Attribute> excess = existing.getAttributes().stream()
+                    .map(Attribute::getName)
+                    .filter(name -> !names.contains(name))
+                    .distinct()
+                    .map(name -> new Attribute().withName(name))
+                    .collect(Collectors.toList());
+                if (!excess.isEmpty()) {
+                    deletes.add(new DeletableItem().withName(item.getName()).withAttributes(excess));
+                    attributesDeleted.addAndGet(excess.size());
+                }
+            }
+        }
+        for (String name : fromDestination.keySet()) {
+            deletes.add(new DeletableItem().withName(name));
+        }
+        delete(deletes);
+        itemsPut.addAndGet(put);
+        itemsDeleted.addAndGet(fromDestination.size());
+        logger.debug(String.format("%s: %s compared; %d items put, %d deleted", this, range, put,
+            fromDestination.size()));
+    }
+
+    private void delete(List<DeletableItem> deletes) {
+        for (int i = 0; i < deletes.size(); i += MAX_DELETE_ITEMS) {
+            BatchDeleteAttributesRequest batch = new BatchDeleteAttributesRequest(destination.domain,
+                new ArrayList<>(deletes.subList(i, Math.min(i + MAX_DELETE_ITEMS, deletes.size()))));
+            RetryUtility.performWithRetry((request, trial) -> writes.call(() -> metrics.timePut(() -> {
+                destination.client.batchDeleteAttributes(request);
+                return null;
+            })), batch, MAXRETRIES);
+        }
+    }
+
+    /**
+     * Keep the parts of a split that fall within the range provided, cut down to it. The splitter
+     * leaves the ends of its ranges open, and may place boundaries beyond the range.
+     */
+    static List<ItemNameRange> within(ItemNameRange range, List<ItemNameRange> parts) {
+        List<ItemNameRange> answer = new ArrayList<>();
+        for (ItemNameRange part : parts) {
+            Optional<String> lower = bound(range.getLower(), part.getLower(), Comparator.naturalOrder());
+            Optional<String> upper = bound(range.getUpper(), part.getUpper(), Comparator.reverseOrder());
+            if (!lower.isPresent() || !upper.isPresent() || (lower.get().compareTo(upper.get()) < 0)) {
+                answer.add(new ItemNameRange(lower, upper));
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * @return the tighter of two bounds, a missing bound being the loosest
+     */
+    private static Optional<String> bound(Optional<String> a, Optional<String> b, Comparator<String> order) {
+        if (!a.isPresent()) {
+            return b;
+        }
+        if (!b.isPresent()) {
+            return a;
+        }
+        return (order.compare(a.get(), b.get()) >= 0) ? a : b;
+    }
+
+    /**
+     * @return the first 64 bits of the MD5 of the name and the attributes of the item, in the
+     *     order of their names and values
+     */
+    static long hashOf(Item item, MessageDigest md5) {
+        List<Attribute> attributes = new ArrayList<>(item.getAttributes());
+        attributes.sort(Comparator.comparing(Attribute::getName).thenComparing(Attribute::getValue));
+        md5.reset();
+        update(md5, item.getName());
+        for (Attribute attribute : attributes) {
+            update(md5, attribute.getName());
+            update(md5, attribute.getValue());
+        }
+        return ByteBuffer.wrap(md5.digest()).getLong();
+    }
+
+    private static void update(MessageDigest md5, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        // The length keeps "ab","c" apart from "a","bc"
+        md5.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        md5.update(bytes);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 not available", ex);
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+        }
+    }
+
+    /**
+     * The ranges submitted but not yet settled or split, as many as a domain differing everywhere
+     * has leaves (a Phaser is limited to 65535 parties). Parts are added before the range split
+     * into them is done, so the count only drops to zero once every range is done; it starts at
+     * one for the thread submitting the first ranges.
+     */
+    private static final class PendingRanges {
+
+        private final AtomicLong count = new AtomicLong(1);
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        void register() {
+            count.incrementAndGet();
+        }
+
+        void arrive() {
+            if (0 == count.decrementAndGet()) {
+                done.countDown();
+            }
+        }
+
+        void await() throws InterruptedException {
+            done.await();
+        }
+    }
+
+    /**
+     * The number of items of a range and the sum of their hashes.
+     */
+    private static final class Digest {
+
+        private final long items;
+        private final long hash;
+
+        Digest(long items, long hash) {
+            this.items = items;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Digest)) {
+                return false;
+            }
+            Digest other = (Digest) o;
+            return (items == other.items) && (hash == other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(items, hash);
+        }
+    }
+
+    /**
+     * One of the two domains, and the client reading it.
+     */
+    private final class Side {
+
+        private final AmazonSimpleDB client;
+        private final String domain;
+        private final ItemNameRangeSplitter splitter;
+
+        Side(AmazonSimpleDB client, String domain) {
+            Objects.requireNonNull(client);
+            Objects.requireNonNull(domain);
+            this.client = client;
+            this.domain = domain;
+            this.splitter = new ItemNameRangeSplitter(client).withConcurrencyController(selects);
+        }
+
+        Digest digest(ItemNameRange range) {
+            MessageDigest md5 = md5();
+            long[] digest = {0, 0};
+            select(range, item -> {
+                digest[0]++;
+                digest[1] += hashOf(item, md5);
+            });
+            return new Digest(digest[0], digest[1]);
+        }
+
+        Map<String, Item> items(ItemNameRange range) {
+            Map<String, Item> items = new HashMap<>();
+            select(range, item -> items.put(item.getName(), item));
+            return items;
+        }
+
+        private void select(ItemNameRange range, Consumer<Item> consumer) {
+            String query = new SelectExpression(domain).withinRange(range).toQuery();
+            String nextToken = null;
+            do {
+                SelectRequest selectRequest = new SelectRequest(query, true).withNextToken(nextToken);
+                SelectResult result = RetryUtility.performWithRetry((request, trial) ->
+                    selects.call(() -> metrics.timeSelect(() -> client.select(request))), selectRequest, MAXRETRIES);
+                for (Item item : result.getItems()) {
+                    metrics.bytesRead(TransferMetrics.bytesOf(item));
+                    if (this == source) {
+                        metrics.itemRead(item);
+                    }
+                    consumer.accept(item);
+                }
+                nextToken = result.getNextToken();
+            } while (null != nextToken);
+        }
+    }
+
+    /**
+     * What a sync found and wrote.
+     */
+    public static final class Result {
+
+        private final long sourceItems;
+        private final long rangesSkipped;
+        private final long rangesCompared;
+        private final long itemsPut;
+        private final long itemsDeleted;
+        private final long attributesDeleted;
+
+        Result(long sourceItems, long rangesSkipped, long rangesCompared, long itemsPut, long itemsDeleted,
+               long attributesDeleted) {
+            this.sourceItems = sourceItems;
+            this.rangesSkipped = rangesSkipped;
+            this.rangesCompared = rangesCompared;
+            this.itemsPut = itemsPut;
+            this.itemsDeleted = itemsDeleted;
+            this.attributesDeleted = attributesDeleted;
+        }
+
+        public long getSourceItems() {
+            return sourceItems;
+        }
+
+        /**
+         * @return the number of ranges found the same on both sides
+         */
+        public long getRangesSkipped() {
+            return rangesSkipped;
+        }
+
+        /**
+         * @return the number of ranges compared item by item
+         */
+        public long getRangesCompared() {
+            return rangesCompared;
+        }
+
+        /**
+         * @return the number of items put to the destination, new or changed
+         */
+        public long getItemsPut() {
+            return itemsPut;
+        }
+
+        /**
+         * @return the number of items deleted from the destination
+         */
+        public long getItemsDeleted() {
+            return itemsDeleted;
+        }
+
+        /**
+         * @return the number of attributes deleted from items kept in the destination
+         */
+        public long getAttributesDeleted() {
+            return attributesDeleted;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d source items; %d ranges the same, %d compared; %d items put, %d deleted, " +
+                "%d attributes deleted", sourceItems, rangesSkipped, rangesCompared, itemsPut, itemsDeleted,
+                attributesDeleted);
+        }
+    }
+}
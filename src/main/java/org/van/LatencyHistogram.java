@@ -0,0 +1,129 @@
+package org.van;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts request latencies in fixed buckets, from 1 ms to 20 s, so percentiles can be told
+ * without keeping every latency. Recording is lock free and can be done from any thread.
+ * <br>
+ * Percentiles are the upper bound of the bucket they fall in: "p99 = 200 ms" reads "99% of the
+ * requests took less than 200 ms".
+ */
+public class LatencyHistogram {
+
+    /**
+     * The upper bounds of the buckets in milliseconds; a last bucket holds anything slower
+     */
+    public static final long[] BUCKET_BOUNDS_MILLIS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+    private final LongAdder totalNanos = new LongAdder();
+
+    /**
+     * Record the latency of a request.
+     *
+     * @param latencyNanos how long the request took
+     */
+    public void record(long latencyNanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+        int bucket = 0;
+        while ((bucket < BUCKET_BOUNDS_MILLIS.length) && (millis >= BUCKET_BOUNDS_MILLIS[bucket])) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        totalNanos.add(latencyNanos);
+    }
+
+    /**
+     * @return the counts of the buckets so far, the last being the requests slower than all the
+     *     bounds
+     */
+    public Counts snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Counts(copy, totalNanos.sum());
+    }
+
+    /**
+     * The counts of a histogram at one point in time.
+     */
+    public static final class Counts {
+
+        private final long[] counts;
+        private final long totalNanos;
+
+        private Counts(long[] counts, long totalNanos) {
+            this.counts = counts;
+            this.totalNanos = totalNanos;
+        }
+
+        /**
+         * @param earlier counts taken earlier from the same histogram
+         *
+         * @return the counts of the requests recorded since the earlier counts
+         */
+        public Counts minus(Counts earlier) {
+            long[] delta = new long[counts.length];
+            for (int i = 0; i < delta.length; i++) {
+                delta[i] = counts[i] - earlier.counts[i];
+            }
+            return new Counts(delta, totalNanos - earlier.totalNanos);
+        }
+
+        /**
+         * @return the number of requests recorded
+         */
+        public long getCount() {
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            return count;
+        }
+
+        /**
+         * @param bucket the index of a bucket, up to the number of bounds
+         *
+         * @return the number of requests in the bucket
+         */
+        public long getCount(int bucket) {
+            return counts[bucket];
+        }
+
+        /**
+         * @return the mean latency in milliseconds, or 0 if nothing was recorded
+         */
+        public double getMeanMillis() {
+            long count = getCount();
+            return (0 == count) ? 0 : (totalNanos / 1e6) / count;
+        }
+
+        /**
+         * Get a percentile of the latencies recorded.
+         *
+         * @param percentile the percentile, between 0 and 100
+         *
+         * @return the upper bound of the bucket of the percentile in milliseconds, -1 if it is
+         *     in the last bucket (slower than all the bounds), or 0 if nothing was recorded
+         */
+        public long getPercentileMillis(double percentile) {
+            long count = getCount();
+            if (0 == count) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return BUCKET_BOUNDS_MILLIS[i];
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.van;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A number of heap bytes that items may take while between a source and a store. A reader
+ * acquires the size of an item (see {@link #sizeOf(Item)}) before holding it and blocks while
+ * the budget is spent; it is released once the store no longer holds the item. One budget can be
+ * shared by transfers running at the same time, to bound them all together.
+ * <br>
+ * An item larger than the whole budget is let through when nothing else holds any of it, so
+ * every item can be transferred.
+ */
+public class MemoryBudget {
+
+    // Rough heap sizes of the objects making up an item: object headers, fields and references
+    private static final long ITEM_OVERHEAD_BYTES = 96;
+    private static final long ATTRIBUTE_OVERHEAD_BYTES = 64;
+    private static final long STRING_OVERHEAD_BYTES = 40;
+
+    private final long maxBytes;
+    // Guarded by this
+    private long usedBytes = 0;
+
+    /**
+     * @param maxBytes the number of bytes the items may take at once (>= 1)
+     */
+    public MemoryBudget(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException(String.format("Invalid memory budget %d", maxBytes));
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Parse a number of bytes, optionally followed by "k", "m" or "g" for kibibytes, mebibytes or
+     * gibibytes, e.g. "256m".
+     *
+     * @param bytes the number of bytes
+     *
+     * @return the number of bytes
+     * @throws IllegalArgumentException if the text is not a number of bytes
+     */
+    public static long parseBytes(String bytes) {
+        String trimmed = bytes.trim().toLowerCase(Locale.ROOT);
+        int shift = 0;
+        if (trimmed.endsWith("k")) {
+            shift = 10;
+        } else if (trimmed.endsWith("m")) {
+            shift = 20;
+        } else if (trimmed.endsWith("g")) {
+            shift = 30;
+        }
+        try {
+            long number = Long.parseLong((0 == shift) ? trimmed : trimmed.substring(0, trimmed.length() - 1));
+            if ((number < 0) || (number > (Long.MAX_VALUE >> shift))) {
+                throw new NumberFormatException(trimmed);
+            }
+            return number << shift;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Invalid number of bytes %s", bytes), ex);
+        }
+    }
+
+    /**
+     * Estimate the heap an item takes: its strings, two bytes per character, and the objects
+     * holding them.
+     *
+     * @param item the item
+     *
+     * @return the estimated number of bytes
+     */
+    public static long sizeOf(Item item) {
+        long bytes = ITEM_OVERHEAD_BYTES + sizeOf(item.getName());
+        List<Attribute> attributes = item.getAttributes();
+        for (int i = 0, n = attributes.size(); i < n; i++) {
+            // Attribute names are mostly shared between items, so only their reference is counted
+            bytes += ATTRIBUTE_OVERHEAD_BYTES + sizeOf(attributes.get(i).getValue());
+        }
+        return bytes;
+    }
+
+    private static long sizeOf(String s) {
+        return (null == s) ? 0 : STRING_OVERHEAD_BYTES + 2L * s.length();
+    }
+
+    /**
+     * Take bytes from the budget, waiting until enough are released if need be.
+     *
+     * @param bytes the number of bytes
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while ((usedBytes > 0) && (usedBytes + bytes > maxBytes)) {
+            wait();
+        }
+        usedBytes += bytes;
+    }
+
+    /**
+     * Give bytes back to the budget.
+     *
+     * @param bytes the number of bytes, acquired before
+     */
+    public synchronized void release(long bytes) {
+        if (bytes > 0) {
+            usedBytes -= bytes;
+            notifyAll();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the number of bytes taken from the budget and not released yet
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Memory budget of %d bytes", maxBytes);
+    }
+}
@@ -1,12 +1,47 @@
 package org.van;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
 /**
  * Utility for retry operations
+ * <br>
+ * Failed work is retried after an exponential backoff with full jitter: before trial n+1 the
+ * utility waits a random time between 0 and min({@link #MAX_DELAY_MILLIS},
+ * {@link #BASE_DELAY_MILLIS} * 2^(n-1)). Only errors that can go away by themselves (see
+ * {@link #isRetryable(Throwable)}) are retried; anything else is rethrown right away.
+ * <br>
+ * All retries of the process draw from one shared budget. Every retry spends a token and every
+ * piece of work that succeeds on its first trial earns back a fraction of one. Once the budget is
+ * spent, retries wait close to {@link #MAX_DELAY_MILLIS} whatever their trial, so when a service
+ * keeps failing the callers slow down instead of multiplying its load.
+ * <br>
+ * The asynchronous work is retried from a shared scheduler; the synchronous work waits out its
+ * backoff in the calling thread. The selects (the segment and read-ahead workers, the range
+ * splitting, syncs and the incremental mark) and the synchronous writes are such work: they need
+ * the result before going on, so their threads would wait for a scheduled retry anyway. They
+ * do not hold a concurrency slot while waiting, as the slot is taken within each trial, and
+ * their threads are bounded by the segments and read-ahead pages asked for. Only the async
+ * writes of {@code SimpleDbStoreProvider}, which keep many calls in flight from one thread, go
+ * through the scheduler.
+ * <br>
+ * Retries are counted in the {@link TransferMetrics} of the process.
  *
  * Created by vly on 11/8/2015.
  */
@@ -15,6 +50,31 @@ public class RetryUtility {
    private static final Logger logger =
       Logger.getLogger(RetryUtility.class);
 
+   public static final long BASE_DELAY_MILLIS = 100;
+   public static final long MAX_DELAY_MILLIS = 20000;
+
+   /**
+    * The number of retries the shared budget holds when full
+    */
+   public static final int RETRY_BUDGET = 100;
+
+   /**
+    * The number of first-trial successes needed to earn back one retry
+    */
+   public static final int SUCCESSES_PER_RETRY = 10;
+
+   private static final Set<String> RETRYABLE_ERROR_CODES = new HashSet<>(Arrays.asList(
+      "ServiceUnavailable", "RequestTimeout", "InternalError", "Throttling", "ThrottlingException"));
+
+   // Tokens are kept in 1/SUCCESSES_PER_RETRY units so that successes can earn fractions of a retry
+   private static final AtomicLong budget = new AtomicLong((long) RETRY_BUDGET * SUCCESSES_PER_RETRY);
+
+   private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "retry-scheduler");
+      thread.setDaemon(true);
+      return thread;
+   });
+
    /**
     * Exception thrown when the maximum number of retries have been spent for a work.
     */
@@ -39,9 +99,25 @@ public class RetryUtility {
       U perform(T t, int trial) throws RuntimeException;
    }
 
+   @FunctionalInterface
+   public interface AsyncWork<T,U> {
+      /**
+       * Start work that completes asynchronously. The trial number (if retrying) is provided.
+       *
+       * @param t the caller-supplied value
+       * @param trial the trial number
+       *
+       * @return future completed with the value of the work, or exceptionally if it failed
+       */
+      CompletableFuture<U> perform(T t, int trial);
+   }
+
    /**
     * perform the work (embodied by the provided {@link Supplier}) and retry as necessary up
     * to the number of retries supplied. If the number of retries exceeded the maximum,
+    * a {@link RetryExhaustedException} is thrown. Errors that cannot be retried are rethrown as is.
+    * The calling thread sleeps through the backoff; see {@link #performWithRetryAsync(AsyncWork,
+    * Object, int)} for work that should not hold a thread while waiting.
     *
     *
     * @param work the supplier work implementation (either {@link Work} or any compatible
@@ -67,18 +143,167 @@ public class RetryUtility {
          logger.debug(String.format("Performing work (trial #%d)", trial));
          try {
             result = work.perform(workParam, trial);
+            recordSuccess(trial);
             done = true;
-         } catch (Exception ex) {
-                String msg;
-                if ((trial - 1) == maxRetries) {
-                    throw new RetryExhaustedException("Exception encountered after exhausted retries.", ex);
-                } else {
-                    trial++;
-                    msg = "Exception encountered. Retrying.";
-                    logger.warn(msg, ex);
-                }
+         } catch (RuntimeException ex) {
+            sleep(checkRetry(ex, trial, maxRetries));
+            trial++;
          }
       }
       return result;
    }
+
+   /**
+    * Perform asynchronous work and retry as necessary up to the number of retries supplied.
+    * Unlike {@link #performWithRetry(Work, Object, int)}, no thread waits out the backoff: retries
+    * are started from a shared scheduler once their delay has passed.
+    *
+    * @param work the asynchronous work
+    * @param workParam the parameter/argument to be passed to the worker
+    * @param maxRetries the maximum number of retries (>= 0)
+    * @param <T>
+    * @param <U>
+    *
+    * @return future completed with the value of the work, or exceptionally with a
+    *     {@link RetryExhaustedException} or the error that could not be retried
+    */
+   public static <T,U> CompletableFuture<U> performWithRetryAsync(AsyncWork<T,U> work, T workParam, int maxRetries) {
+      Objects.requireNonNull(work);
+      CompletableFuture<U> answer = new CompletableFuture<>();
+      attemptAsync(work, workParam, Math.max(0, maxRetries), 1, answer);
+      return answer;
+   }
+
+   private static <T,U> void attemptAsync(AsyncWork<T,U> work, T workParam, int maxRetries, int trial,
+                                          CompletableFuture<U> answer) {
+      logger.debug(String.format("Performing async work (trial #%d)", trial));
+      CompletableFuture<U> attempt;
+      try {
+         attempt = work.perform(workParam, trial);
+      } catch (RuntimeException ex) {
+         attempt = new CompletableFuture<>();
+         attempt.completeExceptionally(ex);
+      }
+      attempt.whenComplete((result, failure) -> {
+         if (null == failure) {
+            recordSuccess(trial);
+            answer.complete(result);
+            return;
+         }
+         try {
+            long delay = checkRetry(unwrap(failure), trial, maxRetries);
+            scheduler.schedule(() -> attemptAsync(work, workParam, maxRetries, trial + 1, answer),
+               delay, TimeUnit.MILLISECONDS);
+         } catch (RuntimeException ex) {
+            answer.completeExceptionally(ex);
+         }
+      });
+   }
+
+   /**
+    * Check if an error may go away when the work is retried: throttling, timeouts, server side
+    * errors and client errors the SDK considers retryable (e.g. connection problems).
+    *
+    * @param t the error to check
+    *
+    * @return true if the work failing with the error can be retried
+    */
+   public static boolean isRetryable(Throwable t) {
+      if (t instanceof AmazonServiceException) {
+         AmazonServiceException ase = (AmazonServiceException) t;
+         return isThrottling(ase) || (ase.getStatusCode() >= 500) ||
+            RETRYABLE_ERROR_CODES.contains(ase.getErrorCode());
+      }
+      if (t instanceof AmazonClientException) {
+         return ((AmazonClientException) t).isRetryable() || (t.getCause() instanceof IOException);
+      }
+      return false;
+   }
+
+   /**
+    * Check if an error means the service is throttling its callers.
+    *
+    * @param t the error to check
+    *
+    * @return true if the error is a throttling error
+    */
+   public static boolean isThrottling(Throwable t) {
+      if (t instanceof AmazonServiceException) {
+         AmazonServiceException ase = (AmazonServiceException) t;
+         return RetryUtils.isThrottlingException(ase) || "ServiceUnavailable".equals(ase.getErrorCode()) ||
+            (ase.getStatusCode() == 503);
+      }
+      return false;
+   }
+
+   /**
+    * @return the number of retries left in the shared budget
+    */
+   public static int getRetryBudget() {
+      return (int) (budget.get() / SUCCESSES_PER_RETRY);
+   }
+
+   /**
+    * Compute the backoff to wait after a failed trial.
+    *
+    * @param trial the trial that failed (1-based)
+    *
+    * @return the delay in milliseconds
+    */
+   static long delayFor(int trial) {
+      long ceiling = BASE_DELAY_MILLIS << Math.min(trial - 1, 20);
+      return ThreadLocalRandom.current().nextLong(Math.min(ceiling, MAX_DELAY_MILLIS) + 1);
+   }
+
+   /**
+    * Compute the backoff to wait after a failed trial once the shared budget is spent: a random
+    * time between half of {@link #MAX_DELAY_MILLIS} and all of it.
+    *
+    * @return the delay in milliseconds
+    */
+   static long slowDelay() {
+      return MAX_DELAY_MILLIS / 2 + ThreadLocalRandom.current().nextLong(MAX_DELAY_MILLIS / 2 + 1);
+   }
+
+   /**
+    * Throw if the error provided should not be retried; otherwise spend a retry from the budget.
+    *
+    * @return the delay to wait before retrying, in milliseconds
+    */
+   private static long checkRetry(RuntimeException ex, int trial, int maxRetries) {
+      if (!isRetryable(ex)) {
+         throw ex;
+      }
+      if ((trial - 1) >= maxRetries) {
+         throw new RetryExhaustedException("Exception encountered after exhausted retries.", ex);
+      }
+      TransferMetrics.global().retried(isThrottling(ex));
+      if (budget.getAndUpdate(b -> (b >= SUCCESSES_PER_RETRY) ? (b - SUCCESSES_PER_RETRY) : b) < SUCCESSES_PER_RETRY) {
+         logger.warn("Exception encountered and the shared retry budget is spent. Retrying slowly.", ex);
+         return slowDelay();
+      }
+      logger.warn("Exception encountered. Retrying.", ex);
+      return delayFor(trial);
+   }
+
+   private static void recordSuccess(int trial) {
+      if (1 == trial) {
+         long full = (long) RETRY_BUDGET * SUCCESSES_PER_RETRY;
+         budget.getAndUpdate(b -> Math.min(full, b + 1));
+      }
+   }
+
+   private static RuntimeException unwrap(Throwable t) {
+      Throwable cause = ((t instanceof CompletionException) && (null != t.getCause())) ? t.getCause() : t;
+      return (cause instanceof RuntimeException) ? (RuntimeException) cause : new RuntimeException(cause);
+   }
+
+   private static void sleep(long millis) {
+      try {
+         Thread.sleep(millis);
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted while waiting to retry", ex);
+      }
+   }
 }
@@ -1,12 +1,22 @@
 package org.van;
 
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
 import org.apache.commons.cli.*;
 import org.apache.log4j.Logger;
 import org.van.providers.ItemStoreProvider;
 import org.van.providers.impl.*;
 import org.van.providers.ItemSourceProvider;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class SimpleDbBackupApplication {
@@ -15,46 +25,539 @@ public class SimpleDbBackupApplication {
        Logger.getLogger(SimpleDbBackupApplication.class);
 
     public static void main(String[] args) {
+        int status = execute(args);
+        if (0 != status) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Run the transfers the command line provided asks for.
+     *
+     * @param args the command line
+     *
+     * @return the exit status: 0 if the transfers succeeded (or the help was printed), 1 if any
+     *     failed
+     */
+    static int execute(String... args) {
         Options opts = new Options();
         opts.addOption(Option.builder("s")
             .longOpt("source")
             .argName("domain")
             .hasArg()
-            .desc("the source to backup from. Examples: sdb:///mydomain, file:///home/van/backup.csv, file:///c:/temp/backup.csv (Windows)")
+            .desc("the source to backup from. Examples: sdb:///mydomain, sdb:///mydomain?segments=8 (parallel reads), sdb:///mydomain?prefetch=4 (read-ahead), sdb:///mydomain?attrs=a,b&where=... (some attributes of some items), sdb:///mydomain?consistent=false (eventually consistent reads), file:///home/van/backup.csv, file:///home/van/backup.csv?parallel=8 (parallel parsing), file:///home/van/backup.csv?sort=true&memory=256m (rows of an item anywhere in the file), file:///home/van/backup.csv?items=item1,order-2015* (some items, through the index), file:///home/van/backup.csv.gz (gzip), bin:///home/van/backup.bin (binary), file:///home/van/backup/ (parts of a sharded export), file:///c:/temp/backup.csv (Windows), sdb-local:///mydomain?generate=1000 (in-memory SimpleDB for load tests)")
             .required(true)
             .build())
             .addOption(Option.builder("d")
                 .longOpt("destination")
                 .argName("domain")
                 .hasArg()
-                .desc("the destination to backup to. Examples: file:///home/van/backup.csv, file:///c:/temp/backup.csv (Windows), sdb:///backupdomain")
+                .desc("the destination to backup to, repeated to write the items read once to several destinations. Examples: file:///home/van/backup.csv, file:///home/van/backup.csv.gz (gzip), file:///home/van/backup.csv?index=1000 (item name index), bin:///home/van/backup.bin (binary), file:///home/van/backup/?parts=16 (16 part files written in parallel), file:///c:/temp/backup.csv (Windows), sdb:///backupdomain, sdb:///backupdomain?batch=25 (batched writes), sdb:///backupdomain?async=16 (async writes), sdb-local:///backupdomain?latency=20&rate=500 (in-memory SimpleDB for load tests)")
                 .required(true)
                 .build())
+            .addOption(Option.builder("q")
+                .longOpt("queue-size")
+                .argName("items")
+                .hasArg()
+                .desc(String.format("the number of items buffered between reading and writing (default %d)",
+                    TransferPipeline.DEFAULT_CAPACITY))
+                .build())
+            .addOption(Option.builder()
+                .longOpt("max-inflight-bytes")
+                .argName("bytes")
+                .hasArg()
+                .desc("the most heap the items read but not yet written may take, e.g. 256m, shared by all the transfers of --domains (default: no limit but --queue-size)")
+                .build())
+            .addOption(Option.builder("c")
+                .longOpt("checkpoint")
+                .argName("file")
+                .hasArg()
+                .desc("a file to record the progress of the transfer in, so it can be resumed with --resume if interrupted")
+                .build())
+            .addOption(Option.builder()
+                .longOpt("checkpoint-interval")
+                .argName("seconds")
+                .hasArg()
+                .desc(String.format("the minimum time between checkpoints (default %d)", DEFAULT_CHECKPOINT_INTERVAL_SECONDS))
+                .build())
+            .addOption(Option.builder("i")
+                .longOpt("incremental")
+                .argName("attribute")
+                .hasArg()
+                .desc("back up only the items whose attribute (a timestamp or version) grew since the last backup recorded in the destination, a file:///....manifest")
+                .build())
+            .addOption(Option.builder("r")
+                .longOpt("resume")
+                .desc("resume the transfer recorded in the --checkpoint file, if there is one")
+                .build())
+            .addOption(Option.builder("p")
+                .longOpt("progress")
+                .argName("seconds")
+                .hasArg()
+                .desc(String.format("the time between progress lines, 0 for none (default %d)", DEFAULT_PROGRESS_INTERVAL_SECONDS))
+                .build())
+            .addOption(Option.builder()
+                .longOpt("summary")
+                .argName("file")
+                .hasArg()
+                .desc("a file to write a JSON summary of the transfer to (items, bytes, latencies, retries) when it ends; with --domains, the outcome of every domain")
+                .build())
+            .addOption(Option.builder()
+                .longOpt("sync")
+                .desc("make the destination domain the same as the source domain, writing only the items that differ (both sdb:// or sdb-local://; the segments of the source set the ranges compared at the same time)")
+                .build())
+            .addOption(Option.builder()
+                .longOpt("domains")
+                .argName("list")
+                .hasArg()
+                .desc("transfer many domains in one run: names and glob patterns separated by commas (e.g. orders-*,users; patterns are matched against the domains of the SimpleDB side), or @file with one per line. The source and destination then hold {domain} for the domain, e.g. -s sdb:///{domain} -d file:///backups/{domain}.csv.gz")
+                .build())
+            .addOption(Option.builder("j")
+                .longOpt("jobs")
+                .argName("count")
+                .hasArg()
+                .desc(String.format("the number of domains transferred at the same time with --domains (default %d)",
+                    BatchTransfer.DEFAULT_JOBS))
+                .build())
+            .addOption(Option.builder()
+                .longOpt("max-requests")
+                .argName("count")
+                .hasArg()
+                .desc(String.format("the most SimpleDB reads, and the most writes, in flight at once across all the transfers (default %d)",
+                    AimdConcurrencyController.DEFAULT_MAX_LIMIT))
+                .build())
         ;
         try {
             CommandLine cmdLine = new DefaultParser().parse(opts, args);
-            URI sourceUrl = new URI(cmdLine.getOptionValue("source"));
-            URI destUrl = new URI(cmdLine.getOptionValue("destination"));
+            if (cmdLine.hasOption("resume") && !cmdLine.hasOption("checkpoint")) {
+                throw new MissingOptionException("--resume needs a --checkpoint file");
+            }
+            if (cmdLine.hasOption("max-requests")) {
+                int maxRequests = Integer.parseInt(cmdLine.getOptionValue("max-requests"));
+                AimdConcurrencyController.named(SimpleDbSourceProvider.CONCURRENCY_CONTROLLER).setMaxLimit(maxRequests);
+                AimdConcurrencyController.named(SimpleDbStoreProvider.CONCURRENCY_CONTROLLER).setMaxLimit(maxRequests);
+            }
+            long progress = Long.parseLong(cmdLine.getOptionValue("progress",
+                String.valueOf(DEFAULT_PROGRESS_INTERVAL_SECONDS)));
+            Optional<MemoryBudget> memoryBudget = cmdLine.hasOption("max-inflight-bytes") ?
+                Optional.of(new MemoryBudget(MemoryBudget.parseBytes(cmdLine.getOptionValue("max-inflight-bytes")))) :
+                Optional.empty();
 
-            new SimpleDbBackupApplication().run(sourceUrl, destUrl);
+            if (cmdLine.hasOption("domains")) {
+                // Templates holding {domain}, which is not valid in a URI until replaced
+                if (cmdLine.getOptionValues("destination").length > 1) {
+                    throw new IllegalArgumentException("--domains takes a single destination");
+                }
+                BatchTransfer batch = new BatchTransfer(domain -> configure(cmdLine, Optional.of(domain), memoryBudget))
+                    .withJobs(Integer.parseInt(cmdLine.getOptionValue("jobs", String.valueOf(BatchTransfer.DEFAULT_JOBS))))
+                    .withProgress(progress);
+                if (cmdLine.hasOption("summary")) {
+                    batch.withSummary(new File(cmdLine.getOptionValue("summary")));
+                }
+                List<BatchTransfer.Result> results = batch.run(cmdLine.getOptionValue("source"),
+                    cmdLine.getOptionValue("destination"), BatchTransfer.parseDomains(cmdLine.getOptionValue("domains")));
+                if (results.stream().anyMatch(r -> !r.isSucceeded())) {
+                    return 1;
+                }
+            } else {
+                List<URI> destinations = new ArrayList<>();
+                for (String destination : cmdLine.getOptionValues("destination")) {
+                    destinations.add(new URI(destination));
+                }
+                SimpleDbBackupApplication app = configure(cmdLine, Optional.empty(), memoryBudget).withProgress(progress);
+                if (cmdLine.hasOption("summary")) {
+                    app.withSummary(new File(cmdLine.getOptionValue("summary")));
+                }
+                app.run(new URI(cmdLine.getOptionValue("source")), destinations);
+            }
         } catch (MissingOptionException|MissingArgumentException ex) {
             HelpFormatter formatter = new HelpFormatter();
             formatter.printHelp("java ...", opts);
         } catch (Exception ex) {
             logger.error("Error encountered. Check: 1) URIs' format (run without parameters to see help), 2) SimpleDB accessibility, and 3) AWS configuration.", ex);
-            System.exit(1);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Create an application set up with the options of the command line, for a single transfer
+     * or for one domain of a batch.
+     */
+    private static SimpleDbBackupApplication configure(CommandLine cmdLine, Optional<String> domain,
+                                                       Optional<MemoryBudget> memoryBudget) {
+        int queueSize = Integer.parseInt(cmdLine.getOptionValue("queue-size",
+            String.valueOf(TransferPipeline.DEFAULT_CAPACITY)));
+        SimpleDbBackupApplication app = new SimpleDbBackupApplication().withQueueSize(queueSize);
+        if (cmdLine.hasOption("checkpoint")) {
+            long interval = Long.parseLong(cmdLine.getOptionValue("checkpoint-interval",
+                String.valueOf(DEFAULT_CHECKPOINT_INTERVAL_SECONDS)));
+            app.withCheckpoints(checkpointFileOf(cmdLine.getOptionValue("checkpoint"), domain), interval,
+                cmdLine.hasOption("resume"));
+        }
+        if (cmdLine.hasOption("incremental")) {
+            app.withIncremental(cmdLine.getOptionValue("incremental"));
+        }
+        if (cmdLine.hasOption("sync")) {
+            app.withSync();
+        }
+        memoryBudget.ifPresent(app::withMemoryBudget);
+        return app;
+    }
+
+    /**
+     * In a batch, every domain has a checkpoint file of its own: the one provided with the
+     * domain in place of its placeholder, or appended to it.
+     */
+    private static File checkpointFileOf(String path, Optional<String> domain) {
+        if (!domain.isPresent()) {
+            return new File(path);
         }
+        return new File(path.contains(BatchTransfer.DOMAIN_PLACEHOLDER) ?
+            path.replace(BatchTransfer.DOMAIN_PLACEHOLDER, domain.get()) : path + "." + domain.get());
     }
 
-    public void run(URI sourceUri, URI destinationUri) throws Exception {
-        try (ItemSourceProvider source = SourceStoreProviderFactory.sourceProviderFor(sourceUri);
-             ItemStoreProvider store = SourceStoreProviderFactory.storeProviderFor(destinationUri);
-             ItemSourceProvider sourceProvider = source.initialize();
-             ItemStoreProvider storeProvider = store.initialize()) {
-            logger.info(String.format("Transferring content from %s to %s...",
-                sourceUri, destinationUri));
-            sourceProvider.iterateItems(storeProvider::storeItem);
-            logger.info("Transfer complete");
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_SECONDS = 60;
+    public static final long DEFAULT_PROGRESS_INTERVAL_SECONDS = 30;
+
+    private int queueSize = TransferPipeline.DEFAULT_CAPACITY;
+    private File checkpointFile = null;
+    private long checkpointIntervalSeconds = DEFAULT_CHECKPOINT_INTERVAL_SECONDS;
+    private boolean resume = false;
+    private String incrementalAttribute = null;
+    private Optional<AmazonSimpleDB> simpleDb = Optional.empty();
+    private long progressIntervalSeconds = 0;
+    private File summaryFile = null;
+    private boolean sync = false;
+    private MemoryBudget memoryBudget = null;
+
+    /**
+     * Sets the number of items that can be buffered between reading them from the source and
+     * writing them to the destination.
+     *
+     * @param queueSize the number of items (>= 1)
+     *
+     * @return this instance
+     */
+    public SimpleDbBackupApplication withQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+        return this;
+    }
+
+    /**
+     * Record the progress of transfers in the checkpoint file provided, and optionally resume
+     * the transfer recorded in it.
+     *
+     * @param checkpointFile the file to save checkpoints to
+     * @param intervalSeconds the minimum time between checkpoints
+     * @param resume true to resume from the checkpoint in the file, if there is one
+     *
+     * @return this instance
+     */
+    public SimpleDbBackupApplication withCheckpoints(File checkpointFile, long intervalSeconds, boolean resume) {
+        Objects.requireNonNull(checkpointFile);
+        this.checkpointFile = checkpointFile;
+        this.checkpointIntervalSeconds = intervalSeconds;
+        this.resume = resume;
+        return this;
+    }
+
+    /**
+     * Make the transfers incremental backups: the destination is the manifest of the backup, and
+     * each transfer only writes the items whose attribute provided is at or above the highest
+     * value backed up so far, to the next file of the backup.
+     *
+     * @param attribute the name of the attribute tracking the changes of the items
+     *
+     * @return this instance
+     */
+    public SimpleDbBackupApplication withIncremental(String attribute) {
+        Objects.requireNonNull(attribute);
+        this.incrementalAttribute = attribute;
+        return this;
+    }
+
+    /**
+     * Log a line telling how far transfers have got (items, bytes, rates, time left, latencies,
+     * retries) at the interval provided.
+     *
+     * @param intervalSeconds the time between the lines, 0 for none (the default)
+     *
+     * @return this instance
+     */
+    public SimpleDbBackupApplication withProgress(long intervalSeconds) {
+        if (intervalSeconds < 0) {
+            throw new IllegalArgumentException(String.format("Invalid progress interval %d", intervalSeconds));
         }
+        this.progressIntervalSeconds = intervalSeconds;
+        return this;
+    }
+
+    /**
+     * Write a JSON summary of each transfer to the file provided when it ends, whether it
+     * completes or not.
+     *
+     * @param summaryFile the file to write the summary to
+     *
+     * @return this instance
+     */
+    public SimpleDbBackupApplication withSummary(File summaryFile) {
+        Objects.requireNonNull(summaryFile);
+        this.summaryFile = summaryFile;
+        return this;
+    }
+
+    /**
+     * Bound the heap taken by the items read but not yet written by the transfers, on top of
+     * their queue size. The budget may be shared with other applications of the process.
+     *
+     * @param memoryBudget the budget
+     *
+     * @return this instance
+     */
+    public SimpleDbBackupApplication withMemoryBudget(MemoryBudget memoryBudget) {
+        Objects.requireNonNull(memoryBudget);
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * Make the transfers syncs: the destination domain is made the same as the source domain by
+     * writing only the items that differ (see {@link DomainSync}).
+     *
+     * @return this instance
+     */
+    public SimpleDbBackupApplication withSync() {
+        this.sync = true;
+        return this;
+    }
+
+    /**
+     * Sets the client to access SimpleDB with, instead of the default client of the providers.
+     *
+     * @param simpleDb the client for "sdb" URIs
+     *
+     * @return this instance
+     */
+    public SimpleDbBackupApplication withSimpleDbClient(AmazonSimpleDB simpleDb) {
+        Objects.requireNonNull(simpleDb);
+        this.simpleDb = Optional.of(simpleDb);
+        return this;
+    }
+
+    /**
+     * Transfer the items of the source to the destination.
+     *
+     * @param sourceUri the URI of the source
+     * @param destinationUri the URI of the destination
+     *
+     * @return the number of items transferred by this run (not counting those of the transfer
+     *     resumed, if any); for a sync, the number of items put or deleted
+     * @throws Exception if the transfer fails
+     */
+    public long run(URI sourceUri, URI destinationUri) throws Exception {
+        return run(sourceUri, Collections.singletonList(destinationUri));
+    }
+
+    /**
+     * Transfer the items of the source to one or more destinations, reading the source once. With
+     * several destinations, each is written by a thread of its own from a queue of its own of the
+     * queue size (see {@link FanOutStoreProvider}); such transfers cannot be checkpointed,
+     * incremental or syncs.
+     *
+     * @param sourceUri the URI of the source
+     * @param destinationUris the URIs of the destinations
+     *
+     * @return the number of items transferred by this run (not counting those of the transfer
+     *     resumed, if any); for a sync, the number of items put or deleted
+     * @throws Exception if the transfer fails
+     */
+    public long run(URI sourceUri, List<URI> destinationUris) throws Exception {
+        if (destinationUris.isEmpty()) {
+            throw new IllegalArgumentException("No destination");
+        }
+        boolean fanOut = destinationUris.size() > 1;
+        if (fanOut && (sync || (null != checkpointFile) || (null != incrementalAttribute))) {
+            throw new IllegalArgumentException(
+                "A transfer to several destinations cannot be a sync, checkpointed or incremental");
+        }
+        URI destinationUri = destinationUris.get(0);
+        if (sync) {
+            return sync(sourceUri, destinationUri);
+        }
+        Optional<Checkpoint> resumed = loadCheckpoint(sourceUri, destinationUri);
+        if (resumed.isPresent() && (null != incrementalAttribute) && !resumed.get().getMark().isPresent()) {
+            // Taking the mark now would skip the items changed since the transfer first started
+            throw new IllegalArgumentException(String.format(
+                "%s records no mark for the incremental backup; start it over without --resume", checkpointFile));
+        }
+        long itemsBefore = resumed.map(Checkpoint::getItems).orElse(0L);
+        Optional<File> manifestFile = Optional.empty();
+        Optional<BackupManifest> manifest = Optional.empty();
+        URI storeUri = destinationUri;
+        if (null != incrementalAttribute) {
+            manifestFile = Optional.of(manifestFileOf(destinationUri));
+            manifest = Optional.of(loadManifest(manifestFile.get(), sourceUri));
+            storeUri = SourceStoreProviderFactory.fileUri(manifest.get().nextFile(manifestFile.get()));
+        }
+        AtomicReference<String> mark = new AtomicReference<>();
+        TransferProgress progress = null;
+        boolean succeeded = false;
+        long itemsTransferred;
+
+        try {
+            try (ItemSourceProvider source = resumeSource(changedSource(sourceUri, manifest), resumed);
+                 ItemStoreProvider store = fanOut ?
+                     SourceStoreProviderFactory.storeProviderFor(destinationUris, simpleDb).withQueueCapacity(queueSize) :
+                     SourceStoreProviderFactory.storeProviderFor(storeUri,
+                         resumed.flatMap(Checkpoint::getDestinationPosition), simpleDb);
+                 ItemSourceProvider sourceProvider = source.initialize();
+                 ItemStoreProvider storeProvider = store.initialize()) {
+                logger.info(String.format("Transferring content from %s to %s...",
+                    sourceUri, fanOut ? destinationUris : destinationUri));
+                progress = new TransferProgress(sourceProvider);
+                if (progressIntervalSeconds > 0) {
+                    progress.withProgressLines(progressIntervalSeconds);
+                }
+                TransferPipeline pipeline = new TransferPipeline(queueSize);
+                if (null != memoryBudget) {
+                    pipeline.withMemoryBudget(memoryBudget);
+                }
+                if (null != checkpointFile) {
+                    pipeline.withCheckpoints((sourcePosition, storePosition, items) -> {
+                        Checkpoint checkpoint = new Checkpoint(sourceUri, destinationUri, sourcePosition, storePosition,
+                            itemsBefore + items, Optional.ofNullable(mark.get()));
+                        checkpoint.save(checkpointFile);
+                        logger.debug(checkpoint);
+                    }, TimeUnit.SECONDS.toMillis(checkpointIntervalSeconds));
+                }
+                Optional<String> sourceMark = manifest.isPresent() ?
+                    sourceProvider.highestValueOf(incrementalAttribute) : Optional.empty();
+                Optional<String> resumedMark = resumed.flatMap(Checkpoint::getMark);
+                if (sourceMark.isPresent()) {
+                    // Taken before the items are read, the first time if resumed, so the changes
+                    // made while reading are picked up by the next backup
+                    mark.set(resumedMark.orElse(sourceMark.get()));
+                } else if (manifest.isPresent()) {
+                    // Files cannot tell the mark beforehand, but do not change while read either
+                    resumedMark.ifPresent(mark::set);
+                    pipeline.withItemListener(item -> item.getAttributes().stream()
+                        .filter(a -> incrementalAttribute.equals(a.getName()))
+                        .forEach(a -> mark.accumulateAndGet(a.getValue(),
+                            (m, v) -> ((null == m) || (v.compareTo(m) > 0)) ? v : m)));
+                }
+                itemsTransferred = pipeline.transfer(sourceProvider, storeProvider);
+            }
+            succeeded = true;
+        } finally {
+            endProgress(progress, sourceUri, destinationUris, succeeded);
+        }
+        if ((null != checkpointFile) && checkpointFile.exists() && !checkpointFile.delete()) {
+            logger.warn(String.format("Cannot delete checkpoint file %s", checkpointFile));
+        }
+        if (manifest.isPresent()) {
+            // Only recorded once the file is complete, so an interrupted backup is redone
+            BackupManifest updated = manifest.get().withBackup(
+                manifest.get().nextFile(manifestFile.get()), Optional.ofNullable(mark.get()));
+            updated.save(manifestFile.get());
+            logger.info(String.format("Recorded %s", updated));
+        }
+        logger.info("Transfer complete");
+        return itemsTransferred;
+    }
+
+    /**
+     * Make the destination domain the same as the source domain.
+     *
+     * @return the number of items put or deleted
+     */
+    private long sync(URI sourceUri, URI destinationUri) throws Exception {
+        if ((null != checkpointFile) || (null != incrementalAttribute)) {
+            throw new IllegalArgumentException("A sync cannot be checkpointed or incremental");
+        }
+        TransferProgress progress = null;
+        boolean succeeded = false;
+        DomainSync.Result result;
+        try (DomainSync domainSync = SourceStoreProviderFactory.syncFor(sourceUri, destinationUri, simpleDb)) {
+            logger.info(String.format("Syncing %s to %s...", sourceUri, destinationUri));
+            progress = new TransferProgress(domainSync::getProgress);
+            if (progressIntervalSeconds > 0) {
+                progress.withProgressLines(progressIntervalSeconds);
+            }
+            result = domainSync.sync();
+            succeeded = true;
+        } finally {
+            endProgress(progress, sourceUri, Collections.singletonList(destinationUri), succeeded);
+        }
+        logger.info("Sync complete");
+        return result.getItemsPut() + result.getItemsDeleted();
+    }
+
+    private void endProgress(TransferProgress progress, URI sourceUri, List<URI> destinationUris, boolean succeeded) {
+        if (null == progress) {
+            return;
+        }
+        progress.close();
+        if (progressIntervalSeconds > 0) {
+            logger.info(progress.progressLine());
+        }
+        if (null != summaryFile) {
+            try {
+                progress.writeSummary(summaryFile, sourceUri, destinationUris, succeeded);
+            } catch (IOException ex) {
+                logger.warn(String.format("Cannot write the summary to %s", summaryFile), ex);
+            }
+        }
+    }
+
+    private static File manifestFileOf(URI destinationUri) {
+        if (!SourceStoreProviderFactory.SCHEME_FILE.equals(destinationUri.getScheme()) ||
+            !destinationUri.getPath().endsWith(BackupManifest.EXTENSION)) {
+            throw new IllegalArgumentException(String.format(
+                "The destination of an incremental backup must be a file:///...%s, not %s",
+                BackupManifest.EXTENSION, destinationUri));
+        }
+        return SourceStoreProviderFactory.fileOf(destinationUri);
+    }
+
+    private BackupManifest loadManifest(File manifestFile, URI sourceUri) throws IOException {
+        Optional<BackupManifest> manifest = BackupManifest.load(manifestFile);
+        if (!manifest.isPresent()) {
+            logger.info(String.format("No manifest in %s; starting a new backup.", manifestFile));
+            return new BackupManifest(sourceUri, incrementalAttribute);
+        }
+        if (!manifest.get().getSource().equals(sourceUri) ||
+            !manifest.get().getAttribute().equals(incrementalAttribute)) {
+            throw new IllegalArgumentException(String.format("%s is for a backup of %s by %s", manifestFile,
+                manifest.get().getSource(), manifest.get().getAttribute()));
+        }
+        logger.info(String.format("Backing up the changes since %s", manifest.get()));
+        return manifest.get();
+    }
+
+    private ItemSourceProvider changedSource(URI sourceUri, Optional<BackupManifest> manifest) throws IOException {
+        ItemSourceProvider source = SourceStoreProviderFactory.sourceProviderFor(sourceUri, simpleDb);
+        return manifest.map(m -> source.changedSince(m.getAttribute(), m.getHighWaterMark())).orElse(source);
+    }
+
+    private Optional<Checkpoint> loadCheckpoint(URI sourceUri, URI destinationUri) throws IOException {
+        if (!resume) {
+            return Optional.empty();
+        }
+        Optional<Checkpoint> checkpoint = Checkpoint.load(checkpointFile);
+        if (!checkpoint.isPresent()) {
+            logger.info(String.format("No checkpoint in %s; starting from the beginning.", checkpointFile));
+        } else if (!checkpoint.get().getSource().equals(sourceUri) ||
+            !checkpoint.get().getDestination().equals(destinationUri)) {
+            throw new IllegalArgumentException(String.format("%s is for a transfer from %s to %s", checkpointFile,
+                checkpoint.get().getSource(), checkpoint.get().getDestination()));
+        } else {
+            logger.info(String.format("Resuming from %s", checkpoint.get()));
+        }
+        return checkpoint;
+    }
+
+    private static ItemSourceProvider resumeSource(ItemSourceProvider source, Optional<Checkpoint> checkpoint) {
+        return checkpoint.map(c -> source.resumeFrom(c.getSourcePosition())).orElse(source);
     }
 }
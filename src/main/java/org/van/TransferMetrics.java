@@ -0,0 +1,429 @@
+package org.van;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.apache.log4j.Logger;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counts what the transfers of the process do: items and attributes read and written, bytes
+ * read and written, the latency of SimpleDB calls, retries, throttling, and the items queued
+ * between reading and writing.
+ * <br>
+ * The metrics are shared by the whole process (see {@link #global()}) so that providers and
+ * utilities can record into them without being handed an instance, the way the concurrency
+ * controllers are shared. They are registered with JMX as "org.van:type=TransferMetrics". The
+ * counters only grow; a single transfer is measured by the difference between two
+ * {@link Snapshot}s.
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+    // The items per second are measured over the last RATE_WINDOW ticks of a second
+    private static final int RATE_WINDOW = 10;
+
+    private static final Logger logger =
+        Logger.getLogger(TransferMetrics.class);
+
+    private static final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "transfer-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final TransferMetrics global = register(new TransferMetrics());
+
+    private final LongAdder itemsRead = new LongAdder();
+    private final LongAdder attributesRead = new LongAdder();
+    private final LongAdder itemsWritten = new LongAdder();
+    private final LongAdder attributesWritten = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder throttles = new LongAdder();
+    private final LatencyHistogram selectLatency = new LatencyHistogram();
+    private final LatencyHistogram putLatency = new LatencyHistogram();
+    private final Set<Collection<?>> queues = ConcurrentHashMap.newKeySet();
+
+    // Ring of the items and attributes written at the last ticks, guarded by this
+    private final long[] itemTicks = new long[RATE_WINDOW + 1];
+    private final long[] attributeTicks = new long[RATE_WINDOW + 1];
+    private long tickCount = 0;
+
+    private TransferMetrics() {
+    }
+
+    /**
+     * @return the metrics shared by the transfers of the process
+     */
+    public static TransferMetrics global() {
+        return global;
+    }
+
+    private static TransferMetrics register(TransferMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                new ObjectName("org.van:type=TransferMetrics"));
+        } catch (Exception ex) {
+            logger.warn("Cannot register the transfer metrics with JMX", ex);
+        }
+        ticker.scheduleAtFixedRate(metrics::tick, 1, 1, TimeUnit.SECONDS);
+        return metrics;
+    }
+
+    /**
+     * Count an item read from a source.
+     *
+     * @param item the item read
+     */
+    public void itemRead(Item item) {
+        itemsRead.increment();
+        attributesRead.add(item.getAttributes().size());
+    }
+
+    /**
+     * Count an item written to a store.
+     *
+     * @param item the item written
+     */
+    public void itemWritten(Item item) {
+        itemsWritten.increment();
+        attributesWritten.add(item.getAttributes().size());
+    }
+
+    /**
+     * @param bytes the number of bytes read from a file or from SimpleDB
+     */
+    public void bytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * @param bytes the number of bytes written to a file or to SimpleDB
+     */
+    public void bytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * Make a select call to SimpleDB and record its latency, whether it fails or not.
+     *
+     * @param call the call to make
+     * @param <T>
+     *
+     * @return the result of the call
+     */
+    public <T> T timeSelect(Supplier<T> call) {
+        return time(selectLatency, call);
+    }
+
+    /**
+     * Make a write call to SimpleDB and record its latency, whether it fails or not.
+     *
+     * @param call the call to make
+     * @param <T>
+     *
+     * @return the result of the call
+     */
+    public <T> T timePut(Supplier<T> call) {
+        return time(putLatency, call);
+    }
+
+    /**
+     * @param latencyNanos how long a write call to SimpleDB took, failed or not, for calls
+     *     completing asynchronously
+     */
+    public void putCompleted(long latencyNanos) {
+        putLatency.record(latencyNanos);
+    }
+
+    /**
+     * Count a retry.
+     *
+     * @param throttled true if the retried work was throttled
+     */
+    public void retried(boolean throttled) {
+        retries.increment();
+        if (throttled) {
+            throttles.increment();
+        }
+    }
+
+    /**
+     * Count the items of a queue in the queue depth until it is removed.
+     *
+     * @param queue a queue between reading and writing
+     */
+    public void addQueue(Collection<?> queue) {
+        queues.add(Objects.requireNonNull(queue));
+    }
+
+    /**
+     * @param queue a queue added with {@link #addQueue(Collection)}
+     */
+    public void removeQueue(Collection<?> queue) {
+        queues.remove(queue);
+    }
+
+    /**
+     * @return the current value of all the metrics
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(System.currentTimeMillis(), itemsRead.sum(), attributesRead.sum(), itemsWritten.sum(),
+            attributesWritten.sum(), bytesRead.sum(), bytesWritten.sum(), retries.sum(), throttles.sum(),
+            selectLatency.snapshot(), putLatency.snapshot());
+    }
+
+    /**
+     * Count the bytes of the item name, attribute names and values of an item, in UTF-8, as
+     * SimpleDB counts them.
+     *
+     * @param item the item
+     *
+     * @return the number of bytes
+     */
+    public static long bytesOf(Item item) {
+        long bytes = utf8Length(item.getName());
+        List<Attribute> attributes = item.getAttributes();
+        for (int i = 0, n = attributes.size(); i < n; i++) {
+            bytes += utf8Length(attributes.get(i).getName()) + utf8Length(attributes.get(i).getValue());
+        }
+        return bytes;
+    }
+
+    private static int utf8Length(String s) {
+        if (null == s) {
+            return 0;
+        }
+        int bytes = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && (i + 1 < n) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private static <T> T time(LatencyHistogram histogram, Supplier<T> call) {
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } finally {
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+    private synchronized void tick() {
+        int slot = (int) (tickCount++ % itemTicks.length);
+        itemTicks[slot] = itemsWritten.sum();
+        attributeTicks[slot] = attributesWritten.sum();
+    }
+
+    private synchronized double ratePerSecond(long[] ticks) {
+        if (tickCount < 2) {
+            return 0;
+        }
+        int seconds = (int) Math.min(tickCount - 1, RATE_WINDOW);
+        long newest = ticks[(int) ((tickCount - 1) % ticks.length)];
+        long oldest = ticks[(int) ((tickCount - 1 - seconds) % ticks.length)];
+        return (double) (newest - oldest) / seconds;
+    }
+
+    @Override
+    public long getItemsRead() {
+        return itemsRead.sum();
+    }
+
+    @Override
+    public long getItemsWritten() {
+        return itemsWritten.sum();
+    }
+
+    @Override
+    public long getAttributesWritten() {
+        return attributesWritten.sum();
+    }
+
+    @Override
+    public double getItemsPerSecond() {
+        return ratePerSecond(itemTicks);
+    }
+
+    @Override
+    public double getAttributesPerSecond() {
+        return ratePerSecond(attributeTicks);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getSelects() {
+        return selectLatency.snapshot().getCount();
+    }
+
+    @Override
+    public long getSelectLatencyP50Millis() {
+        return selectLatency.snapshot().getPercentileMillis(50);
+    }
+
+    @Override
+    public long getSelectLatencyP99Millis() {
+        return selectLatency.snapshot().getPercentileMillis(99);
+    }
+
+    @Override
+    public long getPuts() {
+        return putLatency.snapshot().getCount();
+    }
+
+    @Override
+    public long getPutLatencyP50Millis() {
+        return putLatency.snapshot().getPercentileMillis(50);
+    }
+
+    @Override
+    public long getPutLatencyP99Millis() {
+        return putLatency.snapshot().getPercentileMillis(99);
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getThrottles() {
+        return throttles.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Collection<?> queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * The value of the metrics at one point in time.
+     */
+    public static final class Snapshot {
+
+        private final long timeMillis;
+        private final long itemsRead;
+        private final long attributesRead;
+        private final long itemsWritten;
+        private final long attributesWritten;
+        private final long bytesRead;
+        private final long bytesWritten;
+        private final long retries;
+        private final long throttles;
+        private final LatencyHistogram.Counts selectLatency;
+        private final LatencyHistogram.Counts putLatency;
+
+        private Snapshot(long timeMillis, long itemsRead, long attributesRead, long itemsWritten,
+                         long attributesWritten, long bytesRead, long bytesWritten, long retries, long throttles,
+                         LatencyHistogram.Counts selectLatency, LatencyHistogram.Counts putLatency) {
+            this.timeMillis = timeMillis;
+            this.itemsRead = itemsRead;
+            this.attributesRead = attributesRead;
+            this.itemsWritten = itemsWritten;
+            this.attributesWritten = attributesWritten;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.retries = retries;
+            this.throttles = throttles;
+            this.selectLatency = selectLatency;
+            this.putLatency = putLatency;
+        }
+
+        /**
+         * @param earlier a snapshot taken earlier from the same metrics
+         *
+         * @return what happened between the earlier snapshot and this one; the time is the
+         *     time elapsed between them
+         */
+        public Snapshot minus(Snapshot earlier) {
+            return new Snapshot(timeMillis - earlier.timeMillis, itemsRead - earlier.itemsRead,
+                attributesRead - earlier.attributesRead, itemsWritten - earlier.itemsWritten,
+                attributesWritten - earlier.attributesWritten, bytesRead - earlier.bytesRead,
+                bytesWritten - earlier.bytesWritten, retries - earlier.retries, throttles - earlier.throttles,
+                selectLatency.minus(earlier.selectLatency), putLatency.minus(earlier.putLatency));
+        }
+
+        /**
+         * @return the time of the snapshot, or the time elapsed for a difference of snapshots
+         */
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public long getItemsRead() {
+            return itemsRead;
+        }
+
+        public long getAttributesRead() {
+            return attributesRead;
+        }
+
+        public long getItemsWritten() {
+            return itemsWritten;
+        }
+
+        public long getAttributesWritten() {
+            return attributesWritten;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getRetries() {
+            return retries;
+        }
+
+        public long getThrottles() {
+            return throttles;
+        }
+
+        public LatencyHistogram.Counts getSelectLatency() {
+            return selectLatency;
+        }
+
+        public LatencyHistogram.Counts getPutLatency() {
+            return putLatency;
+        }
+    }
+}
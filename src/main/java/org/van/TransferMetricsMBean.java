@@ -0,0 +1,88 @@
+package org.van;
+
+/**
+ * JMX view of the {@link TransferMetrics} of the process.
+ */
+public interface TransferMetricsMBean {
+
+    /**
+     * @return the number of items read from sources
+     */
+    long getItemsRead();
+
+    /**
+     * @return the number of items written to stores
+     */
+    long getItemsWritten();
+
+    /**
+     * @return the number of attributes written to stores
+     */
+    long getAttributesWritten();
+
+    /**
+     * @return the items written per second over the last few seconds
+     */
+    double getItemsPerSecond();
+
+    /**
+     * @return the attributes written per second over the last few seconds
+     */
+    double getAttributesPerSecond();
+
+    /**
+     * @return the number of bytes read from sources
+     */
+    long getBytesRead();
+
+    /**
+     * @return the number of bytes written to stores
+     */
+    long getBytesWritten();
+
+    /**
+     * @return the number of select calls made to SimpleDB
+     */
+    long getSelects();
+
+    /**
+     * @return the median latency of the select calls in milliseconds (bucket bound)
+     */
+    long getSelectLatencyP50Millis();
+
+    /**
+     * @return the 99th percentile of the latency of the select calls in milliseconds (bucket bound)
+     */
+    long getSelectLatencyP99Millis();
+
+    /**
+     * @return the number of write calls made to SimpleDB
+     */
+    long getPuts();
+
+    /**
+     * @return the median latency of the write calls in milliseconds (bucket bound)
+     */
+    long getPutLatencyP50Millis();
+
+    /**
+     * @return the 99th percentile of the latency of the write calls in milliseconds (bucket bound)
+     */
+    long getPutLatencyP99Millis();
+
+    /**
+     * @return the number of retries
+     */
+    long getRetries();
+
+    /**
+     * @return the number of retries caused by throttling
+     */
+    long getThrottles();
+
+    /**
+     * @return the number of items waiting between the reading and the writing of the transfers
+     *     in progress
+     */
+    int getQueueDepth();
+}
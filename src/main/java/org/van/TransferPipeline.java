@@ -0,0 +1,354 @@
+package org.van;
+
+import com.amazonaws.services.simpledb.model.Item;
+import org.apache.log4j.Logger;
+import org.van.providers.ItemSourceProvider;
+import org.van.providers.ItemStoreProvider;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Transfers the items of an {@link ItemSourceProvider} to an {@link ItemStoreProvider} with the
+ * reading and the writing done on separate threads. The two sides are decoupled by a bounded
+ * queue: the reader blocks when the queue is full and the writer blocks when it is empty, so
+ * reads and writes overlap without the reader running arbitrarily far ahead of the writer.
+ * <br>
+ * Items are stored in the order they are read. The writing is done on the thread calling
+ * {@link #transfer(ItemSourceProvider, ItemStoreProvider)}. Once every item is read and stored,
+ * the store is flushed and completed (see {@link ItemStoreProvider#complete()}); a failed
+ * transfer leaves it incomplete.
+ * <br>
+ * Positions reported by the source travel through the queue along with the items. When a
+ * {@link CheckpointListener} is set, the writer takes a checkpoint at the first position it
+ * reaches after each checkpoint interval: it flushes the store, so everything before the
+ * position is stored, and passes the position on to the listener.
+ * <br>
+ * When a {@link MemoryBudget} is set, the items are also bounded by the heap they take, from the
+ * time they are read until the store no longer holds them (see
+ * {@link ItemStoreProvider#storeItem(Item, Runnable)}): the reader waits for the store to let go
+ * of items when the budget is spent. Sources holding items ahead of the reader take them from the
+ * budget themselves (see {@link ItemSourceProvider#holdItemsIn(MemoryBudget)}). A store still
+ * holding items when no more come for a while is flushed, so a budget smaller than its batches
+ * does not stall the transfer.
+ * <br>
+ * The items read and written, and the items in the queue, are counted in the
+ * {@link TransferMetrics} of the process.
+ */
+public class TransferPipeline {
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private static final Logger logger =
+        Logger.getLogger(TransferPipeline.class);
+
+    // Marks the end of the items read
+    private static final Item END = new Item();
+    // Time the reader waits for room for the end of the items before checking the writer again
+    private static final long END_OFFER_MILLIS = 100;
+    // Time the writer waits for an entry before flushing a store holding items of the budget
+    private static final long IDLE_FLUSH_MILLIS = 100;
+
+    private final int capacity;
+    private CheckpointListener checkpointListener = null;
+    private long checkpointIntervalMillis = 0;
+    private Consumer<Item> itemListener = item -> {};
+    private MemoryBudget memoryBudget = null;
+
+    /**
+     * Receives the checkpoints of a transfer.
+     */
+    @FunctionalInterface
+    public interface CheckpointListener {
+        /**
+         * Record a checkpoint. Everything the source iterated before the source position has been
+         * stored.
+         *
+         * @param sourcePosition the position the source can resume from
+         * @param storePosition the position the store can resume from, if it needs one
+         * @param itemsStored the number of items stored by this transfer so far
+         *
+         * @throws IOException if the checkpoint cannot be recorded
+         */
+        void checkpoint(String sourcePosition, Optional<String> storePosition, long itemsStored) throws IOException;
+    }
+
+    // A position reported by the source, queued between the items
+    private static final class SourcePosition {
+        final String position;
+
+        SourcePosition(String position) {
+            this.position = position;
+        }
+    }
+
+    // An item queued with the bytes of the memory budget it holds, given back when the store
+    // releases it
+    private static final class HeldItem implements Runnable {
+        final Item item;
+        final long size;
+        final BudgetShare share;
+
+        HeldItem(Item item, long size, BudgetShare share) {
+            this.item = item;
+            this.size = size;
+            this.share = share;
+        }
+
+        @Override
+        public void run() {
+            share.release(size);
+        }
+    }
+
+    /**
+     * The bytes of the memory budget held by the items of one transfer. Once the transfer is
+     * over, whatever its items still hold is given back at once, and the items the store
+     * releases later give back nothing more.
+     */
+    private static final class BudgetShare {
+        private final MemoryBudget budget;
+        // Whether the source takes the items from the budget before passing them on
+        private final boolean handedOver;
+        // Guarded by this
+        private long heldBytes = 0;
+        private boolean ended = false;
+
+        BudgetShare(MemoryBudget budget, boolean handedOver) {
+            this.budget = budget;
+            this.handedOver = handedOver;
+        }
+
+        /**
+         * Take an item read from the budget, waiting for room unless the source took it already.
+         *
+         * @return the entry to queue for the item
+         */
+        HeldItem hold(Item item) {
+            long size = MemoryBudget.sizeOf(item);
+            if (!handedOver) {
+                try {
+                    budget.acquire(size);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for memory", ex);
+                }
+            }
+            synchronized (this) {
+                heldBytes += size;
+            }
+            return new HeldItem(item, size, this);
+        }
+
+        synchronized void release(long size) {
+            if (!ended) {
+                heldBytes -= size;
+                budget.release(size);
+            }
+        }
+
+        synchronized long getHeldBytes() {
+            return heldBytes;
+        }
+
+        synchronized void end() {
+            ended = true;
+            budget.release(heldBytes);
+            heldBytes = 0;
+        }
+    }
+
+    public TransferPipeline() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a pipeline buffering up to the number of items provided between reader and writer.
+     *
+     * @param capacity the maximum number of items read but not yet stored (>= 1)
+     */
+    public TransferPipeline(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(String.format("Invalid capacity %d", capacity));
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Sets the listener to pass checkpoints to, and how often to take them.
+     *
+     * @param listener the listener of the checkpoints
+     * @param intervalMillis the minimum time between checkpoints in milliseconds
+     *
+     * @return this instance
+     */
+    public TransferPipeline withCheckpoints(CheckpointListener listener, long intervalMillis) {
+        Objects.requireNonNull(listener);
+        this.checkpointListener = listener;
+        this.checkpointIntervalMillis = intervalMillis;
+        return this;
+    }
+
+    /**
+     * Sets a listener told of every item stored, on the writing thread, right after it is
+     * passed to the store.
+     *
+     * @param listener the listener of the items stored
+     *
+     * @return this instance
+     */
+    public TransferPipeline withItemListener(Consumer<Item> listener) {
+        Objects.requireNonNull(listener);
+        this.itemListener = listener;
+        return this;
+    }
+
+    /**
+     * Sets the budget of heap the items read but not yet stored may take, on top of the number
+     * of items the pipeline buffers. The budget may be shared with other pipelines.
+     *
+     * @param budget the budget
+     *
+     * @return this instance
+     */
+    public TransferPipeline withMemoryBudget(MemoryBudget budget) {
+        Objects.requireNonNull(budget);
+        this.memoryBudget = budget;
+        return this;
+    }
+
+    /**
+     * Transfer all the items from the source to the store. Both should be initialized.
+     *
+     * @param source the source to read the items from
+     * @param store the store to write the items to
+     *
+     * @return the number of items stored
+     * @throws InterruptedException if interrupted while waiting for items
+     * @throws IOException if a checkpoint cannot be taken or the store cannot be completed
+     */
+    public long transfer(ItemSourceProvider source, ItemStoreProvider store) throws InterruptedException, IOException {
+        Objects.requireNonNull(source);
+        Objects.requireNonNull(store);
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(capacity);
+        AtomicReference<Throwable> readFailure = new AtomicReference<>();
+        AtomicBoolean writerDone = new AtomicBoolean(false);
+        BudgetShare share = (null == memoryBudget) ? null :
+            new BudgetShare(memoryBudget, source.holdItemsIn(memoryBudget));
+        TransferMetrics metrics = TransferMetrics.global();
+        metrics.addQueue(queue);
+
+        Thread reader = new Thread(() -> {
+            try {
+                source.iterateItems(item -> {
+                    metrics.itemRead(item);
+                    enqueue(queue, (null == share) ? item : share.hold(item));
+                }, position -> {
+                    if (null != checkpointListener) {
+                        enqueue(queue, new SourcePosition(position));
+                    }
+                });
+            } catch (Throwable t) {
+                readFailure.set(t);
+            } finally {
+                Thread.interrupted();
+                try {
+                    // The writer may stop taking entries at any time, leaving the queue full
+                    while (!writerDone.get() && !queue.offer(END, END_OFFER_MILLIS, TimeUnit.MILLISECONDS)) {
+                        logger.debug("Waiting for room to queue the end of the items");
+                    }
+                } catch (InterruptedException ex) {
+                    logger.debug("Interrupted while queuing the end of the items");
+                }
+            }
+        }, "item-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long itemsStored = 0;
+        long lastCheckpoint = System.currentTimeMillis();
+        try {
+            try {
+                Object entry = take(queue, share, store);
+                while (END != entry) {
+                    if (entry instanceof SourcePosition) {
+                        long now = System.currentTimeMillis();
+                        if (now - lastCheckpoint >= checkpointIntervalMillis) {
+                            store.flush();
+                            checkpointListener.checkpoint(((SourcePosition) entry).position, store.getPosition(), itemsStored);
+                            lastCheckpoint = now;
+                        }
+                    } else {
+                        Item item;
+                        if (entry instanceof HeldItem) {
+                            item = ((HeldItem) entry).item;
+                            store.storeItem(item, (HeldItem) entry);
+                        } else {
+                            item = (Item) entry;
+                            store.storeItem(item);
+                        }
+                        itemListener.accept(item);
+                        metrics.itemWritten(item);
+                        itemsStored++;
+                    }
+                    entry = take(queue, share, store);
+                }
+            } finally {
+                writerDone.set(true);
+                // Unblock a reader waiting for room, whatever the writer stopped on
+                queue.clear();
+                reader.interrupt();
+                reader.join();
+                metrics.removeQueue(queue);
+            }
+            if (null != readFailure.get()) {
+                throw new RuntimeException(String.format("Error while reading from %s", source), readFailure.get());
+            }
+            store.flush();
+            store.complete();
+            return itemsStored;
+        } finally {
+            if (null != share) {
+                // Items left in the queue, or in the store, by a failed transfer
+                share.end();
+            }
+        }
+    }
+
+    /**
+     * Take the next entry of the queue. While the queue stays empty, a store holding items of the
+     * memory budget is flushed so it lets go of them: the reader, or the source, may be waiting
+     * for their memory, while the store waits for more items to fill a batch.
+     */
+    private static Object take(BlockingQueue<Object> queue, BudgetShare share, ItemStoreProvider store)
+        throws InterruptedException, IOException {
+        if (null == share) {
+            return queue.take();
+        }
+        Object entry = queue.poll(IDLE_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        while (null == entry) {
+            if (share.getHeldBytes() > 0) {
+                logger.debug("Flushing the store while waiting for items");
+                store.flush();
+            }
+            entry = queue.poll(IDLE_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return entry;
+    }
+
+    private static void enqueue(BlockingQueue<Object> queue, Object entry) {
+        try {
+            queue.put(entry);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queuing an item", ex);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.van;
+
+import org.apache.log4j.Logger;
+import org.van.providers.ItemSourceProvider;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.OptionalDouble;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Reports the progress of a transfer: a line logged at a fixed interval with the items and
+ * bytes transferred, the rates since the line before, the share of the source done with an
+ * estimate of the time left, the latency of SimpleDB calls, retries and the items queued; and a
+ * JSON summary of the whole transfer at the end.
+ * <br>
+ * Everything is measured as the difference between {@link TransferMetrics} snapshots, so
+ * transfers running at the same time in the process are counted together. The time left is
+ * estimated from how fast the share of the source done (see
+ * {@link ItemSourceProvider#getProgress()}) has grown since the transfer started.
+ */
+public class TransferProgress implements Closeable {
+
+    private static final Logger logger =
+        Logger.getLogger(TransferProgress.class);
+
+    private final Supplier<OptionalDouble> sourceProgress;
+    private final TransferMetrics metrics = TransferMetrics.global();
+    private final TransferMetrics.Snapshot start;
+    private TransferMetrics.Snapshot last;
+    private ScheduledExecutorService scheduler = null;
+
+    // The share of the source done when first asked, and when; guarded by this
+    private double startProgress = -1;
+    private long startProgressMillis = 0;
+
+    /**
+     * Start measuring a transfer.
+     *
+     * @param source the source of the transfer, initialized
+     */
+    public TransferProgress(ItemSourceProvider source) {
+        this(Objects.requireNonNull(source)::getProgress);
+    }
+
+    /**
+     * Start measuring a transfer, or several, whose share done is told by the supplier provided
+     * (see {@link ItemSourceProvider#getProgress()}).
+     *
+     * @param sourceProgress the share of the work done so far, between 0 and 1, or empty if it
+     *     cannot be told; called from the thread logging the lines
+     */
+    public TransferProgress(Supplier<OptionalDouble> sourceProgress) {
+        Objects.requireNonNull(sourceProgress);
+        this.sourceProgress = sourceProgress;
+        this.start = metrics.snapshot();
+        this.last = start;
+    }
+
+    /**
+     * Log a progress line at the interval provided until closed.
+     *
+     * @param intervalSeconds the time between the lines (>= 1)
+     *
+     * @return this instance
+     */
+    public TransferProgress withProgressLines(long intervalSeconds) {
+        if (intervalSeconds < 1) {
+            throw new IllegalArgumentException(String.format("Invalid progress interval %d", intervalSeconds));
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "transfer-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Some sources count their items to tell their progress; do it off the transfer threads
+        scheduler.execute(this::progress);
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                logger.info(progressLine());
+            } catch (RuntimeException ex) {
+                logger.debug("Cannot report progress", ex);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return this;
+    }
+
+    /**
+     * @return a line telling how far the transfer has got since it started, and how fast it
+     *     went since the line before
+     */
+    public synchronized String progressLine() {
+        TransferMetrics.Snapshot now = metrics.snapshot();
+        TransferMetrics.Snapshot total = now.minus(start);
+        TransferMetrics.Snapshot recent = now.minus(last);
+        last = now;
+        double seconds = Math.max(recent.getTimeMillis(), 1) / 1000.0;
+
+        StringBuilder line = new StringBuilder(String.format(Locale.ROOT,
+            "Progress: %d items read, %d written (%.0f items/s, %.0f attributes/s), %s read, %s written",
+            total.getItemsRead(), total.getItemsWritten(), recent.getItemsWritten() / seconds,
+            recent.getAttributesWritten() / seconds, formatBytes(total.getBytesRead()),
+            formatBytes(total.getBytesWritten())));
+        OptionalDouble done = progress();
+        if (done.isPresent()) {
+            line.append(String.format(Locale.ROOT, ", %.1f%% done", done.getAsDouble() * 100));
+            long elapsed = System.currentTimeMillis() - startProgressMillis;
+            double gained = done.getAsDouble() - startProgress;
+            if ((gained > 0) && (elapsed > 0)) {
+                long left = (long) (elapsed * (1 - done.getAsDouble()) / gained);
+                line.append(", ETA ").append(formatDuration(left));
+            }
+        }
+        if (total.getSelectLatency().getCount() > 0) {
+            line.append(String.format("; selects p50 %s p99 %s", formatLatency(recent.getSelectLatency(), 50),
+                formatLatency(recent.getSelectLatency(), 99)));
+        }
+        if (total.getPutLatency().getCount() > 0) {
+            line.append(String.format("; puts p50 %s p99 %s", formatLatency(recent.getPutLatency(), 50),
+                formatLatency(recent.getPutLatency(), 99)));
+        }
+        line.append(String.format("; %d retries (%d throttled); %d items queued", total.getRetries(),
+            total.getThrottles(), metrics.getQueueDepth()));
+        return line.toString();
+    }
+
+    /**
+     * Write a JSON summary of the whole transfer.
+     *
+     * @param file the file to write the summary to
+     * @param sourceUri the source of the transfer
+     * @param destinationUris the destinations of the transfer
+     * @param succeeded whether the transfer completed
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void writeSummary(File file, URI sourceUri, List<URI> destinationUris, boolean succeeded) throws IOException {
+        try (Writer writer = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+            writer.write(summary(sourceUri, destinationUris, succeeded));
+        }
+    }
+
+    /**
+     * @param sourceUri the source of the transfer
+     * @param destinationUris the destinations of the transfer: one, or several written at once
+     * @param succeeded whether the transfer completed
+     *
+     * @return a JSON summary of the whole transfer
+     */
+    public String summary(URI sourceUri, List<URI> destinationUris, boolean succeeded) {
+        TransferMetrics.Snapshot total = metrics.snapshot().minus(start);
+        double seconds = Math.max(total.getTimeMillis(), 1) / 1000.0;
+        StringBuilder json = new StringBuilder("{\n");
+        json.append(String.format("  \"source\": \"%s\",\n", jsonEscape(sourceUri.toString())));
+        if (1 == destinationUris.size()) {
+            json.append(String.format("  \"destination\": \"%s\",\n", jsonEscape(destinationUris.get(0).toString())));
+        } else {
+            json.append(String.format("  \"destinations\": [%s],\n", destinationUris.stream()
+                .map(uri -> String.format("\"%s\"", jsonEscape(uri.toString())))
+                .collect(Collectors.joining(", "))));
+        }
+        json.append(String.format("  \"succeeded\": %b,\n", succeeded));
+        json.append(String.format("  \"elapsedMillis\": %d,\n", total.getTimeMillis()));
+        json.append(String.format("  \"itemsRead\": %d,\n", total.getItemsRead()));
+        json.append(String.format("  \"attributesRead\": %d,\n", total.getAttributesRead()));
+        json.append(String.format("  \"itemsWritten\": %d,\n", total.getItemsWritten()));
+        json.append(String.format("  \"attributesWritten\": %d,\n", total.getAttributesWritten()));
+        json.append(String.format(Locale.ROOT, "  \"itemsPerSecond\": %.1f,\n", total.getItemsWritten() / seconds));
+        json.append(String.format(Locale.ROOT, "  \"attributesPerSecond\": %.1f,\n", total.getAttributesWritten() / seconds));
+        json.append(String.format("  \"bytesRead\": %d,\n", total.getBytesRead()));
+        json.append(String.format("  \"bytesWritten\": %d,\n", total.getBytesWritten()));
+        json.append(String.format("  \"retries\": %d,\n", total.getRetries()));
+        json.append(String.format("  \"throttles\": %d,\n", total.getThrottles()));
+        json.append("  \"selectLatency\": ").append(latencyJson(total.getSelectLatency())).append(",\n");
+        json.append("  \"putLatency\": ").append(latencyJson(total.getPutLatency())).append("\n");
+        return json.append("}\n").toString();
+    }
+
+    @Override
+    public void close() {
+        if (null != scheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Ask the source how far it has got, remembering the first answer to estimate the time left.
+     */
+    private synchronized OptionalDouble progress() {
+        OptionalDouble done = sourceProgress.get();
+        if (done.isPresent() && (startProgress < 0)) {
+            startProgress = done.getAsDouble();
+            startProgressMillis = System.currentTimeMillis();
+        }
+        return done;
+    }
+
+    private static String latencyJson(LatencyHistogram.Counts latency) {
+        StringBuilder json = new StringBuilder(String.format(Locale.ROOT,
+            "{\"count\": %d, \"meanMillis\": %.1f, \"p50Millis\": %d, \"p90Millis\": %d, \"p99Millis\": %d, \"buckets\": {",
+            latency.getCount(), latency.getMeanMillis(), latency.getPercentileMillis(50),
+            latency.getPercentileMillis(90), latency.getPercentileMillis(99)));
+        for (int i = 0; i <= LatencyHistogram.BUCKET_BOUNDS_MILLIS.length; i++) {
+            String bound = (i < LatencyHistogram.BUCKET_BOUNDS_MILLIS.length) ?
+                String.valueOf(LatencyHistogram.BUCKET_BOUNDS_MILLIS[i]) : "more";
+            json.append(String.format("%s\"%s\": %d", (0 == i) ? "" : ", ", bound, latency.getCount(i)));
+        }
+        return json.append("}}").toString();
+    }
+
+    static String jsonEscape(String s) {
+        StringBuilder escaped = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (('"' == c) || ('\\' == c)) {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String formatLatency(LatencyHistogram.Counts latency, double percentile) {
+        if (0 == latency.getCount()) {
+            return "-";
+        }
+        long millis = latency.getPercentileMillis(percentile);
+        return (millis < 0) ? String.format(">%d ms",
+            LatencyHistogram.BUCKET_BOUNDS_MILLIS[LatencyHistogram.BUCKET_BOUNDS_MILLIS.length - 1]) :
+            String.format("<%d ms", millis);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        int unit = (int) (Math.log(bytes) / Math.log(1024));
+        return String.format(Locale.ROOT, "%.1f %sB", bytes / Math.pow(1024, unit), "KMGTPE".charAt(unit - 1));
+    }
+
+    private static String formatDuration(long millis) {
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(millis);
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+}
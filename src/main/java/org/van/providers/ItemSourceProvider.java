@@ -1,9 +1,12 @@
 package org.van.providers;
 
 import com.amazonaws.services.simpledb.model.Item;
+import org.van.MemoryBudget;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Optional;
+import java.util.OptionalDouble;
 import java.util.function.Consumer;
 
 /**
@@ -32,6 +35,90 @@ public abstract class ItemSourceProvider implements Closeable {
      */
     public abstract void iterateItems(Consumer<Item> consumer);
 
+    /**
+     * Iterate over the items of this source, also reporting positions the iteration can be
+     * resumed from (see {@link #resumeFrom(String)}). A position is reported once every item
+     * before it has been passed to the item {@link Consumer}, and only covers those items.
+     * Sources that cannot resume report no positions.
+     *
+     * @param consumer the {@link Consumer} of {@link Item}s iterated
+     * @param positionConsumer the {@link Consumer} of the positions reached
+     */
+    public void iterateItems(Consumer<Item> consumer, Consumer<String> positionConsumer) {
+        iterateItems(consumer);
+    }
+
+    /**
+     * Make the next iteration start from a position reported by an earlier one instead of from
+     * the beginning. Call this before {@link #initialize()}.
+     *
+     * @param position a position reported by {@link #iterateItems(Consumer, Consumer)}
+     *
+     * @return this instance
+     * @throws UnsupportedOperationException if this source cannot resume
+     */
+    public ItemSourceProvider resumeFrom(String position) {
+        throw new UnsupportedOperationException(String.format("%s cannot resume an iteration", this));
+    }
+
+    /**
+     * Only iterate over the items changed since an earlier iteration, as told by an attribute
+     * holding a timestamp or version that grows with every change. Call this before
+     * {@link #initialize()}.
+     *
+     * @param attribute the name of the attribute tracking the changes
+     * @param mark the highest value of the attribute seen by the earlier iteration, or empty to
+     *     iterate over all the items
+     *
+     * @return this instance
+     * @throws UnsupportedOperationException if this source cannot select items by attribute
+     */
+    public ItemSourceProvider changedSince(String attribute, Optional<String> mark) {
+        throw new UnsupportedOperationException(String.format("%s cannot select changed items", this));
+    }
+
+    /**
+     * Get the highest value an attribute has in this source before iterating, to be the mark of
+     * the next incremental iteration (see {@link #changedSince(String, Optional)}). Taken before
+     * the iteration starts, it misses nothing changed while iterating, whatever order the items
+     * are iterated in: those changes get values at or above it.
+     *
+     * @param attribute the name of the attribute tracking the changes
+     *
+     * @return the highest value, "" (the lowest of all values) if no item has the attribute yet,
+     *     or empty if this source cannot tell before iterating
+     */
+    public Optional<String> highestValueOf(String attribute) {
+        return Optional.empty();
+    }
+
+    /**
+     * Have this source take the items it holds before passing them on (e.g. pages read ahead)
+     * from a memory budget, so they count along with the items held after them. The size of each
+     * item (see {@link MemoryBudget#sizeOf(Item)}) is then handed over with the item: once passed
+     * to the item {@link Consumer}, the consumer holds it, and gives it back to the budget when
+     * done with the item instead of taking it again. Call this before iterating.
+     *
+     * @param budget the budget
+     *
+     * @return true if the items passed on are taken from the budget, false if this source does
+     *     not hold items ahead of its consumer and leaves the budget alone
+     */
+    public boolean holdItemsIn(MemoryBudget budget) {
+        return false;
+    }
+
+    /**
+     * Tell how far the iteration has got, for progress reports. This may be called from another
+     * thread while iterating.
+     *
+     * @return the share of the source iterated so far, between 0 and 1, or empty if it cannot
+     *     be told
+     */
+    public OptionalDouble getProgress() {
+        return OptionalDouble.empty();
+    }
+
     /**
      * Clean up and close any resources.
      *
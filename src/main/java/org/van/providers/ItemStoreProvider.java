@@ -4,11 +4,12 @@ import com.amazonaws.services.simpledb.model.Item;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Optional;
 
 /**
  * Abstract class for a store of {@link Item}. Users should call {@link #initialize()} before
- * using the instance, call {@link #storeItem(Item)} to add items, and
- * lastly call {@link #close()} when done with the instance.
+ * using the instance, call {@link #storeItem(Item)} to add items, call {@link #complete()} once
+ * all the items are stored, and lastly call {@link #close()} when done with the instance.
  *
  * Created by vly on 11/15/2015.
  */
@@ -30,6 +31,50 @@ public abstract class ItemStoreProvider implements Closeable {
      */
     public abstract void storeItem(Item item);
 
+    /**
+     * Store an item into this store, telling when this store no longer holds it. Stores keeping
+     * items after this call returns (e.g. in batches, queues or writes in flight) run the release
+     * provided once the item has left them, stored or given up on, on whatever thread that
+     * happens; by default the item is stored and released at once.
+     *
+     * @param item item to add to the store
+     * @param release run once this store no longer holds the item
+     */
+    public void storeItem(Item item, Runnable release) {
+        storeItem(item);
+        release.run();
+    }
+
+    /**
+     * Write out any items buffered by this store and wait for any writes still in progress.
+     * Failures of earlier writes that have not been reported yet are reported here.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+    }
+
+    /**
+     * Mark the items stored as all the items there are, once they are stored and flushed (see
+     * {@link #flush()}). Only called when every item was read and stored: stores whose output
+     * ends with a mark of its completeness (e.g. the end block of a binary file) write it here
+     * rather than when closed, so the output of a failed transfer is not taken for a whole one.
+     *
+     * @throws IOException
+     */
+    public void complete() throws IOException {
+    }
+
+    /**
+     * Get the position this store has reached, for stores that need one to resume writing
+     * (e.g. the length of the file written so far). Only meaningful right after {@link #flush()}.
+     *
+     * @return the position, or empty if the store can resume without one
+     */
+    public Optional<String> getPosition() {
+        return Optional.empty();
+    }
+
     /**
      * Clean up and close any resources.
      *
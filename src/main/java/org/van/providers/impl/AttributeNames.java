@@ -0,0 +1,59 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shares one string per attribute name across all the items read by the process. A domain has
+ * few attribute names, but every item read from SimpleDB, and every file or CSV parser thread,
+ * would otherwise hold its own copies of them.
+ * <br>
+ * Up to {@link #MAX_NAMES} names are shared; names beyond that, e.g. those of domains using
+ * attribute names as data, are left as they are so the table cannot grow without bound.
+ */
+final class AttributeNames {
+
+    static final int MAX_NAMES = 65536;
+
+    private static final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+
+    private AttributeNames() {
+    }
+
+    /**
+     * @param name an attribute name
+     *
+     * @return the shared string equal to the name, or the name itself if it cannot be shared
+     */
+    static String intern(String name) {
+        if (null == name) {
+            return null;
+        }
+        String shared = names.get(name);
+        if (null != shared) {
+            return shared;
+        }
+        if (names.size() >= MAX_NAMES) {
+            return name;
+        }
+        shared = names.putIfAbsent(name, name);
+        return (null == shared) ? name : shared;
+    }
+
+    /**
+     * Replace the attribute names of an item with their shared strings.
+     *
+     * @param item the item to update
+     */
+    static void intern(Item item) {
+        List<Attribute> attributes = item.getAttributes();
+        for (int i = 0, n = attributes.size(); i < n; i++) {
+            Attribute attribute = attributes.get(i);
+            attribute.setName(intern(attribute.getName()));
+        }
+    }
+}
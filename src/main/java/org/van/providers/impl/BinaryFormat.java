@@ -0,0 +1,45 @@
+package org.van.providers.impl;
+
+/**
+ * Layout of the binary backup files written by {@link BinaryStoreProvider} and read by
+ * {@link BinarySourceProvider}.
+ * <br>
+ * A file starts with the 4 bytes {@link #MAGIC} and the {@link #VERSION} byte, followed by
+ * blocks. Each block is the varint length of its payload, the payload, and the CRC32 of the
+ * payload (4 bytes, big-endian). A block with an empty payload (and no CRC) ends the file, so a
+ * truncated file is told apart from a complete one.
+ * <br>
+ * A payload is a series of records, each starting with a tag byte:
+ * <ul>
+ *     <li>{@link #NAME} string -- adds an attribute name to the dictionary of the file, with the
+ *     next free id (0 first)</li>
+ *     <li>{@link #ITEM} string item name; varint number of attributes; for each attribute, the
+ *     varint id of its name and its string value</li>
+ *     <li>{@link #RESET} -- empties the dictionary (written where an interrupted file was resumed)</li>
+ * </ul>
+ * Strings are the varint of their UTF-8 length plus one, then their UTF-8 bytes; 0 stands for a
+ * missing (null) string. Varints are unsigned LEB128: 7 bits per byte, least significant first,
+ * with the high bit set on all but the last byte. Items never span blocks.
+ */
+final class BinaryFormat {
+
+    static final byte[] MAGIC = {'S', 'D', 'B', 'K'};
+    static final int VERSION = 1;
+
+    static final int NAME = 1;
+    static final int ITEM = 2;
+    static final int RESET = 3;
+
+    /**
+     * The size a block is closed at, once the item that reaches it is written
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * The largest payload accepted when reading, to fail on corrupt lengths before allocating
+     */
+    static final int MAX_PAYLOAD_SIZE = 256 * 1024 * 1024;
+
+    private BinaryFormat() {
+    }
+}
@@ -0,0 +1,255 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.van.TransferMetrics;
+import org.van.providers.ItemSourceProvider;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Implementation of {@link ItemSourceProvider} reading items in the compact binary format
+ * described in {@link BinaryFormat}. Blocks are read into a reusable buffer and checked against
+ * their checksum before any of their items is passed on; attribute names come from the
+ * dictionary, so all the attributes of a name share one string.
+ * <br>
+ * The bytes of content read are counted in the {@link TransferMetrics} of the process.
+ */
+public class BinarySourceProvider extends ItemSourceProvider {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream inputStream;
+    private boolean streamOwnership = false;
+    private DataInputStream in;
+    private CountingInputStream countingStream;
+    private Optional<FileChannel> file = Optional.empty();
+    private final TransferMetrics metrics = TransferMetrics.global();
+
+    private final List<String> dictionary = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private byte[] block = new byte[BinaryFormat.BLOCK_SIZE + 1024];
+    private int position = 0;
+    private int limit = 0;
+    private long blocksRead = 0;
+
+    public BinarySourceProvider(InputStream inputStream) {
+        Objects.requireNonNull(inputStream);
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Sets the stream ownership of this instance. If true, then this instance will close the
+     * input stream it is instantiated with. If false, then it will not.
+     *
+     * @param streamOwnership true to delegate stream ownership to this instance
+     *
+     * @return this instance
+     */
+    public BinarySourceProvider withStreamOwnership(boolean streamOwnership) {
+        this.streamOwnership = streamOwnership;
+        return this;
+    }
+
+    /**
+     * Sets the channel of the file the input stream reads, to report progress as the share of
+     * the file read (see {@link #getProgress()}). When the stream decompresses the file, the
+     * share is that of the compressed bytes.
+     *
+     * @param file the channel of the file read
+     *
+     * @return this instance
+     */
+    public BinarySourceProvider withFile(FileChannel file) {
+        Objects.requireNonNull(file);
+        this.file = Optional.of(file);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Binary file stream %s", inputStream);
+    }
+
+    /**
+     * @return the share of the file read, if its channel was set
+     */
+    @Override
+    public OptionalDouble getProgress() {
+        if (!file.isPresent()) {
+            return OptionalDouble.empty();
+        }
+        try {
+            long size = file.get().size();
+            return OptionalDouble.of((0 == size) ? 1 : Math.min(1, (double) file.get().position() / size));
+        } catch (IOException ex) {
+            return OptionalDouble.empty();
+        }
+    }
+
+    @Override
+    public ItemSourceProvider initialize() {
+        try {
+            countingStream = new CountingInputStream(inputStream);
+            in = new DataInputStream(new BufferedInputStream(countingStream, BUFFER_SIZE));
+            byte[] magic = new byte[BinaryFormat.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, BinaryFormat.MAGIC)) {
+                throw new IOException("Not a binary backup file");
+            }
+            int version = in.readUnsignedByte();
+            if (BinaryFormat.VERSION != version) {
+                throw new IOException(String.format("Unsupported binary backup version %d", version));
+            }
+            return this;
+        } catch (Exception ex) {
+            throw new RuntimeException("Cannot initialize item source", ex);
+        }
+    }
+
+    @Override
+    public void iterateItems(Consumer<Item> consumer) {
+        try {
+            while (readBlock()) {
+                while (position < limit) {
+                    int tag = block[position++];
+                    switch (tag) {
+                        case BinaryFormat.NAME:
+                            dictionary.add(AttributeNames.intern(getString()));
+                            break;
+                        case BinaryFormat.ITEM:
+                            consumer.accept(getItem());
+                            break;
+                        case BinaryFormat.RESET:
+                            dictionary.clear();
+                            break;
+                        default:
+                            throw corrupt(String.format("unknown record %d", tag));
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            throw new RuntimeException("Error while iterating items", t);
+        }
+    }
+
+    /**
+     * Read the next block into the buffer and check its checksum.
+     *
+     * @return false at the end of the file
+     */
+    private boolean readBlock() throws IOException {
+        int length;
+        try {
+            length = readVarint();
+        } catch (EOFException ex) {
+            throw new EOFException("Binary backup file is truncated (no end block)");
+        }
+        if (0 == length) {
+            return false;
+        }
+        blocksRead++;
+        if (length > BinaryFormat.MAX_PAYLOAD_SIZE) {
+            throw corrupt(String.format("block of %d bytes", length));
+        }
+        if (length > block.length) {
+            block = new byte[length];
+        }
+        in.readFully(block, 0, length);
+        long checksum = in.readInt() & 0xFFFFFFFFL;
+        crc.reset();
+        crc.update(block, 0, length);
+        if (crc.getValue() != checksum) {
+            throw corrupt("checksum mismatch");
+        }
+        position = 0;
+        limit = length;
+        metrics.bytesRead(countingStream.resetByteCount());
+        return true;
+    }
+
+    private Item getItem() throws IOException {
+        String name = getString();
+        int count = getVarint();
+        if (count > limit - position) {
+            throw corrupt(String.format("item of %d attributes", count));
+        }
+        List<Attribute> attributes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int id = getVarint();
+            if (id >= dictionary.size()) {
+                throw corrupt(String.format("undefined attribute name %d", id));
+            }
+            attributes.add(new Attribute(dictionary.get(id), getString()));
+        }
+        return new Item(name, attributes);
+    }
+
+    private String getString() throws IOException {
+        int length = getVarint() - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > limit - position) {
+            throw corrupt("string past the end of its block");
+        }
+        String s = new String(block, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return s;
+    }
+
+    private int getVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position >= limit) {
+                throw corrupt("varint past the end of its block");
+            }
+            byte b = block[position++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw corrupt("varint too long");
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+        throw corrupt("varint too long");
+    }
+
+    private IOException corrupt(String problem) {
+        return new IOException(String.format("Corrupt binary backup file (%s in block %d)", problem, blocksRead));
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.closeQuietly(in);
+        if (streamOwnership) {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+}
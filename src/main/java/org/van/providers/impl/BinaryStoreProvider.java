@@ -0,0 +1,284 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.apache.commons.io.IOUtils;
+import org.van.TransferMetrics;
+import org.van.providers.ItemStoreProvider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Implementation of {@link ItemStoreProvider} writing items in the compact binary format
+ * described in {@link BinaryFormat}. Records are encoded straight into a reusable block buffer,
+ * which is written out with its checksum once it holds {@link BinaryFormat#BLOCK_SIZE} bytes.
+ * The empty block ending the file is only written by {@link #complete()}: a file closed without
+ * it reads back as truncated.
+ * <br>
+ * The bytes of content written are counted in the {@link TransferMetrics} of the process.
+ */
+public class BinaryStoreProvider extends ItemStoreProvider {
+
+    private final OutputStream outputStream;
+    private boolean streamOwnership = false;
+    private long resumedLength = 0;
+    private Optional<LongSupplier> fileByteCounter = Optional.empty();
+
+    private final Map<String,Integer> dictionary = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private final byte[] frame = new byte[5];
+    private byte[] block = new byte[BinaryFormat.BLOCK_SIZE + 1024];
+    private int length = 0;
+    private long bytesWritten = 0;
+    private boolean closed = false;
+    private final TransferMetrics metrics = TransferMetrics.global();
+
+    public BinaryStoreProvider(OutputStream outputStream) {
+        Objects.requireNonNull(outputStream);
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Sets the stream ownership of this instance. If true, then this instance will close the
+     * output stream it is instantiated with. If false, then it will not.
+     *
+     * @param streamOwnership true to delegate stream ownership to this instance
+     *
+     * @return this instance
+     */
+    public BinaryStoreProvider withStreamOwnership(boolean streamOwnership) {
+        this.streamOwnership = streamOwnership;
+        return this;
+    }
+
+    /**
+     * Sets the length of the content already written, when the output stream appends to a file
+     * written by an earlier, interrupted transfer. The file header is then not written again,
+     * the dictionary is started over, and positions (see {@link #getPosition()}) count from that
+     * length.
+     *
+     * @param resumedLength the number of bytes already written
+     *
+     * @return this instance
+     */
+    public BinaryStoreProvider withResumedLength(long resumedLength) {
+        this.resumedLength = resumedLength;
+        return this;
+    }
+
+    /**
+     * Sets the counter of the bytes that reached the file, when the output stream compresses the
+     * content on its way there. Positions (see {@link #getPosition()}) then count the bytes of
+     * the file rather than those of the content.
+     *
+     * @param fileByteCounter the counter of the bytes written to the file
+     *
+     * @return this instance
+     */
+    public BinaryStoreProvider withFileByteCounter(LongSupplier fileByteCounter) {
+        Objects.requireNonNull(fileByteCounter);
+        this.fileByteCounter = Optional.of(fileByteCounter);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Binary output stream %s", outputStream);
+    }
+
+    @Override
+    public ItemStoreProvider initialize() {
+        try {
+            if (0 == resumedLength) {
+                write(BinaryFormat.MAGIC, 0, BinaryFormat.MAGIC.length);
+                frame[0] = (byte) BinaryFormat.VERSION;
+                write(frame, 0, 1);
+            } else {
+                putByte(BinaryFormat.RESET);
+            }
+            return this;
+        } catch (Exception ex) {
+            throw new RuntimeException("Cannot initialize item store", ex);
+        }
+    }
+
+    @Override
+    public void storeItem(Item item) {
+        List<Attribute> attributes = item.getAttributes();
+        for (Attribute attribute : attributes) {
+            if (!dictionary.containsKey(attribute.getName())) {
+                putByte(BinaryFormat.NAME);
+                putString(attribute.getName());
+                dictionary.put(attribute.getName(), dictionary.size());
+            }
+        }
+        putByte(BinaryFormat.ITEM);
+        putString(item.getName());
+        putVarint(attributes.size());
+        for (Attribute attribute : attributes) {
+            putVarint(dictionary.get(attribute.getName()));
+            putString(attribute.getValue());
+        }
+        if (length >= BinaryFormat.BLOCK_SIZE) {
+            try {
+                writeBlock();
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("Cannot serialize item %s", item.getName()), e);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        outputStream.flush();
+    }
+
+    /**
+     * @return the number of bytes written, including any resumed length
+     */
+    @Override
+    public Optional<String> getPosition() {
+        long written = fileByteCounter.map(LongSupplier::getAsLong).orElse(bytesWritten);
+        return Optional.of(String.valueOf(resumedLength + written));
+    }
+
+    /**
+     * Write the empty block ending the file.
+     */
+    @Override
+    public void complete() throws IOException {
+        writeBlock();
+        frame[0] = 0;
+        write(frame, 0, 1);
+        outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // The items stored so far, e.g. for a resumed transfer to write after
+            writeBlock();
+            outputStream.flush();
+        } finally {
+            if (streamOwnership) {
+                IOUtils.closeQuietly(outputStream);
+            }
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (0 == length) {
+            return;
+        }
+        int frameLength = 0;
+        int value = length;
+        while ((value & ~0x7F) != 0) {
+            frame[frameLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        frame[frameLength++] = (byte) value;
+        write(frame, 0, frameLength);
+
+        crc.reset();
+        crc.update(block, 0, length);
+        long checksum = crc.getValue();
+        ensureCapacity(4);
+        block[length++] = (byte) (checksum >>> 24);
+        block[length++] = (byte) (checksum >>> 16);
+        block[length++] = (byte) (checksum >>> 8);
+        block[length++] = (byte) checksum;
+        write(block, 0, length);
+        length = 0;
+    }
+
+    private void write(byte[] bytes, int offset, int count) throws IOException {
+        outputStream.write(bytes, offset, count);
+        bytesWritten += count;
+        metrics.bytesWritten(count);
+    }
+
+    private void putByte(int b) {
+        ensureCapacity(1);
+        block[length++] = (byte) b;
+    }
+
+    private void putVarint(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            block[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        block[length++] = (byte) value;
+    }
+
+    /**
+     * Put the varint length and the UTF-8 bytes of a string, encoding it straight into the block.
+     */
+    private void putString(String s) {
+        if (null == s) {
+            putVarint(0);
+            return;
+        }
+        int chars = s.length();
+        int bytes = 0;
+        for (int i = 0; i < chars; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && (i + 1 < chars) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        putVarint(bytes + 1);
+        ensureCapacity(bytes);
+        for (int i = 0; i < chars; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                block[length++] = (byte) c;
+            } else if (c < 0x800) {
+                block[length++] = (byte) (0xC0 | (c >> 6));
+                block[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && (i + 1 < chars) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                block[length++] = (byte) (0xF0 | (cp >> 18));
+                block[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                block[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                block[length++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates have no UTF-8 encoding; write the replacement character
+                block[length++] = (byte) 0xEF;
+                block[length++] = (byte) 0xBF;
+                block[length++] = (byte) 0xBD;
+            } else {
+                block[length++] = (byte) (0xE0 | (c >> 12));
+                block[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                block[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void ensureCapacity(int more) {
+        if (length + more > block.length) {
+            block = Arrays.copyOf(block, Math.max(block.length * 2, length + more));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Item;
+import org.apache.log4j.Logger;
+import org.van.providers.ItemSourceProvider;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.function.Consumer;
+
+/**
+ * Implementation of {@link ItemSourceProvider} iterating over the items of several sources, one
+ * after the other (e.g. the base and the deltas of an incremental backup). Each source is only
+ * opened once the one before it is done.
+ * <br>
+ * Positions are reported as "index:position", the index of the source in the chain and the
+ * position reported by it (empty for the start of the source), so sources that can resume make
+ * the chain resumable too.
+ */
+public class ChainedSourceProvider extends ItemSourceProvider {
+
+    private static final Logger logger =
+        Logger.getLogger(ChainedSourceProvider.class);
+
+    private final List<URI> uris;
+    private int startIndex = 0;
+    private Optional<String> startPosition = Optional.empty();
+    // The source being iterated and its index, for progress reports
+    private volatile ItemSourceProvider current = null;
+    private volatile int currentIndex = 0;
+
+    public ChainedSourceProvider(List<URI> uris) {
+        Objects.requireNonNull(uris);
+        this.uris = new ArrayList<>(uris);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Chain of %s", uris);
+    }
+
+    @Override
+    public ChainedSourceProvider resumeFrom(String position) {
+        Objects.requireNonNull(position);
+        int colon = position.indexOf(':');
+        try {
+            startIndex = Integer.parseInt(position.substring(0, Math.max(colon, 0)));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Invalid chain position %s", position), ex);
+        }
+        startPosition = Optional.of(position.substring(colon + 1)).filter(p -> !p.isEmpty());
+        return this;
+    }
+
+    /**
+     * @return the share of the sources done, each counting for the same share whatever its size
+     */
+    @Override
+    public OptionalDouble getProgress() {
+        if (uris.isEmpty()) {
+            return OptionalDouble.empty();
+        }
+        ItemSourceProvider source = current;
+        double done = currentIndex + ((null == source) ? 0 : source.getProgress().orElse(0));
+        return OptionalDouble.of(Math.min(1, done / uris.size()));
+    }
+
+    @Override
+    public void iterateItems(Consumer<Item> consumer) {
+        iterateItems(consumer, position -> {});
+    }
+
+    @Override
+    public void iterateItems(Consumer<Item> consumer, Consumer<String> positionConsumer) {
+        for (int i = startIndex; i < uris.size(); i++) {
+            int index = i;
+            logger.info(String.format("Reading %s", uris.get(i)));
+            try (ItemSourceProvider source = SourceStoreProviderFactory.sourceProviderFor(uris.get(i))) {
+                if ((index == startIndex) && startPosition.isPresent()) {
+                    source.resumeFrom(startPosition.get());
+                }
+                current = source;
+                currentIndex = index;
+                source.initialize().iterateItems(consumer,
+                    position -> positionConsumer.accept(String.format("%d:%s", index, position)));
+            } catch (IOException ex) {
+                throw new RuntimeException(String.format("Error while reading %s", uris.get(i)), ex);
+            } finally {
+                current = null;
+            }
+            currentIndex = index + 1;
+            positionConsumer.accept(String.format("%d:", index + 1));
+        }
+    }
+}
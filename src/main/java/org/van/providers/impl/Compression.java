@@ -0,0 +1,120 @@
+package org.van.providers.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Objects;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compression of a backup file, chosen by the extension of its name.
+ */
+public enum Compression {
+    /**
+     * Plain content
+     */
+    NONE("", true) {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    },
+
+    /**
+     * gzip, compressed in parallel blocks (see {@link ParallelGzipOutputStream})
+     */
+    GZIP(".gz", true) {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return new ParallelGzipOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+    },
+
+    /**
+     * zlib (deflate), compressed as a single stream
+     */
+    DEFLATE(".deflate", false) {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return new BufferedOutputStream(new DeflaterOutputStream(out), BUFFER_SIZE);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return new InflaterInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        }
+    };
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String extension;
+    private final boolean appendable;
+
+    Compression(String extension, boolean appendable) {
+        this.extension = extension;
+        this.appendable = appendable;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @return true if content compressed this way can be cut back to the length it had after a
+     *     flush and appended to, so that an interrupted transfer can resume writing it
+     */
+    public boolean isAppendable() {
+        return appendable;
+    }
+
+    /**
+     * Wrap the stream provided so that what is written to it is compressed.
+     *
+     * @param out the stream to write the compressed content to
+     *
+     * @return the stream to write the content to
+     * @throws IOException if the stream cannot be written
+     */
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Wrap the stream provided so that what is read from it is decompressed.
+     *
+     * @param in the stream to read the compressed content from
+     *
+     * @return the stream to read the content from
+     * @throws IOException if the stream cannot be read or is not compressed this way
+     */
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * Get the compression of a file from the extension of its name.
+     *
+     * @param name the name of the file
+     *
+     * @return the compression, {@link #NONE} if the extension is not one of a compression
+     */
+    public static Compression forFile(String name) {
+        Objects.requireNonNull(name);
+        for (Compression compression : values()) {
+            if ((NONE != compression) && name.endsWith(compression.extension)) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+}
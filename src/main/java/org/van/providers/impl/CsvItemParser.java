@@ -0,0 +1,390 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Parses the CSV written by {@link CsvStoreProvider} into {@link Item}s, reading the bytes in
+ * large chunks from a channel and building the items directly from them.
+ * <br>
+ * Fields are unescaped into reusable byte buffers and compared as bytes: a row only creates a new
+ * string for its value, and for its item name when it starts a new item. Attribute names are
+ * decoded once and shared through a small cache, and with the other sources of the process (see
+ * {@link AttributeNames}). Since no byte of a multi-byte UTF-8 sequence is
+ * an ASCII character, the CSV syntax can be parsed on the bytes before decoding.
+ * <br>
+ * The parsing follows the CSV reader used before (super-csv with its Excel preference) exactly:
+ * lines end at "\n", "\r" or "\r\n"; empty lines are skipped; quotes may open and close anywhere
+ * in a field, with "" standing for a quote inside them; line ends inside quotes become "\n"; and
+ * empty fields, quoted or not, are null. Rows of the same item name that follow each other make
+ * one item, and a row repeating the attribute name and value of the row before it is dropped.
+ */
+final class CsvItemParser {
+
+    static final int CHUNK_SIZE = 1 << 20;
+
+    private static final int NAME_CACHE_SIZE = 1024;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] bytes;
+    private int position = 0;
+    private int limit = 0;
+    // Offset in the channel of bytes[0]
+    private long bufferOffset;
+    private boolean eof = false;
+
+    // The first three fields of the current row; a length of 0 is a null field
+    private final byte[][] fields = {new byte[256], new byte[256], new byte[1024]};
+    private final int[] lengths = new int[3];
+    private int columns;
+    private long rowOffset;
+
+    // The name of the current item and the attribute of the row before
+    private byte[] itemName = new byte[256];
+    private int itemNameLength = -1;
+    private byte[] lastName = new byte[256];
+    private int lastNameLength = -1;
+    private byte[] lastValue = new byte[1024];
+    private int lastValueLength = -1;
+
+    private final byte[][] cachedNames = new byte[NAME_CACHE_SIZE][];
+    private final String[] cachedStrings = new String[NAME_CACHE_SIZE];
+    private int cachedCount = 0;
+
+    /**
+     * Create a parser reading from the current position of the channel provided.
+     *
+     * @param channel the channel to read the CSV from
+     * @param offset the offset of the current position of the channel in the CSV
+     */
+    CsvItemParser(ReadableByteChannel channel, long offset) {
+        this(channel, offset, CHUNK_SIZE);
+    }
+
+    /**
+     * Create a parser reading from the current position of the channel provided, in chunks of
+     * the size provided.
+     *
+     * @param channel the channel to read the CSV from
+     * @param offset the offset of the current position of the channel in the CSV
+     * @param chunkSize the number of bytes to read at once
+     */
+    CsvItemParser(ReadableByteChannel channel, long offset, int chunkSize) {
+        Objects.requireNonNull(channel);
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(chunkSize);
+        this.bytes = buffer.array();
+        this.bufferOffset = offset;
+    }
+
+    /**
+     * Skip the number of bytes provided, e.g. to resume at an offset reported earlier.
+     *
+     * @param count the number of bytes to skip
+     *
+     * @throws IOException if the channel cannot be read or ends before
+     */
+    void skip(long count) throws IOException {
+        long remaining = count;
+        int buffered = Math.min(limit - position, (int) Math.min(remaining, Integer.MAX_VALUE));
+        position += buffered;
+        remaining -= buffered;
+        if ((remaining > 0) && (channel instanceof FileChannel)) {
+            FileChannel file = (FileChannel) channel;
+            file.position(file.position() + remaining);
+            bufferOffset += limit + remaining;
+            position = 0;
+            limit = 0;
+            remaining = 0;
+        }
+        while (remaining > 0) {
+            if (!fill()) {
+                throw new EOFException(String.format("CSV ends before offset %d", count));
+            }
+            int n = (int) Math.min(limit - position, remaining);
+            position += n;
+            remaining -= n;
+        }
+    }
+
+    /**
+     * @return the offset in the CSV of the row read last
+     */
+    long getRowOffset() {
+        return rowOffset;
+    }
+
+    /**
+     * Read the next row, e.g. to skip the headers.
+     *
+     * @return false if there are no more rows
+     * @throws IOException if the CSV cannot be read
+     */
+    boolean skipRow() throws IOException {
+        return readRow();
+    }
+
+    /**
+     * @return the offset of the first byte not parsed yet
+     */
+    long offset() {
+        return bufferOffset + position;
+    }
+
+    /**
+     * Parse the items of the rows left. Each item is passed on once the row after its last one
+     * is read (or the CSV ends), so the row offset is then that of the first row of the next item.
+     *
+     * @param consumer the consumer of the items parsed
+     * @param boundaryListener told after each item is passed on, with the offset of the row
+     *     starting the next one
+     *
+     * @throws IOException if the CSV cannot be read or is malformed
+     */
+    void parseItems(Consumer<Item> consumer, LongConsumer boundaryListener) throws IOException {
+        parseItems(consumer, boundaryListener, Long.MAX_VALUE);
+    }
+
+    /**
+     * Parse the items of the rows before the offset provided, which must be that of a row
+     * starting an item (see {@link #nextItemBoundary()}).
+     *
+     * @param consumer the consumer of the items parsed
+     * @param boundaryListener told after each item is passed on, with the offset of the row
+     *     starting the next one
+     * @param endOffset the offset to stop at
+     *
+     * @throws IOException if the CSV cannot be read or is malformed
+     */
+    void parseItems(Consumer<Item> consumer, LongConsumer boundaryListener, long endOffset) throws IOException {
+        Item item = null;
+        while (readRow() && (rowOffset < endOffset)) {
+            if (columns < 3) {
+                throw new IOException(String.format("Row at offset %d has %d columns instead of 3", rowOffset, columns));
+            }
+            if ((null == item) || !sameAs(0, itemName, itemNameLength)) {
+                if (null != item) {
+                    consumer.accept(item);
+                    boundaryListener.accept(rowOffset);
+                }
+                item = new Item().withName(decode(0));
+                itemName = copy(0, itemName);
+                itemNameLength = lengths[0];
+            } else if (sameAs(1, lastName, lastNameLength) && sameAs(2, lastValue, lastValueLength)) {
+                continue;
+            }
+            List<Attribute> attributes = item.getAttributes();
+            attributes.add(new Attribute(name(1), decode(2)));
+            lastName = copy(1, lastName);
+            lastNameLength = lengths[1];
+            lastValue = copy(2, lastValue);
+            lastValueLength = lengths[2];
+        }
+        if (null != item) {
+            consumer.accept(item);
+        }
+    }
+
+    /**
+     * Find the first row starting an item among the rows left: the first one whose item name
+     * differs from that of the row before. The row read first is taken to continue an item, as
+     * the rows before it are not known.
+     *
+     * @return the offset of the row, or -1 if there is none
+     * @throws IOException if the CSV cannot be read or is malformed
+     */
+    long nextItemBoundary() throws IOException {
+        if (!readRow()) {
+            return -1;
+        }
+        itemName = copy(0, itemName);
+        itemNameLength = lengths[0];
+        while (readRow()) {
+            if (!sameAs(0, itemName, itemNameLength)) {
+                return rowOffset;
+            }
+        }
+        return -1;
+    }
+
+    private boolean readRow() throws IOException {
+        int c;
+        do {
+            rowOffset = bufferOffset + position;
+            c = next();
+            if ('\r' == c) {
+                skipIf('\n');
+            }
+        } while (('\n' == c) || ('\r' == c));
+        if (c < 0) {
+            return false;
+        }
+
+        columns = 0;
+        lengths[0] = 0;
+        lengths[1] = 0;
+        lengths[2] = 0;
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c < 0) {
+                    throw new EOFException(String.format("CSV ends inside quotes in the row at offset %d", rowOffset));
+                } else if ('"' == c) {
+                    if (skipIf('"')) {
+                        append('"');
+                    } else {
+                        quoted = false;
+                    }
+                } else if ('\r' == c) {
+                    skipIf('\n');
+                    append('\n');
+                } else {
+                    append(c);
+                }
+            } else if ((c < 0) || ('\n' == c) || ('\r' == c)) {
+                if ('\r' == c) {
+                    skipIf('\n');
+                }
+                columns++;
+                return true;
+            } else if (',' == c) {
+                columns++;
+                if (columns < 3) {
+                    lengths[columns] = 0;
+                }
+            } else if ('"' == c) {
+                quoted = true;
+            } else {
+                append(c);
+            }
+            c = next();
+        }
+    }
+
+    private void append(int c) {
+        if (columns < 3) {
+            byte[] field = fields[columns];
+            int length = lengths[columns];
+            if (length == field.length) {
+                field = Arrays.copyOf(field, length * 2);
+                fields[columns] = field;
+            }
+            field[length] = (byte) c;
+            lengths[columns] = length + 1;
+        }
+    }
+
+    private int next() throws IOException {
+        if ((position == limit) && !fill()) {
+            return -1;
+        }
+        return bytes[position++] & 0xFF;
+    }
+
+    private boolean skipIf(int expected) throws IOException {
+        if ((position == limit) && !fill()) {
+            return false;
+        }
+        if ((bytes[position] & 0xFF) == expected) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        bufferOffset += limit;
+        buffer.clear();
+        int n = 0;
+        while (0 == n) {
+            n = channel.read(buffer);
+        }
+        if (n < 0) {
+            eof = true;
+            position = 0;
+            limit = 0;
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    private boolean sameAs(int field, byte[] other, int otherLength) {
+        int length = lengths[field];
+        if (length != otherLength) {
+            return false;
+        }
+        byte[] bytes = fields[field];
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] copy(int field, byte[] target) {
+        int length = lengths[field];
+        if (target.length < length) {
+            target = new byte[Math.max(length, target.length * 2)];
+        }
+        System.arraycopy(fields[field], 0, target, 0, length);
+        return target;
+    }
+
+    private String decode(int field) {
+        int length = lengths[field];
+        return (0 == length) ? null : new String(fields[field], 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode an attribute name, sharing one string per name through an open-addressing cache.
+     */
+    private String name(int field) {
+        int length = lengths[field];
+        if (0 == length) {
+            return null;
+        }
+        byte[] bytes = fields[field];
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = (31 * hash) + bytes[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+        for (int probe = 0; probe < NAME_CACHE_SIZE; probe++) {
+            byte[] cached = cachedNames[slot];
+            if (null == cached) {
+                String name = AttributeNames.intern(decode(field));
+                // Keep the cache at most half full so probes stay short
+                if (cachedCount < NAME_CACHE_SIZE / 2) {
+                    cachedNames[slot] = Arrays.copyOf(bytes, length);
+                    cachedStrings[slot] = name;
+                    cachedCount++;
+                }
+                return name;
+            }
+            if (sameAs(field, cached, cached.length)) {
+                return cachedStrings[slot];
+            }
+            slot = (slot + 1) & (NAME_CACHE_SIZE - 1);
+        }
+        return AttributeNames.intern(decode(field));
+    }
+}
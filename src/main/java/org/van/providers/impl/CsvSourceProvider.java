@@ -1,40 +1,53 @@
 package org.van.providers.impl;
 
-import com.amazonaws.services.simpledb.model.Attribute;
 import com.amazonaws.services.simpledb.model.Item;
 
 import org.apache.commons.io.IOUtils;
-import org.supercsv.io.CsvListReader;
-import org.supercsv.prefs.CsvPreference;
-import org.van.Accumulator;
+import org.apache.log4j.Logger;
+import org.van.TransferMetrics;
 import org.van.providers.ItemSourceProvider;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.util.List;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.OptionalDouble;
 import java.util.function.Consumer;
 
 /**
  * Implementation of {@link ItemSourceProvider} backed by a CSV file.
+ * <br>
+ * The CSV is parsed by a {@link CsvItemParser}. Positions are the byte offsets of the rows
+ * starting items, so resuming an iteration skips straight to the first item not iterated.
+ * <br>
+ * Uncompressed files can be parsed on several threads (see {@link #withParallelism(int)}).
+ * <br>
+ * The bytes of CSV content parsed are counted in the {@link TransferMetrics} of the process.
  *
  * Created by vly on 11/15/2015.
  */
 public class CsvSourceProvider extends ItemSourceProvider {
 
-    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Number of items between the positions reported
+    private static final int POSITION_INTERVAL = 1000;
+
+    private static final Logger logger =
+        Logger.getLogger(CsvSourceProvider.class);
 
     private final InputStream inputStream;
     private boolean streamOwnership = false;
-    private CsvListReader reader;
-
-    Item prevItem = null;
-    AtomicReference<Item> currentItem = new AtomicReference<>();
-    Accumulator<Void,Item,List<String>,String> accumulator;
+    private int parallelism = 1;
+    private CsvItemParser parser;
+    private Optional<ParallelCsvParser> parallelParser = Optional.empty();
+    private long startOffset = 0;
+    private Optional<FileChannel> file = Optional.empty();
+    // The offset of the row starting the next item to pass on
+    private volatile long offsetReached = 0;
+    private final TransferMetrics metrics = TransferMetrics.global();
 
     public CsvSourceProvider(InputStream inputStream) {
         Objects.requireNonNull(inputStream);
@@ -54,6 +67,40 @@ public class CsvSourceProvider extends ItemSourceProvider {
         return this;
     }
 
+    /**
+     * Sets the number of threads parsing the CSV. With more than 1, the file is cut into chunks
+     * parsed at the same time (see {@link ParallelCsvParser}); items are still passed on in the
+     * order of the file. This needs the input stream to be a {@link FileInputStream}: other
+     * streams, e.g. decompressed files, are parsed on one thread.
+     *
+     * @param parallelism the number of threads parsing, 1 (the default) to parse on the
+     *     iterating thread
+     *
+     * @return this instance
+     */
+    public CsvSourceProvider withParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(String.format("Invalid parallelism %d", parallelism));
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the channel of the file the input stream reads, to report progress as the share of
+     * the file read (see {@link #getProgress()}). When the stream decompresses the file, the
+     * share is that of the compressed bytes.
+     *
+     * @param file the channel of the file read
+     *
+     * @return this instance
+     */
+    public CsvSourceProvider withFile(FileChannel file) {
+        Objects.requireNonNull(file);
+        this.file = Optional.of(file);
+        return this;
+    }
+
     @Override
     public String toString() {
         return String.format("CSV file stream %s", inputStream);
@@ -61,72 +108,98 @@ public class CsvSourceProvider extends ItemSourceProvider {
 
     @Override
     public ItemSourceProvider initialize() {
-        reader = new CsvListReader(new InputStreamReader(inputStream, UTF8), CsvPreference.EXCEL_PREFERENCE);
-        accumulator = new Accumulator<>(
-            row -> row.get(0),
-            Item::getName,
-            row -> new Item().withName(row.get(0)),
-            currentItem::set
-        );
-        accumulator.withChained(
-            new Accumulator<Item, Attribute, List<String>, String>(
-                row -> row.get(1) + row.get(2),
-                attribute -> attribute.getName() + attribute.getValue(),
-                row -> new Attribute(row.get(1), row.get(2)),
-                attribute -> {}
-            ) {
-                protected Optional<Attribute> transition(Optional<Item> item, List<String> row) {
-                    Optional<Attribute> ra = super.transition(item, row);
-                    if (ra.isPresent() && item.isPresent()) {
-                        List<Attribute> attribs = item.get().getAttributes();
-                        attribs.add(ra.get());
-                        item.get().withAttributes(attribs);
-                    }
-                    return ra;
-                }
+        // Files are read through their channel; anything else (e.g. decompressed streams) through
+        // a channel over the stream
+        ReadableByteChannel channel = (inputStream instanceof FileInputStream) ?
+            ((FileInputStream) inputStream).getChannel() : Channels.newChannel(inputStream);
+        parser = new CsvItemParser(channel, 0);
+        if (parallelism > 1) {
+            if (inputStream instanceof FileInputStream) {
+                parallelParser = Optional.of(new ParallelCsvParser(((FileInputStream) inputStream).getChannel(), parallelism));
+            } else {
+                logger.warn(String.format("Cannot parse %s in parallel, parsing it on one thread", this));
             }
-        );
+        }
+        return this;
+    }
+
+    /**
+     * Resume from a position reported by an earlier iteration: the byte offset of the row
+     * starting the first item not iterated yet.
+     *
+     * @param position a position reported by {@link #iterateItems(Consumer, Consumer)}
+     *
+     * @return this instance
+     */
+    @Override
+    public CsvSourceProvider resumeFrom(String position) {
+        try {
+            startOffset = Long.parseLong(position);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Invalid CSV position %s", position), ex);
+        }
         return this;
     }
 
+    /**
+     * @return the share of the file read, if its channel was set
+     */
+    @Override
+    public OptionalDouble getProgress() {
+        if (!file.isPresent()) {
+            return OptionalDouble.empty();
+        }
+        try {
+            long size = file.get().size();
+            // Parallel parsing reads at positions of its own, without moving that of the channel
+            long position = parallelParser.isPresent() ? offsetReached : file.get().position();
+            return OptionalDouble.of((0 == size) ? 1 : Math.min(1, (double) position / size));
+        } catch (IOException ex) {
+            return OptionalDouble.empty();
+        }
+    }
+
     @Override
     public void iterateItems(Consumer<Item> consumer) {
+        iterateItems(consumer, position -> {});
+    }
+
+    @Override
+    public void iterateItems(Consumer<Item> consumer, Consumer<String> positionConsumer) {
         try {
-            reader.read();  // the headers
-            Item item = iterateUntilNew(accumulator, reader, currentItem.get());
-            while (null != item) {
-                if (null != prevItem) {
-                    consumer.accept(prevItem);
-                }
-                prevItem = item;
-                item = iterateUntilNew(accumulator, reader, currentItem.get());
+            offsetReached = startOffset;
+            if (parallelParser.isPresent()) {
+                parallelParser.get().parseItems(startOffset, consumer, offset -> {
+                    reach(offset);
+                    positionConsumer.accept(String.valueOf(offset));
+                });
+                return;
             }
-            if (null != prevItem) {
-                consumer.accept(prevItem);
+            if (0 == startOffset) {
+                parser.skipRow();  // the headers
+            } else {
+                parser.skip(startOffset);
             }
+            long[] itemsIterated = {0};
+            parser.parseItems(consumer, offset -> {
+                reach(offset);
+                if (0 == (++itemsIterated[0] % POSITION_INTERVAL)) {
+                    positionConsumer.accept(String.valueOf(offset));
+                }
+            });
+            reach(parser.offset());
         } catch (Throwable t) {
             throw new RuntimeException("Error while iterating items", t);
         }
     }
 
-    Item iterateUntilNew(Accumulator<Void,Item,List<String>,String> acc, CsvListReader reader,
-                         Item currentRef) throws IOException {
-        Item item = null;
-        List<String> row = reader.read();
-        while (null != row) {
-            acc.accumulate(row);
-            item = currentItem.get();
-            if ((null == currentRef) || !item.getName().equals(currentRef.getName())) {
-                break;
-            }
-            row = reader.read();
-        }
-        return item;
+    private void reach(long offset) {
+        metrics.bytesRead(offset - offsetReached);
+        offsetReached = offset;
     }
 
     @Override
     public void close() throws IOException {
-        IOUtils.closeQuietly(reader);
         if (streamOwnership) {
             IOUtils.closeQuietly(inputStream);
         }
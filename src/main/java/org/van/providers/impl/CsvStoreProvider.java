@@ -2,18 +2,29 @@ package org.van.providers.impl;
 
 import com.amazonaws.services.simpledb.model.Item;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.supercsv.io.CsvListWriter;
 import org.supercsv.prefs.CsvPreference;
+import org.van.TransferMetrics;
 import org.van.providers.ItemStoreProvider;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.function.LongSupplier;
 
 /**
  * Implementation of {@link ItemStoreProvider} backed by a CSV file.
+ * <br>
+ * The bytes of CSV content written are counted in the {@link TransferMetrics} of the process.
+ * Optionally, an {@link ItemNameIndex} of the file is written next to it once the file is
+ * complete (see {@link #withIndex(File, int)}). Until then, the index so far is saved on every
+ * flush to a partial index file, which a resumed transfer picks up the blocks written before it
+ * from.
  *
  * Created by vly on 11/15/2015.
  */
@@ -26,6 +37,13 @@ public class CsvStoreProvider extends ItemStoreProvider {
     private OutputStream outputStream;
     private boolean streamOwnership = false;
     private CsvListWriter writer;
+    private CountingOutputStream countingStream;
+    private long resumedLength = 0;
+    private Optional<LongSupplier> fileByteCounter = Optional.empty();
+    private boolean closed = false;
+    private File indexFile = null;
+    private ItemNameIndex.Builder indexBuilder = null;
+    private long partialIndexLength = -1;
 
     public CsvStoreProvider(OutputStream outputStream) {
         Objects.requireNonNull(outputStream);
@@ -45,6 +63,52 @@ public class CsvStoreProvider extends ItemStoreProvider {
         return this;
     }
 
+    /**
+     * Sets the length of the CSV content already written, when the output stream appends to a
+     * file written by an earlier, interrupted transfer. The headers are then not written again,
+     * and positions (see {@link #getPosition()}) count from that length.
+     *
+     * @param resumedLength the number of bytes already written
+     *
+     * @return this instance
+     */
+    public CsvStoreProvider withResumedLength(long resumedLength) {
+        this.resumedLength = resumedLength;
+        return this;
+    }
+
+    /**
+     * Sets the counter of the bytes that reached the file, when the output stream compresses the
+     * CSV content on its way there. Positions (see {@link #getPosition()}) then count the bytes
+     * of the file rather than those of the CSV content.
+     *
+     * @param fileByteCounter the counter of the bytes written to the file
+     *
+     * @return this instance
+     */
+    public CsvStoreProvider withFileByteCounter(LongSupplier fileByteCounter) {
+        Objects.requireNonNull(fileByteCounter);
+        this.fileByteCounter = Optional.of(fileByteCounter);
+        return this;
+    }
+
+    /**
+     * Sets the file to write an index of the item names to, with the offset of every block of
+     * the number of items provided. The offsets are those of the CSV content, so the output
+     * stream must write it to the file uncompressed.
+     *
+     * @param indexFile the index file (see {@link ItemNameIndex#fileFor(File)})
+     * @param interval the number of items of each block (>= 1)
+     *
+     * @return this instance
+     */
+    public CsvStoreProvider withIndex(File indexFile, int interval) {
+        Objects.requireNonNull(indexFile);
+        this.indexBuilder = new ItemNameIndex.Builder(interval);
+        this.indexFile = indexFile;
+        return this;
+    }
+
     @Override
     public String toString() {
         return String.format("Output stream %s", outputStream);
@@ -53,8 +117,21 @@ public class CsvStoreProvider extends ItemStoreProvider {
     @Override
     public ItemStoreProvider initialize() {
         try {
-            writer = new CsvListWriter(new OutputStreamWriter(outputStream, UTF8), CsvPreference.EXCEL_PREFERENCE);
-            writer.write(HEADERS);
+            TransferMetrics metrics = TransferMetrics.global();
+            countingStream = new CountingOutputStream(outputStream) {
+                @Override
+                protected synchronized void beforeWrite(int n) {
+                    super.beforeWrite(n);
+                    metrics.bytesWritten(n);
+                }
+            };
+            writer = new CsvListWriter(new OutputStreamWriter(countingStream, UTF8), CsvPreference.EXCEL_PREFERENCE);
+            if (0 == resumedLength) {
+                writer.write(HEADERS);
+            }
+            if ((null != indexBuilder) && (resumedLength > 0)) {
+                indexBuilder.addResumed(ItemNameIndex.load(partialIndexFile()), resumedLength);
+            }
             return this;
         } catch (Exception ex) {
             throw new RuntimeException("Cannot initialize item store", ex);
@@ -64,6 +141,9 @@ public class CsvStoreProvider extends ItemStoreProvider {
     @Override
     public void storeItem(Item item) {
         String itemName = item.getName();
+        if (null != indexBuilder) {
+            index(itemName);
+        }
         item.getAttributes().forEach(attr -> {
             try {
                 writer.write(itemName, attr.getName(), attr.getValue());
@@ -73,11 +153,81 @@ public class CsvStoreProvider extends ItemStoreProvider {
         });
     }
 
+    private void index(String itemName) {
+        if (indexBuilder.isBlockFull()) {
+            try {
+                // The rows of the items before must have reached the file to count them
+                writer.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("Cannot serialize item %s", itemName), e);
+            }
+            indexBuilder.startBlock(resumedLength + countingStream.getByteCount());
+        }
+        indexBuilder.add(itemName);
+    }
+
+    /**
+     * Write out the rows buffered, and save the index so far to the partial index file.
+     */
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+        long length = resumedLength + countingStream.getByteCount();
+        if ((null != indexBuilder) && (length != partialIndexLength)) {
+            indexBuilder.snapshot(length).save(partialIndexFile());
+            partialIndexLength = length;
+        }
+    }
+
+    /**
+     * Write out the rows buffered and save the index of the file, now complete.
+     */
+    @Override
+    public void complete() throws IOException {
+        writer.flush();
+        if (null != indexBuilder) {
+            indexBuilder.build(resumedLength + countingStream.getByteCount()).save(indexFile);
+            File partialIndexFile = partialIndexFile();
+            if (partialIndexFile.exists() && !partialIndexFile.delete()) {
+                throw new IOException(String.format("Cannot delete %s", partialIndexFile));
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes written, including any resumed length
+     */
+    @Override
+    public Optional<String> getPosition() {
+        long written = fileByteCounter.map(LongSupplier::getAsLong).orElseGet(countingStream::getByteCount);
+        return Optional.of(String.valueOf(resumedLength + written));
+    }
+
     @Override
     public void close() throws IOException {
-        IOUtils.closeQuietly(writer);
-        if (streamOwnership) {
-            IOUtils.closeQuietly(outputStream);
+        if (closed) {
+            return;
         }
+        closed = true;
+        if (null == writer) {
+            // Never initialized, e.g. another store of the transfer failed to
+            if (streamOwnership) {
+                IOUtils.closeQuietly(outputStream);
+            }
+            return;
+        }
+        try {
+            // Report what buffered or compressing streams fail to write out
+            writer.flush();
+        } finally {
+            IOUtils.closeQuietly(writer);
+            if (streamOwnership) {
+                IOUtils.closeQuietly(outputStream);
+            }
+        }
+    }
+
+    private File partialIndexFile() {
+        return new File(indexFile.getPath() + ".partial");
     }
 }
@@ -0,0 +1,200 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Item;
+import org.apache.log4j.Logger;
+import org.van.providers.ItemStoreProvider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Implementation of {@link ItemStoreProvider} storing every item in several stores, each written
+ * by a thread of its own (see {@link QueuedStoreWriter}), so a source read once is copied to all
+ * of them. Each store has a queue of its own (see {@link #withQueueCapacity(int)}): a store
+ * slower than the others, or slowed down for a while, only holds up the others once its queue
+ * is full.
+ * <br>
+ * The same item is passed to every store, which must not change it. An item stored with a
+ * release (see {@link #storeItem(Item, Runnable)}) is released once every store has let go of it,
+ * so the items queued for the stores count against the memory budget of the transfer.
+ * <br>
+ * A store failing fails the transfer, at the next item stored or flush. The others still write
+ * the items queued for them, and {@link #complete()} completes them but not the failed one.
+ */
+public class FanOutStoreProvider extends ItemStoreProvider {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    private static final Logger logger =
+        Logger.getLogger(FanOutStoreProvider.class);
+
+    private final List<ItemStoreProvider> stores;
+    private final List<QueuedStoreWriter> writers = new ArrayList<>();
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private boolean initialized = false;
+    private boolean closed = false;
+
+    /**
+     * @param stores the stores to write every item to, not initialized yet
+     */
+    public FanOutStoreProvider(List<ItemStoreProvider> stores) {
+        Objects.requireNonNull(stores);
+        if (stores.isEmpty()) {
+            throw new IllegalArgumentException("No store to write to");
+        }
+        this.stores = new ArrayList<>(stores);
+    }
+
+    /**
+     * Sets the number of items each store can fall behind the fastest one.
+     *
+     * @param queueCapacity the number of items queued for each store (>= 1)
+     *
+     * @return this instance
+     */
+    public FanOutStoreProvider withQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException(String.format("Invalid queue capacity %d", queueCapacity));
+        }
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Stores %s", stores);
+    }
+
+    @Override
+    public ItemStoreProvider initialize() {
+        for (int i = 0; i < stores.size(); i++) {
+            writers.add(new QueuedStoreWriter(stores.get(i), queueCapacity, String.format("store-writer-%d", i)));
+        }
+        for (QueuedStoreWriter writer : writers) {
+            writer.getStore().initialize();
+        }
+        for (QueuedStoreWriter writer : writers) {
+            writer.start();
+        }
+        initialized = true;
+        return this;
+    }
+
+    @Override
+    public void storeItem(Item item) {
+        for (QueuedStoreWriter writer : writers) {
+            writer.storeItem(item);
+        }
+    }
+
+    /**
+     * Store an item in every store, releasing it once none of them holds it any more.
+     */
+    @Override
+    public void storeItem(Item item, Runnable release) {
+        if (1 == writers.size()) {
+            writers.get(0).storeItem(item, release);
+            return;
+        }
+        Countdown countdown = new Countdown(writers.size(), release);
+        for (int i = 0; i < writers.size(); i++) {
+            try {
+                writers.get(i).storeItem(item, countdown);
+            } catch (RuntimeException ex) {
+                // The failed writer released its share; the stores after it never got the item
+                for (int j = i + 1; j < writers.size(); j++) {
+                    countdown.run();
+                }
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Flush every store and wait until they are all flushed.
+     */
+    @Override
+    public void flush() throws IOException {
+        List<CompletableFuture<Long>> flushes = new ArrayList<>();
+        for (QueuedStoreWriter writer : writers) {
+            flushes.add(writer.flush());
+        }
+        for (CompletableFuture<Long> flush : flushes) {
+            QueuedStoreWriter.await(flush);
+        }
+    }
+
+    /**
+     * Complete every store and wait until they are all completed.
+     */
+    @Override
+    public void complete() throws IOException {
+        List<CompletableFuture<Long>> completions = new ArrayList<>();
+        for (QueuedStoreWriter writer : writers) {
+            completions.add(writer.complete());
+        }
+        for (CompletableFuture<Long> completion : completions) {
+            QueuedStoreWriter.await(completion);
+        }
+    }
+
+    /**
+     * Close every store, once each has stored the items queued for it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!initialized) {
+            for (ItemStoreProvider store : stores) {
+                store.close();
+            }
+            return;
+        }
+        List<CompletableFuture<Long>> closes = new ArrayList<>();
+        for (QueuedStoreWriter writer : writers) {
+            closes.add(writer.close());
+        }
+        IOException failure = null;
+        for (int i = 0; i < writers.size(); i++) {
+            try {
+                logger.info(String.format("Wrote %d items to %s", QueuedStoreWriter.await(closes.get(i)),
+                    writers.get(i).getStore()));
+            } catch (IOException ex) {
+                // The other stores are still closed
+                if (null == failure) {
+                    failure = ex;
+                } else {
+                    failure.addSuppressed(ex);
+                }
+            }
+        }
+        if (null != failure) {
+            throw failure;
+        }
+    }
+
+    // Releases an item once each store has let go of it
+    private static final class Countdown implements Runnable {
+        private final AtomicInteger stores;
+        private final Runnable release;
+
+        Countdown(int stores, Runnable release) {
+            this.stores = new AtomicInteger(stores);
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            if (0 == stores.decrementAndGet()) {
+                release.run();
+            }
+        }
+    }
+}
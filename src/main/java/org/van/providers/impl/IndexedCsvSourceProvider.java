@@ -0,0 +1,129 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Item;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.van.TransferMetrics;
+import org.van.providers.ItemSourceProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.function.Consumer;
+
+/**
+ * Implementation of {@link ItemSourceProvider} passing on some of the items of an uncompressed
+ * CSV file, those whose names are asked for by an {@link ItemNameFilter}.
+ * <br>
+ * With an {@link ItemNameIndex} of the file next to it, only the regions of the file whose blocks
+ * may hold the names asked for are read, each parsed from its offset; without one, or with one
+ * written for another version of the file, the whole file is read.
+ * <br>
+ * The bytes of CSV content parsed are counted in the {@link TransferMetrics} of the process.
+ */
+public class IndexedCsvSourceProvider extends ItemSourceProvider {
+
+    // Smallest number of bytes read at once, however small the region
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+    private static final Logger logger =
+        Logger.getLogger(IndexedCsvSourceProvider.class);
+
+    private final File file;
+    private final ItemNameFilter filter;
+    private FileChannel channel;
+    private List<long[]> regions = Collections.emptyList();
+    private long regionBytes = 0;
+    private volatile long bytesParsed = 0;
+    private final TransferMetrics metrics = TransferMetrics.global();
+
+    /**
+     * @param file the CSV file
+     * @param filter the item names to pass on
+     */
+    public IndexedCsvSourceProvider(File file, ItemNameFilter filter) {
+        Objects.requireNonNull(file);
+        Objects.requireNonNull(filter);
+        this.file = file;
+        this.filter = filter;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Items %s of CSV file %s", filter, file);
+    }
+
+    @Override
+    public ItemSourceProvider initialize() {
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            long size = channel.size();
+            Optional<ItemNameIndex> index = ItemNameIndex.load(ItemNameIndex.fileFor(file));
+            if (index.isPresent() && index.get().matches(file)) {
+                regions = index.get().regionsFor(filter);
+                logger.info(String.format("Reading %d regions of %s for items %s", regions.size(), file, filter));
+            } else {
+                logger.warn(String.format(index.isPresent() ? "Index of %s is out of date, reading the whole file" :
+                    "%s has no index, reading the whole file", file));
+                regions = Collections.singletonList(new long[]{0, size});
+            }
+            regionBytes = regions.stream().mapToLong(region -> region[1] - region[0]).sum();
+            return this;
+        } catch (IOException ex) {
+            IOUtils.closeQuietly(channel);
+            throw new RuntimeException(String.format("Cannot open %s", file), ex);
+        }
+    }
+
+    /**
+     * @return the share of the regions to read parsed
+     */
+    @Override
+    public OptionalDouble getProgress() {
+        return OptionalDouble.of((0 == regionBytes) ? 1 : Math.min(1, (double) bytesParsed / regionBytes));
+    }
+
+    @Override
+    public void iterateItems(Consumer<Item> consumer) {
+        try {
+            for (long[] region : regions) {
+                long start = region[0];
+                long end = region[1];
+                channel.position(start);
+                CsvItemParser parser = new CsvItemParser(channel, start,
+                    (int) Math.min(CsvItemParser.CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, end - start)));
+                if (0 == start) {
+                    parser.skipRow();  // the headers
+                }
+                long[] offsetReached = {start};
+                parser.parseItems(item -> {
+                    if (filter.matches(item.getName())) {
+                        consumer.accept(item);
+                    }
+                }, offset -> {
+                    reach(offset - offsetReached[0]);
+                    offsetReached[0] = offset;
+                }, end);
+                reach(end - offsetReached[0]);
+            }
+        } catch (Throwable t) {
+            throw new RuntimeException("Error while iterating items", t);
+        }
+    }
+
+    private void reach(long bytes) {
+        metrics.bytesRead(bytes);
+        bytesParsed += bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.closeQuietly(channel);
+    }
+}
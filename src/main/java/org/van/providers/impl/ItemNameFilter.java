@@ -0,0 +1,98 @@
+package org.van.providers.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The item names a partial restore asks for: a list of exact names and of prefixes, e.g.
+ * "item1,item2,order-2015*", a name ending with "*" standing for all the names starting with what
+ * comes before it.
+ */
+public class ItemNameFilter {
+
+    private static final String WILDCARD = "*";
+
+    private final List<String> names;
+    private final List<String> prefixes;
+
+    private ItemNameFilter(List<String> names, List<String> prefixes) {
+        this.names = Collections.unmodifiableList(names);
+        this.prefixes = Collections.unmodifiableList(prefixes);
+    }
+
+    /**
+     * Parse a comma separated list of names and prefixes, e.g. "item1,order-2015*".
+     *
+     * @param patterns the names and prefixes
+     *
+     * @return the filter
+     * @throws IllegalArgumentException if the list has no name or prefix
+     */
+    public static ItemNameFilter parse(String patterns) {
+        Objects.requireNonNull(patterns);
+        List<String> names = new ArrayList<>();
+        List<String> prefixes = new ArrayList<>();
+        for (String pattern : patterns.split(",")) {
+            String trimmed = pattern.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (trimmed.endsWith(WILDCARD)) {
+                prefixes.add(trimmed.substring(0, trimmed.length() - WILDCARD.length()));
+            } else {
+                names.add(trimmed);
+            }
+        }
+        if (names.isEmpty() && prefixes.isEmpty()) {
+            throw new IllegalArgumentException(String.format("No item name in %s", patterns));
+        }
+        return new ItemNameFilter(names, prefixes);
+    }
+
+    /**
+     * @param name an item name
+     *
+     * @return true if the name is asked for
+     */
+    public boolean matches(String name) {
+        if (names.contains(name)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param first the lowest of some item names, in the order of {@link String#compareTo(String)}
+     * @param last the highest of them
+     *
+     * @return false if no name between the two can be asked for
+     */
+    public boolean mayMatchBetween(String first, String last) {
+        for (String name : names) {
+            if ((first.compareTo(name) <= 0) && (name.compareTo(last) <= 0)) {
+                return true;
+            }
+        }
+        for (String prefix : prefixes) {
+            // The names starting with the prefix follow it, up to the last one starting with it
+            if ((prefix.compareTo(last) <= 0) && ((first.compareTo(prefix) <= 0) || first.startsWith(prefix))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        List<String> patterns = new ArrayList<>(names);
+        prefixes.forEach(prefix -> patterns.add(prefix + WILDCARD));
+        return String.join(",", patterns);
+    }
+}
@@ -0,0 +1,326 @@
+package org.van.providers.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * A sparse index of the item names of a CSV file written by {@link CsvStoreProvider}, saved to a
+ * sidecar file next to it (see {@link #fileFor(File)}). The file is cut into blocks of a number
+ * of items, each starting at the row of its first item; the index keeps the offset of each block
+ * and the lowest and highest item names in it, so the blocks that may hold some item names can be
+ * read without scanning the rest of the file.
+ * <br>
+ * The index also keeps the length of the file it was written for: a file that has changed since
+ * does not match its index any more (see {@link #matches(File)}).
+ */
+public class ItemNameIndex {
+
+    public static final String EXTENSION = ".idx";
+
+    private static final int MAGIC = 0x53444249;  // "SDBI"
+    private static final int VERSION = 1;
+
+    private final List<Block> blocks;
+    private final long dataLength;
+
+    /**
+     * @param blocks the blocks, in the order of their offsets, the first at offset 0
+     * @param dataLength the length of the file indexed
+     */
+    public ItemNameIndex(List<Block> blocks, long dataLength) {
+        Objects.requireNonNull(blocks);
+        this.blocks = Collections.unmodifiableList(new ArrayList<>(blocks));
+        this.dataLength = dataLength;
+    }
+
+    /**
+     * @param file a CSV file
+     *
+     * @return the index file of the CSV file, e.g. "abc.csv.idx" for "abc.csv"
+     */
+    public static File fileFor(File file) {
+        return new File(file.getPath() + EXTENSION);
+    }
+
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * @param file the file indexed
+     *
+     * @return true if the file still has the length it had when indexed
+     */
+    public boolean matches(File file) {
+        return file.length() == dataLength;
+    }
+
+    /**
+     * Get the regions of the file that may hold the item names asked for, the blocks next to
+     * each other merged into one region.
+     *
+     * @param filter the item names asked for
+     *
+     * @return the start and end offsets of each region, in order
+     */
+    public List<long[]> regionsFor(ItemNameFilter filter) {
+        List<long[]> regions = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            if (!block.mayHold(filter)) {
+                continue;
+            }
+            long end = (i + 1 < blocks.size()) ? blocks.get(i + 1).getOffset() : dataLength;
+            long[] last = regions.isEmpty() ? null : regions.get(regions.size() - 1);
+            if ((null != last) && (last[1] == block.getOffset())) {
+                last[1] = end;
+            } else {
+                regions.add(new long[]{block.getOffset(), end});
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Save this index to the file provided. The file is replaced in one step so that a crash
+     * while saving leaves the previous index in place.
+     *
+     * @param file the index file
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(dataLength);
+            out.writeInt(blocks.size());
+            for (Block block : blocks) {
+                out.writeLong(block.getOffset());
+                out.writeInt(block.getItems());
+                out.writeBoolean(block.getFirstName().isPresent());
+                if (block.getFirstName().isPresent()) {
+                    out.writeUTF(block.getFirstName().get());
+                    out.writeUTF(block.getLastName().get());
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load an index file.
+     *
+     * @param file the index file
+     *
+     * @return the index, or empty if there is no such file
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public static Optional<ItemNameIndex> load(File file) throws IOException {
+        if (!file.exists()) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if ((MAGIC != in.readInt()) || (VERSION != in.readInt())) {
+                throw new IOException(String.format("Invalid index file %s", file));
+            }
+            long dataLength = in.readLong();
+            int count = in.readInt();
+            List<Block> blocks = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                long offset = in.readLong();
+                int items = in.readInt();
+                if (in.readBoolean()) {
+                    blocks.add(new Block(offset, items, Optional.of(in.readUTF()), Optional.of(in.readUTF())));
+                } else {
+                    blocks.add(new Block(offset, items, Optional.empty(), Optional.empty()));
+                }
+            }
+            return Optional.of(new ItemNameIndex(blocks, dataLength));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Index of %d blocks over %d bytes", blocks.size(), dataLength);
+    }
+
+    /**
+     * A block of items written next to each other: its offset, its number of items, and the
+     * lowest and highest of their names, unknown for a block that could hold any name (e.g. that
+     * of the part of a file written before a transfer was resumed).
+     */
+    public static class Block {
+
+        private final long offset;
+        private final int items;
+        private final Optional<String> firstName;
+        private final Optional<String> lastName;
+
+        public Block(long offset, int items, Optional<String> firstName, Optional<String> lastName) {
+            Objects.requireNonNull(firstName);
+            Objects.requireNonNull(lastName);
+            this.offset = offset;
+            this.items = items;
+            this.firstName = firstName;
+            this.lastName = lastName;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getItems() {
+            return items;
+        }
+
+        public Optional<String> getFirstName() {
+            return firstName;
+        }
+
+        public Optional<String> getLastName() {
+            return lastName;
+        }
+
+        /**
+         * @param filter the item names asked for
+         *
+         * @return false if no item of this block can be asked for
+         */
+        public boolean mayHold(ItemNameFilter filter) {
+            if (!firstName.isPresent() || !lastName.isPresent()) {
+                return true;
+            }
+            return (items > 0) && filter.mayMatchBetween(firstName.get(), lastName.get());
+        }
+    }
+
+    /**
+     * Builds the index of a file as its items are written.
+     */
+    static final class Builder {
+
+        private final int interval;
+        private final List<Block> blocks = new ArrayList<>();
+        private long blockOffset = -1;
+        private int blockItems = 0;
+        private String firstName = null;
+        private String lastName = null;
+
+        /**
+         * @param interval the number of items of each block (>= 1)
+         */
+        Builder(int interval) {
+            if (interval < 1) {
+                throw new IllegalArgumentException(String.format("Invalid index interval %d", interval));
+            }
+            this.interval = interval;
+        }
+
+        /**
+         * Add the part of the file written before a transfer was resumed: the blocks of the
+         * index saved then that start before the length kept, and a block that could hold any
+         * name for whatever that index does not cover.
+         *
+         * @param saved the index saved before the transfer was resumed, if any
+         * @param length the length of the file kept
+         */
+        void addResumed(Optional<ItemNameIndex> saved, long length) {
+            long indexed = 0;
+            if (saved.isPresent()) {
+                indexed = Math.min(saved.get().getDataLength(), length);
+                for (Block block : saved.get().getBlocks()) {
+                    if (block.getOffset() < indexed) {
+                        blocks.add(block);
+                    }
+                }
+            }
+            if (length > indexed) {
+                blocks.add(new Block(indexed, 0, Optional.empty(), Optional.empty()));
+            }
+        }
+
+        /**
+         * @return true if the next item starts a new block
+         */
+        boolean isBlockFull() {
+            return (blockOffset < 0) || (blockItems >= interval);
+        }
+
+        /**
+         * Start a new block, ending the current one.
+         *
+         * @param offset the offset of the row of the first item of the block
+         */
+        void startBlock(long offset) {
+            endBlock();
+            blockOffset = offset;
+        }
+
+        /**
+         * Add an item to the current block.
+         *
+         * @param name the name of the item
+         */
+        void add(String name) {
+            if ((null == firstName) || (name.compareTo(firstName) < 0)) {
+                firstName = name;
+            }
+            if ((null == lastName) || (name.compareTo(lastName) > 0)) {
+                lastName = name;
+            }
+            blockItems++;
+        }
+
+        /**
+         * @param dataLength the length of the file indexed
+         *
+         * @return the index of the items added
+         */
+        ItemNameIndex build(long dataLength) {
+            endBlock();
+            return new ItemNameIndex(blocks, dataLength);
+        }
+
+        /**
+         * @param dataLength the length of the file indexed so far
+         *
+         * @return the index of the items added so far, the current block going on
+         */
+        ItemNameIndex snapshot(long dataLength) {
+            List<Block> all = new ArrayList<>(blocks);
+            if ((blockOffset >= 0) && (blockItems > 0)) {
+                all.add(new Block(blockOffset, blockItems, Optional.of(firstName), Optional.of(lastName)));
+            }
+            return new ItemNameIndex(all, dataLength);
+        }
+
+        private void endBlock() {
+            if ((blockOffset >= 0) && (blockItems > 0)) {
+                blocks.add(new Block(blockOffset, blockItems, Optional.of(firstName), Optional.of(lastName)));
+            }
+            blockOffset = -1;
+            blockItems = 0;
+            firstName = null;
+            lastName = null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.van.providers.impl;
+
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * A range of SimpleDB item names: from an inclusive lower bound to an exclusive upper bound.
+ * A missing bound leaves that side of the range open.
+ */
+public class ItemNameRange {
+
+    private final Optional<String> lower;
+    private final Optional<String> upper;
+
+    public ItemNameRange(final Optional<String> lower, final Optional<String> upper) {
+        Objects.requireNonNull(lower);
+        Objects.requireNonNull(upper);
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * @return a range covering every item name
+     */
+    public static ItemNameRange all() {
+        return new ItemNameRange(Optional.empty(), Optional.empty());
+    }
+
+    public Optional<String> getLower() {
+        return lower;
+    }
+
+    public Optional<String> getUpper() {
+        return upper;
+    }
+
+    /**
+     * Check if an item name falls in this range.
+     *
+     * @param itemName the item name to check
+     *
+     * @return true if the item name is in this range
+     */
+    public boolean contains(final String itemName) {
+        return (!lower.isPresent() || (lower.get().compareTo(itemName) <= 0)) &&
+            (!upper.isPresent() || (itemName.compareTo(upper.get()) < 0));
+    }
+
+    /**
+     * @return the select expression predicate limiting item names to this range, or empty if
+     *     the range is open on both sides
+     */
+    public Optional<String> toPredicate() {
+        StringBuilder predicate = new StringBuilder();
+        lower.ifPresent(l -> predicate.append("itemName() >= ").append(SelectExpression.quote(l)));
+        upper.ifPresent(u -> {
+            if (predicate.length() > 0) {
+                predicate.append(" and ");
+            }
+            predicate.append("itemName() < ").append(SelectExpression.quote(u));
+        });
+        return (predicate.length() > 0) ? Optional.of(predicate.toString()) : Optional.empty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s, %s)", lower.orElse("-"), upper.orElse("-"));
+    }
+}
@@ -0,0 +1,217 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import org.apache.log4j.Logger;
+import org.van.AimdConcurrencyController;
+import org.van.RetryUtility;
+import org.van.TransferMetrics;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Splits the items matched by a {@link SelectExpression} into disjoint {@link ItemNameRange}s of
+ * roughly equal item counts.
+ * <br>
+ * SimpleDB cannot sample items at random, but it can count the items in an item name range
+ * cheaply. So the splitter looks up the smallest and largest item names, treats the names as
+ * numbers in base 65536 (one digit per character) and bisects between them with count queries
+ * until each boundary falls close enough to its target count. The characters the smallest and
+ * largest names have in common at their start are left out of the numbers, since every name
+ * between them starts with the same characters.
+ * <br>
+ * Like the other selects, the splitter's selects are limited by the select
+ * {@link AimdConcurrencyController} and timed in the {@link TransferMetrics} of the process.
+ */
+public class ItemNameRangeSplitter {
+
+    public static final int MAXRETRIES = 3;
+
+    // Number of leading characters of the item names considered when bisecting
+    private static final int KEY_LENGTH = 8;
+    private static final int MAX_PROBES = 24;
+    private static final BigInteger BASE = BigInteger.valueOf(0x10000);
+    private static final char MIN_CHAR = ' ';
+
+    private static final Logger logger =
+        Logger.getLogger(ItemNameRangeSplitter.class);
+
+    private final AmazonSimpleDB sdbClient;
+    private AimdConcurrencyController concurrency =
+        AimdConcurrencyController.named(SimpleDbSourceProvider.CONCURRENCY_CONTROLLER);
+    private final TransferMetrics metrics = TransferMetrics.global();
+
+    public ItemNameRangeSplitter(final AmazonSimpleDB sdbClient) {
+        Objects.requireNonNull(sdbClient);
+        this.sdbClient = sdbClient;
+    }
+
+    /**
+     * Sets the controller limiting the number of selects in flight.
+     *
+     * @param concurrency the controller to use
+     *
+     * @return this instance
+     */
+    public ItemNameRangeSplitter withConcurrencyController(final AimdConcurrencyController concurrency) {
+        Objects.requireNonNull(concurrency);
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Split the items matched by the expression into at most the number of ranges requested.
+     * Together the ranges cover all possible item names, so no item can be missed even if the
+     * domain changes after splitting.
+     *
+     * @param expression the expression to split
+     * @param ranges the number of ranges wanted (>= 1)
+     *
+     * @return the ranges, ordered by item name
+     */
+    public List<ItemNameRange> split(final SelectExpression expression, final int ranges) {
+        Objects.requireNonNull(expression);
+        List<ItemNameRange> answer = new ArrayList<>();
+        long total = (ranges > 1) ? count(expression) : 0;
+        Optional<String> first = (total > 0) ? boundaryName(expression, "asc") : Optional.empty();
+        Optional<String> last = (total > 0) ? boundaryName(expression, "desc") : Optional.empty();
+        if ((ranges <= 1) || !first.isPresent() || !last.isPresent() || first.get().equals(last.get())) {
+            answer.add(ItemNameRange.all());
+            return answer;
+        }
+
+        int prefixLength = commonPrefixLength(first.get(), last.get());
+        String prefix = first.get().substring(0, prefixLength);
+        BigInteger minKey = toKey(first.get().substring(prefixLength));
+        BigInteger maxKey = toKey(last.get().substring(prefixLength)).add(BigInteger.ONE);
+        long perRange = Math.max(1, total / ranges);
+        long tolerance = Math.max(1, perRange / 20);
+
+        Optional<String> lower = Optional.empty();
+        BigInteger lowerKey = minKey;
+        for (int r = 1; r < ranges; r++) {
+            BigInteger lo = lowerKey;
+            BigInteger hi = maxKey;
+            String boundary = null;
+            BigInteger boundaryKey = hi;
+            for (int probe = 0; (probe < MAX_PROBES) && (lo.compareTo(hi) < 0); probe++) {
+                BigInteger mid = lo.add(hi).shiftRight(1);
+                String candidate = prefix + fromKey(mid);
+                long counted = count(expression.withinRange(new ItemNameRange(lower, Optional.of(candidate))));
+                boundary = candidate;
+                boundaryKey = mid;
+                if (Math.abs(counted - perRange) <= tolerance) {
+                    break;
+                } else if (counted < perRange) {
+                    lo = mid.add(BigInteger.ONE);
+                } else {
+                    hi = mid;
+                }
+            }
+            if ((null == boundary) || (lower.isPresent() && (boundary.compareTo(lower.get()) <= 0))) {
+                break;
+            }
+            answer.add(new ItemNameRange(lower, Optional.of(boundary)));
+            lower = Optional.of(boundary);
+            lowerKey = boundaryKey;
+        }
+        answer.add(new ItemNameRange(lower, Optional.empty()));
+        logger.debug(String.format("Split %s into %s", expression, answer));
+        return answer;
+    }
+
+    /**
+     * Count the items matched by the expression.
+     *
+     * @param expression the expression to count items of
+     *
+     * @return the number of items
+     */
+    public long count(final SelectExpression expression) {
+        long total = 0;
+        String nextToken = null;
+        do {
+            SelectRequest request = new SelectRequest(expression.toCountQuery(), false).withNextToken(nextToken);
+            SelectResult result = select(request);
+            for (Item item : result.getItems()) {
+                for (Attribute attribute : item.getAttributes()) {
+                    if ("Count".equals(attribute.getName())) {
+                        total += Long.parseLong(attribute.getValue());
+                    }
+                }
+            }
+            nextToken = result.getNextToken();
+        } while (null != nextToken);
+        return total;
+    }
+
+    private Optional<String> boundaryName(final SelectExpression expression, final String order) {
+        String predicate = expression.getWhere()
+            .map(w -> String.format("(%s) and itemName() is not null", w))
+            .orElse("itemName() is not null");
+        String query = String.format("select itemName() from `%s` where %s order by itemName() %s limit 1",
+            expression.getDomain().replace("`", "``"), predicate, order);
+        SelectResult result = select(new SelectRequest(query, false));
+        return result.getItems().stream().findFirst().map(Item::getName);
+    }
+
+    private SelectResult select(final SelectRequest selectRequest) {
+        return RetryUtility.performWithRetry((request, trial) ->
+            concurrency.call(() -> metrics.timeSelect(() -> sdbClient.select(request))), selectRequest, MAXRETRIES);
+    }
+
+    private static int commonPrefixLength(final String a, final String b) {
+        int length = 0;
+        while ((length < a.length()) && (length < b.length()) && (a.charAt(length) == b.charAt(length))) {
+            length++;
+        }
+        return length;
+    }
+
+    static BigInteger toKey(final String name) {
+        BigInteger key = BigInteger.ZERO;
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            int digit = (i < name.length()) ? name.charAt(i) : 0;
+            key = key.multiply(BASE).add(BigInteger.valueOf(digit));
+        }
+        return key;
+    }
+
+    /**
+     * Convert a key back into a name. Digits that are not usable in a query (control characters
+     * and lone surrogates) are rounded up to the next usable character, with the digits after it
+     * set to the smallest usable character, so the conversion keeps the order of the keys.
+     */
+    static String fromKey(final BigInteger key) {
+        char[] chars = new char[KEY_LENGTH];
+        BigInteger remaining = key;
+        for (int i = KEY_LENGTH - 1; i >= 0; i--) {
+            BigInteger[] qr = remaining.divideAndRemainder(BASE);
+            chars[i] = (char) qr[1].intValue();
+            remaining = qr[0];
+        }
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            char rounded = chars[i];
+            if (rounded < MIN_CHAR) {
+                rounded = MIN_CHAR;
+            } else if (Character.isSurrogate(rounded)) {
+                rounded = '\uE000';
+            }
+            if (rounded != chars[i]) {
+                chars[i] = rounded;
+                for (int j = i + 1; j < KEY_LENGTH; j++) {
+                    chars[j] = MIN_CHAR;
+                }
+                break;
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,982 @@
+package org.van.providers.impl;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.simpledb.AmazonSimpleDBAsync;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchDeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.DeletableItem;
+import com.amazonaws.services.simpledb.model.DeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.DeleteDomainRequest;
+import com.amazonaws.services.simpledb.model.DomainMetadataRequest;
+import com.amazonaws.services.simpledb.model.DomainMetadataResult;
+import com.amazonaws.services.simpledb.model.GetAttributesRequest;
+import com.amazonaws.services.simpledb.model.GetAttributesResult;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.ReplaceableItem;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * An in-memory implementation of SimpleDB, to try and load-test transfers without AWS.
+ * <br>
+ * Domains hold items sorted by name, each with a set of values per attribute name. Selects
+ * understand the queries the providers issue: "*", "count(*)", "itemName()" or attribute names
+ * as output; "where" clauses of comparisons (=, !=, &lt;, &lt;=, &gt;, &gt;=, like, between, in,
+ * is [not] null) of itemName() or attributes, combined with and, or, not and parentheses;
+ * "order by"; and "limit". Values are compared as strings, as SimpleDB does. Pages end at the
+ * limit of the select or at {@link #MAX_PAGE_BYTES} bytes of items, whichever comes first, and
+ * writes are held to the limits of SimpleDB on items per batch, attributes per item and value
+ * sizes.
+ * <br>
+ * To behave like the service under load, every call can be delayed (see
+ * {@link #withLatency(long, long)}), calls beyond a number per second fail with
+ * "ServiceUnavailable" as SimpleDB does when it throttles (see {@link #withThroughputLimit(int)}),
+ * and a share of the calls can fail with "InternalError" (see {@link #withFaultRate(double)}).
+ * Async calls wait out their latency without holding a thread.
+ * <br>
+ * Instances created by {@link #inProcess()} share the domains of the process, so a domain
+ * written by one transfer can be read by another.
+ */
+public class LocalSimpleDb implements AmazonSimpleDBAsync {
+
+    /**
+     * The number of items in a page when the select has no limit, as SimpleDB
+     */
+    public static final int DEFAULT_LIMIT = 100;
+
+    public static final int MAX_LIMIT = 2500;
+
+    public static final int MAX_PAGE_BYTES = 1024 * 1024;
+
+    public static final int MAX_BATCH_ITEMS = 25;
+
+    public static final int MAX_ITEM_ATTRIBUTES = 256;
+
+    public static final int MAX_VALUE_BYTES = 1024;
+
+    private static final Map<String,NavigableMap<String,Map<String,Set<String>>>> processDomains = new ConcurrentHashMap<>();
+
+    // Completes the async calls once their latency has passed
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+        Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "sdb-local");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final Map<String,NavigableMap<String,Map<String,Set<String>>>> domains;
+
+    private long latencyMillis = 0;
+    private long jitterMillis = 0;
+    private int callsPerSecond = 0;
+    private double faultRate = 0;
+
+    // Token bucket of the throughput limit, holding up to a second of calls; guarded by this
+    private double tokens = 0;
+    private long refilledNanos = System.nanoTime();
+
+    /**
+     * Create an instance with domains of its own.
+     */
+    public LocalSimpleDb() {
+        this(new ConcurrentHashMap<>());
+    }
+
+    private LocalSimpleDb(Map<String,NavigableMap<String,Map<String,Set<String>>>> domains) {
+        this.domains = domains;
+    }
+
+    /**
+     * Create an instance sharing the domains of the process with the other instances created by
+     * this method. The latency, throughput limit and faults are those of each instance.
+     *
+     * @return a new instance
+     */
+    public static LocalSimpleDb inProcess() {
+        return new LocalSimpleDb(processDomains);
+    }
+
+    /**
+     * Sets the time every call takes, as a base and a random extra of up to the jitter provided.
+     *
+     * @param latencyMillis the base time of a call
+     * @param jitterMillis the most time added at random to the base
+     *
+     * @return this instance
+     */
+    public LocalSimpleDb withLatency(long latencyMillis, long jitterMillis) {
+        if ((latencyMillis < 0) || (jitterMillis < 0)) {
+            throw new IllegalArgumentException(String.format("Invalid latency %d+%d ms", latencyMillis, jitterMillis));
+        }
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * Sets the number of calls per second accepted, over which calls fail with
+     * "ServiceUnavailable". Bursts of up to a second of calls are accepted.
+     *
+     * @param callsPerSecond the number of calls per second, 0 (the default) for no limit
+     *
+     * @return this instance
+     */
+    public LocalSimpleDb withThroughputLimit(int callsPerSecond) {
+        if (callsPerSecond < 0) {
+            throw new IllegalArgumentException(String.format("Invalid throughput limit %d", callsPerSecond));
+        }
+        synchronized (this) {
+            this.callsPerSecond = callsPerSecond;
+            this.tokens = callsPerSecond;
+            this.refilledNanos = System.nanoTime();
+        }
+        return this;
+    }
+
+    /**
+     * Sets the share of the calls failing at random with "InternalError", which callers are
+     * expected to retry.
+     *
+     * @param faultRate the probability of a call failing, from 0 (the default) to 1
+     *
+     * @return this instance
+     */
+    public LocalSimpleDb withFaultRate(double faultRate) {
+        if ((faultRate < 0) || (faultRate > 1)) {
+            throw new IllegalArgumentException(String.format("Invalid fault rate %s", faultRate));
+        }
+        this.faultRate = faultRate;
+        return this;
+    }
+
+    /**
+     * Create a domain filled with synthetic items, unless it exists already. The items are named
+     * "item00000000", "item00000001" and so on, with 4 attributes of 16 random letters and an
+     * "updated" attribute of increasing values; the same count always gives the same items.
+     *
+     * @param domainName the name of the domain
+     * @param count the number of items
+     *
+     * @return this instance
+     */
+    public LocalSimpleDb withGeneratedDomain(String domainName, int count) {
+        domains.computeIfAbsent(domainName, name -> {
+            NavigableMap<String,Map<String,Set<String>>> domain = new ConcurrentSkipListMap<>();
+            Random random = new Random(count);
+            char[] value = new char[16];
+            for (int i = 0; i < count; i++) {
+                Map<String,Set<String>> attributes = new LinkedHashMap<>();
+                for (int a = 0; a < 4; a++) {
+                    for (int c = 0; c < value.length; c++) {
+                        value[c] = (char) ('a' + random.nextInt(26));
+                    }
+                    attributes.put("attribute" + a, new LinkedHashSet<>(Collections.singleton(new String(value))));
+                }
+                attributes.put("updated", new LinkedHashSet<>(Collections.singleton(String.format("%010d", i))));
+                domain.put(String.format("item%08d", i), attributes);
+            }
+            return domain;
+        });
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Local SimpleDB (latency:%d+%d ms, throughput limit:%d/s, fault rate:%s)",
+            latencyMillis, jitterMillis, callsPerSecond, faultRate);
+    }
+
+    @Override
+    public void setEndpoint(String endpoint) {
+    }
+
+    @Override
+    public void setRegion(Region region) {
+    }
+
+    @Override
+    public ListDomainsResult listDomains() {
+        return listDomains(new ListDomainsRequest());
+    }
+
+    @Override
+    public void createDomain(CreateDomainRequest request) {
+        call(() -> createDomainNow(request));
+    }
+
+    @Override
+    public void deleteDomain(DeleteDomainRequest request) {
+        call(() -> deleteDomainNow(request));
+    }
+
+    @Override
+    public ListDomainsResult listDomains(ListDomainsRequest request) {
+        return call(() -> listDomainsNow(request));
+    }
+
+    @Override
+    public DomainMetadataResult domainMetadata(DomainMetadataRequest request) {
+        return call(() -> domainMetadataNow(request));
+    }
+
+    @Override
+    public void putAttributes(PutAttributesRequest request) {
+        call(() -> putAttributesNow(request));
+    }
+
+    @Override
+    public void batchPutAttributes(BatchPutAttributesRequest request) {
+        call(() -> batchPutAttributesNow(request));
+    }
+
+    @Override
+    public void deleteAttributes(DeleteAttributesRequest request) {
+        call(() -> deleteAttributesNow(request));
+    }
+
+    @Override
+    public void batchDeleteAttributes(BatchDeleteAttributesRequest request) {
+        call(() -> batchDeleteAttributesNow(request));
+    }
+
+    @Override
+    public GetAttributesResult getAttributes(GetAttributesRequest request) {
+        return call(() -> getAttributesNow(request));
+    }
+
+    @Override
+    public SelectResult select(SelectRequest request) {
+        return call(() -> selectNow(request));
+    }
+
+    @Override
+    public Future<Void> createDomainAsync(CreateDomainRequest request) {
+        return callAsync(request, () -> createDomainNow(request), null);
+    }
+
+    @Override
+    public Future<Void> createDomainAsync(CreateDomainRequest request, AsyncHandler<CreateDomainRequest,Void> asyncHandler) {
+        return callAsync(request, () -> createDomainNow(request), asyncHandler);
+    }
+
+    @Override
+    public Future<Void> deleteDomainAsync(DeleteDomainRequest request) {
+        return callAsync(request, () -> deleteDomainNow(request), null);
+    }
+
+    @Override
+    public Future<Void> deleteDomainAsync(DeleteDomainRequest request, AsyncHandler<DeleteDomainRequest,Void> asyncHandler) {
+        return callAsync(request, () -> deleteDomainNow(request), asyncHandler);
+    }
+
+    @Override
+    public Future<ListDomainsResult> listDomainsAsync(ListDomainsRequest request) {
+        return callAsync(request, () -> listDomainsNow(request), null);
+    }
+
+    @Override
+    public Future<ListDomainsResult> listDomainsAsync(ListDomainsRequest request, AsyncHandler<ListDomainsRequest,ListDomainsResult> asyncHandler) {
+        return callAsync(request, () -> listDomainsNow(request), asyncHandler);
+    }
+
+    @Override
+    public Future<DomainMetadataResult> domainMetadataAsync(DomainMetadataRequest request) {
+        return callAsync(request, () -> domainMetadataNow(request), null);
+    }
+
+    @Override
+    public Future<DomainMetadataResult> domainMetadataAsync(DomainMetadataRequest request, AsyncHandler<DomainMetadataRequest,DomainMetadataResult> asyncHandler) {
+        return callAsync(request, () -> domainMetadataNow(request), asyncHandler);
+    }
+
+    @Override
+    public Future<Void> putAttributesAsync(PutAttributesRequest request) {
+        return callAsync(request, () -> putAttributesNow(request), null);
+    }
+
+    @Override
+    public Future<Void> putAttributesAsync(PutAttributesRequest request, AsyncHandler<PutAttributesRequest,Void> asyncHandler) {
+        return callAsync(request, () -> putAttributesNow(request), asyncHandler);
+    }
+
+    @Override
+    public Future<Void> batchPutAttributesAsync(BatchPutAttributesRequest request) {
+        return callAsync(request, () -> batchPutAttributesNow(request), null);
+    }
+
+    @Override
+    public Future<Void> batchPutAttributesAsync(BatchPutAttributesRequest request, AsyncHandler<BatchPutAttributesRequest,Void> asyncHandler) {
+        return callAsync(request, () -> batchPutAttributesNow(request), asyncHandler);
+    }
+
+    @Override
+    public Future<Void> deleteAttributesAsync(DeleteAttributesRequest request) {
+        return callAsync(request, () -> deleteAttributesNow(request), null);
+    }
+
+    @Override
+    public Future<Void> deleteAttributesAsync(DeleteAttributesRequest request, AsyncHandler<DeleteAttributesRequest,Void> asyncHandler) {
+        return callAsync(request, () -> deleteAttributesNow(request), asyncHandler);
+    }
+
+    @Override
+    public Future<Void> batchDeleteAttributesAsync(BatchDeleteAttributesRequest request) {
+        return callAsync(request, () -> batchDeleteAttributesNow(request), null);
+    }
+
+    @Override
+    public Future<Void> batchDeleteAttributesAsync(BatchDeleteAttributesRequest request, AsyncHandler<BatchDeleteAttributesRequest,Void> asyncHandler) {
+        return callAsync(request, () -> batchDeleteAttributesNow(request), asyncHandler);
+    }
+
+    @Override
+    public Future<GetAttributesResult> getAttributesAsync(GetAttributesRequest request) {
+        return callAsync(request, () -> getAttributesNow(request), null);
+    }
+
+    @Override
+    public Future<GetAttributesResult> getAttributesAsync(GetAttributesRequest request, AsyncHandler<GetAttributesRequest,GetAttributesResult> asyncHandler) {
+        return callAsync(request, () -> getAttributesNow(request), asyncHandler);
+    }
+
+    @Override
+    public Future<SelectResult> selectAsync(SelectRequest request) {
+        return callAsync(request, () -> selectNow(request), null);
+    }
+
+    @Override
+    public Future<SelectResult> selectAsync(SelectRequest request, AsyncHandler<SelectRequest,SelectResult> asyncHandler) {
+        return callAsync(request, () -> selectNow(request), asyncHandler);
+    }
+
+    /**
+     * Make a call after its latency.
+     */
+    private <R> R call(Supplier<R> operation) {
+        long delay = nextDelay();
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new AmazonClientException("Interrupted during a call", ex);
+            }
+        }
+        return perform(operation);
+    }
+
+    /**
+     * Make a call once its latency has passed, on the scheduler.
+     */
+    private <Q extends AmazonWebServiceRequest,R> Future<R> callAsync(
+        Q request, Supplier<R> operation, AsyncHandler<Q,R> asyncHandler) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        scheduler.schedule(() -> {
+            R result;
+            try {
+                result = perform(operation);
+            } catch (Exception ex) {
+                try {
+                    if (null != asyncHandler) {
+                        asyncHandler.onError(ex);
+                    }
+                } finally {
+                    future.completeExceptionally(ex);
+                }
+                return;
+            }
+            try {
+                if (null != asyncHandler) {
+                    asyncHandler.onSuccess(request, result);
+                }
+            } finally {
+                future.complete(result);
+            }
+        }, nextDelay(), TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    private <R> R perform(Supplier<R> operation) {
+        if ((faultRate > 0) && (ThreadLocalRandom.current().nextDouble() < faultRate)) {
+            throw error("InternalError", "Request could not be executed due to an internal service error.",
+                500, AmazonServiceException.ErrorType.Service);
+        }
+        if (!acquireToken()) {
+            throw error("ServiceUnavailable", "Service AmazonSimpleDB is currently unavailable. Please try again later.",
+                503, AmazonServiceException.ErrorType.Service);
+        }
+        return operation.get();
+    }
+
+    private synchronized boolean acquireToken() {
+        if (0 == callsPerSecond) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(callsPerSecond, tokens + (now - refilledNanos) * callsPerSecond / 1e9);
+        refilledNanos = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    private long nextDelay() {
+        return latencyMillis + ((jitterMillis > 0) ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+    }
+
+    private Void createDomainNow(CreateDomainRequest request) {
+        domains.computeIfAbsent(request.getDomainName(), d -> new ConcurrentSkipListMap<>());
+        return null;
+    }
+
+    private Void deleteDomainNow(DeleteDomainRequest request) {
+        domains.remove(request.getDomainName());
+        return null;
+    }
+
+    private ListDomainsResult listDomainsNow(ListDomainsRequest request) {
+        List<String> names = new ArrayList<>(domains.keySet());
+        Collections.sort(names);
+        return new ListDomainsResult().withDomainNames(names);
+    }
+
+    private DomainMetadataResult domainMetadataNow(DomainMetadataRequest request) {
+        NavigableMap<String,Map<String,Set<String>>> domain = domain(request.getDomainName());
+        Set<String> names = new LinkedHashSet<>();
+        int values = 0;
+        for (Map<String,Set<String>> attributes : domain.values()) {
+            synchronized (attributes) {
+                names.addAll(attributes.keySet());
+                for (Set<String> v : attributes.values()) {
+                    values += v.size();
+                }
+            }
+        }
+        return new DomainMetadataResult()
+            .withItemCount(domain.size())
+            .withAttributeNameCount(names.size())
+            .withAttributeValueCount(values)
+            .withTimestamp((int) (System.currentTimeMillis() / 1000));
+    }
+
+    private Void putAttributesNow(PutAttributesRequest request) {
+        put(domain(request.getDomainName()), request.getItemName(), request.getAttributes());
+        return null;
+    }
+
+    private Void batchPutAttributesNow(BatchPutAttributesRequest request) {
+        if (request.getItems().size() > MAX_BATCH_ITEMS) {
+            throw error("NumberSubmittedItemsExceeded", "Too many items in a single call");
+        }
+        NavigableMap<String,Map<String,Set<String>>> domain = domain(request.getDomainName());
+        for (ReplaceableItem item : request.getItems()) {
+            put(domain, item.getName(), item.getAttributes());
+        }
+        return null;
+    }
+
+    private Void deleteAttributesNow(DeleteAttributesRequest request) {
+        delete(domain(request.getDomainName()), request.getItemName(), request.getAttributes());
+        return null;
+    }
+
+    private Void batchDeleteAttributesNow(BatchDeleteAttributesRequest request) {
+        NavigableMap<String,Map<String,Set<String>>> domain = domain(request.getDomainName());
+        for (DeletableItem item : request.getItems()) {
+            delete(domain, item.getName(), item.getAttributes());
+        }
+        return null;
+    }
+
+    private GetAttributesResult getAttributesNow(GetAttributesRequest request) {
+        Map<String,Set<String>> attributes = domain(request.getDomainName()).get(request.getItemName());
+        List<String> names = request.getAttributeNames();
+        List<Attribute> answer = (null == attributes) ? new ArrayList<>() :
+            toAttributes(attributes, names.isEmpty() ? null : new LinkedHashSet<>(names));
+        return new GetAttributesResult().withAttributes(answer);
+    }
+
+    private SelectResult selectNow(SelectRequest request) {
+        Query query = new QueryParser(request.getSelectExpression()).parse();
+        NavigableMap<String,Map<String,Set<String>>> domain = domain(query.domain);
+        if (query.count) {
+            long count = domain.entrySet().stream().filter(query.where).count();
+            return new SelectResult().withItems(new Item("Domain",
+                Collections.singletonList(new Attribute("Count", String.valueOf(count)))));
+        }
+
+        // Pages of an item name order continue after the last name returned; others after the
+        // number of items returned
+        String token = (null == request.getNextToken()) ? null :
+            new String(Base64.getDecoder().decode(request.getNextToken()), StandardCharsets.UTF_8);
+        Collection<Map.Entry<String,Map<String,Set<String>>>> entries;
+        long skip = 0;
+        if (null == query.orderBy) {
+            entries = ((null == token) ? domain : domain.tailMap(token, false)).entrySet();
+        } else if (QueryParser.ITEM_NAME.equals(query.orderBy)) {
+            NavigableMap<String,Map<String,Set<String>>> ordered = query.descending ? domain.descendingMap() : domain;
+            entries = ((null == token) ? ordered : ordered.tailMap(token, false)).entrySet();
+        } else {
+            List<Map.Entry<String,Map<String,Set<String>>>> sorted = new ArrayList<>();
+            for (Map.Entry<String,Map<String,Set<String>>> entry : domain.entrySet()) {
+                if (null != firstValue(entry.getValue(), query.orderBy)) {
+                    sorted.add(entry);
+                }
+            }
+            Comparator<Map.Entry<String,Map<String,Set<String>>>> order =
+                Comparator.comparing(e -> firstValue(e.getValue(), query.orderBy));
+            sorted.sort(query.descending ? order.reversed() : order);
+            entries = sorted;
+            skip = (null == token) ? 0 : Long.parseLong(token);
+        }
+
+        int limit = Math.min(query.limit, MAX_LIMIT);
+        List<Item> items = new ArrayList<>();
+        String last = null;
+        boolean more = false;
+        long index = 0;
+        long pageBytes = 0;
+        for (Map.Entry<String,Map<String,Set<String>>> entry : entries) {
+            if ((index++ < skip) || !query.where.test(entry)) {
+                continue;
+            }
+            if ((items.size() == limit) || (pageBytes >= MAX_PAGE_BYTES)) {
+                more = true;
+                break;
+            }
+            Item item = new Item().withName(entry.getKey());
+            if (!query.itemNameOnly) {
+                synchronized (entry.getValue()) {
+                    item.setAttributes(toAttributes(entry.getValue(), query.attributes));
+                }
+                if ((null != query.attributes) && item.getAttributes().isEmpty()) {
+                    continue;
+                }
+            }
+            items.add(item);
+            last = entry.getKey();
+            pageBytes += utf8Length(item.getName());
+            for (Attribute attribute : item.getAttributes()) {
+                pageBytes += utf8Length(attribute.getName()) + utf8Length(attribute.getValue());
+            }
+        }
+        SelectResult result = new SelectResult().withItems(items);
+        if (more) {
+            String next = ((null == query.orderBy) || QueryParser.ITEM_NAME.equals(query.orderBy)) ?
+                last : String.valueOf(skip + index - 1);
+            result.setNextToken(Base64.getEncoder().encodeToString(next.getBytes(StandardCharsets.UTF_8)));
+        }
+        return result;
+    }
+
+    private NavigableMap<String,Map<String,Set<String>>> domain(String name) {
+        NavigableMap<String,Map<String,Set<String>>> domain = domains.get(name);
+        if (null == domain) {
+            throw error("NoSuchDomain", String.format("The specified domain %s does not exist.", name));
+        }
+        return domain;
+    }
+
+    private static void put(NavigableMap<String,Map<String,Set<String>>> domain, String itemName,
+                            List<ReplaceableAttribute> attributes) {
+        if (null == itemName) {
+            throw error("MissingParameter", "The request must contain the parameter ItemName");
+        }
+        if (attributes.size() > MAX_ITEM_ATTRIBUTES) {
+            throw error("NumberItemAttributesExceeded", String.format("Too many attributes for item %s", itemName));
+        }
+        for (ReplaceableAttribute attribute : attributes) {
+            if ((null == attribute.getName()) || (null == attribute.getValue())) {
+                throw error("MissingParameter", String.format("Attribute of item %s without a name or value", itemName));
+            }
+            if ((utf8Length(attribute.getName()) > MAX_VALUE_BYTES) || (utf8Length(attribute.getValue()) > MAX_VALUE_BYTES)) {
+                throw error("InvalidParameterValue", String.format("Attribute %s of item %s is longer than %d bytes",
+                    attribute.getName(), itemName, MAX_VALUE_BYTES));
+            }
+        }
+        Map<String,Set<String>> stored = domain.computeIfAbsent(itemName, n -> new LinkedHashMap<>());
+        synchronized (stored) {
+            for (ReplaceableAttribute attribute : attributes) {
+                if (Boolean.TRUE.equals(attribute.getReplace())) {
+                    stored.remove(attribute.getName());
+                }
+            }
+            for (ReplaceableAttribute attribute : attributes) {
+                stored.computeIfAbsent(attribute.getName(), n -> new LinkedHashSet<>()).add(attribute.getValue());
+            }
+        }
+    }
+
+    private static void delete(NavigableMap<String,Map<String,Set<String>>> domain, String itemName,
+                               List<Attribute> attributes) {
+        if (attributes.isEmpty()) {
+            domain.remove(itemName);
+            return;
+        }
+        Map<String,Set<String>> stored = domain.get(itemName);
+        if (null == stored) {
+            return;
+        }
+        synchronized (stored) {
+            for (Attribute attribute : attributes) {
+                Set<String> values = stored.get(attribute.getName());
+                if ((null != values) && (null != attribute.getValue())) {
+                    values.remove(attribute.getValue());
+                }
+                if ((null != values) && ((null == attribute.getValue()) || values.isEmpty())) {
+                    stored.remove(attribute.getName());
+                }
+            }
+            if (stored.isEmpty()) {
+                domain.remove(itemName, stored);
+            }
+        }
+    }
+
+    private static int utf8Length(String s) {
+        return (null == s) ? 0 : s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static List<Attribute> toAttributes(Map<String,Set<String>> attributes, Set<String> names) {
+        List<Attribute> answer = new ArrayList<>();
+        for (Map.Entry<String,Set<String>> entry : attributes.entrySet()) {
+            if ((null == names) || names.contains(entry.getKey())) {
+                for (String value : entry.getValue()) {
+                    answer.add(new Attribute(entry.getKey(), value));
+                }
+            }
+        }
+        return answer;
+    }
+
+    private static String firstValue(Map<String,Set<String>> attributes, String name) {
+        synchronized (attributes) {
+            Set<String> values = attributes.get(name);
+            return ((null == values) || values.isEmpty()) ? null : values.iterator().next();
+        }
+    }
+
+    private static AmazonServiceException error(String code, String message) {
+        return error(code, message, 400, AmazonServiceException.ErrorType.Client);
+    }
+
+    private static AmazonServiceException error(String code, String message, int status,
+                                                AmazonServiceException.ErrorType type) {
+        AmazonServiceException ex = new AmazonServiceException(message);
+        ex.setErrorCode(code);
+        ex.setStatusCode(status);
+        ex.setServiceName("AmazonSimpleDB");
+        ex.setErrorType(type);
+        return ex;
+    }
+
+    /**
+     * A parsed select expression
+     */
+    static final class Query {
+        String domain;
+        boolean count = false;
+        boolean itemNameOnly = false;
+        // null for all the attributes
+        Set<String> attributes = null;
+        Predicate<Map.Entry<String,Map<String,Set<String>>>> where = e -> true;
+        String orderBy = null;
+        boolean descending = false;
+        int limit = DEFAULT_LIMIT;
+    }
+
+    /**
+     * Recursive descent parser of select expressions.
+     */
+    static final class QueryParser {
+
+        static final String ITEM_NAME = "itemName()";
+
+        private final String text;
+        private final List<String> tokens = new ArrayList<>();
+        // Whether each token is a quoted name or value, as opposed to a keyword or symbol
+        private final List<Boolean> quoted = new ArrayList<>();
+        private int next = 0;
+
+        QueryParser(String text) {
+            this.text = text;
+            tokenize();
+        }
+
+        Query parse() {
+            Query query = new Query();
+            expectKeyword("select");
+            if (acceptKeyword("*")) {
+                // all the attributes
+            } else if (acceptKeyword("count")) {
+                expectKeyword("(");
+                expectKeyword("*");
+                expectKeyword(")");
+                query.count = true;
+            } else if (peekKeyword("itemName")) {
+                operand();
+                query.itemNameOnly = true;
+            } else {
+                query.attributes = new LinkedHashSet<>();
+                do {
+                    query.attributes.add(name());
+                } while (acceptKeyword(","));
+            }
+            expectKeyword("from");
+            query.domain = name();
+            if (acceptKeyword("where")) {
+                query.where = expression();
+            }
+            if (acceptKeyword("order")) {
+                expectKeyword("by");
+                query.orderBy = operand();
+                if (acceptKeyword("desc")) {
+                    query.descending = true;
+                } else {
+                    acceptKeyword("asc");
+                }
+            }
+            if (acceptKeyword("limit")) {
+                try {
+                    query.limit = Integer.parseInt(token());
+                } catch (NumberFormatException ex) {
+                    throw invalid("limit must be a number");
+                }
+            }
+            if (next < tokens.size()) {
+                throw invalid(String.format("unexpected %s", tokens.get(next)));
+            }
+            return query;
+        }
+
+        private Predicate<Map.Entry<String,Map<String,Set<String>>>> expression() {
+            Predicate<Map.Entry<String,Map<String,Set<String>>>> answer = conjunction();
+            while (acceptKeyword("or")) {
+                answer = answer.or(conjunction());
+            }
+            return answer;
+        }
+
+        private Predicate<Map.Entry<String,Map<String,Set<String>>>> conjunction() {
+            Predicate<Map.Entry<String,Map<String,Set<String>>>> answer = unary();
+            while (acceptKeyword("and")) {
+                answer = answer.and(unary());
+            }
+            return answer;
+        }
+
+        private Predicate<Map.Entry<String,Map<String,Set<String>>>> unary() {
+            if (acceptKeyword("not")) {
+                return unary().negate();
+            }
+            if (acceptKeyword("(")) {
+                Predicate<Map.Entry<String,Map<String,Set<String>>>> answer = expression();
+                expectKeyword(")");
+                return answer;
+            }
+            String operand = operand();
+            Predicate<String> test;
+            if (acceptKeyword("is")) {
+                boolean not = acceptKeyword("not");
+                expectKeyword("null");
+                return e -> values(e, operand).isEmpty() != not;
+            } else if (acceptKeyword("like")) {
+                test = like(value());
+            } else if (acceptKeyword("between")) {
+                String low = value();
+                expectKeyword("and");
+                String high = value();
+                test = v -> (v.compareTo(low) >= 0) && (v.compareTo(high) <= 0);
+            } else if (acceptKeyword("in")) {
+                expectKeyword("(");
+                Set<String> values = new LinkedHashSet<>();
+                do {
+                    values.add(value());
+                } while (acceptKeyword(","));
+                expectKeyword(")");
+                test = values::contains;
+            } else {
+                String op = token();
+                String value = value();
+                switch (op) {
+                    case "=": test = v -> v.equals(value); break;
+                    case "!=": test = v -> !v.equals(value); break;
+                    case "<": test = v -> v.compareTo(value) < 0; break;
+                    case "<=": test = v -> v.compareTo(value) <= 0; break;
+                    case ">": test = v -> v.compareTo(value) > 0; break;
+                    case ">=": test = v -> v.compareTo(value) >= 0; break;
+                    default: throw invalid(String.format("unknown operator %s", op));
+                }
+            }
+            return e -> values(e, operand).stream().anyMatch(test);
+        }
+
+        private static Collection<String> values(Map.Entry<String,Map<String,Set<String>>> entry, String operand) {
+            if (ITEM_NAME.equals(operand)) {
+                return Collections.singleton(entry.getKey());
+            }
+            Map<String,Set<String>> attributes = entry.getValue();
+            synchronized (attributes) {
+                Set<String> values = attributes.get(operand);
+                return (null == values) ? Collections.emptySet() : new ArrayList<>(values);
+            }
+        }
+
+        private static Predicate<String> like(String pattern) {
+            boolean prefix = pattern.endsWith("%");
+            boolean suffix = pattern.startsWith("%") && (pattern.length() > 1);
+            String core = pattern.substring(suffix ? 1 : 0, pattern.length() - (prefix ? 1 : 0));
+            if (prefix && suffix) {
+                return v -> v.contains(core);
+            } else if (prefix) {
+                return v -> v.startsWith(core);
+            } else if (suffix) {
+                return v -> v.endsWith(core);
+            }
+            return v -> v.equals(core);
+        }
+
+        private String operand() {
+            if (acceptKeyword("itemName")) {
+                expectKeyword("(");
+                expectKeyword(")");
+                return ITEM_NAME;
+            }
+            return name();
+        }
+
+        private String name() {
+            if (next >= tokens.size()) {
+                throw invalid("missing name");
+            }
+            return tokens.get(next++);
+        }
+
+        private String value() {
+            if ((next >= tokens.size()) || !quoted.get(next)) {
+                throw invalid("missing quoted value");
+            }
+            return tokens.get(next++);
+        }
+
+        private String token() {
+            if (next >= tokens.size()) {
+                throw invalid("unexpected end");
+            }
+            return tokens.get(next++);
+        }
+
+        private boolean peekKeyword(String keyword) {
+            return (next < tokens.size()) && !quoted.get(next) && tokens.get(next).equalsIgnoreCase(keyword);
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            if (peekKeyword(keyword)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expectKeyword(String keyword) {
+            if (!acceptKeyword(keyword)) {
+                throw invalid(String.format("expected %s", keyword));
+            }
+        }
+
+        private void tokenize() {
+            int i = 0;
+            int length = text.length();
+            while (i < length) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (('`' == c) || ('\'' == c) || ('"' == c)) {
+                    StringBuilder token = new StringBuilder();
+                    i++;
+                    while (true) {
+                        if (i >= length) {
+                            throw invalid("unterminated quote");
+                        }
+                        char d = text.charAt(i++);
+                        if (d == c) {
+                            if ((i < length) && (text.charAt(i) == c)) {
+                                token.append(c);
+                                i++;
+                            } else {
+                                break;
+                            }
+                        } else {
+                            token.append(d);
+                        }
+                    }
+                    tokens.add(token.toString());
+                    quoted.add(true);
+                } else if ("()*,".indexOf(c) >= 0) {
+                    tokens.add(String.valueOf(c));
+                    quoted.add(false);
+                    i++;
+                } else if ("=!<>".indexOf(c) >= 0) {
+                    int start = i++;
+                    if ((i < length) && (('=' == text.charAt(i)) || (('<' == c) && ('>' == text.charAt(i))))) {
+                        i++;
+                    }
+                    String op = text.substring(start, i);
+                    tokens.add("<>".equals(op) ? "!=" : op);
+                    quoted.add(false);
+                } else {
+                    int start = i;
+                    while ((i < length) && (Character.isLetterOrDigit(text.charAt(i)) ||
+                        ("_-.$".indexOf(text.charAt(i)) >= 0))) {
+                        i++;
+                    }
+                    if (start == i) {
+                        throw invalid(String.format("unexpected character %s", c));
+                    }
+                    tokens.add(text.substring(start, i));
+                    quoted.add(false);
+                }
+            }
+        }
+
+        private AmazonServiceException invalid(String problem) {
+            return error("InvalidQueryExpression", String.format("The specified query expression syntax is not valid (%s): %s", problem, text));
+        }
+    }
+}
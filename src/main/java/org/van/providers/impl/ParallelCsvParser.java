@@ -0,0 +1,246 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Item;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Parses a CSV file written by {@link CsvStoreProvider} on several threads, passing the items on
+ * in the order of the file.
+ * <br>
+ * The file is cut into chunks of {@link #CHUNK_SIZE} bytes. Since the rows of an item follow
+ * each other, each chunk can be parsed on its own once its start is moved to the first row
+ * starting an item: the first row end outside quotes after the split point, then the first
+ * change of item name (see {@link CsvItemParser#nextItemBoundary()}). Whether the split point
+ * is inside quotes is told by the parity of the number of quotes before it, as every quote
+ * opens or closes quotes ("" inside quotes counts twice). So each chunk goes through three
+ * tasks on a fork-join pool: counting its quotes, finding its start, and parsing its items up
+ * to the start of the next one. Chunks are only started a limited number ahead of the one being
+ * passed on, so memory stays bounded whatever the size of the file.
+ */
+final class ParallelCsvParser {
+
+    static final int CHUNK_SIZE = 1 << 20;
+
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final FileChannel file;
+    private final int parallelism;
+
+    /**
+     * @param file the file to parse, read with positional reads only
+     * @param parallelism the number of threads parsing
+     */
+    ParallelCsvParser(FileChannel file, int parallelism) {
+        Objects.requireNonNull(file);
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(String.format("Invalid parallelism %d", parallelism));
+        }
+        this.file = file;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Parse the items of the file from the offset provided, which must be 0 (the header row is
+     * then skipped) or that of a row starting an item.
+     *
+     * @param startOffset the offset to start parsing at
+     * @param consumer the consumer of the items parsed, called on the calling thread
+     * @param boundaryListener told after the items of each chunk are passed on, with the offset
+     *     of the row starting the next one
+     *
+     * @throws IOException if the CSV cannot be read or is malformed
+     */
+    void parseItems(long startOffset, Consumer<Item> consumer, LongConsumer boundaryListener) throws IOException {
+        long size = file.size();
+        int chunks = (int) ((Math.max(size - startOffset, 0) + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        int window = 2 * parallelism;
+        ForkJoinPool pool = new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("csv-parser-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        try {
+            Deque<Chunk> pending = new ArrayDeque<>();
+            CompletableFuture<Integer> parity = CompletableFuture.completedFuture(0);
+            CompletableFuture<Long> end = CompletableFuture.completedFuture(startOffset);
+            int submitted = 0;
+            for (int i = 0; i < chunks; i++) {
+                while ((submitted < chunks) && (submitted - i < window)) {
+                    long split = startOffset + (long) submitted * CHUNK_SIZE;
+                    long next = Math.min(split + CHUNK_SIZE, size);
+                    CompletableFuture<Long> chunkStart = end;
+                    if (submitted + 1 < chunks) {
+                        CompletableFuture<Integer> quotes =
+                            CompletableFuture.supplyAsync(() -> countQuotes(split, next), pool);
+                        parity = parity.thenCombine(quotes, (a, b) -> (a + b) & 1);
+                        // Boundaries only move forward, even past chunks holding no start of item
+                        end = parity.thenApplyAsync(inQuotes -> nextItemBoundary(next, 1 == inQuotes, size), pool)
+                            .thenCombine(chunkStart, Math::max);
+                    } else {
+                        end = CompletableFuture.completedFuture(size);
+                    }
+                    boolean header = (0 == submitted) && (0 == startOffset);
+                    pending.add(new Chunk(chunkStart.thenCombineAsync(end, (from, to) -> parseChunk(from, to, header), pool), end));
+                    submitted++;
+                }
+                Chunk chunk = pending.remove();
+                List<Item> items = chunk.items.join();
+                items.forEach(consumer);
+                if (!items.isEmpty()) {
+                    boundaryListener.accept(chunk.end.join());
+                }
+            }
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) ex.getCause()).getCause();
+            }
+            throw ex;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private List<Item> parseChunk(long from, long to, boolean header) {
+        List<Item> items = new ArrayList<>();
+        if (from >= to) {
+            return items;
+        }
+        try {
+            CsvItemParser parser = new CsvItemParser(new PositionalChannel(from), from, READ_SIZE);
+            if (header) {
+                parser.skipRow();
+            }
+            parser.parseItems(items::add, offset -> {}, to);
+            return items;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Count the quotes in the bytes between the offsets provided.
+     */
+    private int countQuotes(long from, long to) {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+            byte[] bytes = buffer.array();
+            int count = 0;
+            long offset = from;
+            while (offset < to) {
+                buffer.clear();
+                buffer.limit((int) Math.min(READ_SIZE, to - offset));
+                int n = file.read(buffer, offset);
+                if (n < 0) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    if ('"' == bytes[i]) {
+                        count++;
+                    }
+                }
+                offset += n;
+            }
+            return count;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Find the first row starting an item after the offset provided.
+     *
+     * @param split the offset to start looking at
+     * @param inQuotes whether the split offset is inside quotes
+     * @param size the size of the file, returned if there is no such row
+     */
+    private long nextItemBoundary(long split, boolean inQuotes, long size) {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+            byte[] bytes = buffer.array();
+            long offset = split;
+            boolean quoted = inQuotes;
+            // The first line end outside quotes; a "\n" following a "\r" only makes an empty line
+            boolean found = false;
+            while (!found) {
+                buffer.clear();
+                int n = file.read(buffer, offset);
+                if (n < 0) {
+                    return size;
+                }
+                int i = 0;
+                while (!found && (i < n)) {
+                    byte b = bytes[i++];
+                    if ('"' == b) {
+                        quoted = !quoted;
+                    } else if (!quoted && (('\n' == b) || ('\r' == b))) {
+                        found = true;
+                    }
+                }
+                offset += i;
+            }
+            long boundary = new CsvItemParser(new PositionalChannel(offset), offset, READ_SIZE).nextItemBoundary();
+            return (boundary < 0) ? size : boundary;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static final class Chunk {
+
+        final CompletableFuture<List<Item>> items;
+        // The offset of the row starting the next chunk
+        final CompletableFuture<Long> end;
+
+        Chunk(CompletableFuture<List<Item>> items, CompletableFuture<Long> end) {
+            this.items = items;
+            this.end = end;
+        }
+    }
+
+    /**
+     * A channel reading the file from an offset of its own, so that several threads can read it
+     * at once without moving the position of the file channel.
+     */
+    private final class PositionalChannel implements ReadableByteChannel {
+
+        private long offset;
+
+        PositionalChannel(long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = file.read(dst, offset);
+            if (n > 0) {
+                offset += n;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return file.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
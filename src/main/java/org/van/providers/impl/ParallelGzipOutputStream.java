@@ -0,0 +1,129 @@
+package org.van.providers.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An {@link OutputStream} compressing what is written to it in gzip format, with the compression
+ * spread over several threads. The content is cut into blocks of {@link #BLOCK_SIZE} bytes and
+ * each block is compressed on its own into a complete gzip member; the members are written out
+ * in order. A series of gzip members is a valid gzip file (RFC 1952), read back as the
+ * concatenation of their content by any gzip reader, including {@link java.util.zip.GZIPInputStream}.
+ * <br>
+ * {@link #flush()} ends the current block early, so after a flush the underlying stream holds a
+ * complete gzip file: it can be cut back to that length and appended to later.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int BLOCK_SIZE = 1 << 20;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    // Shared by all the streams so that parallel transfers do not multiply the threads
+    private static final ExecutorService compressors = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread thread = new Thread(r, "gzip-compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final OutputStream out;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+    private boolean closed = false;
+
+    public ParallelGzipOutputStream(OutputStream out) {
+        Objects.requireNonNull(out);
+        this.out = out;
+        this.maxPending = 2 * THREADS;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (blockLength == block.length) {
+            submitBlock();
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (blockLength == block.length) {
+                submitBlock();
+            }
+            int n = Math.min(len, block.length - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeMember();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            pending.forEach(f -> f.cancel(true));
+            out.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        while (pending.size() >= maxPending) {
+            writeMember();
+        }
+        byte[] content = block;
+        int length = blockLength;
+        pending.add(compressors.submit(() -> compress(content, length)));
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+    }
+
+    private void writeMember() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException ex) {
+            throw new IOException("Cannot compress block", ex.getCause());
+        }
+    }
+
+    private static byte[] compress(byte[] content, int length) throws IOException {
+        // Compressed text is usually several times smaller than the block
+        ByteArrayOutputStream member = new ByteArrayOutputStream(Math.max(length / 4, 64));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(member, 64 * 1024)) {
+            gzip.write(content, 0, length);
+        }
+        return member.toByteArray();
+    }
+}
@@ -0,0 +1,257 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Item;
+import org.van.TransferMetrics;
+import org.van.providers.ItemStoreProvider;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A store written by a thread of its own, fed through a bounded queue, for the stores writing
+ * several others in parallel ({@link ShardedStoreProvider}, {@link FanOutStoreProvider}).
+ * <br>
+ * Flushes, the completion and the close are queued after the items, so each waits for the items
+ * queued before it. Once the store fails, the items queued after are dropped, so whoever fills
+ * the queue is only held up by the stores still working; the failure is reported at the next
+ * item queued, the next flush and the close.
+ * <br>
+ * Items queued with a release (see {@link ItemStoreProvider#storeItem(Item, Runnable)}) are
+ * released by the store once written, or here when they are dropped, so the items waiting in the
+ * queue count against the memory budget of the transfer. The item the store fails on is left to
+ * whoever stored it, as the store may or may not have released it.
+ */
+final class QueuedStoreWriter {
+
+    private static final Object END = new Object();
+
+    private final ItemStoreProvider store;
+    private final BlockingQueue<Object> queue;
+    private final Thread thread;
+    private final CompletableFuture<Long> closed = new CompletableFuture<>();
+    private final TransferMetrics metrics = TransferMetrics.global();
+    // Written by the writer thread, read by others once it has flushed or closed
+    private long items = 0;
+    private volatile Throwable failure = null;
+
+    /**
+     * @param store the store to write, initialized by the caller before {@link #start()}
+     * @param capacity the number of items that can wait for the store (>= 1)
+     * @param threadName the name of the writer thread
+     */
+    QueuedStoreWriter(ItemStoreProvider store, int capacity, String threadName) {
+        Objects.requireNonNull(store);
+        Objects.requireNonNull(threadName);
+        this.store = store;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(this::write, threadName);
+        this.thread.setDaemon(true);
+    }
+
+    ItemStoreProvider getStore() {
+        return store;
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Queue an item, waiting for room if the store is behind.
+     *
+     * @param item the item to store
+     *
+     * @throws RuntimeException if the store has failed
+     */
+    void storeItem(Item item) {
+        if (null != failure) {
+            throw new RuntimeException(String.format("Cannot write to %s", store), failure);
+        }
+        put(item);
+    }
+
+    /**
+     * Queue an item released once the store no longer holds it, waiting for room if the store is
+     * behind. The item is released at once if it cannot be queued.
+     *
+     * @param item the item to store
+     * @param release run once the store no longer holds the item
+     *
+     * @throws RuntimeException if the store has failed
+     */
+    void storeItem(Item item, Runnable release) {
+        if (null != failure) {
+            release.run();
+            throw new RuntimeException(String.format("Cannot write to %s", store), failure);
+        }
+        boolean queued = false;
+        try {
+            put(new HeldItem(item, release));
+            queued = true;
+        } finally {
+            if (!queued) {
+                release.run();
+            }
+        }
+    }
+
+    /**
+     * Queue a flush of the store.
+     *
+     * @return future completed with the number of items stored once they are flushed, or
+     *     exceptionally if the store has failed
+     */
+    CompletableFuture<Long> flush() {
+        CompletableFuture<Long> flush = new CompletableFuture<>();
+        put(flush);
+        return flush;
+    }
+
+    /**
+     * Queue the completion of the store (see {@link ItemStoreProvider#complete()}).
+     *
+     * @return future completed with the number of items stored once the store is completed, or
+     *     exceptionally if it has failed
+     */
+    CompletableFuture<Long> complete() {
+        Completion completion = new Completion();
+        put(completion);
+        return completion.done;
+    }
+
+    /**
+     * Queue the close of the store.
+     *
+     * @return future completed with the number of items stored once the store is closed, or
+     *     exceptionally if it has failed
+     */
+    CompletableFuture<Long> close() {
+        put(END);
+        return closed;
+    }
+
+    /**
+     * Wait for a future of this class.
+     *
+     * @return the value of the future
+     * @throws IOException if the future failed or the wait was interrupted
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a store", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = (ex.getCause() instanceof UncheckedIOException) ? ex.getCause().getCause() : ex.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException("Cannot write to a store", cause);
+        }
+    }
+
+    private void put(Object next) {
+        try {
+            queue.put(next);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(String.format("Interrupted while writing to %s", store), ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write() {
+        metrics.addQueue(queue);
+        try {
+            while (true) {
+                Object next = queue.take();
+                if (END == next) {
+                    break;
+                } else if (next instanceof CompletableFuture) {
+                    flush((CompletableFuture<Long>) next);
+                } else if (next instanceof Completion) {
+                    complete(((Completion) next).done);
+                } else if (next instanceof HeldItem) {
+                    write((HeldItem) next);
+                } else if (null == failure) {
+                    try {
+                        store.storeItem((Item) next);
+                        items++;
+                    } catch (RuntimeException ex) {
+                        failure = ex;
+                    }
+                }
+            }
+            store.close();
+            if (null != failure) {
+                throw failure;
+            }
+            closed.complete(items);
+        } catch (Throwable t) {
+            closed.completeExceptionally(t);
+        } finally {
+            metrics.removeQueue(queue);
+        }
+    }
+
+    private void write(HeldItem held) {
+        if (null != failure) {
+            held.release.run();
+            return;
+        }
+        try {
+            store.storeItem(held.item, held.release);
+            items++;
+        } catch (RuntimeException ex) {
+            failure = ex;
+        }
+    }
+
+    private void flush(CompletableFuture<Long> flush) {
+        if (null != failure) {
+            flush.completeExceptionally(failure);
+            return;
+        }
+        try {
+            store.flush();
+            flush.complete(items);
+        } catch (Throwable t) {
+            failure = t;
+            flush.completeExceptionally(t);
+        }
+    }
+
+    private void complete(CompletableFuture<Long> done) {
+        if (null != failure) {
+            done.completeExceptionally(failure);
+            return;
+        }
+        try {
+            store.flush();
+            store.complete();
+            done.complete(items);
+        } catch (Throwable t) {
+            failure = t;
+            done.completeExceptionally(t);
+        }
+    }
+
+    // An item queued with its release
+    private static final class HeldItem {
+        final Item item;
+        final Runnable release;
+
+        HeldItem(Item item, Runnable release) {
+            this.item = item;
+            this.release = release;
+        }
+    }
+
+    // A completion queued after the items
+    private static final class Completion {
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+    }
+}
@@ -0,0 +1,150 @@
+package org.van.providers.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * A SimpleDB select expression over a single domain, kept in its parts so it can be narrowed
+ * (e.g. to an item name range) or turned into a count query without parsing a query string.
+ * <br>
+ * The expression selects all the attributes of the items unless it is given the names of the
+ * attributes to select (see {@link #withAttributes(List)}); SimpleDB then only returns those,
+ * and leaves out the items having none of them.
+ */
+public class SelectExpression {
+
+    private final String domain;
+    private final Optional<String> where;
+    private final Optional<List<String>> attributes;
+
+    public SelectExpression(final String domain) {
+        this(domain, Optional.empty());
+    }
+
+    public SelectExpression(final String domain, final Optional<String> where) {
+        this(domain, where, Optional.empty());
+    }
+
+    private SelectExpression(final String domain, final Optional<String> where,
+                             final Optional<List<String>> attributes) {
+        Objects.requireNonNull(domain);
+        Objects.requireNonNull(where);
+        Objects.requireNonNull(attributes);
+        this.domain = domain;
+        this.where = where;
+        this.attributes = attributes;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public Optional<String> getWhere() {
+        return where;
+    }
+
+    /**
+     * @return the names of the attributes selected, or empty for all of them
+     */
+    public Optional<List<String>> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Create a copy of this expression only selecting the attributes provided.
+     *
+     * @param names the names of the attributes to select
+     *
+     * @return a new expression
+     */
+    public SelectExpression withAttributes(final List<String> names) {
+        Objects.requireNonNull(names);
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("No attributes to select");
+        }
+        return new SelectExpression(domain, where,
+            Optional.of(Collections.unmodifiableList(new ArrayList<>(names))));
+    }
+
+    /**
+     * Create a copy of this expression limited to the item names of the range provided.
+     *
+     * @param range the item name range to limit the expression to
+     *
+     * @return a new expression
+     */
+    public SelectExpression withinRange(final ItemNameRange range) {
+        Objects.requireNonNull(range);
+        return range.toPredicate().map(this::and).orElse(this);
+    }
+
+    /**
+     * Create a copy of this expression also requiring the predicate provided.
+     *
+     * @param predicate the predicate the items must also match
+     *
+     * @return a new expression
+     */
+    public SelectExpression and(final String predicate) {
+        Objects.requireNonNull(predicate);
+        String combined = where
+            .map(w -> String.format("(%s) and %s", w, predicate))
+            .orElse(predicate);
+        return new SelectExpression(domain, Optional.of(combined), attributes);
+    }
+
+    /**
+     * @return the select query for the items matching this expression
+     */
+    public String toQuery() {
+        return compose(attributes
+            .map(names -> names.stream().map(SelectExpression::quoteName).collect(Collectors.joining(", ")))
+            .orElse("*"));
+    }
+
+    /**
+     * @return the select query counting the items matching this expression
+     */
+    public String toCountQuery() {
+        return compose("count(*)");
+    }
+
+    private String compose(final String output) {
+        StringBuilder query = new StringBuilder()
+            .append("select ").append(output)
+            .append(" from ").append(quoteName(domain));
+        where.ifPresent(w -> query.append(" where ").append(w));
+        return query.toString();
+    }
+
+    /**
+     * Quote a value for use in a select expression.
+     *
+     * @param value the value to quote
+     *
+     * @return the value in single quotes with any embedded quotes escaped
+     */
+    public static String quote(final String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    /**
+     * Quote an attribute name for use in a select expression.
+     *
+     * @param name the attribute name to quote
+     *
+     * @return the name in backticks with any embedded backticks escaped
+     */
+    public static String quoteName(final String name) {
+        return "`" + name.replace("`", "``") + "`";
+    }
+
+    @Override
+    public String toString() {
+        return toQuery();
+    }
+}
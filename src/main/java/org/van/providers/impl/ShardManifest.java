@@ -0,0 +1,187 @@
+package org.van.providers.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * The parts of a sharded export (see {@link ShardedStoreProvider}), saved to a small properties
+ * file in the directory holding them: the format of the parts, and the name, number of items,
+ * length and CRC-32 of each part, so a restore can tell a part is missing, cut short or
+ * corrupted.
+ */
+public class ShardManifest {
+
+    public static final String FILE_NAME = "parts.properties";
+
+    private static final String FORMAT = "format";
+    private static final String PARTS = "parts";
+    private static final String PART = "part.";
+    private static final String NAME = ".name";
+    private static final String ITEMS = ".items";
+    private static final String LENGTH = ".length";
+    private static final String CRC32 = ".crc32";
+
+    private final String format;
+    private final List<Part> parts;
+
+    /**
+     * @param format the scheme the parts are written in ("file" for CSV, "bin" for binary)
+     * @param parts the parts, in order
+     */
+    public ShardManifest(String format, List<Part> parts) {
+        Objects.requireNonNull(format);
+        Objects.requireNonNull(parts);
+        this.format = format;
+        this.parts = Collections.unmodifiableList(new ArrayList<>(parts));
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public List<Part> getParts() {
+        return parts;
+    }
+
+    /**
+     * @param index the index of a part
+     * @param format the scheme the part is written in
+     * @param compression the compression of the part
+     *
+     * @return the name of the file of the part, e.g. "part-0003.csv.gz"
+     */
+    public static String partName(int index, String format, Compression compression) {
+        return String.format("part-%04d%s%s", index,
+            SourceStoreProviderFactory.SCHEME_BINARY.equals(format) ? ".bin" : ".csv", compression.getExtension());
+    }
+
+    /**
+     * Save this manifest in the directory provided. The file is replaced in one step so that a
+     * crash while saving leaves the previous manifest in place.
+     *
+     * @param directory the directory of the parts
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File directory) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(FORMAT, format);
+        properties.setProperty(PARTS, String.valueOf(parts.size()));
+        for (int i = 0; i < parts.size(); i++) {
+            Part part = parts.get(i);
+            properties.setProperty(PART + i + NAME, part.getName());
+            properties.setProperty(PART + i + ITEMS, String.valueOf(part.getItems()));
+            properties.setProperty(PART + i + LENGTH, String.valueOf(part.getLength()));
+            properties.setProperty(PART + i + CRC32, Long.toHexString(part.getCrc32()));
+        }
+
+        File file = new File(directory, FILE_NAME);
+        File temp = new File(directory, FILE_NAME + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "simpledb-bkrs sharded export manifest");
+            out.flush();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load the manifest of the directory provided.
+     *
+     * @param directory the directory of the parts
+     *
+     * @return the manifest, or empty if the directory has none
+     * @throws IOException if the file cannot be read or is not a manifest
+     */
+    public static Optional<ShardManifest> load(File directory) throws IOException {
+        File file = new File(directory, FILE_NAME);
+        if (!file.exists()) {
+            return Optional.empty();
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        try {
+            int count = Integer.parseInt(required(properties, PARTS, file));
+            List<Part> parts = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                parts.add(new Part(required(properties, PART + i + NAME, file),
+                    Long.parseLong(required(properties, PART + i + ITEMS, file)),
+                    Long.parseLong(required(properties, PART + i + LENGTH, file)),
+                    Long.parseLong(required(properties, PART + i + CRC32, file), 16)));
+            }
+            return Optional.of(new ShardManifest(required(properties, FORMAT, file), parts));
+        } catch (NumberFormatException ex) {
+            throw new IOException(String.format("Invalid manifest file %s", file), ex);
+        }
+    }
+
+    private static String required(Properties properties, String name, File file) throws IOException {
+        String value = properties.getProperty(name);
+        if (null == value) {
+            throw new IOException(String.format("Manifest file %s has no %s", file, name));
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Sharded export in %s (parts:%d)", format, parts.size());
+    }
+
+    /**
+     * One part of a sharded export.
+     */
+    public static final class Part {
+
+        private final String name;
+        private final long items;
+        private final long length;
+        private final long crc32;
+
+        public Part(String name, long items, long length, long crc32) {
+            Objects.requireNonNull(name);
+            this.name = name;
+            this.items = items;
+            this.length = length;
+            this.crc32 = crc32;
+        }
+
+        /**
+         * @return the name of the file of the part, in the directory of the manifest
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getItems() {
+            return items;
+        }
+
+        /**
+         * @return the length of the file in bytes
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return the CRC-32 of the file
+         */
+        public long getCrc32() {
+            return crc32;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Item;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.van.MemoryBudget;
+import org.van.TransferMetrics;
+import org.van.providers.ItemSourceProvider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.OptionalDouble;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Implementation of {@link ItemSourceProvider} reading the parts of a sharded export (see
+ * {@link ShardedStoreProvider}) all at once, each on a thread of its own, and passing their
+ * items on to the iterating thread as they come. Items of different parts are interleaved;
+ * the rows of an item are all in the same part, so items are still passed on whole.
+ * <br>
+ * Every part is checked against the {@link ShardManifest} once read: a part with a different
+ * CRC-32, or a different number of items when read from its start, fails the iteration.
+ * <br>
+ * Positions are the positions of the parts joined by commas, in the order of the parts: empty
+ * for a part not started, "-" for a part done. Only CSV parts can be resumed, so binary parts
+ * report no positions.
+ * <br>
+ * With a memory budget (see {@link #holdItemsIn(MemoryBudget)}), the items queued for the
+ * iterating thread are taken from the budget before they are queued.
+ */
+public class ShardedSourceProvider extends ItemSourceProvider {
+
+    private static final String DONE = "-";
+    // Items waiting for the iterating thread, from all the parts
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Logger logger =
+        Logger.getLogger(ShardedSourceProvider.class);
+
+    private final File directory;
+    private final ShardManifest manifest;
+    private final String[] positions;
+    private final List<Part> parts = new ArrayList<>();
+    private MemoryBudget memoryBudget = null;
+
+    /**
+     * @param directory the directory of the parts
+     * @param manifest the manifest of the parts, as loaded from the directory
+     */
+    public ShardedSourceProvider(File directory, ShardManifest manifest) {
+        Objects.requireNonNull(directory);
+        Objects.requireNonNull(manifest);
+        this.directory = directory;
+        this.manifest = manifest;
+        this.positions = new String[manifest.getParts().size()];
+        Arrays.fill(positions, "");
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s)", manifest, directory);
+    }
+
+    private boolean isResumable() {
+        return SourceStoreProviderFactory.SCHEME_FILE.equals(manifest.getFormat());
+    }
+
+    /**
+     * Resume from a position reported by an earlier iteration: every part not done resumes from
+     * its own position.
+     *
+     * @param position a position reported by {@link #iterateItems(Consumer, Consumer)}
+     *
+     * @return this instance
+     */
+    @Override
+    public ShardedSourceProvider resumeFrom(String position) {
+        Objects.requireNonNull(position);
+        if (!isResumable()) {
+            throw new UnsupportedOperationException(String.format("%s cannot resume an iteration", this));
+        }
+        String[] partPositions = position.split(",", -1);
+        if (partPositions.length != positions.length) {
+            throw new IllegalArgumentException(String.format("Invalid sharded position %s", position));
+        }
+        System.arraycopy(partPositions, 0, positions, 0, positions.length);
+        return this;
+    }
+
+    /**
+     * Takes every item read from the budget before queuing it, and hands its size over with it.
+     */
+    @Override
+    public boolean holdItemsIn(MemoryBudget budget) {
+        Objects.requireNonNull(budget);
+        this.memoryBudget = budget;
+        return true;
+    }
+
+    @Override
+    public ItemSourceProvider initialize() {
+        try {
+            List<ShardManifest.Part> manifestParts = manifest.getParts();
+            for (int i = 0; i < manifestParts.size(); i++) {
+                if (!DONE.equals(positions[i])) {
+                    parts.add(new Part(i, manifestParts.get(i)));
+                }
+            }
+            return this;
+        } catch (Exception ex) {
+            throw new RuntimeException("Cannot initialize item source", ex);
+        }
+    }
+
+    /**
+     * @return the share of the parts done, each counting for the same share whatever its size
+     */
+    @Override
+    public OptionalDouble getProgress() {
+        if (0 == positions.length) {
+            return OptionalDouble.empty();
+        }
+        double done = positions.length - parts.size();
+        for (Part part : parts) {
+            done += part.done ? 1 : part.source.getProgress().orElse(0);
+        }
+        return OptionalDouble.of(Math.min(1, done / positions.length));
+    }
+
+    @Override
+    public void iterateItems(Consumer<Item> consumer) {
+        iterateItems(consumer, position -> {});
+    }
+
+    @Override
+    public void iterateItems(Consumer<Item> consumer, Consumer<String> positionConsumer) {
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        TransferMetrics.global().addQueue(queue);
+        List<Thread> threads = new ArrayList<>();
+        try {
+            for (Part part : parts) {
+                Thread thread = new Thread(() -> part.read(queue, stopped), String.format("part-reader-%d", part.index));
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+            int reading = parts.size();
+            while (reading > 0) {
+                Object next = queue.take();
+                if (next instanceof Item) {
+                    consumer.accept((Item) next);
+                    continue;
+                }
+                if (next instanceof HeldItem) {
+                    consumer.accept(((HeldItem) next).item);
+                    continue;
+                }
+                // Every item of the part before its position has been passed on
+                Reached reached = (Reached) next;
+                if (null != reached.failure) {
+                    throw new RuntimeException(String.format("Error while reading %s", reached.part.file),
+                        reached.failure);
+                }
+                positions[reached.part.index] = reached.position;
+                if (DONE.equals(reached.position)) {
+                    reading--;
+                }
+                if (isResumable()) {
+                    positionConsumer.accept(String.join(",", positions));
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while iterating items", ex);
+        } finally {
+            // Stop the parts still reading if the iteration failed
+            threads.forEach(Thread::interrupt);
+            // The items not passed on are let go, those queued from now on by their part
+            stopped.set(true);
+            for (Object next = queue.poll(); null != next; next = queue.poll()) {
+                release(next);
+            }
+            TransferMetrics.global().removeQueue(queue);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Part part : parts) {
+            IOUtils.closeQuietly(part.source);
+        }
+    }
+
+    private void release(Object next) {
+        if (next instanceof HeldItem) {
+            memoryBudget.release(((HeldItem) next).size);
+        }
+    }
+
+    /**
+     * An item queued with the bytes of the memory budget it holds.
+     */
+    private static final class HeldItem {
+
+        private final Item item;
+        private final long size;
+
+        HeldItem(Item item, long size) {
+            this.item = item;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A position reached by a part, or its failure.
+     */
+    private static final class Reached {
+
+        private final Part part;
+        private final String position;
+        private final Throwable failure;
+
+        Reached(Part part, String position, Throwable failure) {
+            this.part = part;
+            this.position = position;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * A part file and the source reading it, through a stream computing its CRC-32.
+     */
+    private final class Part {
+
+        private final int index;
+        private final ShardManifest.Part expected;
+        private final File file;
+        private final CheckedInputStream checked;
+        private final ItemSourceProvider source;
+        private final boolean resumed;
+        private volatile boolean done = false;
+
+        Part(int index, ShardManifest.Part expected) throws IOException {
+            this.index = index;
+            this.expected = expected;
+            this.file = new File(directory, expected.getName());
+            FileInputStream fileStream = new FileInputStream(file);
+            this.checked = new CheckedInputStream(fileStream, new CRC32());
+            InputStream in = Compression.forFile(file.getName()).decompress(checked);
+            if (isResumable()) {
+                CsvSourceProvider csvSource = new CsvSourceProvider(in).withStreamOwnership(true)
+                    .withFile(fileStream.getChannel());
+                if (!positions[index].isEmpty()) {
+                    csvSource.resumeFrom(positions[index]);
+                }
+                this.source = csvSource;
+            } else {
+                this.source = new BinarySourceProvider(in).withStreamOwnership(true)
+                    .withFile(fileStream.getChannel());
+            }
+            this.resumed = !positions[index].isEmpty();
+        }
+
+        private void read(BlockingQueue<Object> queue, AtomicBoolean stopped) {
+            try {
+                long[] items = {0};
+                source.initialize().iterateItems(item -> {
+                    if (null == memoryBudget) {
+                        put(queue, item);
+                    } else {
+                        putHeld(queue, item, stopped);
+                    }
+                    items[0]++;
+                }, position -> put(queue, new Reached(this, position, null)));
+                verify(items[0]);
+                done = true;
+                queue.put(new Reached(this, DONE, null));
+            } catch (Throwable t) {
+                if (!Thread.currentThread().isInterrupted()) {
+                    put(queue, new Reached(this, null, t));
+                }
+            }
+        }
+
+        private void verify(long items) throws IOException {
+            // The source may stop short of the end of the file, e.g. with data still buffered
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (checked.read(buffer) >= 0) {
+                // Only checksumming
+            }
+            if (checked.getChecksum().getValue() != expected.getCrc32()) {
+                throw new IOException(String.format("Part %s is corrupted: its CRC-32 is %x, not %x", file,
+                    checked.getChecksum().getValue(), expected.getCrc32()));
+            }
+            if (!resumed && (items != expected.getItems())) {
+                throw new IOException(String.format("Part %s has %d items, not %d", file, items,
+                    expected.getItems()));
+            }
+            logger.debug(String.format("Read %d items from %s", items, file));
+        }
+
+        /**
+         * Take an item from the memory budget and queue it, letting it go if it cannot be queued
+         * or the iteration has stopped taking items off the queue.
+         */
+        private void putHeld(BlockingQueue<Object> queue, Item item, AtomicBoolean stopped) {
+            HeldItem held = new HeldItem(item, MemoryBudget.sizeOf(item));
+            try {
+                memoryBudget.acquire(held.size);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(String.format("Interrupted while reading %s", file), ex);
+            }
+            try {
+                put(queue, held);
+            } catch (RuntimeException ex) {
+                release(held);
+                throw ex;
+            }
+            // Whoever takes the item off the queue lets it go
+            if (stopped.get() && queue.remove(held)) {
+                release(held);
+            }
+        }
+
+        private void put(BlockingQueue<Object> queue, Object next) {
+            try {
+                queue.put(next);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(String.format("Interrupted while reading %s", file), ex);
+            }
+        }
+    }
+}
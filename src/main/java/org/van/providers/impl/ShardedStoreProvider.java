@@ -0,0 +1,265 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Item;
+import org.apache.log4j.Logger;
+import org.van.providers.ItemStoreProvider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Implementation of {@link ItemStoreProvider} spreading items over several part files written
+ * in parallel, each by a thread of its own (see {@link QueuedStoreWriter}), and recording them in
+ * a {@link ShardManifest} when closed after being completed (see {@link #complete()}): an export
+ * that fails leaves no manifest, so its parts are not taken for a whole export. An item goes to
+ * the part picked by the hash of its name, so all the rows of an item end up in the same part
+ * and a part holds about the same number of items as any other.
+ * <br>
+ * Positions are the positions of the parts and the number of items written to them, as
+ * "position:items" joined by commas in the order of the parts, so an interrupted export
+ * resumes every part where it stopped.
+ * <br>
+ * The CRC-32 of each part is computed by reading the part back once it is closed, on the thread
+ * of the part.
+ * <br>
+ * The items waiting for the part threads count against the memory budget of the transfer (see
+ * {@link #storeItem(Item, Runnable)}).
+ */
+public class ShardedStoreProvider extends ItemStoreProvider {
+
+    // Items waiting for each part thread
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Logger logger =
+        Logger.getLogger(ShardedStoreProvider.class);
+
+    private final File directory;
+    private final String format;
+    private final List<Part> parts = new ArrayList<>();
+    private List<String> positions = new ArrayList<>();
+    private boolean initialized = false;
+    private boolean completed = false;
+    private boolean closed = false;
+
+    /**
+     * @param directory the directory of the parts, where the manifest is written
+     * @param format the scheme the parts are written in ("file" for CSV, "bin" for binary)
+     * @param files the files of the parts, in the directory
+     * @param stores the stores writing the files, not initialized yet
+     */
+    public ShardedStoreProvider(File directory, String format, List<File> files, List<ItemStoreProvider> stores) {
+        Objects.requireNonNull(directory);
+        Objects.requireNonNull(format);
+        Objects.requireNonNull(files);
+        Objects.requireNonNull(stores);
+        if (files.isEmpty() || (files.size() != stores.size())) {
+            throw new IllegalArgumentException(String.format("Invalid parts: %d files for %d stores",
+                files.size(), stores.size()));
+        }
+        this.directory = directory;
+        this.format = format;
+        for (int i = 0; i < files.size(); i++) {
+            parts.add(new Part(i, files.get(i), stores.get(i)));
+        }
+    }
+
+    /**
+     * Sets the number of items already in the parts of an interrupted export, from the position
+     * it was resumed from, so the manifest counts them.
+     *
+     * @param position a position reported by {@link #getPosition()}
+     *
+     * @return this instance
+     */
+    public ShardedStoreProvider withResumedPosition(String position) {
+        Objects.requireNonNull(position);
+        for (int i = 0; i < parts.size(); i++) {
+            parts.get(i).resumedItems = Long.parseLong(partItems(position, i));
+        }
+        return this;
+    }
+
+    /**
+     * Get the position of a part from a position reported by a sharded store.
+     *
+     * @param position a position reported by {@link #getPosition()}
+     * @param part the index of the part
+     *
+     * @return the position reported by the store of the part
+     * @throws IllegalArgumentException if the position is not that of a sharded store or has no
+     *     such part
+     */
+    public static String partPosition(String position, int part) {
+        String partPosition = partOf(position, part);
+        return partPosition.substring(0, partPosition.lastIndexOf(':'));
+    }
+
+    private static String partItems(String position, int part) {
+        String partPosition = partOf(position, part);
+        return partPosition.substring(partPosition.lastIndexOf(':') + 1);
+    }
+
+    private static String partOf(String position, int part) {
+        String[] partPositions = position.split(",", -1);
+        if ((part >= partPositions.length) || (partPositions[part].indexOf(':') < 0)) {
+            throw new IllegalArgumentException(String.format("Invalid sharded position %s", position));
+        }
+        return partPositions[part];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d parts in %s", parts.size(), directory);
+    }
+
+    @Override
+    public ItemStoreProvider initialize() {
+        File manifestFile = new File(directory, ShardManifest.FILE_NAME);
+        if (manifestFile.exists() && !manifestFile.delete()) {
+            // It would describe the parts rewritten by this export
+            throw new RuntimeException(String.format("Cannot delete %s", manifestFile));
+        }
+        for (Part part : parts) {
+            part.writer.getStore().initialize();
+            part.writer.start();
+        }
+        initialized = true;
+        return this;
+    }
+
+    @Override
+    public void storeItem(Item item) {
+        parts.get(Math.floorMod(item.getName().hashCode(), parts.size())).writer.storeItem(item);
+    }
+
+    /**
+     * Store an item in its part, releasing it once the part has written it.
+     */
+    @Override
+    public void storeItem(Item item, Runnable release) {
+        parts.get(Math.floorMod(item.getName().hashCode(), parts.size())).writer.storeItem(item, release);
+    }
+
+    /**
+     * Flush every part and wait until they are all flushed.
+     */
+    @Override
+    public void flush() throws IOException {
+        List<CompletableFuture<Long>> flushes = new ArrayList<>();
+        for (Part part : parts) {
+            flushes.add(part.writer.flush());
+        }
+        List<String> flushed = new ArrayList<>();
+        for (int i = 0; i < parts.size(); i++) {
+            Part part = parts.get(i);
+            long items = QueuedStoreWriter.await(flushes.get(i));
+            // The part thread is idle until the next item queued
+            flushed.add(String.format("%s:%d", part.writer.getStore().getPosition().orElse(""),
+                part.resumedItems + items));
+        }
+        positions = flushed;
+    }
+
+    /**
+     * Complete every part and wait until they are all completed. The manifest is saved when
+     * closed, once the parts are.
+     */
+    @Override
+    public void complete() throws IOException {
+        List<CompletableFuture<Long>> completions = new ArrayList<>();
+        for (Part part : parts) {
+            completions.add(part.writer.complete());
+        }
+        for (CompletableFuture<Long> completion : completions) {
+            QueuedStoreWriter.await(completion);
+        }
+        completed = true;
+    }
+
+    /**
+     * @return the positions reached by the parts at the last flush, with their items
+     */
+    @Override
+    public Optional<String> getPosition() {
+        return positions.isEmpty() ? Optional.empty() : Optional.of(String.join(",", positions));
+    }
+
+    /**
+     * Close every part and, if they were all written without failure and completed, save the
+     * manifest.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!initialized) {
+            for (Part part : parts) {
+                part.writer.getStore().close();
+            }
+            return;
+        }
+        List<CompletableFuture<ShardManifest.Part>> closes = new ArrayList<>();
+        for (Part part : parts) {
+            CompletableFuture<Long> close = part.writer.close();
+            // The checksum is computed on the thread of the part, and only for a manifest to save
+            closes.add(completed ? close.thenApply(part::written) : close.thenApply(items -> null));
+        }
+        List<ShardManifest.Part> written = new ArrayList<>();
+        for (CompletableFuture<ShardManifest.Part> close : closes) {
+            written.add(QueuedStoreWriter.await(close));
+        }
+        if (!completed) {
+            logger.warn(String.format("%s not completed; no manifest saved", this));
+            return;
+        }
+        ShardManifest manifest = new ShardManifest(format, written);
+        manifest.save(directory);
+        logger.info(String.format("Wrote %d items in %s", written.stream().mapToLong(ShardManifest.Part::getItems).sum(),
+            manifest));
+    }
+
+    /**
+     * A part file and the writer of its store.
+     */
+    private static final class Part {
+
+        private final File file;
+        private final QueuedStoreWriter writer;
+        private long resumedItems = 0;
+
+        Part(int index, File file, ItemStoreProvider store) {
+            this.file = file;
+            this.writer = new QueuedStoreWriter(store, QUEUE_CAPACITY, String.format("part-writer-%d", index));
+        }
+
+        ShardManifest.Part written(long items) {
+            try {
+                return new ShardManifest.Part(file.getName(), resumedItems + items, file.length(), crc32());
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private long crc32() throws IOException {
+            try (CheckedInputStream in = new CheckedInputStream(new FileInputStream(file), new CRC32())) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (in.read(buffer) >= 0) {
+                    // Only checksumming
+                }
+                return in.getChecksum().getValue();
+            }
+        }
+    }
+}
@@ -3,20 +3,57 @@ package org.van.providers.impl;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.simpledb.AmazonSimpleDB;
 import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.services.simpledb.model.Attribute;
 import com.amazonaws.services.simpledb.model.Item;
 import com.amazonaws.services.simpledb.model.SelectRequest;
 import com.amazonaws.services.simpledb.model.SelectResult;
 import org.apache.log4j.Logger;
+import org.van.AimdConcurrencyController;
+import org.van.MemoryBudget;
 import org.van.RetryUtility;
+import org.van.TransferMetrics;
 import org.van.providers.ItemSourceProvider;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * Implementation of {@link ItemSourceProvider} backed by a SimpleDB domain.
+ * <br>
+ * When created with a {@link SelectExpression}, the items can be read by several workers in
+ * parallel (see {@link #withSegments(int)}): the domain is split into disjoint item name ranges,
+ * each range is selected on its own thread, and the pages read are handed to the consumer on the
+ * thread calling {@link #iterateItems(Consumer)}.
+ * <br>
+ * Pages can also be read ahead of the consumer (see {@link #withPrefetch(int)}) so a slow
+ * consumer does not stall the reads. With a memory budget (see
+ * {@link #holdItemsIn(MemoryBudget)}), every page read is taken from the budget before it is
+ * held, so the reads wait for room in the budget however many pages may be read ahead.
+ * <br>
+ * All selects go through an {@link AimdConcurrencyController}, which settles the number of
+ * selects in flight at the highest rate SimpleDB sustains without throttling.
+ * <br>
+ * After each page consumed, the tokens reached by the cursors are reported as a position that a
+ * later iteration can resume from (see {@link #resumeFrom(String)}).
+ * <br>
+ * The latency of the selects and the bytes of the items read are counted in the
+ * {@link TransferMetrics} of the process.
  *
  * Created by vly on 11/15/2015.
  */
@@ -24,44 +61,548 @@ public class SimpleDbSourceProvider extends ItemSourceProvider {
 
     public static final int MAXRETRIES = 3;
 
+    // Token of a cursor that has read all its pages
+    private static final String DONE = "-";
+
+    // Number of pages each segment worker may read ahead of the consumer unless a prefetch
+    // depth is set
+    private static final int PAGES_PER_SEGMENT = 2;
+
+    /**
+     * Name of the {@link AimdConcurrencyController} shared by default by all instances
+     */
+    public static final String CONCURRENCY_CONTROLLER = "sdb-select";
+
     private static final Logger logger =
         Logger.getLogger(SimpleDbSourceProvider.class);
 
     private final AmazonSimpleDB sdbClient;
-    private final String query;
+    private String query;
+    private Optional<SelectExpression> expression;
     private final Optional<String> startToken;
 
+    private int segments = 1;
+    private int prefetch = 0;
+    private boolean consistentRead = true;
+    private MemoryBudget memoryBudget = null;
+    private Optional<List<Cursor>> resumeCursors = Optional.empty();
+    private AimdConcurrencyController concurrency = AimdConcurrencyController.named(CONCURRENCY_CONTROLLER);
+    private final TransferMetrics metrics = TransferMetrics.global();
+    private final AtomicLong itemsIterated = new AtomicLong();
+    // Counted on the first progress report, -1 if it cannot be
+    private volatile Long itemCount = null;
+
     public SimpleDbSourceProvider(Optional<AmazonSimpleDB> simpleDb, String query,
                                   Optional<String> startToken) {
+        this(simpleDb, query, Optional.empty(), startToken);
+    }
+
+    public SimpleDbSourceProvider(Optional<AmazonSimpleDB> simpleDb, SelectExpression expression,
+                                  Optional<String> startToken) {
+        this(simpleDb, expression.toQuery(), Optional.of(expression), startToken);
+    }
+
+    private SimpleDbSourceProvider(Optional<AmazonSimpleDB> simpleDb, String query,
+                                   Optional<SelectExpression> expression, Optional<String> startToken) {
         Objects.requireNonNull(simpleDb);
         Objects.requireNonNull(query);
-        Objects.requireNonNull(simpleDb);
+        Objects.requireNonNull(startToken);
         sdbClient = simpleDb.orElseGet(() -> new AmazonSimpleDBClient().withRegion(Regions.US_WEST_2));
         this.query = query;
+        this.expression = expression;
         this.startToken = startToken;
     }
 
+    /**
+     * Sets the number of segments to read in parallel. Segmented reads need the instance to be
+     * created with a {@link SelectExpression} and cannot start from a token; otherwise the items
+     * are read with a single cursor.
+     *
+     * @param segments the number of segments (>= 1)
+     *
+     * @return this instance
+     */
+    public SimpleDbSourceProvider withSegments(int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException(String.format("Invalid number of segments %d", segments));
+        }
+        this.segments = segments;
+        return this;
+    }
+
+    /**
+     * Sets the number of pages to read ahead of the consumer. With 0 (the default) the next page
+     * is only requested once the consumer is done with the current one. Otherwise pages are read
+     * on a separate thread and held in a buffer of that many pages. When reading in segments,
+     * this is the number of pages buffered per segment.
+     *
+     * @param prefetch the number of pages to read ahead (>= 0)
+     *
+     * @return this instance
+     */
+    public SimpleDbSourceProvider withPrefetch(int prefetch) {
+        if (prefetch < 0) {
+            throw new IllegalArgumentException(String.format("Invalid prefetch depth %d", prefetch));
+        }
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * Takes every page read from the budget provided before holding it, read ahead or not, and
+     * hands the size of each item over with it.
+     */
+    @Override
+    public boolean holdItemsIn(MemoryBudget budget) {
+        Objects.requireNonNull(budget);
+        this.memoryBudget = budget;
+        return true;
+    }
+
+    /**
+     * Sets whether the selects read consistently, i.e. see every write completed before them.
+     * Eventually consistent reads may miss the latest writes, but cost SimpleDB less and are
+     * throttled less; they suit backups of domains not written to while being read.
+     *
+     * @param consistentRead false to read with eventual consistency, true (the default) to read
+     *     consistently
+     *
+     * @return this instance
+     */
+    public SimpleDbSourceProvider withConsistentRead(boolean consistentRead) {
+        this.consistentRead = consistentRead;
+        return this;
+    }
+
+    /**
+     * Sets the controller limiting the number of selects in flight.
+     *
+     * @param concurrency the controller to use
+     *
+     * @return this instance
+     */
+    public SimpleDbSourceProvider withConcurrencyController(AimdConcurrencyController concurrency) {
+        Objects.requireNonNull(concurrency);
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Only select the items whose attribute provided is at or above the mark provided. Values are
+     * compared as strings, the way SimpleDB compares them. Items at the mark are selected again
+     * so that items changed within the same instant as the last item of the previous backup are
+     * not missed. When only some attributes are selected, the attribute is selected too.
+     *
+     * @param attribute the name of the attribute tracking the changes
+     * @param mark the highest value of the attribute seen by the previous backup, or empty to
+     *     select all the items
+     *
+     * @return this instance
+     * @throws UnsupportedOperationException if this instance was created with a query string
+     */
+    @Override
+    public SimpleDbSourceProvider changedSince(String attribute, Optional<String> mark) {
+        Objects.requireNonNull(attribute);
+        Objects.requireNonNull(mark);
+        if (!expression.isPresent()) {
+            throw new UnsupportedOperationException(String.format("Cannot narrow %s", this));
+        }
+        Optional<List<String>> attributes = expression.get().getAttributes();
+        if (attributes.isPresent() && !attributes.get().contains(attribute)) {
+            // The attribute must be read for the next backup to know the mark
+            List<String> withAttribute = new ArrayList<>(attributes.get());
+            withAttribute.add(attribute);
+            expression = Optional.of(expression.get().withAttributes(withAttribute));
+            query = expression.get().toQuery();
+        }
+        if (mark.isPresent()) {
+            expression = Optional.of(expression.get().and(String.format("%s >= %s",
+                SelectExpression.quoteName(attribute), SelectExpression.quote(mark.get()))));
+            query = expression.get().toQuery();
+        }
+        return this;
+    }
+
+    /**
+     * Select the highest value of the attribute among the items the query matches, with a
+     * consistent read so no change acknowledged before is missed.
+     *
+     * @return the highest value, "" if no item has the attribute, or empty if this instance was
+     *     created with a query string
+     */
+    @Override
+    public Optional<String> highestValueOf(String attribute) {
+        Objects.requireNonNull(attribute);
+        if (!expression.isPresent()) {
+            return Optional.empty();
+        }
+        String query = expression.get().withAttributes(Collections.singletonList(attribute))
+            .and(String.format("%s is not null", SelectExpression.quoteName(attribute))).toQuery() +
+            String.format(" order by %s desc limit 1", SelectExpression.quoteName(attribute));
+        SelectResult result = RetryUtility.performWithRetry((request, trial) ->
+            concurrency.call(() -> metrics.timeSelect(() -> sdbClient.select(request))),
+            new SelectRequest(query, true), MAXRETRIES);
+        return Optional.of(result.getItems().stream()
+            .flatMap(item -> item.getAttributes().stream())
+            .filter(a -> attribute.equals(a.getName()))
+            .map(Attribute::getValue)
+            .max(String::compareTo)
+            .orElse(""));
+    }
+
     @Override
     public String toString() {
         return String.format("SimpleDB (query:\"%s\")", query);
     }
 
+    /**
+     * Resume from a position reported by an earlier iteration. A position lists the cursors of
+     * that iteration (one per segment) with the token each had reached, so a segmented read
+     * resumes with the same segments.
+     *
+     * @param position a position reported by {@link #iterateItems(Consumer, Consumer)}
+     *
+     * @return this instance
+     */
+    @Override
+    public SimpleDbSourceProvider resumeFrom(String position) {
+        Objects.requireNonNull(position);
+        resumeCursors = Optional.of(decodePosition(position));
+        return this;
+    }
+
     @Override
     public void iterateItems(Consumer<Item> consumer) {
-        AtomicReference<String> tokenRef = new AtomicReference<>(startToken.orElse(null));
+        iterateItems(consumer, position -> {});
+    }
+
+    @Override
+    public void iterateItems(Consumer<Item> consumer, Consumer<String> positionConsumer) {
+        List<Cursor> cursors = resumeCursors.orElseGet(this::planCursors);
+        List<Cursor> active = cursors.stream().filter(c -> !c.done).collect(Collectors.toList());
+        Consumer<Page> pageConsumer = page -> {
+            page.passTo(consumer);
+            itemsIterated.addAndGet(page.items.size());
+            page.cursor.position = page.nextToken;
+            page.cursor.done = (null == page.nextToken);
+            positionConsumer.accept(encodePosition(cursors));
+        };
+        if (active.isEmpty()) {
+            return;
+        }
+        if (active.size() > 1) {
+            logger.info(String.format("Reading %s in %d segments", this, active.size()));
+            readAhead(active, active.size() * ((prefetch > 0) ? prefetch : PAGES_PER_SEGMENT), pageConsumer);
+        } else if (prefetch > 0) {
+            readAhead(active, prefetch, pageConsumer);
+        } else {
+            iterateQuery(active.get(0), pageConsumer);
+        }
+    }
+
+    /**
+     * The share of the items iterated, out of the number of items the query matches. The items
+     * are counted with a count query on the first call; items iterated before a resumed
+     * iteration are not told apart, so a resumed iteration reports less than it has done.
+     *
+     * @return the share of the items iterated, or empty if this instance was created with a
+     *     query string or the items cannot be counted
+     */
+    @Override
+    public OptionalDouble getProgress() {
+        if (!expression.isPresent()) {
+            return OptionalDouble.empty();
+        }
+        if (null == itemCount) {
+            try {
+                itemCount = splitter().count(expression.get());
+            } catch (RuntimeException ex) {
+                logger.debug(String.format("Cannot count the items of %s", this), ex);
+                itemCount = -1L;
+            }
+        }
+        if (itemCount < 0) {
+            return OptionalDouble.empty();
+        }
+        return OptionalDouble.of((0 == itemCount) ? 1 : Math.min(1, (double) itemsIterated.get() / itemCount));
+    }
+
+    private List<Cursor> planCursors() {
+        List<Cursor> cursors = new ArrayList<>();
+        if ((segments > 1) && expression.isPresent() && !startToken.isPresent()) {
+            for (ItemNameRange range : splitter().split(expression.get(), segments)) {
+                cursors.add(new Cursor(range, expression.get().withinRange(range).toQuery(), null));
+            }
+        } else {
+            if (segments > 1) {
+                logger.warn(String.format("Cannot segment %s; reading it with a single cursor.", this));
+            }
+            cursors.add(new Cursor(ItemNameRange.all(), query, startToken.orElse(null)));
+        }
+        return cursors;
+    }
+
+    private ItemNameRangeSplitter splitter() {
+        return new ItemNameRangeSplitter(sdbClient).withConcurrencyController(concurrency);
+    }
+
+    /**
+     * Select all the pages of the cursor provided.
+     *
+     * @param cursor the query to run and the token to start from
+     * @param pageConsumer consumer of each page of items read
+     */
+    private void iterateQuery(Cursor cursor, Consumer<Page> pageConsumer) {
+        AtomicReference<String> tokenRef = new AtomicReference<>(cursor.startToken);
         do {
             logger.debug(String.format("Querying SimpleDB %s with next token %s",
-                query, tokenRef.get()));
+                cursor.query, tokenRef.get()));
 
             tokenRef.set(RetryUtility.performWithRetry((nextToken, trial) -> {
-                SelectRequest request = new SelectRequest(query, true);
+                SelectRequest request = new SelectRequest(cursor.query, consistentRead);
                 if (null != nextToken) {
                     request = request.withNextToken(nextToken);
                 }
-                SelectResult result = sdbClient.select(request);
-                result.getItems().stream().forEach(consumer);
+                SelectRequest selectRequest = request;
+                SelectResult result = concurrency.call(() -> metrics.timeSelect(() -> sdbClient.select(selectRequest)));
+                result.getItems().forEach(item -> {
+                    // The XML parser makes new strings of every attribute name of every item
+                    AttributeNames.intern(item);
+                    metrics.bytesRead(TransferMetrics.bytesOf(item));
+                });
+                Page page = new Page(cursor, result.getItems(), result.getNextToken());
+                if (null != memoryBudget) {
+                    page.hold(memoryBudget);
+                }
+                pageConsumer.accept(page);
                 return result.getNextToken();
             }, tokenRef.get(), MAXRETRIES));
         } while (null != tokenRef.get());
     }
+
+    /**
+     * Read the cursors provided on worker threads, one per cursor, and hand the pages read to the
+     * consumer on the calling thread. Up to the number of pages provided are read ahead of the
+     * consumer.
+     *
+     * @param cursors the cursors to read
+     * @param bufferedPages the number of pages that may be read but not yet consumed (>= 1)
+     * @param pageConsumer consumer of the pages read
+     */
+    private void readAhead(List<Cursor> cursors, int bufferedPages, Consumer<Page> pageConsumer) {
+        // Each worker ends its run with END so the consumer knows when all are done
+        BlockingQueue<Page> pages = new ArrayBlockingQueue<>(Math.max(bufferedPages, cursors.size()));
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        ExecutorService workers = Executors.newFixedThreadPool(cursors.size());
+        try {
+            for (Cursor cursor : cursors) {
+                workers.submit(() -> {
+                    try {
+                        iterateQuery(cursor, page -> queuePage(pages, page, stopped));
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        putPage(pages, Page.END);
+                    }
+                });
+            }
+            int running = cursors.size();
+            while ((running > 0) && (null == failure.get())) {
+                Page page = pages.take();
+                if (Page.END == page) {
+                    running--;
+                } else {
+                    pageConsumer.accept(page);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading ahead", ex);
+        } finally {
+            workers.shutdownNow();
+            // The pages not consumed are let go, those queued from now on by their worker
+            stopped.set(true);
+            for (Page page = pages.poll(); null != page; page = pages.poll()) {
+                page.release(0);
+            }
+        }
+        if (null != failure.get()) {
+            throw new RuntimeException(String.format("Error while reading %s", this), failure.get());
+        }
+    }
+
+    /**
+     * Encode the state of the cursors as a position: one "lower,upper,token" entry per cursor,
+     * separated by semicolons, with each field URL-encoded. An empty token means the cursor has
+     * not started and {@link #DONE} that it has finished.
+     */
+    private static String encodePosition(List<Cursor> cursors) {
+        StringBuilder position = new StringBuilder();
+        for (Cursor cursor : cursors) {
+            if (position.length() > 0) {
+                position.append(';');
+            }
+            position.append(encode(cursor.range.getLower().orElse(""))).append(',')
+                .append(encode(cursor.range.getUpper().orElse(""))).append(',')
+                .append(cursor.done ? DONE : encode(Optional.ofNullable(cursor.position).orElse("")));
+        }
+        return position.toString();
+    }
+
+    private List<Cursor> decodePosition(String position) {
+        List<Cursor> cursors = new ArrayList<>();
+        for (String entry : position.split(";")) {
+            String[] fields = entry.split(",", -1);
+            if (3 != fields.length) {
+                throw new IllegalArgumentException(String.format("Invalid SimpleDB position %s", position));
+            }
+            ItemNameRange range = new ItemNameRange(
+                Optional.of(decode(fields[0])).filter(f -> !f.isEmpty()),
+                Optional.of(decode(fields[1])).filter(f -> !f.isEmpty()));
+            String cursorQuery;
+            if (!range.toPredicate().isPresent()) {
+                cursorQuery = query;
+            } else if (expression.isPresent()) {
+                cursorQuery = expression.get().withinRange(range).toQuery();
+            } else {
+                throw new IllegalArgumentException(String.format("Cannot resume segment %s of %s", range, this));
+            }
+            Cursor cursor = new Cursor(range, cursorQuery,
+                (fields[2].isEmpty() || DONE.equals(fields[2])) ? null : decode(fields[2]));
+            cursor.position = cursor.startToken;
+            cursor.done = DONE.equals(fields[2]);
+            cursors.add(cursor);
+        }
+        return cursors;
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Queue a page read ahead, letting it go if it cannot be queued or the consumer has stopped
+     * taking pages off the queue.
+     */
+    private static void queuePage(BlockingQueue<Page> pages, Page page, AtomicBoolean stopped) {
+        try {
+            putPage(pages, page);
+        } catch (RuntimeException ex) {
+            page.release(0);
+            throw ex;
+        }
+        // Whoever takes the page off the queue lets it go
+        if (stopped.get() && pages.remove(page)) {
+            page.release(0);
+        }
+    }
+
+    private static void putPage(BlockingQueue<Page> pages, Page page) {
+        try {
+            pages.put(page);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queuing a page", ex);
+        }
+    }
+
+    /**
+     * A query over an item name range and the token to start it from. The position is the token
+     * of the next page not yet consumed, and is only updated on the consuming thread.
+     */
+    private static class Cursor {
+        final ItemNameRange range;
+        final String query;
+        final String startToken;
+        String position;
+        boolean done = false;
+
+        Cursor(ItemNameRange range, String query, String startToken) {
+            this.range = range;
+            this.query = query;
+            this.startToken = startToken;
+            this.position = startToken;
+        }
+    }
+
+    /**
+     * A page of items read by a cursor and the token of the page following it, and the bytes of
+     * the memory budget its items hold, if any.
+     */
+    private static class Page {
+        static final Page END = new Page(null, Collections.emptyList(), null);
+
+        final Cursor cursor;
+        final List<Item> items;
+        final String nextToken;
+        private MemoryBudget budget = null;
+        private long[] sizes = null;
+
+        Page(Cursor cursor, List<Item> items, String nextToken) {
+            this.cursor = cursor;
+            this.items = items;
+            this.nextToken = nextToken;
+        }
+
+        /**
+         * Take the items of this page from the budget, waiting for room.
+         */
+        void hold(MemoryBudget budget) {
+            long[] sizes = new long[items.size()];
+            long bytes = 0;
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = MemoryBudget.sizeOf(items.get(i));
+                bytes += sizes[i];
+            }
+            try {
+                budget.acquire(bytes);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for memory", ex);
+            }
+            this.budget = budget;
+            this.sizes = sizes;
+        }
+
+        /**
+         * Pass the items on, the consumer taking over the budget held by each item passed to it.
+         */
+        void passTo(Consumer<Item> consumer) {
+            int passed = 0;
+            try {
+                for (Item item : items) {
+                    passed++;
+                    consumer.accept(item);
+                }
+            } finally {
+                release(passed);
+            }
+        }
+
+        /**
+         * Give back the budget held by the items from the index provided on.
+         */
+        void release(int from) {
+            if (null != budget) {
+                long bytes = 0;
+                for (int i = from; i < sizes.length; i++) {
+                    bytes += sizes[i];
+                }
+                budget.release(bytes);
+            }
+        }
+    }
 }
@@ -1,32 +1,169 @@
 package org.van.providers.impl;
 
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.AmazonSimpleDBAsync;
+import com.amazonaws.services.simpledb.AmazonSimpleDBAsyncClient;
 import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
 import com.amazonaws.services.simpledb.model.*;
+import org.apache.log4j.Logger;
+import org.van.AimdConcurrencyController;
+import org.van.TransferMetrics;
+import org.van.RetryUtility;
 import org.van.providers.ItemStoreProvider;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * Implementation of {@link ItemStoreProvider} backed by a SimpleDB domain.
+ * <br>
+ * By default every item is written with its own PutAttributes call. When a batch size greater
+ * than 1 is set (see {@link #withBatchSize(int)}), items are buffered and written with
+ * BatchPutAttributes calls instead. Each batch is kept within SimpleDB's limits of
+ * {@link #MAX_BATCH_ITEMS} items, {@link #MAX_BATCH_ITEM_ATTRIBUTES} attributes per item and
+ * {@link #MAX_BATCH_REQUEST_BYTES} bytes per request. Any buffered items are written
+ * on {@link #flush()} and {@link #close()}.
+ * <br>
+ * When an async window greater than 1 is set (see {@link #withAsyncWindow(int)}), the calls are
+ * made with the SDK's async client and up to that many calls are kept in flight. Writes for the
+ * same item name are never in flight together, so they are applied in the order they were
+ * stored: a batch failing is written item by item before its item names are let go. Failures of
+ * async writes are reported by the next {@link #flush()} or {@link #close()}.
+ * <br>
+ * Items stored with a release (see {@link #storeItem(Item, Runnable)}) are released once their
+ * write is done, so the items buffered in batches and in flight count against the memory budget
+ * of the transfer.
+ * <br>
+ * All write calls go through an {@link AimdConcurrencyController}, which settles the number of
+ * calls in flight at the highest rate SimpleDB sustains without throttling.
+ * <br>
+ * The latency of the write calls and the bytes of the items stored are counted in the
+ * {@link TransferMetrics} of the process.
  *
  * Created by vly on 11/15/2015.
  */
 public class SimpleDbStoreProvider extends ItemStoreProvider {
 
-    private final AmazonSimpleDB sdbClient;
+    public static final int MAXRETRIES = 3;
+
+    public static final int MAX_BATCH_ITEMS = 25;
+    public static final int MAX_BATCH_ITEM_ATTRIBUTES = 256;
+    public static final int MAX_BATCH_REQUEST_BYTES = 1024 * 1024;
+
+    // Rough allowance for the request parameter names (e.g. "Item.12.Attribute.3.Value=") that
+    // wrap every name and value on the wire.
+    private static final int PARAMETER_OVERHEAD_BYTES = 64;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Runnable NO_RELEASE = () -> {};
+
+    /**
+     * Name of the {@link AimdConcurrencyController} shared by default by all instances
+     */
+    public static final String CONCURRENCY_CONTROLLER = "sdb-put";
+
+    private static final Logger logger =
+        Logger.getLogger(SimpleDbStoreProvider.class);
+
+    private final Optional<AmazonSimpleDB> simpleDb;
+    private AmazonSimpleDB sdbClient = null;
+    private final boolean clientOwnership;
     private final String domain;
 
+    private int batchSize = 1;
+    private final List<ReplaceableItem> batch = new ArrayList<>(MAX_BATCH_ITEMS);
+    private final Set<String> batchItemNames = new HashSet<>();
+    private final List<Runnable> batchReleases = new ArrayList<>(MAX_BATCH_ITEMS);
+    private int batchBytes = 0;
+
+    private AimdConcurrencyController concurrency = AimdConcurrencyController.named(CONCURRENCY_CONTROLLER);
+    private final TransferMetrics metrics = TransferMetrics.global();
+
+    private int asyncWindow = 1;
+    private Semaphore inFlight;
+    // Item names with a write in flight; guarded by itself
+    private final Set<String> inFlightItemNames = new HashSet<>();
+    private final AtomicReference<Exception> asyncFailure = new AtomicReference<>();
+
     public SimpleDbStoreProvider(Optional<AmazonSimpleDB> simpleDb, final String domain) {
         Objects.requireNonNull(simpleDb);
-        sdbClient = simpleDb.orElseGet(() -> new AmazonSimpleDBClient().withRegion(Regions.US_WEST_2));
+        clientOwnership = !simpleDb.isPresent();
+        this.simpleDb = simpleDb;
         this.domain = domain;
     }
 
+    /**
+     * Sets the number of items to write per BatchPutAttributes call. A value of 1 (the default)
+     * writes every item with its own PutAttributes call. Values larger than
+     * {@link #MAX_BATCH_ITEMS} are capped.
+     *
+     * @param batchSize the number of items per batch (>= 1)
+     *
+     * @return this instance
+     */
+    public SimpleDbStoreProvider withBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(String.format("Invalid batch size %d", batchSize));
+        }
+        this.batchSize = Math.min(batchSize, MAX_BATCH_ITEMS);
+        return this;
+    }
+
+    /**
+     * Sets the number of write calls that may be in flight at once. A value of 1 (the default)
+     * makes every call wait for its response. Larger values need an {@link AmazonSimpleDBAsync}
+     * client; if this instance creates its own client, it creates an async one.
+     *
+     * @param asyncWindow the number of calls in flight (>= 1)
+     *
+     * @return this instance
+     */
+    public SimpleDbStoreProvider withAsyncWindow(int asyncWindow) {
+        if (asyncWindow < 1) {
+            throw new IllegalArgumentException(String.format("Invalid async window %d", asyncWindow));
+        }
+        if ((asyncWindow > 1) && simpleDb.isPresent() && !(simpleDb.get() instanceof AmazonSimpleDBAsync)) {
+            throw new IllegalArgumentException("An async window needs an AmazonSimpleDBAsync client");
+        }
+        this.asyncWindow = asyncWindow;
+        this.inFlight = new Semaphore(asyncWindow);
+        return this;
+    }
+
+    /**
+     * Sets the controller limiting the number of write calls in flight.
+     *
+     * @param concurrency the controller to use
+     *
+     * @return this instance
+     */
+    public SimpleDbStoreProvider withConcurrencyController(AimdConcurrencyController concurrency) {
+        Objects.requireNonNull(concurrency);
+        this.concurrency = concurrency;
+        return this;
+    }
+
     @Override
     public String toString() {
         return String.format("SimpleDB (domain:\"%s\")", domain);
@@ -34,6 +171,10 @@ public class SimpleDbStoreProvider extends ItemStoreProvider {
 
     @Override
     public SimpleDbStoreProvider initialize() {
+        // Created once the async window is known, so only the client needed is ever created
+        sdbClient = simpleDb.orElseGet(() -> (asyncWindow > 1) ?
+            new AmazonSimpleDBAsyncClient().withRegion(Regions.US_WEST_2) :
+            new AmazonSimpleDBClient().withRegion(Regions.US_WEST_2));
         CreateDomainRequest request = new CreateDomainRequest(domain);
         sdbClient.createDomain(request);
         return this;
@@ -41,19 +182,303 @@ public class SimpleDbStoreProvider extends ItemStoreProvider {
 
     @Override
     public void storeItem(Item item) {
+        storeItem(item, NO_RELEASE);
+    }
+
+    /**
+     * Store an item, releasing it once it is written, or given up on, and not before.
+     */
+    @Override
+    public void storeItem(Item item, Runnable release) {
+        metrics.bytesWritten(TransferMetrics.bytesOf(item));
+        List<ReplaceableAttribute> attributes = composeReplaceableAttribs(item.getAttributes());
+        if (batchSize <= 1) {
+            putItem(item.getName(), attributes, release);
+            return;
+        }
+
+        int itemBytes = estimateBytes(item.getName(), attributes);
+        if ((attributes.size() > MAX_BATCH_ITEM_ATTRIBUTES) || (itemBytes > MAX_BATCH_REQUEST_BYTES)) {
+            // Can never be part of a batch; let SimpleDB accept or reject it on its own
+            putItem(item.getName(), attributes, release);
+            return;
+        }
+        if (batchItemNames.contains(item.getName()) ||
+            (batchBytes + itemBytes > MAX_BATCH_REQUEST_BYTES)) {
+            // SimpleDB rejects a batch naming the same item twice, and the request must stay under
+            // the size limit, so send what we have so far first.
+            flushBatch();
+        }
+        batch.add(new ReplaceableItem(item.getName(), attributes));
+        batchItemNames.add(item.getName());
+        batchReleases.add(release);
+        batchBytes += itemBytes;
+        if (batch.size() >= batchSize) {
+            flushBatch();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (null == sdbClient) {
+            return;
+        }
+        flushBatch();
+        if (asyncWindow > 1) {
+            awaitInFlight();
+            Exception failure = asyncFailure.getAndSet(null);
+            if (null != failure) {
+                throw new RuntimeException("Cannot store items", failure);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (clientOwnership && (sdbClient instanceof AmazonWebServiceClient)) {
+                ((AmazonWebServiceClient) sdbClient).shutdown();
+            }
+        }
+    }
+
+    private void putItem(String itemName, List<ReplaceableAttribute> attributes, Runnable release) {
         PutAttributesRequest request = new PutAttributesRequest()
             .withDomainName(domain)
-            .withItemName(item.getName())
-            .withAttributes(composeReplaceableAttribs(item.getAttributes()))
+            .withItemName(itemName)
+            .withAttributes(attributes)
             ;
-        sdbClient.putAttributes(request);
+        if (asyncWindow > 1) {
+            submitAsync(Collections.singletonList(itemName), Collections.singletonList(release), request,
+                ((AmazonSimpleDBAsync) sdbClient)::putAttributesAsync, SimpleDbStoreProvider::failed);
+        } else {
+            try {
+                concurrency.call(() -> metrics.timePut(() -> {
+                    sdbClient.putAttributes(request);
+                    return null;
+                }));
+            } finally {
+                release.run();
+            }
+        }
+    }
+
+    /**
+     * Write the buffered items with a BatchPutAttributes call. If the batch still fails after
+     * retrying (or fails with an error that cannot be retried), each of its items is written
+     * individually so a single bad item does not take the rest of the batch down with it.
+     */
+    private void flushBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<ReplaceableItem> items = new ArrayList<>(batch);
+        List<Runnable> releases = new ArrayList<>(batchReleases);
+        batch.clear();
+        batchItemNames.clear();
+        batchReleases.clear();
+        batchBytes = 0;
+
+        BatchPutAttributesRequest batchRequest = new BatchPutAttributesRequest(domain, items);
+        if (asyncWindow > 1) {
+            submitAsync(items.stream().map(ReplaceableItem::getName).collect(Collectors.toList()), releases,
+                batchRequest, ((AmazonSimpleDBAsync) sdbClient)::batchPutAttributesAsync, failure -> {
+                    logger.warn(String.format("Batch of %d items failed; storing them individually.", items.size()),
+                        failure);
+                    return putItemsAsync(items);
+                });
+            return;
+        }
+
+        try {
+            RetryUtility.performWithRetry((request, trial) -> concurrency.call(() -> metrics.timePut(() -> {
+                sdbClient.batchPutAttributes(request);
+                return null;
+            })), batchRequest, MAXRETRIES);
+        } catch (RuntimeException ex) {
+            logger.warn(String.format("Batch of %d items failed; storing them individually.", items.size()), ex);
+            List<String> failed = new LinkedList<>();
+            for (ReplaceableItem item : items) {
+                try {
+                    putItem(item.getName(), item.getAttributes(), NO_RELEASE);
+                } catch (RuntimeException itemEx) {
+                    logger.error(String.format("Cannot store item %s", item.getName()), itemEx);
+                    failed.add(item.getName());
+                }
+            }
+            if (!failed.isEmpty()) {
+                throw new RuntimeException(String.format("Cannot store items %s", failed), ex);
+            }
+        } finally {
+            releases.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * Send a request with the async client once a slot in the window is free and no earlier write
+     * for any of the item names is still in flight. Failed calls are resent up to
+     * {@link #MAXRETRIES} times, after a backoff that does not hold up any thread; a call still
+     * failing is then handed to the recovery provided. The item names, the slot and the
+     * concurrency are only let go once the recovery is done, so no later write of the same names
+     * can land before it, and the failure of the recovery is reported by the next flush. The
+     * items are released then too. If the send is never reached (e.g. interrupted while waiting),
+     * whatever was taken is let go at once and the items are given up on.
+     */
+    private <Q extends AmazonWebServiceRequest> void submitAsync(
+        List<String> itemNames, List<Runnable> releases, Q request,
+        BiFunction<Q, AsyncHandler<Q,Void>, Future<Void>> call, Function<Throwable, CompletableFuture<Void>> recovery) {
+        // What is taken before the send, and let go here if the send is not reached
+        boolean namesTaken = false;
+        boolean slotTaken = false;
+        boolean concurrencyTaken = false;
+        boolean sent = false;
+        try {
+            synchronized (inFlightItemNames) {
+                while (itemNames.stream().anyMatch(inFlightItemNames::contains)) {
+                    inFlightItemNames.wait();
+                }
+                inFlightItemNames.addAll(itemNames);
+                namesTaken = true;
+            }
+            inFlight.acquire();
+            slotTaken = true;
+            concurrency.acquire();
+            concurrencyTaken = true;
+
+            sendAsync(request, call)
+                .handle((result, failure) -> (null == failure) ? CompletableFuture.<Void>completedFuture(null) :
+                    recovery.apply(failure))
+                .thenCompose(recovered -> recovered)
+                .whenComplete((result, failure) -> {
+                    try {
+                        if (null != failure) {
+                            Throwable cause = (failure instanceof CompletionException) ? failure.getCause() : failure;
+                            asyncFailure.compareAndSet(null, (cause instanceof Exception) ? (Exception) cause :
+                                new RuntimeException(cause));
+                        }
+                    } finally {
+                        letGo(itemNames, releases, true, true);
+                    }
+                });
+            sent = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to store items", ex);
+        } finally {
+            if (!sent) {
+                letGo(namesTaken ? itemNames : Collections.emptyList(), releases, concurrencyTaken, slotTaken);
+            }
+        }
+    }
+
+    /**
+     * Let go of what a write took: its item names, its items, and its share of the concurrency
+     * and of the window if it took them.
+     */
+    private void letGo(List<String> itemNames, List<Runnable> releases, boolean concurrencyTaken, boolean slotTaken) {
+        if (!itemNames.isEmpty()) {
+            synchronized (inFlightItemNames) {
+                inFlightItemNames.removeAll(itemNames);
+                inFlightItemNames.notifyAll();
+            }
+        }
+        // Before the slot, so the items are released once a flush returns
+        releases.forEach(Runnable::run);
+        if (concurrencyTaken) {
+            concurrency.release();
+        }
+        if (slotTaken) {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Send a request with the async client, resending it up to {@link #MAXRETRIES} times if it
+     * fails, within the slot and concurrency already taken by the caller.
+     */
+    private <Q extends AmazonWebServiceRequest> CompletableFuture<Void> sendAsync(
+        Q request, BiFunction<Q, AsyncHandler<Q,Void>, Future<Void>> call) {
+        return RetryUtility.<Q,Void>performWithRetryAsync((req, trial) -> {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            long start = System.nanoTime();
+            call.apply(req, new AsyncHandler<Q, Void>() {
+                @Override
+                public void onError(Exception exception) {
+                    metrics.putCompleted(System.nanoTime() - start);
+                    concurrency.record(System.nanoTime() - start, exception);
+                    done.completeExceptionally(exception);
+                }
+
+                @Override
+                public void onSuccess(Q request, Void result) {
+                    metrics.putCompleted(System.nanoTime() - start);
+                    concurrency.record(System.nanoTime() - start, null);
+                    done.complete(result);
+                }
+            });
+            return done;
+        }, request, MAXRETRIES);
+    }
+
+    /**
+     * Write the items of a failed batch one after the other with PutAttributes calls, trying all
+     * of them before failing with the names of those that could not be stored.
+     */
+    private CompletableFuture<Void> putItemsAsync(List<ReplaceableItem> items) {
+        AmazonSimpleDBAsync asyncClient = (AmazonSimpleDBAsync) sdbClient;
+        List<String> failed = new ArrayList<>();
+        CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+        for (ReplaceableItem item : items) {
+            chain = chain.thenCompose(previous -> sendAsync(
+                new PutAttributesRequest(domain, item.getName(), item.getAttributes()), asyncClient::putAttributesAsync)
+                .handle((result, failure) -> {
+                    if (null != failure) {
+                        logger.error(String.format("Cannot store item %s", item.getName()), failure);
+                        failed.add(item.getName());
+                    }
+                    return null;
+                }));
+        }
+        return chain.thenCompose(done -> failed.isEmpty() ? CompletableFuture.<Void>completedFuture(null) :
+            failed(new RuntimeException(String.format("Cannot store items %s", failed))));
+    }
+
+    private static CompletableFuture<Void> failed(Throwable failure) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    private void awaitInFlight() {
+        try {
+            inFlight.acquire(asyncWindow);
+            inFlight.release(asyncWindow);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for items to be stored", ex);
+        }
+    }
+
+    private static int estimateBytes(String itemName, List<ReplaceableAttribute> attributes) {
+        int bytes = itemName.getBytes(UTF8).length + PARAMETER_OVERHEAD_BYTES;
+        for (ReplaceableAttribute attribute : attributes) {
+            bytes += attribute.getName().getBytes(UTF8).length + PARAMETER_OVERHEAD_BYTES;
+            if (null != attribute.getValue()) {
+                bytes += attribute.getValue().getBytes(UTF8).length + PARAMETER_OVERHEAD_BYTES;
+            }
+        }
+        return bytes;
     }
 
     private List<ReplaceableAttribute> composeReplaceableAttribs(List<Attribute> attributes) {
         Objects.requireNonNull(attributes);
-        List<ReplaceableAttribute> replaceables = new LinkedList<>();
-        attributes.forEach(attribute ->
-            replaceables.add(new ReplaceableAttribute(attribute.getName(), attribute.getValue(), true)));
+        List<ReplaceableAttribute> replaceables = new ArrayList<>(attributes.size());
+        for (int i = 0, n = attributes.size(); i < n; i++) {
+            Attribute attribute = attributes.get(i);
+            replaceables.add(new ReplaceableAttribute(attribute.getName(), attribute.getValue(), true));
+        }
         return replaceables;
     }
 }
@@ -0,0 +1,376 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.apache.log4j.Logger;
+import org.van.MemoryBudget;
+import org.van.providers.ItemSourceProvider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.OptionalDouble;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Implementation of {@link ItemSourceProvider} passing on the items of another source sorted by
+ * item name, with the items of the same name merged into one. Sources whose rows are not grouped
+ * by item name, e.g. CSV files concatenated from several exports, yield several partial items
+ * for the same name; merged, they are stored as one item with all the attributes.
+ * <br>
+ * Items are held in memory up to a limit (see {@link #withMemoryLimit(long)}, measured as in
+ * {@link MemoryBudget#sizeOf(Item)}). Past it, the items held are sorted and spilled to a
+ * temporary run file, and once the source is read the runs are merged, {@link #MAX_MERGED_RUNS}
+ * at a time. A source that fits in memory is sorted without touching the disk.
+ * <br>
+ * When merging items, an attribute with the same name and value as one already in the item is
+ * dropped, as SimpleDB would. The iteration cannot be resumed, since no item can be passed on
+ * before the whole source has been read.
+ */
+public class SortingSourceProvider extends ItemSourceProvider {
+
+    public static final long DEFAULT_MEMORY_LIMIT = 64L * 1024 * 1024;
+    public static final int MAX_MERGED_RUNS = 64;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Share of the progress taken by reading the source, the rest being the passing on of the items
+    private static final double READ_SHARE = 0.5;
+
+    private static final Logger logger =
+        Logger.getLogger(SortingSourceProvider.class);
+
+    // Items without a name, e.g. from a row missing it, sort first
+    private static final Comparator<String> NAME_ORDER = Comparator.nullsFirst(Comparator.naturalOrder());
+    private static final Comparator<Item> BY_NAME = Comparator.comparing(Item::getName, NAME_ORDER);
+
+    private final ItemSourceProvider source;
+    private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+    private File directory = null;
+    private final List<File> runs = new ArrayList<>();
+    // Items read from the source, and passed on, before merging
+    private final AtomicLong itemsRead = new AtomicLong();
+    private final AtomicLong itemsPassed = new AtomicLong();
+    private volatile boolean sourceDone = false;
+
+    /**
+     * @param source the source to sort, not initialized yet
+     */
+    public SortingSourceProvider(ItemSourceProvider source) {
+        Objects.requireNonNull(source);
+        this.source = source;
+    }
+
+    /**
+     * Sets the memory the items may take before they are spilled to a run file.
+     *
+     * @param memoryLimit the number of bytes (>= 1)
+     *
+     * @return this instance
+     */
+    public SortingSourceProvider withMemoryLimit(long memoryLimit) {
+        if (memoryLimit < 1) {
+            throw new IllegalArgumentException(String.format("Invalid memory limit %d", memoryLimit));
+        }
+        this.memoryLimit = memoryLimit;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s sorted by item name", source);
+    }
+
+    @Override
+    public ItemSourceProvider initialize() {
+        source.initialize();
+        return this;
+    }
+
+    /**
+     * @return the share of the source read, counting for half, and of the items passed on
+     */
+    @Override
+    public OptionalDouble getProgress() {
+        if (!sourceDone) {
+            OptionalDouble read = source.getProgress();
+            return read.isPresent() ? OptionalDouble.of(read.getAsDouble() * READ_SHARE) : read;
+        }
+        long read = itemsRead.get();
+        return OptionalDouble.of(READ_SHARE + (1 - READ_SHARE) * ((0 == read) ? 1 : (double) itemsPassed.get() / read));
+    }
+
+    @Override
+    public void iterateItems(Consumer<Item> consumer) {
+        List<Item> held = new ArrayList<>();
+        long[] heldBytes = {0};
+        try {
+            source.iterateItems(item -> {
+                itemsRead.incrementAndGet();
+                held.add(item);
+                heldBytes[0] += MemoryBudget.sizeOf(item);
+                if (heldBytes[0] >= memoryLimit) {
+                    runs.add(spill(held));
+                    held.clear();
+                    heldBytes[0] = 0;
+                }
+            });
+            sourceDone = true;
+            if (runs.isEmpty()) {
+                held.sort(BY_NAME);
+                mergeSorted(held, consumer, true);
+                return;
+            }
+            if (!held.isEmpty()) {
+                runs.add(spill(held));
+                held.clear();
+            }
+            logger.info(String.format("Merging %d runs of %s", runs.size(), source));
+            while (runs.size() > MAX_MERGED_RUNS) {
+                List<File> merged = new ArrayList<>(runs.subList(0, MAX_MERGED_RUNS));
+                File run = newRun();
+                try (RunWriter writer = new RunWriter(run)) {
+                    merge(merged, writer::write, false);
+                }
+                // In place of the runs merged, so the runs stay in the order of the source
+                runs.removeAll(merged);
+                runs.add(0, run);
+                merged.forEach(this::delete);
+            }
+            merge(runs, consumer, true);
+        } catch (IOException ex) {
+            throw new RuntimeException(String.format("Cannot sort %s", source), ex);
+        } finally {
+            deleteRuns();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            source.close();
+        } finally {
+            deleteRuns();
+        }
+    }
+
+    /**
+     * Pass on sorted items, merging those of the same name.
+     *
+     * @param counted whether to count the items as passed on
+     */
+    private void mergeSorted(List<Item> items, Consumer<Item> consumer, boolean counted) {
+        Item merged = null;
+        for (Item item : items) {
+            if ((null != merged) && Objects.equals(merged.getName(), item.getName())) {
+                merged = merge(merged, item);
+            } else {
+                if (null != merged) {
+                    consumer.accept(merged);
+                }
+                merged = item;
+            }
+            if (counted) {
+                itemsPassed.incrementAndGet();
+            }
+        }
+        if (null != merged) {
+            consumer.accept(merged);
+        }
+    }
+
+    /**
+     * Merge the runs provided into items sorted by name, the items of the same name merged.
+     *
+     * @param counted whether to count the items merged as passed on
+     */
+    private void merge(List<File> merged, Consumer<Item> consumer, boolean counted) throws IOException {
+        PriorityQueue<RunReader> readers = new PriorityQueue<>(merged.size(),
+            Comparator.comparing((RunReader r) -> r.current.getName(), NAME_ORDER).thenComparingInt(r -> r.index));
+        List<RunReader> opened = new ArrayList<>();
+        try {
+            for (int i = 0; i < merged.size(); i++) {
+                RunReader reader = new RunReader(merged.get(i), i);
+                opened.add(reader);
+                if (reader.next()) {
+                    readers.add(reader);
+                }
+            }
+            while (!readers.isEmpty()) {
+                RunReader first = readers.poll();
+                Item item = first.current;
+                // Runs with the same name are merged in the order of the runs, that of the source
+                while (!readers.isEmpty() && Objects.equals(readers.peek().current.getName(), item.getName())) {
+                    RunReader same = readers.poll();
+                    item = merge(item, same.current);
+                    if (counted) {
+                        itemsPassed.incrementAndGet();
+                    }
+                    if (same.next()) {
+                        readers.add(same);
+                    }
+                }
+                if (counted) {
+                    itemsPassed.incrementAndGet();
+                }
+                if (first.next()) {
+                    readers.add(first);
+                }
+                consumer.accept(item);
+            }
+        } finally {
+            for (RunReader reader : opened) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * @return an item with the attributes of both items, without repeating any name and value
+     */
+    private static Item merge(Item item, Item other) {
+        Set<Attribute> attributes = new LinkedHashSet<>(item.getAttributes());
+        attributes.addAll(other.getAttributes());
+        return new Item(item.getName(), new ArrayList<>(attributes));
+    }
+
+    /**
+     * Sort the items provided, the items of the same name keeping their order, and write them to
+     * a new run.
+     */
+    private File spill(List<Item> items) {
+        File run = null;
+        try {
+            run = newRun();
+            items.sort(BY_NAME);
+            try (RunWriter writer = new RunWriter(run)) {
+                mergeSorted(items, writer::write, false);
+            }
+            logger.debug(String.format("Spilled %d items to %s", items.size(), run));
+            return run;
+        } catch (IOException | RuntimeException ex) {
+            throw new RuntimeException(String.format("Cannot spill items to %s", run), ex);
+        }
+    }
+
+    private File newRun() throws IOException {
+        if (null == directory) {
+            directory = Files.createTempDirectory("simpledb-bkrs-sort").toFile();
+        }
+        return File.createTempFile("run-", ".bin", directory);
+    }
+
+    private void deleteRuns() {
+        runs.forEach(this::delete);
+        runs.clear();
+        if ((null != directory) && directory.delete()) {
+            directory = null;
+        }
+    }
+
+    private void delete(File run) {
+        if (run.exists() && !run.delete()) {
+            logger.warn(String.format("Cannot delete %s", run));
+        }
+    }
+
+    /**
+     * Writes items to a run file: the item name, the number of attributes, and the name and
+     * value of each attribute. Each string is preceded by a flag telling whether it is present,
+     * since sources may pass on null names and values (see {@link BinaryFormat}). SimpleDB names
+     * and values are short enough for {@link DataOutputStream#writeUTF(String)}.
+     */
+    private static final class RunWriter implements AutoCloseable {
+
+        private final DataOutputStream out;
+
+        RunWriter(File file) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        }
+
+        void write(Item item) {
+            try {
+                writeString(item.getName());
+                List<Attribute> attributes = item.getAttributes();
+                out.writeInt(attributes.size());
+                for (int i = 0, n = attributes.size(); i < n; i++) {
+                    writeString(attributes.get(i).getName());
+                    writeString(attributes.get(i).getValue());
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(String.format("Cannot write item %s", item.getName()), ex);
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            out.writeBoolean(null != s);
+            if (null != s) {
+                out.writeUTF(s);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the items of a run file back, one at a time.
+     */
+    private static final class RunReader implements AutoCloseable {
+
+        private final int index;
+        private final DataInputStream in;
+        private Item current = null;
+
+        RunReader(File file, int index) throws IOException {
+            this.index = index;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        }
+
+        /**
+         * @return false at the end of the run
+         */
+        boolean next() throws IOException {
+            boolean named;
+            try {
+                named = in.readBoolean();
+            } catch (EOFException ex) {
+                current = null;
+                return false;
+            }
+            String name = named ? in.readUTF() : null;
+            int count = in.readInt();
+            List<Attribute> attributes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                attributes.add(new Attribute(AttributeNames.intern(readString()), readString()));
+            }
+            current = new Item(name, attributes);
+            return true;
+        }
+
+        private String readString() throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
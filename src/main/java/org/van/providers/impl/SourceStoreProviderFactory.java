@@ -1,12 +1,38 @@
 package org.van.providers.impl;
 
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.simpledb.AmazonSimpleDB;
+import com.amazonaws.services.simpledb.AmazonSimpleDBClient;
+import com.amazonaws.services.simpledb.model.ListDomainsRequest;
+import com.amazonaws.services.simpledb.model.ListDomainsResult;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.van.BackupManifest;
+import org.van.DomainSync;
+import org.van.MemoryBudget;
 import org.van.providers.ItemSourceProvider;
 import org.van.providers.ItemStoreProvider;
 
-import java.io.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 /**
  * Creates {@link org.van.providers.ItemSourceProvider} or {@link org.van.providers.ItemStoreProvider}
@@ -18,6 +44,32 @@ import java.util.Optional;
  *     <li>sdb:///DomainName -- SimpleDB domain "DomainName"</li>
  *     <li>file:///home/van/abc.csv -- file "/home/van/abc.csv" on local disk</li>
  *     <li>file:///c:/My Documents/abc.csv -- file "C:\My Documents\abc.csv" on Windows local disk</li>
+ *     <li>file:///home/van/abc.csv.gz -- file "/home/van/abc.csv.gz", gzip compressed (".deflate" for zlib)</li>
+ *     <li>bin:///home/van/abc.bin -- file "/home/van/abc.bin" in the compact binary format (see {@link BinaryFormat})</li>
+ *     <li>file:///home/van/abc.manifest -- (source) the files of the incremental backup "abc", base first</li>
+ *     <li>file:///home/van/abc/ -- (source) the parts of the sharded export in the directory "/home/van/abc" (see {@link ShardManifest})</li>
+ *     <li>sdb-local:///DomainName -- domain "DomainName" of an in-memory SimpleDB shared by the process (see {@link LocalSimpleDb})</li>
+ * </ul>
+ * Provider options can be passed as URI query parameters:
+ * <ul>
+ *     <li>sdb:///DomainName?batch=25 -- (store) write items with BatchPutAttributes, 25 items per call</li>
+ *     <li>sdb:///DomainName?async=16 -- (store) keep up to 16 write calls in flight with the async client</li>
+ *     <li>sdb:///DomainName?segments=8 -- (source) read the domain as 8 item name ranges in parallel</li>
+ *     <li>sdb:///DomainName?prefetch=4 -- (source) read up to 4 pages ahead of the destination</li>
+ *     <li>sdb:///DomainName?attrs=a,b -- (source) only read the attributes "a" and "b"</li>
+ *     <li>sdb:///DomainName?where=`a`%20%3D%20'1' -- (source) only read the items matching the predicate</li>
+ *     <li>sdb:///DomainName?consistent=false -- (source) read with eventual consistency</li>
+ *     <li>file:///home/van/abc.csv?parallel=8 -- (source) parse the uncompressed CSV on 8 threads</li>
+ *     <li>file:///home/van/abc.csv?sort=true -- (source) sort the items by name first, merging the rows of an item wherever they are</li>
+ *     <li>file:///home/van/abc.csv?sort=true&amp;memory=256m -- (source) the same, spilling to temporary files past 256 MiB of items</li>
+ *     <li>file:///home/van/abc.csv?index=1000 -- (store) index the item names of the uncompressed CSV every 1000 items (see {@link ItemNameIndex})</li>
+ *     <li>file:///home/van/abc.csv?items=item1,order-2015* -- (source) only read the item "item1" and the items starting with "order-2015", through the index if any</li>
+ *     <li>file:///home/van/abc/?parts=16 -- (store) write 16 part files in parallel in the directory "/home/van/abc"</li>
+ *     <li>bin:///home/van/abc/?parts=16&amp;compression=gzip -- (store) the same, gzip compressed binary parts</li>
+ *     <li>sdb-local:///DomainName?latency=20&amp;jitter=10 -- every call takes 20 to 30 ms</li>
+ *     <li>sdb-local:///DomainName?rate=500 -- calls beyond 500 per second fail with "ServiceUnavailable"</li>
+ *     <li>sdb-local:///DomainName?faults=0.01 -- 1% of the calls fail with "InternalError"</li>
+ *     <li>sdb-local:///DomainName?generate=100000 -- (source) fill the domain with 100000 synthetic items first</li>
  * </ul>
  *
  * Created by vly on 11/22/2015.
@@ -26,6 +78,28 @@ public class SourceStoreProviderFactory {
 
     public static final String SCHEME_FILE = "file";
     public static final String SCHEME_SIMPLEDB = "sdb";
+    public static final String SCHEME_BINARY = "bin";
+    public static final String SCHEME_SIMPLEDB_LOCAL = "sdb-local";
+
+    public static final String PARAM_BATCH = "batch";
+    public static final String PARAM_SEGMENTS = "segments";
+    public static final String PARAM_ASYNC = "async";
+    public static final String PARAM_PREFETCH = "prefetch";
+    public static final String PARAM_PARALLEL = "parallel";
+    public static final String PARAM_LATENCY = "latency";
+    public static final String PARAM_JITTER = "jitter";
+    public static final String PARAM_RATE = "rate";
+    public static final String PARAM_FAULTS = "faults";
+    public static final String PARAM_GENERATE = "generate";
+    public static final String PARAM_PARTS = "parts";
+    public static final String PARAM_COMPRESSION = "compression";
+    public static final String PARAM_ATTRIBUTES = "attrs";
+    public static final String PARAM_WHERE = "where";
+    public static final String PARAM_CONSISTENT = "consistent";
+    public static final String PARAM_SORT = "sort";
+    public static final String PARAM_MEMORY = "memory";
+    public static final String PARAM_INDEX = "index";
+    public static final String PARAM_ITEMS = "items";
 
     /**
      * Create a instance of a source provider for the URL provided. Caller should call
@@ -38,18 +112,75 @@ public class SourceStoreProviderFactory {
      * @throws IOException if the URL cannot be accessed
      */
     public static ItemSourceProvider sourceProviderFor(final URI uri) throws IllegalArgumentException, IOException {
+        return sourceProviderFor(uri, Optional.empty());
+    }
+
+    /**
+     * Create a instance of a source provider for the URL provided, reading SimpleDB through the
+     * client provided. Caller should call {@link ItemSourceProvider#initialize()} on the returned
+     * instance before using it.
+     *
+     * @param uri the item source URI
+     * @param simpleDb the client to read "sdb" URIs with, or empty for the default client
+     *
+     * @return an {@link ItemSourceProvider} implementation corresponding to the URL provided
+     * @throws IllegalArgumentException if the URL uses a scheme we don't support
+     * @throws IOException if the URL cannot be accessed
+     */
+    public static ItemSourceProvider sourceProviderFor(final URI uri, final Optional<AmazonSimpleDB> simpleDb)
+        throws IllegalArgumentException, IOException {
         Objects.requireNonNull(uri);
+        Objects.requireNonNull(simpleDb);
         ItemSourceProvider provider;
         String scheme = uri.getScheme();
         switch(scheme) {
             case SCHEME_FILE:
-                File file = new File(cleansePath(uri.getPath()));
-                provider = new CsvSourceProvider(new FileInputStream(file)).withStreamOwnership(true);
+                File file = fileOf(uri);
+                if (file.isDirectory()) {
+                    provider = shardsOf(file);
+                } else if (file.getName().endsWith(BackupManifest.EXTENSION)) {
+                    provider = chainOf(file);
+                } else if (queryParams(uri).containsKey(PARAM_ITEMS)) {
+                    if (Compression.NONE != Compression.forFile(file.getName())) {
+                        throw new IllegalArgumentException(String.format("Cannot look up items in compressed %s", file));
+                    }
+                    provider = sortedIfAsked(uri, new IndexedCsvSourceProvider(file,
+                        ItemNameFilter.parse(queryParams(uri).get(PARAM_ITEMS))));
+                } else {
+                    FileInputStream csvStream = new FileInputStream(file);
+                    provider = sortedIfAsked(uri, new CsvSourceProvider(Compression.forFile(file.getName())
+                        .decompress(csvStream)).withStreamOwnership(true)
+                        .withFile(csvStream.getChannel())
+                        .withParallelism(intParam(queryParams(uri), PARAM_PARALLEL, 1)));
+                }
+                break;
+            case SCHEME_BINARY:
+                File binaryFile = fileOf(uri);
+                if (binaryFile.isDirectory()) {
+                    provider = shardsOf(binaryFile);
+                    break;
+                }
+                FileInputStream binaryStream = new FileInputStream(binaryFile);
+                provider = sortedIfAsked(uri, new BinarySourceProvider(Compression.forFile(binaryFile.getName())
+                    .decompress(binaryStream)).withStreamOwnership(true)
+                    .withFile(binaryStream.getChannel()));
                 break;
             case SCHEME_SIMPLEDB:
-                String path = cleansePath(uri.getPath());
-                String query = String.format("select * from `%s`", path);
-                provider = new SimpleDbSourceProvider(Optional.empty(), query, Optional.empty());
+            case SCHEME_SIMPLEDB_LOCAL:
+                Map<String,String> params = queryParams(uri);
+                SelectExpression expression = new SelectExpression(cleansePath(uri.getPath()),
+                    Optional.ofNullable(params.get(PARAM_WHERE)).filter(w -> !w.isEmpty()));
+                String attributes = params.getOrDefault(PARAM_ATTRIBUTES, "");
+                if (!attributes.isEmpty()) {
+                    expression = expression.withAttributes(Arrays.stream(attributes.split(","))
+                        .map(String::trim)
+                        .filter(a -> !a.isEmpty())
+                        .collect(Collectors.toList()));
+                }
+                provider = new SimpleDbSourceProvider(clientFor(uri, params, simpleDb), expression, Optional.empty())
+                    .withSegments(intParam(params, PARAM_SEGMENTS, 1))
+                    .withPrefetch(intParam(params, PARAM_PREFETCH, 0))
+                    .withConsistentRead(booleanParam(params, PARAM_CONSISTENT, true));
                 break;
             default:
                 throw new IllegalArgumentException(String.format("Scheme %s not supported", scheme));
@@ -64,19 +195,104 @@ public class SourceStoreProviderFactory {
      * @param uri the URI to create a store provider for
      *
      * @return an {@link ItemStoreProvider} implementation corresponding to the URL provided
-     * @throws FileNotFoundException
+     * @throws IOException if the URL cannot be accessed
+     */
+    public static ItemStoreProvider storeProviderFor(final URI uri) throws IOException {
+        return storeProviderFor(uri, Optional.empty());
+    }
+
+    /**
+     * Create a instance of a store provider for the URL provided, optionally resuming the writing
+     * of an interrupted transfer. Caller should call {@link ItemStoreProvider#initialize()} on the
+     * returned instance before using it.
+     *
+     * @param uri the URI to create a store provider for
+     * @param resumePosition the position reported by the store of the interrupted transfer
+     *     (see {@link ItemStoreProvider#getPosition()}), if resuming one
+     *
+     * @return an {@link ItemStoreProvider} implementation corresponding to the URL provided
+     * @throws IOException if the URL cannot be accessed
+     */
+    public static ItemStoreProvider storeProviderFor(final URI uri, final Optional<String> resumePosition)
+        throws IOException {
+        return storeProviderFor(uri, resumePosition, Optional.empty());
+    }
+
+    /**
+     * Create a instance of a store provider for the URL provided, optionally resuming the writing
+     * of an interrupted transfer, and writing to SimpleDB through the client provided. Caller
+     * should call {@link ItemStoreProvider#initialize()} on the returned instance before using it.
+     *
+     * @param uri the URI to create a store provider for
+     * @param resumePosition the position reported by the store of the interrupted transfer
+     *     (see {@link ItemStoreProvider#getPosition()}), if resuming one
+     * @param simpleDb the client to write "sdb" URIs with, or empty for the default client
+     *
+     * @return an {@link ItemStoreProvider} implementation corresponding to the URL provided
+     * @throws IOException if the URL cannot be accessed
      */
-    public static ItemStoreProvider storeProviderFor(final URI uri) throws FileNotFoundException {
+    public static ItemStoreProvider storeProviderFor(final URI uri, final Optional<String> resumePosition,
+                                                     final Optional<AmazonSimpleDB> simpleDb) throws IOException {
         Objects.requireNonNull(uri);
+        Objects.requireNonNull(resumePosition);
+        Objects.requireNonNull(simpleDb);
         ItemStoreProvider provider;
         String scheme = uri.getScheme();
         switch(scheme) {
             case SCHEME_FILE:
-                String file = cleansePath(uri.getPath());
-                provider = new CsvStoreProvider(new FileOutputStream(file));
+            case SCHEME_BINARY:
+                int parts = intParam(queryParams(uri), PARAM_PARTS, 0);
+                int indexInterval = intParam(queryParams(uri), PARAM_INDEX, 0);
+                if ((indexInterval > 0) && ((parts > 0) || SCHEME_BINARY.equals(scheme))) {
+                    throw new IllegalArgumentException(String.format(
+                        "Cannot index %s: only single CSV files can be indexed", uri));
+                }
+                if (parts > 0) {
+                    provider = shardsOf(uri, parts, resumePosition, simpleDb);
+                    break;
+                }
+                File file = fileOf(uri);
+                Compression compression = Compression.forFile(file.getName());
+                File indexFile = ItemNameIndex.fileFor(file);
+                if (indexInterval > 0) {
+                    if (Compression.NONE != compression) {
+                        throw new IllegalArgumentException(String.format("Cannot index compressed %s", file));
+                    }
+                } else if (SCHEME_FILE.equals(scheme) && indexFile.exists() && !indexFile.delete()) {
+                    // An index left by an earlier export would not match the new file
+                    throw new IOException(String.format("Cannot delete %s", indexFile));
+                }
+                long resumedLength = 0;
+                if (resumePosition.isPresent()) {
+                    if (!compression.isAppendable()) {
+                        throw new IllegalArgumentException(String.format("Cannot resume writing %s", file));
+                    }
+                    resumedLength = truncate(file, resumePosition.get());
+                }
+                CountingOutputStream fileStream = new CountingOutputStream(
+                    new FileOutputStream(file, resumePosition.isPresent()));
+                if (SCHEME_BINARY.equals(scheme)) {
+                    provider = new BinaryStoreProvider(compression.compress(fileStream))
+                        .withResumedLength(resumedLength)
+                        .withFileByteCounter(fileStream::getByteCount)
+                        .withStreamOwnership(true);
+                } else {
+                    CsvStoreProvider csvProvider = new CsvStoreProvider(compression.compress(fileStream))
+                        .withResumedLength(resumedLength)
+                        .withFileByteCounter(fileStream::getByteCount)
+                        .withStreamOwnership(true);
+                    if (indexInterval > 0) {
+                        csvProvider.withIndex(indexFile, indexInterval);
+                    }
+                    provider = csvProvider;
+                }
                 break;
             case SCHEME_SIMPLEDB:
-                provider = new SimpleDbStoreProvider(Optional.empty(), cleansePath(uri.getPath()));
+            case SCHEME_SIMPLEDB_LOCAL:
+                Map<String,String> params = queryParams(uri);
+                provider = new SimpleDbStoreProvider(clientFor(uri, params, simpleDb), cleansePath(uri.getPath()))
+                    .withBatchSize(intParam(params, PARAM_BATCH, 1))
+                    .withAsyncWindow(intParam(params, PARAM_ASYNC, 1));
                 break;
             default:
                 throw new IllegalArgumentException(String.format("Scheme %s not supported", scheme));
@@ -84,6 +300,246 @@ public class SourceStoreProviderFactory {
         return provider;
     }
 
+    /**
+     * Create a store writing every item to each of the URIs provided at once, through a queue of
+     * its own (see {@link FanOutStoreProvider}). Caller should call
+     * {@link ItemStoreProvider#initialize()} on the returned instance before using it.
+     *
+     * @param uris the URIs to create the stores for, at least two
+     * @param simpleDb the client to write "sdb" URIs with, or empty for the default client
+     *
+     * @return the store of all the URIs
+     * @throws IOException if one of the URIs cannot be accessed
+     */
+    public static FanOutStoreProvider storeProviderFor(final List<URI> uris, final Optional<AmazonSimpleDB> simpleDb)
+        throws IOException {
+        Objects.requireNonNull(uris);
+        Objects.requireNonNull(simpleDb);
+        if (uris.size() < 2) {
+            throw new IllegalArgumentException(String.format("Cannot fan out to %d destinations", uris.size()));
+        }
+        if (uris.stream().distinct().count() < uris.size()) {
+            throw new IllegalArgumentException(String.format("Destinations %s repeat each other", uris));
+        }
+        List<ItemStoreProvider> stores = new ArrayList<>();
+        try {
+            for (URI uri : uris) {
+                stores.add(storeProviderFor(uri, Optional.empty(), simpleDb));
+            }
+        } catch (IOException | RuntimeException ex) {
+            stores.forEach(IOUtils::closeQuietly);
+            throw ex;
+        }
+        return new FanOutStoreProvider(stores);
+    }
+
+    /**
+     * Create the sync of a domain to another one, both "sdb" or "sdb-local" URIs. The number of
+     * segments of the source sets the number of ranges compared at the same time; the destination
+     * takes the options of a store. Caller should close the returned instance once done.
+     *
+     * @param sourceUri the URI of the domain to copy
+     * @param destinationUri the URI of the domain to make the same as the source
+     * @param simpleDb the client to access "sdb" URIs with, or empty for the default client
+     *
+     * @return the sync, not started
+     * @throws IllegalArgumentException if either URI is not that of a whole domain
+     * @throws IOException if the destination cannot be accessed
+     */
+    public static DomainSync syncFor(final URI sourceUri, final URI destinationUri,
+                                     final Optional<AmazonSimpleDB> simpleDb) throws IOException {
+        Objects.requireNonNull(sourceUri);
+        Objects.requireNonNull(destinationUri);
+        Objects.requireNonNull(simpleDb);
+        for (URI uri : Arrays.asList(sourceUri, destinationUri)) {
+            if (!SCHEME_SIMPLEDB.equals(uri.getScheme()) && !SCHEME_SIMPLEDB_LOCAL.equals(uri.getScheme())) {
+                throw new IllegalArgumentException(String.format("Cannot sync %s: only domains can be synced", uri));
+            }
+        }
+        Map<String,String> params = queryParams(sourceUri);
+        if (params.containsKey(PARAM_ATTRIBUTES) || params.containsKey(PARAM_WHERE)) {
+            throw new IllegalArgumentException(String.format("Cannot sync %s: a sync compares whole domains",
+                sourceUri));
+        }
+        Optional<AmazonSimpleDB> sourceClient = clientFor(sourceUri, params, simpleDb);
+        Optional<AmazonSimpleDB> destinationClient = clientFor(destinationUri, queryParams(destinationUri), simpleDb);
+        AmazonSimpleDB defaultClient = (sourceClient.isPresent() && destinationClient.isPresent()) ? null :
+            new AmazonSimpleDBClient().withRegion(Regions.US_WEST_2);
+        ItemStoreProvider store = storeProviderFor(destinationUri, Optional.empty(), simpleDb);
+        return new DomainSync(sourceClient.orElse(defaultClient), cleansePath(sourceUri.getPath()),
+            destinationClient.orElse(defaultClient), cleansePath(destinationUri.getPath()), store)
+            .withThreads(intParam(params, PARAM_SEGMENTS, 1));
+    }
+
+    /**
+     * List the domains of the SimpleDB a "sdb" or "sdb-local" URI refers to, whatever its path.
+     *
+     * @param uri a URI of the SimpleDB
+     * @param simpleDb the client to list "sdb" domains with, or empty for the default client
+     *
+     * @return the names of the domains
+     * @throws IllegalArgumentException if the URI is not that of a SimpleDB
+     */
+    public static List<String> listDomains(final URI uri, final Optional<AmazonSimpleDB> simpleDb) {
+        Objects.requireNonNull(uri);
+        Objects.requireNonNull(simpleDb);
+        if (!SCHEME_SIMPLEDB.equals(uri.getScheme()) && !SCHEME_SIMPLEDB_LOCAL.equals(uri.getScheme())) {
+            throw new IllegalArgumentException(String.format("Scheme %s has no domains", uri.getScheme()));
+        }
+        Optional<AmazonSimpleDB> client = clientFor(uri, Collections.emptyMap(), simpleDb);
+        AmazonSimpleDBClient defaultClient = client.isPresent() ? null :
+            new AmazonSimpleDBClient().withRegion(Regions.US_WEST_2);
+        try {
+            AmazonSimpleDB sdb = client.orElse(defaultClient);
+            List<String> domains = new ArrayList<>();
+            ListDomainsRequest request = new ListDomainsRequest();
+            do {
+                ListDomainsResult result = sdb.listDomains(request);
+                domains.addAll(result.getDomainNames());
+                request.setNextToken(result.getNextToken());
+            } while (null != request.getNextToken());
+            return domains;
+        } finally {
+            if (null != defaultClient) {
+                defaultClient.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Create the URI of a file, the inverse of the path handling of the "file" scheme.
+     *
+     * @param file the file to create the URI for
+     *
+     * @return the URI
+     */
+    public static URI fileUri(final File file) {
+        return fileUri(SCHEME_FILE, file);
+    }
+
+    private static URI fileUri(final String scheme, final File file) {
+        Objects.requireNonNull(file);
+        try {
+            return new URI(scheme, "", "/" + file.getPath().replace(File.separatorChar, '/'), null, null);
+        } catch (URISyntaxException ex) {
+            throw new IllegalArgumentException(String.format("Invalid file %s", file), ex);
+        }
+    }
+
+    /**
+     * Get the file a "file" URI refers to, the inverse of {@link #fileUri(File)}.
+     *
+     * @param uri the URI of the file
+     *
+     * @return the file
+     */
+    public static File fileOf(final URI uri) {
+        Objects.requireNonNull(uri);
+        return new File(cleansePath(uri.getPath()));
+    }
+
+    /**
+     * Get the client for a "sdb" or "sdb-local" URI: for the latter, a {@link LocalSimpleDb}
+     * sharing the domains of the process, set up by the parameters of the URI.
+     */
+    private static Optional<AmazonSimpleDB> clientFor(final URI uri, final Map<String,String> params,
+                                                      final Optional<AmazonSimpleDB> simpleDb) {
+        if (!SCHEME_SIMPLEDB_LOCAL.equals(uri.getScheme())) {
+            return simpleDb;
+        }
+        LocalSimpleDb local = LocalSimpleDb.inProcess()
+            .withLatency(intParam(params, PARAM_LATENCY, 0), intParam(params, PARAM_JITTER, 0))
+            .withThroughputLimit(intParam(params, PARAM_RATE, 0))
+            .withFaultRate(doubleParam(params, PARAM_FAULTS, 0));
+        int generate = intParam(params, PARAM_GENERATE, 0);
+        if (generate > 0) {
+            local.withGeneratedDomain(cleansePath(uri.getPath()), generate);
+        }
+        return Optional.of(local);
+    }
+
+    /**
+     * Wrap a file source into a {@link SortingSourceProvider} if its URI asks for it.
+     */
+    private static ItemSourceProvider sortedIfAsked(final URI uri, final ItemSourceProvider source) {
+        Map<String,String> params = queryParams(uri);
+        if (!booleanParam(params, PARAM_SORT, false)) {
+            return source;
+        }
+        return new SortingSourceProvider(source).withMemoryLimit(params.containsKey(PARAM_MEMORY) ?
+            MemoryBudget.parseBytes(params.get(PARAM_MEMORY)) : SortingSourceProvider.DEFAULT_MEMORY_LIMIT);
+    }
+
+    private static ItemSourceProvider chainOf(final File manifestFile) throws IOException {
+        BackupManifest manifest = BackupManifest.load(manifestFile)
+            .orElseThrow(() -> new FileNotFoundException(manifestFile.getPath()));
+        return new ChainedSourceProvider(manifest.resolveFiles(manifestFile).stream()
+            .map(SourceStoreProviderFactory::fileUri)
+            .collect(Collectors.toList()));
+    }
+
+    private static ItemSourceProvider shardsOf(final File directory) throws IOException {
+        ShardManifest manifest = ShardManifest.load(directory)
+            .orElseThrow(() -> new FileNotFoundException(new File(directory, ShardManifest.FILE_NAME).getPath()));
+        return new ShardedSourceProvider(directory, manifest);
+    }
+
+    /**
+     * Create the store of a sharded export: a store for each part, created as if its file had been
+     * asked for, resuming it from its own position if resuming the export.
+     */
+    private static ItemStoreProvider shardsOf(final URI uri, final int parts, final Optional<String> resumePosition,
+                                              final Optional<AmazonSimpleDB> simpleDb) throws IOException {
+        File directory = fileOf(uri);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Cannot create directory %s", directory));
+        }
+        String compressionName = queryParams(uri).getOrDefault(PARAM_COMPRESSION, Compression.NONE.name());
+        Compression compression;
+        try {
+            compression = Compression.valueOf(compressionName.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(String.format("Unknown compression %s", compressionName), ex);
+        }
+        List<File> files = new ArrayList<>();
+        List<ItemStoreProvider> stores = new ArrayList<>();
+        try {
+            for (int i = 0; i < parts; i++) {
+                File file = new File(directory, ShardManifest.partName(i, uri.getScheme(), compression));
+                int part = i;
+                files.add(file);
+                stores.add(storeProviderFor(fileUri(uri.getScheme(), file),
+                    resumePosition.map(p -> ShardedStoreProvider.partPosition(p, part)), simpleDb));
+            }
+        } catch (IOException | RuntimeException ex) {
+            stores.forEach(IOUtils::closeQuietly);
+            throw ex;
+        }
+        ShardedStoreProvider provider = new ShardedStoreProvider(directory, uri.getScheme(), files, stores);
+        resumePosition.ifPresent(provider::withResumedPosition);
+        return provider;
+    }
+
+    /**
+     * Cut a file written by an interrupted transfer back to the length it had at its last
+     * checkpoint, dropping anything written after it.
+     */
+    private static long truncate(final File file, final String position) throws IOException {
+        long length;
+        try {
+            length = Long.parseLong(position);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Invalid file position %s", position), ex);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < length) {
+                throw new IOException(String.format("File %s is shorter than its checkpoint (%d bytes)", file, length));
+            }
+            raf.setLength(length);
+        }
+        return length;
+    }
+
     static String cleansePath(final String path) {
         Objects.requireNonNull(path);
         String answer = path;
@@ -92,4 +548,73 @@ public class SourceStoreProviderFactory {
         }
         return answer;
     }
+
+    /**
+     * Parse the query parameters of the URI provided into a map of name to value. A parameter
+     * without a value (e.g. "?flag") maps to an empty string.
+     *
+     * @param uri the URI to parse the query of
+     *
+     * @return the query parameters, or an empty map if the URI has no query
+     */
+    static Map<String,String> queryParams(final URI uri) {
+        Objects.requireNonNull(uri);
+        Map<String,String> params = new HashMap<>();
+        String query = uri.getRawQuery();
+        if (null != query) {
+            for (String pair : query.split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                int eq = pair.indexOf('=');
+                String name = (eq < 0) ? pair : pair.substring(0, eq);
+                String value = (eq < 0) ? "" : pair.substring(eq + 1);
+                params.put(decode(name), decode(value));
+            }
+        }
+        return params;
+    }
+
+    static int intParam(final Map<String,String> params, final String name, final int defaultValue) {
+        String value = params.get(name);
+        if ((null == value) || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Parameter %s must be a number: %s", name, value), ex);
+        }
+    }
+
+    static boolean booleanParam(final Map<String,String> params, final String name, final boolean defaultValue) {
+        String value = params.get(name);
+        if ((null == value) || value.isEmpty()) {
+            return defaultValue;
+        }
+        if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+            throw new IllegalArgumentException(String.format("Parameter %s must be true or false: %s", name, value));
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    static double doubleParam(final Map<String,String> params, final String name, final double defaultValue) {
+        String value = params.get(name);
+        if ((null == value) || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Parameter %s must be a number: %s", name, value), ex);
+        }
+    }
+
+    private static String decode(final String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
 }
@@ -0,0 +1,122 @@
+package org.van;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AccumulatorTest {
+
+    // ID, first name, last name, dish
+    private static final List<String[]> ROWS = Arrays.asList(
+        new String[]{"1", "Slim", "Joe", "Chicken"},
+        new String[]{"1", "Slim", "Joe", "Chicken"},
+        new String[]{"2", "Portly", "Bob", "Steak"},
+        new String[]{"2", "Portly", "Bob", "Fish"},
+        new String[]{"2", "Portly", "Bob", "Spinach"},
+        new String[]{"3", "Lean", "Ann", "Chicken"});
+
+    @Test
+    public void emitsEntityOnceKeyChanges() {
+        List<Person> people = new ArrayList<>();
+        Accumulator<Void,Person,String[],String> accumulator = people();
+        accumulator.withEmitter(people::add);
+        accumulator.accumulate(ROWS.get(0));
+        accumulator.accumulate(ROWS.get(1));
+        assertTrue("still accumulating", people.isEmpty());
+        accumulator.accumulate(ROWS.get(2));
+        assertEquals(Collections.singletonList("1 Joe Slim []"), names(people));
+        accumulator.flush();
+        assertEquals(Arrays.asList("1 Joe Slim []", "2 Bob Portly []"), names(people));
+    }
+
+    @Test
+    public void attachesChainedEntitiesBeforeEmitting() {
+        List<Person> people = new ArrayList<>();
+        Accumulator<Void,Person,String[],String> accumulator = people()
+            .withChained(new Accumulator<>(row -> row[3], row -> row[3], dish -> {}),
+                (person, dish) -> person.dishes.add(dish))
+            .withEmitter(person -> {
+                // Complete when emitted
+                assertFalse(person.dishes.isEmpty());
+                people.add(person);
+            });
+        accumulator.accumulate(ROWS);
+        accumulator.flush();
+        assertEquals(Arrays.asList(
+            "1 Joe Slim [Chicken]",
+            "2 Bob Portly [Steak, Fish, Spinach]",
+            "3 Ann Lean [Chicken]"), names(people));
+    }
+
+    @Test
+    public void startsNewEntityAfterFlush() {
+        List<Person> people = new ArrayList<>();
+        Accumulator<Void,Person,String[],String> accumulator = people().withEmitter(people::add);
+        accumulator.flush();
+        assertTrue(people.isEmpty());
+        accumulator.accumulate(ROWS.get(0));
+        accumulator.flush();
+        accumulator.accumulate(ROWS.get(1));
+        accumulator.flush();
+        accumulator.flush();
+        assertEquals(Arrays.asList("1 Joe Slim []", "1 Joe Slim []"), names(people));
+    }
+
+    @Test
+    public void groupsByLongKey() {
+        List<Person> people = new ArrayList<>();
+        Accumulator<Void,Person,String[],Long> accumulator = Accumulator.byLongKey(
+            row -> Long.parseLong(row[0]), AccumulatorTest::person, people::add);
+        accumulator.accumulate(ROWS);
+        accumulator.flush();
+        assertEquals(Arrays.asList("1 Joe Slim []", "2 Bob Portly []", "3 Ann Lean []"), names(people));
+    }
+
+    @Test
+    public void accumulatesListsOfRows() {
+        List<String[]> rows = new LinkedList<>(ROWS);
+        rows.add(2, null);
+        for (List<String[]> list : Arrays.asList(rows, new ArrayList<>(rows))) {
+            List<Person> people = new ArrayList<>();
+            // Rows mapped to null are skipped
+            Accumulator<Void,Person,String[],String> accumulator = new Accumulator<Void,Person,String[],String>(
+                row -> row[0], row -> "2".equals(row[0]) ? null : person(row), people::add);
+            accumulator.accumulate(list);
+            accumulator.flush();
+            assertEquals(Arrays.asList("1 Joe Slim []", "3 Ann Lean []"), names(people));
+        }
+    }
+
+    private static Accumulator<Void,Person,String[],String> people() {
+        return new Accumulator<>(row -> row[0], AccumulatorTest::person, null);
+    }
+
+    private static Person person(String[] row) {
+        return new Person(row[0] + " " + row[2] + " " + row[1]);
+    }
+
+    private static List<String> names(List<Person> people) {
+        List<String> names = new ArrayList<>();
+        for (Person person : people) {
+            names.add(person.name + " " + person.dishes);
+        }
+        return names;
+    }
+
+    private static final class Person {
+        final String name;
+        final List<String> dishes = new ArrayList<>();
+
+        Person(String name) {
+            this.name = name;
+        }
+    }
+}
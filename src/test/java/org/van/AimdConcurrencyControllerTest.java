@@ -0,0 +1,68 @@
+package org.van;
+
+import com.amazonaws.AmazonServiceException;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AimdConcurrencyControllerTest {
+
+    @Test
+    public void raisesLimitOfHealthyRequests() {
+        AimdConcurrencyController controller = new AimdConcurrencyController("test", 2, 1, 10);
+        recordWithFullWindow(controller, 20, 10);
+        assertTrue(controller.getLimit() > 2);
+    }
+
+    @Test
+    public void holdsLimitOfSlowRequests() {
+        AimdConcurrencyController controller = new AimdConcurrencyController("test", 2, 1, 10);
+        recordWithFullWindow(controller, 1, 1);
+        recordWithFullWindow(controller, 20, 10);
+        assertEquals(2, controller.getLimit());
+    }
+
+    @Test
+    public void cutsLimitOnceForBurstOfThrottling() {
+        AimdConcurrencyController controller = new AimdConcurrencyController("test", 8, 1, 10);
+        for (int i = 0; i < 5; i++) {
+            controller.record(TimeUnit.MILLISECONDS.toNanos(1), throttling());
+        }
+        assertEquals(4, controller.getLimit());
+        assertEquals(5, controller.getThrottles());
+    }
+
+    @Test
+    public void learnsLatencyAgainAfterCut() {
+        AimdConcurrencyController controller = new AimdConcurrencyController("test", 4, 1, 10);
+        // A fast start, then throttling and slower requests from then on
+        recordWithFullWindow(controller, 1, 1);
+        controller.record(TimeUnit.MILLISECONDS.toNanos(1), throttling());
+        assertEquals(2, controller.getLimit());
+        recordWithFullWindow(controller, 20, 10);
+        assertTrue(controller.getLimit() > 2);
+    }
+
+    private static void recordWithFullWindow(AimdConcurrencyController controller, int requests, long latencyMillis) {
+        for (int i = 0; i < requests; i++) {
+            int limit = controller.getLimit();
+            for (int j = 0; j < limit; j++) {
+                controller.acquire();
+            }
+            controller.record(TimeUnit.MILLISECONDS.toNanos(latencyMillis), null);
+            for (int j = 0; j < limit; j++) {
+                controller.release();
+            }
+        }
+    }
+
+    private static AmazonServiceException throttling() {
+        AmazonServiceException ex = new AmazonServiceException("Slow down");
+        ex.setStatusCode(503);
+        ex.setErrorCode("ServiceUnavailable");
+        return ex;
+    }
+}
@@ -0,0 +1,109 @@
+package org.van;
+
+import com.amazonaws.services.simpledb.model.Item;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.van.providers.ItemSourceProvider;
+import org.van.providers.impl.LocalSimpleDb;
+import org.van.providers.impl.SourceStoreProviderFactory;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchTransferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void transfersDomainsFromCommandLine() throws Exception {
+        File directory = folder.newFolder("cli");
+        String destination = "file:///" + directory.getPath() + "/{domain}.csv";
+        assertEquals(0, SimpleDbBackupApplication.execute("-s", "sdb-local:///{domain}?generate=5", "-d", destination,
+            "--domains", "cli-a,cli-b", "-p", "0"));
+        assertEquals(5, readBack(new File(directory, "cli-a.csv")).size());
+        assertEquals(5, readBack(new File(directory, "cli-b.csv")).size());
+    }
+
+    @Test
+    public void expandsPatternsAgainstDomains() throws Exception {
+        LocalSimpleDb.inProcess()
+            .withGeneratedDomain("glob-orders-1", 3)
+            .withGeneratedDomain("glob-orders-22", 4)
+            .withGeneratedDomain("glob-orders-3", 5)
+            .withGeneratedDomain("glob-users", 6);
+        File directory = folder.newFolder("glob");
+        List<BatchTransfer.Result> results = batch().run("sdb-local:///{domain}",
+            "file:///" + directory.getPath() + "/{domain}.csv", Arrays.asList("glob-orders-?", "glob-users", "glob-orders-1"));
+        assertEquals(Arrays.asList("glob-orders-1", "glob-orders-3", "glob-users"),
+            results.stream().map(BatchTransfer.Result::getDomain).collect(Collectors.toList()));
+        assertEquals(Arrays.asList(3L, 5L, 6L), results.stream().map(BatchTransfer.Result::getItems).collect(Collectors.toList()));
+        assertEquals(6, readBack(new File(directory, "glob-users.csv")).size());
+        assertFalse(new File(directory, "glob-orders-22.csv").exists());
+
+        results = batch().run("sdb-local:///{domain}", "file:///" + directory.getPath() + "/{domain}.csv",
+            Arrays.asList("glob-orders-*", "glob-none-*"));
+        assertEquals(Arrays.asList("glob-orders-1", "glob-orders-22", "glob-orders-3"),
+            results.stream().map(BatchTransfer.Result::getDomain).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void parsesDomainLists() throws Exception {
+        assertEquals(Arrays.asList("a", "b*", "c"), BatchTransfer.parseDomains(" a, b* ,,c"));
+        File list = folder.newFile("domains.txt");
+        Files.write(list.toPath(), Arrays.asList("# orders", "orders-*", "", "  users  ", "#users-old"),
+            StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("orders-*", "users"), BatchTransfer.parseDomains("@" + list.getPath()));
+    }
+
+    @Test
+    public void keepsGoingPastFailedDomain() throws Exception {
+        LocalSimpleDb.inProcess().withGeneratedDomain("iso-a", 3).withGeneratedDomain("iso-c", 4);
+        File directory = folder.newFolder("iso");
+        File summary = new File(directory, "summary.json");
+        List<BatchTransfer.Result> results = batch().withJobs(1).withSummary(summary).run("sdb-local:///{domain}",
+            "file:///" + directory.getPath() + "/{domain}.csv", Arrays.asList("iso-a", "iso-missing", "iso-c"));
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).isSucceeded());
+        assertFalse(results.get(1).isSucceeded());
+        assertTrue(results.get(1).getError().get().contains("iso-missing"));
+        assertTrue(results.get(2).isSucceeded());
+        assertEquals(4, readBack(new File(directory, "iso-c.csv")).size());
+
+        String json = new String(Files.readAllBytes(summary.toPath()), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"domains\": 3,"));
+        assertTrue(json.contains("\"failed\": 1,"));
+        assertTrue(json.contains("\"items\": 7,"));
+        assertTrue(json.contains("{\"domain\": \"iso-missing\", \"source\": \"sdb-local:///iso-missing\""));
+        assertTrue(json.contains("\"succeeded\": false, \"items\": 0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsPlaceholders() throws Exception {
+        batch().run("sdb-local:///orders", "file:///tmp/{domain}.csv", Arrays.asList("orders"));
+    }
+
+    private static BatchTransfer batch() {
+        return new BatchTransfer(domain -> new SimpleDbBackupApplication());
+    }
+
+    private static List<Item> readBack(File file) throws Exception {
+        List<Item> items = new ArrayList<>();
+        try (ItemSourceProvider source = SourceStoreProviderFactory.sourceProviderFor(new URI("file:///" + file.getPath()))) {
+            source.initialize();
+            source.iterateItems(items::add);
+        }
+        return items;
+    }
+}
@@ -0,0 +1,99 @@
+package org.van;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.DeleteAttributesRequest;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import org.junit.Test;
+import org.van.providers.impl.LocalSimpleDb;
+import org.van.providers.impl.SimpleDbStoreProvider;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DomainSyncTest {
+
+    private static final String SOURCE = "sync-source";
+    private static final String DESTINATION = "sync-destination";
+    private static final int ITEMS = 3000;
+
+    @Test
+    public void writesOnlyWhatDiffers() throws Exception {
+        LocalSimpleDb simpleDb = new LocalSimpleDb()
+            .withGeneratedDomain(SOURCE, ITEMS)
+            .withGeneratedDomain(DESTINATION, ITEMS);
+        for (int i = 10; i < 20; i++) {
+            put(simpleDb, name(i), "attribute0", "changed", true);
+        }
+        for (int i = 100; i < 105; i++) {
+            simpleDb.deleteAttributes(new DeleteAttributesRequest(DESTINATION, name(i)));
+        }
+        for (int i = 0; i < 3; i++) {
+            put(simpleDb, "extra" + i, "attribute0", "extra", false);
+        }
+        put(simpleDb, name(200), "excess", "1", false);
+        put(simpleDb, name(201), "excess", "2", false);
+
+        DomainSync.Result result = sync(simpleDb);
+        assertEquals(ITEMS, result.getSourceItems());
+        assertEquals(10 + 5 + 2, result.getItemsPut());
+        assertEquals(3, result.getItemsDeleted());
+        assertEquals(2, result.getAttributesDeleted());
+        assertTrue(result.getRangesSkipped() > 0);
+        assertEquals(items(simpleDb, SOURCE), items(simpleDb, DESTINATION));
+
+        DomainSync.Result again = sync(simpleDb);
+        assertEquals(0, again.getItemsPut());
+        assertEquals(0, again.getItemsDeleted());
+        assertEquals(0, again.getRangesCompared());
+    }
+
+    @Test
+    public void fillsAnEmptyDestination() throws Exception {
+        LocalSimpleDb simpleDb = new LocalSimpleDb().withGeneratedDomain(SOURCE, ITEMS).withGeneratedDomain(DESTINATION, 0);
+        DomainSync.Result result = sync(simpleDb);
+        assertEquals(ITEMS, result.getItemsPut());
+        assertEquals(items(simpleDb, SOURCE), items(simpleDb, DESTINATION));
+    }
+
+    private static DomainSync.Result sync(LocalSimpleDb simpleDb) throws Exception {
+        try (DomainSync sync = new DomainSync(simpleDb, SOURCE, simpleDb, DESTINATION,
+                new SimpleDbStoreProvider(Optional.of(simpleDb), DESTINATION))
+                .withThreads(4).withLeafItems(50)) {
+            return sync.sync();
+        }
+    }
+
+    private static void put(LocalSimpleDb simpleDb, String itemName, String name, String value, boolean replace) {
+        simpleDb.putAttributes(new PutAttributesRequest(DESTINATION, itemName,
+            Collections.singletonList(new ReplaceableAttribute(name, value, replace))));
+    }
+
+    private static Map<String, Set<Attribute>> items(LocalSimpleDb simpleDb, String domain) {
+        Map<String, Set<Attribute>> items = new HashMap<>();
+        String nextToken = null;
+        do {
+            SelectResult result = simpleDb.select(
+                new SelectRequest(String.format("select * from `%s`", domain), true).withNextToken(nextToken));
+            for (Item item : result.getItems()) {
+                items.put(item.getName(), new HashSet<>(item.getAttributes()));
+            }
+            nextToken = result.getNextToken();
+        } while (null != nextToken);
+        return items;
+    }
+
+    private static String name(int i) {
+        return String.format("item%08d", i);
+    }
+}
@@ -0,0 +1,92 @@
+package org.van;
+
+import com.amazonaws.AmazonServiceException;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryUtilityTest {
+
+    @Test
+    public void retriesRetryableErrors() {
+        AtomicInteger calls = new AtomicInteger();
+        String result = RetryUtility.performWithRetry((param, trial) -> {
+            if (calls.incrementAndGet() < 2) {
+                throw error(503, "ServiceUnavailable");
+            }
+            return param;
+        }, "done", 3);
+        assertEquals("done", result);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void rethrowsOtherErrors() {
+        AmazonServiceException rejected = error(400, "InvalidParameterValue");
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            RetryUtility.performWithRetry((param, trial) -> {
+                calls.incrementAndGet();
+                throw rejected;
+            }, null, 3);
+            fail("The error was not rethrown");
+        } catch (AmazonServiceException ex) {
+            assertSame(rejected, ex);
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void retriesAsyncWork() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<Integer> answer = RetryUtility.performWithRetryAsync((param, trial) -> {
+            CompletableFuture<Integer> attempt = new CompletableFuture<>();
+            if (calls.incrementAndGet() < 2) {
+                attempt.completeExceptionally(error(500, "InternalError"));
+            } else {
+                attempt.complete(trial);
+            }
+            return attempt;
+        }, null, 3);
+        assertEquals(Integer.valueOf(2), answer.get());
+    }
+
+    @Test
+    public void stopsAfterMaxRetries() throws Exception {
+        CompletableFuture<Object> answer = RetryUtility.performWithRetryAsync((param, trial) -> {
+            CompletableFuture<Object> attempt = new CompletableFuture<>();
+            attempt.completeExceptionally(error(500, "InternalError"));
+            return attempt;
+        }, null, 0);
+        try {
+            answer.get();
+            fail("The work did not fail");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof RetryUtility.RetryExhaustedException);
+        }
+    }
+
+    @Test
+    public void slowsDownOnceBudgetIsSpent() {
+        for (int i = 0; i < 100; i++) {
+            long delay = RetryUtility.slowDelay();
+            assertTrue(delay >= RetryUtility.MAX_DELAY_MILLIS / 2);
+            assertTrue(delay <= RetryUtility.MAX_DELAY_MILLIS);
+            assertTrue(RetryUtility.delayFor(1) <= RetryUtility.BASE_DELAY_MILLIS);
+        }
+    }
+
+    private static AmazonServiceException error(int status, String code) {
+        AmazonServiceException ex = new AmazonServiceException(code);
+        ex.setStatusCode(status);
+        ex.setErrorCode(code);
+        return ex;
+    }
+}
@@ -0,0 +1,135 @@
+package org.van;
+
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.van.providers.ItemSourceProvider;
+import org.van.providers.impl.LocalSimpleDb;
+import org.van.providers.impl.SourceStoreProviderFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimpleDbBackupApplicationTest {
+
+    private static final String DOMAIN = "app-test";
+    private static final int ITEMS = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void resumesInterruptedExport() throws Exception {
+        InterruptedSimpleDb simpleDb = new InterruptedSimpleDb(4);
+        simpleDb.withGeneratedDomain(DOMAIN, ITEMS);
+        File checkpoint = new File(folder.getRoot(), "export.checkpoint");
+        File csv = new File(folder.getRoot(), "export.csv");
+        URI source = new URI("sdb:///" + DOMAIN);
+        URI destination = new URI("file:///" + csv.getPath());
+        try {
+            resumable(simpleDb, checkpoint).run(source, destination);
+            fail("The interruption was not reported");
+        } catch (RuntimeException ex) {
+            assertTrue(checkpoint.exists());
+        }
+        Checkpoint saved = Checkpoint.load(checkpoint).get();
+        long items = saved.getItems();
+        assertTrue((items > 0) && (items < ITEMS));
+        assertEquals(csv.length(), Long.parseLong(saved.getDestinationPosition().get()));
+        // Rows written after the last checkpoint, the last one cut short by the interruption
+        try (FileOutputStream out = new FileOutputStream(csv, true)) {
+            out.write("item00000001,attribute0,again\r\nitem00000002,attr".getBytes(StandardCharsets.UTF_8));
+        }
+
+        simpleDb.interruptAfter = -1;
+        assertEquals(ITEMS - items, resumable(simpleDb, checkpoint).run(source, destination));
+        assertFalse(checkpoint.exists());
+
+        // Every item once, in order: what was written after the checkpoint was cut off
+        List<Item> read = new ArrayList<>();
+        try (ItemSourceProvider csvSource = SourceStoreProviderFactory.sourceProviderFor(destination)) {
+            csvSource.initialize();
+            csvSource.iterateItems(read::add);
+        }
+        assertEquals(ITEMS, read.size());
+        for (int i = 0; i < ITEMS; i++) {
+            assertEquals(String.format("item%08d", i), read.get(i).getName());
+            assertEquals(5, read.get(i).getAttributes().size());
+        }
+    }
+
+    @Test
+    public void resumesIncrementalBackupWithFirstMark() throws Exception {
+        InterruptedSimpleDb simpleDb = new InterruptedSimpleDb(3);
+        simpleDb.withGeneratedDomain(DOMAIN, ITEMS);
+        File checkpoint = new File(folder.getRoot(), "backup.checkpoint");
+        File manifest = new File(folder.getRoot(), "backup" + BackupManifest.EXTENSION);
+        URI source = new URI("sdb:///" + DOMAIN);
+        URI destination = new URI("file:///" + manifest.getPath());
+        try {
+            incremental(simpleDb, checkpoint).run(source, destination);
+            fail("The interruption was not reported");
+        } catch (RuntimeException ex) {
+            assertTrue(checkpoint.exists());
+        }
+
+        // One item changed behind the cursor, then one ahead of it, before the backup is resumed
+        put(simpleDb, 1, "0000000600");
+        put(simpleDb, ITEMS - 1, "0000000601");
+        simpleDb.interruptAfter = -1;
+        incremental(simpleDb, checkpoint).run(source, destination);
+
+        // The mark taken when the backup first started, so the next one picks up the first item
+        assertEquals(Optional.of(String.format("%010d", ITEMS - 1)),
+            BackupManifest.load(manifest).get().getHighWaterMark());
+    }
+
+    private static SimpleDbBackupApplication resumable(LocalSimpleDb simpleDb, File checkpoint) {
+        return new SimpleDbBackupApplication()
+            .withSimpleDbClient(simpleDb)
+            .withCheckpoints(checkpoint, 0, true);
+    }
+
+    private static SimpleDbBackupApplication incremental(LocalSimpleDb simpleDb, File checkpoint) {
+        return resumable(simpleDb, checkpoint).withIncremental("updated");
+    }
+
+    private static void put(LocalSimpleDb simpleDb, int item, String updated) {
+        simpleDb.putAttributes(new PutAttributesRequest(DOMAIN, String.format("item%08d", item),
+            Collections.singletonList(new ReplaceableAttribute("updated", updated, true))));
+    }
+
+    // Fails every select once a number of them have been made
+    private static final class InterruptedSimpleDb extends LocalSimpleDb {
+        volatile int interruptAfter;
+        private int selects = 0;
+
+        InterruptedSimpleDb(int interruptAfter) {
+            this.interruptAfter = interruptAfter;
+        }
+
+        @Override
+        public synchronized SelectResult select(SelectRequest request) {
+            if ((interruptAfter >= 0) && (++selects > interruptAfter)) {
+                throw new IllegalStateException("interrupted");
+            }
+            return super.select(request);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.van;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.junit.Test;
+import org.van.providers.ItemSourceProvider;
+import org.van.providers.ItemStoreProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransferPipelineTest {
+
+    private static final int ITEMS = 10000;
+
+    @Test
+    public void transfersItemsInOrder() throws Exception {
+        List<Item> stored = new ArrayList<>();
+        ListStore store = new ListStore(stored, -1);
+        long count = new TransferPipeline(16).transfer(new GeneratedSource(ITEMS), store);
+        assertEquals(ITEMS, count);
+        assertEquals(ITEMS, stored.size());
+        assertTrue(store.completed);
+        for (int i = 0; i < ITEMS; i++) {
+            assertEquals(name(i), stored.get(i).getName());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void reportsStoreFailureWithFullQueue() throws Exception {
+        ListStore store = new ListStore(new ArrayList<>(), 10);
+        try {
+            new TransferPipeline(1).transfer(new GeneratedSource(ITEMS), store);
+            fail("The store failure was not reported");
+        } catch (IllegalStateException ex) {
+            assertEquals("store failed", ex.getMessage());
+        }
+        assertFalse(store.completed);
+    }
+
+    @Test(timeout = 10000)
+    public void reportsSourceFailure() throws Exception {
+        ItemSourceProvider failing = new ItemSourceProvider() {
+            @Override
+            public void iterateItems(Consumer<Item> consumer) {
+                consumer.accept(item(0));
+                throw new IllegalStateException("source failed");
+            }
+        };
+        ListStore store = new ListStore(new ArrayList<>(), -1);
+        try {
+            new TransferPipeline(1).transfer(failing, store);
+            fail("The source failure was not reported");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertFalse(store.completed);
+    }
+
+    @Test
+    public void releasesMemoryBudget() throws Exception {
+        MemoryBudget budget = new MemoryBudget(MemoryBudget.sizeOf(item(0)) * 4);
+        List<Item> stored = new ArrayList<>();
+        new TransferPipeline(1000).withMemoryBudget(budget).transfer(new GeneratedSource(ITEMS), new ListStore(stored, -1));
+        assertEquals(ITEMS, stored.size());
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test(timeout = 30000)
+    public void countsItemsHeldByStoreInBudget() throws Exception {
+        // Smaller than a batch of the store, so only flushing the store lets the transfer go on
+        MemoryBudget budget = new MemoryBudget(MemoryBudget.sizeOf(item(0)) * 10);
+        BatchingStore store = new BatchingStore(50);
+        long count = new TransferPipeline(1000).withMemoryBudget(budget).transfer(new GeneratedSource(200), store);
+        assertEquals(200, count);
+        assertEquals(200, store.stored.size());
+        assertTrue(store.maxHeld <= 10);
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void takesOverBudgetOfSource() throws Exception {
+        MemoryBudget budget = new MemoryBudget(MemoryBudget.sizeOf(item(0)) * 4);
+        List<Item> stored = new ArrayList<>();
+        new TransferPipeline(1000).withMemoryBudget(budget).transfer(new HoldingSource(ITEMS), new ListStore(stored, -1));
+        assertEquals(ITEMS, stored.size());
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test(timeout = 10000)
+    public void releasesBudgetOfFailedTransfer() throws Exception {
+        MemoryBudget budget = new MemoryBudget(MemoryBudget.sizeOf(item(0)) * 100);
+        try {
+            new TransferPipeline(1000).withMemoryBudget(budget).transfer(new HoldingSource(ITEMS),
+                new ListStore(new ArrayList<>(), 10));
+            fail("The store failure was not reported");
+        } catch (IllegalStateException ex) {
+            assertEquals("store failed", ex.getMessage());
+        }
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    static String name(int i) {
+        return String.format("item%08d", i);
+    }
+
+    static Item item(int i) {
+        return new Item(name(i), Collections.singletonList(new Attribute("a", String.valueOf(i))));
+    }
+
+    private static final class GeneratedSource extends ItemSourceProvider {
+
+        private final int items;
+
+        GeneratedSource(int items) {
+            this.items = items;
+        }
+
+        @Override
+        public void iterateItems(Consumer<Item> consumer) {
+            for (int i = 0; i < items; i++) {
+                consumer.accept(item(i));
+            }
+        }
+    }
+
+    /**
+     * Takes every item from the memory budget before passing it on, as sources reading ahead do.
+     */
+    private static final class HoldingSource extends ItemSourceProvider {
+
+        private final int items;
+        private MemoryBudget budget = null;
+
+        HoldingSource(int items) {
+            this.items = items;
+        }
+
+        @Override
+        public boolean holdItemsIn(MemoryBudget budget) {
+            this.budget = budget;
+            return true;
+        }
+
+        @Override
+        public void iterateItems(Consumer<Item> consumer) {
+            for (int i = 0; i < items; i++) {
+                Item item = item(i);
+                try {
+                    budget.acquire(MemoryBudget.sizeOf(item));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ex);
+                }
+                consumer.accept(item);
+            }
+        }
+    }
+
+    /**
+     * Holds the items stored until a batch is full or the store is flushed.
+     */
+    private static final class BatchingStore extends ItemStoreProvider {
+
+        private final int batchSize;
+        private final List<Item> stored = new ArrayList<>();
+        private final List<Runnable> held = new ArrayList<>();
+        private int maxHeld = 0;
+
+        BatchingStore(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public void storeItem(Item item) {
+            storeItem(item, () -> {});
+        }
+
+        @Override
+        public void storeItem(Item item, Runnable release) {
+            stored.add(item);
+            held.add(release);
+            maxHeld = Math.max(maxHeld, held.size());
+            if (held.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() {
+            held.forEach(Runnable::run);
+            held.clear();
+        }
+    }
+
+    private static final class ListStore extends ItemStoreProvider {
+
+        private final List<Item> stored;
+        private final int failAt;
+        private boolean completed = false;
+
+        ListStore(List<Item> stored, int failAt) {
+            this.stored = stored;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public void storeItem(Item item) {
+            if (stored.size() == failAt) {
+                throw new IllegalStateException("store failed");
+            }
+            stored.add(item);
+        }
+
+        @Override
+        public void complete() {
+            completed = true;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryFormatTest {
+
+    // Enough to fill several blocks
+    private static final int ITEMS = 5000;
+
+    @Test
+    public void readsBackWhatWasWritten() throws Exception {
+        List<Item> items = items(ITEMS);
+        List<Item> read = read(write(items, true));
+        assertEquals(items, read);
+    }
+
+    @Test
+    public void keepsNullAndUnicodeValues() throws Exception {
+        List<Item> items = Arrays.asList(
+            new Item("été 😀", Arrays.asList(new Attribute("a", null), new Attribute("b", ""))),
+            new Item("x", Arrays.asList(new Attribute("b", "中文"), new Attribute("c", "line\nbreak"))));
+        assertEquals(items, read(write(items, true)));
+    }
+
+    @Test
+    public void failsOnIncompleteExport() throws Exception {
+        // Closed without being completed, as a failed transfer leaves it
+        byte[] bytes = write(items(ITEMS), false);
+        assertFailsWith(bytes, EOFException.class, "truncated");
+    }
+
+    @Test
+    public void failsOnTruncatedFile() throws Exception {
+        byte[] bytes = write(items(ITEMS), true);
+        assertFailsWith(Arrays.copyOf(bytes, bytes.length - 1), EOFException.class, "truncated");
+        assertFailsWith(Arrays.copyOf(bytes, bytes.length / 2), EOFException.class, null);
+    }
+
+    @Test
+    public void failsOnCorruptBlock() throws Exception {
+        byte[] bytes = write(items(ITEMS), true);
+        bytes[bytes.length / 2] ^= 0x01;
+        assertFailsWith(bytes, IOException.class, "checksum");
+    }
+
+    private static List<Item> items(int count) {
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(new Item(String.format("item%08d", i), Arrays.asList(
+                new Attribute("name", "value" + i), new Attribute("attribute" + (i % 7), String.valueOf(i * 31)))));
+        }
+        return items;
+    }
+
+    private static byte[] write(List<Item> items, boolean complete) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BinaryStoreProvider store = new BinaryStoreProvider(out)) {
+            store.initialize();
+            items.forEach(store::storeItem);
+            if (complete) {
+                store.flush();
+                store.complete();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static List<Item> read(byte[] bytes) throws IOException {
+        List<Item> items = new ArrayList<>();
+        try (BinarySourceProvider source = new BinarySourceProvider(new ByteArrayInputStream(bytes))) {
+            source.initialize().iterateItems(items::add);
+        }
+        return items;
+    }
+
+    private static void assertFailsWith(byte[] bytes, Class<? extends IOException> type, String message) throws IOException {
+        try {
+            read(bytes);
+            fail("The damaged file was read");
+        } catch (RuntimeException ex) {
+            assertTrue(String.valueOf(ex.getCause()), type.isInstance(ex.getCause()));
+            if (null != message) {
+                assertTrue(ex.getCause().getMessage(), ex.getCause().getMessage().contains(message));
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.van.providers.impl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompressionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void choosesByExtension() {
+        assertEquals(Compression.GZIP, Compression.forFile("backup.csv.gz"));
+        assertEquals(Compression.DEFLATE, Compression.forFile("backup.csv.deflate"));
+        assertEquals(Compression.NONE, Compression.forFile("backup.csv"));
+        assertEquals(Compression.NONE, Compression.forFile("backup.gz.csv"));
+    }
+
+    @Test
+    public void writesGzipMembersReadBackAsOne() throws IOException {
+        // Spans several blocks, the last one partly filled
+        byte[] content = content(0, 2 * ParallelGzipOutputStream.BLOCK_SIZE + 1000);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = Compression.GZIP.compress(compressed)) {
+            out.write(content, 0, 100);
+            for (int i = 100; i < 200; i++) {
+                out.write(content[i]);
+            }
+            out.write(content, 200, content.length - 200);
+        }
+        assertArrayEquals(content, gunzip(compressed.toByteArray()));
+        assertArrayEquals(content,
+            readAll(Compression.GZIP.decompress(new ByteArrayInputStream(compressed.toByteArray()))));
+    }
+
+    @Test
+    public void appendsToGzipCutBackAtFlush() throws IOException {
+        byte[] first = content(0, ParallelGzipOutputStream.BLOCK_SIZE + 5000);
+        byte[] lost = content(1, 3000);
+        byte[] second = content(2, 7000);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = Compression.GZIP.compress(compressed);
+        out.write(first);
+        out.flush();
+        int flushedLength = compressed.size();
+        assertArrayEquals("complete after a flush", first, gunzip(compressed.toByteArray()));
+        // Written after the flush and then interrupted
+        out.write(lost);
+        out.close();
+        assertTrue(compressed.size() > flushedLength);
+
+        ByteArrayOutputStream resumed = new ByteArrayOutputStream();
+        resumed.write(compressed.toByteArray(), 0, flushedLength);
+        try (OutputStream appended = Compression.GZIP.compress(resumed)) {
+            appended.write(second);
+        }
+        byte[] expected = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+        assertArrayEquals(expected, gunzip(resumed.toByteArray()));
+    }
+
+    @Test
+    public void roundTripsDeflate() throws IOException {
+        byte[] content = content(3, 100000);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = Compression.DEFLATE.compress(compressed)) {
+            out.write(content);
+        }
+        assertTrue(compressed.size() < content.length);
+        assertArrayEquals(content,
+            readAll(Compression.DEFLATE.decompress(new ByteArrayInputStream(compressed.toByteArray()))));
+    }
+
+    @Test
+    public void refusesToResumeDeflate() throws Exception {
+        assertTrue(Compression.NONE.isAppendable());
+        assertTrue(Compression.GZIP.isAppendable());
+        assertFalse(Compression.DEFLATE.isAppendable());
+
+        File file = folder.newFile("backup.csv.deflate");
+        try {
+            SourceStoreProviderFactory.storeProviderFor(new URI("file:///" + file.getPath()), Optional.of("0"));
+            fail("Resuming a deflate file was not refused");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().startsWith("Cannot resume writing"));
+        }
+    }
+
+    // Text that compresses, different for each seed
+    private static byte[] content(int seed, int length) {
+        StringBuilder text = new StringBuilder(length + 32);
+        for (int i = 0; text.length() < length; i++) {
+            text.append("item").append(seed).append('-').append(i).append(",value ").append(i % 97).append("\r\n");
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), length);
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        return readAll(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = stream.read(buffer)) > 0) {
+                content.write(buffer, 0, n);
+            }
+        }
+        return content.toByteArray();
+    }
+}
@@ -0,0 +1,120 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.junit.Test;
+import org.supercsv.io.CsvListReader;
+import org.supercsv.io.CsvListWriter;
+import org.supercsv.prefs.CsvPreference;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CsvItemParserTest {
+
+    // Small enough for fields, quotes and line ends to straddle the reads
+    private static final int[] CHUNK_SIZES = {1, 2, 7, 64, CsvItemParser.CHUNK_SIZE};
+
+    @Test
+    public void parsesLikeSuperCsv() throws Exception {
+        String csv = "itemName,attributeName,attributeValue\n"
+            + "a,x,1\n"
+            + "a,x,1\n"
+            + "a,y,\"quoted, with \"\"quotes\"\"\"\n"
+            + "\n"
+            + "b,x,\"two\nlines\"\r\n"
+            + "b,y,\"carriage\r\nreturn\"\r"
+            + "\r\n"
+            + "b,z,\"lone\rreturn\"\n"
+            + "\"c\",x,\"\"\n"
+            + "c,y,\n"
+            + "c,z,half\"quoted\"value\n"
+            + "\"d\"\"\",x,été 漢字 😀\n"
+            + "e,\"\",1\n"
+            + "e,,1";
+        assertSameItems(csv.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void parsesWhatTheStoreWrites() throws Exception {
+        Random random = new Random(42);
+        String[] pieces = {"a", "b", ",", "\"", "\n", "\r\n", "\r", " ", "é", "😀", ""};
+        StringWriter out = new StringWriter();
+        try (CsvListWriter writer = new CsvListWriter(out, CsvPreference.EXCEL_PREFERENCE)) {
+            writer.write("itemName", "attributeName", "attributeValue");
+            for (int item = 0; item < 200; item++) {
+                int rows = 1 + random.nextInt(4);
+                for (int row = 0; row < rows; row++) {
+                    StringBuilder value = new StringBuilder();
+                    for (int i = random.nextInt(6); i > 0; i--) {
+                        value.append(pieces[random.nextInt(pieces.length)]);
+                    }
+                    writer.write("item" + item, "attr" + random.nextInt(3), value.toString());
+                }
+            }
+        }
+        assertSameItems(out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void turnsEmptyFieldsIntoNull() throws Exception {
+        byte[] csv = "h,h,h\na,\"\",\nb,,\"\"\n".getBytes(StandardCharsets.UTF_8);
+        List<Item> items = parse(csv, CsvItemParser.CHUNK_SIZE);
+        assertEquals(2, items.size());
+        for (Item item : items) {
+            assertNull(item.getAttributes().get(0).getName());
+            assertNull(item.getAttributes().get(0).getValue());
+        }
+    }
+
+    private static void assertSameItems(byte[] csv) throws IOException {
+        List<Item> expected = parseWithSuperCsv(csv);
+        for (int chunkSize : CHUNK_SIZES) {
+            assertEquals("chunk size " + chunkSize, expected, parse(csv, chunkSize));
+        }
+    }
+
+    private static List<Item> parse(byte[] csv, int chunkSize) throws IOException {
+        CsvItemParser parser = new CsvItemParser(Channels.newChannel(new ByteArrayInputStream(csv)), 0, chunkSize);
+        parser.skipRow();
+        List<Item> items = new ArrayList<>();
+        parser.parseItems(items::add, offset -> {});
+        return items;
+    }
+
+    /**
+     * Group the rows super-csv reads into items, as the CSV source did before the parser.
+     */
+    private static List<Item> parseWithSuperCsv(byte[] csv) throws IOException {
+        List<Item> items = new ArrayList<>();
+        try (CsvListReader reader = new CsvListReader(
+                new InputStreamReader(new ByteArrayInputStream(csv), StandardCharsets.UTF_8), CsvPreference.EXCEL_PREFERENCE)) {
+            reader.read();
+            Item item = null;
+            List<String> last = null;
+            List<String> row;
+            while (null != (row = reader.read())) {
+                if ((null == item) || !Objects.equals(item.getName(), row.get(0))) {
+                    item = new Item().withName(row.get(0));
+                    items.add(item);
+                } else if (row.subList(1, 3).equals(last)) {
+                    continue;
+                }
+                item.getAttributes().add(new Attribute(row.get(1), row.get(2)));
+                last = row.subList(1, 3);
+            }
+        }
+        return items;
+    }
+}
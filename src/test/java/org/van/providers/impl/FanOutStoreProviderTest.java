@@ -0,0 +1,124 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.junit.Test;
+import org.van.MemoryBudget;
+import org.van.TransferPipeline;
+import org.van.providers.ItemSourceProvider;
+import org.van.providers.ItemStoreProvider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FanOutStoreProviderTest {
+
+    private static final int ITEMS = 5000;
+
+    @Test(timeout = 30000)
+    public void writesEveryStoreWithinBudget() throws Exception {
+        MemoryBudget budget = new MemoryBudget(MemoryBudget.sizeOf(item(0)) * 20);
+        ListStore first = new ListStore(-1);
+        ListStore second = new ListStore(-1);
+        try (FanOutStoreProvider store = new FanOutStoreProvider(Arrays.asList(first, second)).withQueueCapacity(100)) {
+            store.initialize();
+            assertEquals(ITEMS, new TransferPipeline(100).withMemoryBudget(budget).transfer(new ItemsSource(), store));
+        }
+        assertEquals(ITEMS, first.items.size());
+        assertEquals(ITEMS, second.items.size());
+        assertTrue(first.completed && second.completed);
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test(timeout = 30000)
+    public void keepsWritingPastFailedStore() throws Exception {
+        MemoryBudget budget = new MemoryBudget(MemoryBudget.sizeOf(item(0)) * 20);
+        ListStore working = new ListStore(-1);
+        ListStore failing = new ListStore(100);
+        FanOutStoreProvider store = new FanOutStoreProvider(Arrays.asList(working, failing)).withQueueCapacity(10);
+        try {
+            store.initialize();
+            try {
+                new TransferPipeline(10).withMemoryBudget(budget).transfer(new ItemsSource(), store);
+                fail("The store failure was not reported");
+            } catch (RuntimeException ex) {
+                assertEquals("store failed", rootCause(ex).getMessage());
+            }
+            assertEquals(0, budget.getUsedBytes());
+
+            // The working store is neither stopped at the failure nor left behind
+            try {
+                store.complete();
+                fail("The store failure was not reported");
+            } catch (IOException ex) {
+                assertEquals("store failed", rootCause(ex).getMessage());
+            }
+            assertTrue(working.completed);
+            assertFalse(failing.completed);
+            assertEquals(100, failing.items.size());
+            assertTrue(working.items.size() > 100);
+            for (int i = 0; i < working.items.size(); i++) {
+                assertEquals(item(i), working.items.get(i));
+            }
+        } finally {
+            try {
+                store.close();
+            } catch (IOException ex) {
+                // The failure again
+            }
+        }
+    }
+
+    private static Throwable rootCause(Throwable t) {
+        while (null != t.getCause()) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    private static Item item(int i) {
+        return new Item(String.format("item%08d", i), Collections.singletonList(new Attribute("a", String.valueOf(i))));
+    }
+
+    private static final class ItemsSource extends ItemSourceProvider {
+        @Override
+        public void iterateItems(Consumer<Item> consumer) {
+            for (int i = 0; i < ITEMS; i++) {
+                consumer.accept(item(i));
+            }
+        }
+    }
+
+    // Keeps the items stored, failing once it has stored failAt of them
+    private static final class ListStore extends ItemStoreProvider {
+        final List<Item> items = new ArrayList<>();
+        private final int failAt;
+        volatile boolean completed = false;
+
+        ListStore(int failAt) {
+            this.failAt = failAt;
+        }
+
+        @Override
+        public void storeItem(Item item) {
+            if (items.size() == failAt) {
+                throw new IllegalStateException("store failed");
+            }
+            items.add(item);
+        }
+
+        @Override
+        public void complete() {
+            completed = true;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ItemNameIndexTest {
+
+    private static final int ITEMS = 1000;
+    private static final int INTERVAL = 50;
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("index-test").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void findsRegionsOfBlocks() {
+        ItemNameIndex index = new ItemNameIndex(Arrays.asList(
+            block(100, "a", "c"),
+            block(200, "d", "f"),
+            block(300, "g", "i"),
+            block(400, "j", "l")), 500);
+        assertRegions(index.regionsFor(ItemNameFilter.parse("e")), 200, 300);
+        assertRegions(index.regionsFor(ItemNameFilter.parse("c,d")), 100, 300);
+        assertRegions(index.regionsFor(ItemNameFilter.parse("b,k")), 100, 200, 400, 500);
+        assertRegions(index.regionsFor(ItemNameFilter.parse("i*")), 300, 400);
+        assertRegions(index.regionsFor(ItemNameFilter.parse("m,0")));
+    }
+
+    @Test
+    public void alwaysReadsUnindexedBlocks() {
+        ItemNameIndex index = new ItemNameIndex(Arrays.asList(
+            new ItemNameIndex.Block(0, 0, Optional.empty(), Optional.empty()),
+            block(100, "a", "c"),
+            block(200, "d", "f")), 300);
+        assertRegions(index.regionsFor(ItemNameFilter.parse("e")), 0, 100, 200, 300);
+        assertRegions(index.regionsFor(ItemNameFilter.parse("z")), 0, 100);
+    }
+
+    @Test
+    public void savesAndLoads() throws Exception {
+        ItemNameIndex index = new ItemNameIndex(Arrays.asList(
+            new ItemNameIndex.Block(0, 0, Optional.empty(), Optional.empty()),
+            block(100, "a", "été")), 300);
+        File file = new File(directory, "index" + ItemNameIndex.EXTENSION);
+        index.save(file);
+        ItemNameIndex loaded = ItemNameIndex.load(file).get();
+        assertEquals(300, loaded.getDataLength());
+        assertEquals(2, loaded.getBlocks().size());
+        assertFalse(loaded.getBlocks().get(0).getFirstName().isPresent());
+        ItemNameIndex.Block block = loaded.getBlocks().get(1);
+        assertEquals(100, block.getOffset());
+        assertEquals(1, block.getItems());
+        assertEquals(Optional.of("a"), block.getFirstName());
+        assertEquals(Optional.of("été"), block.getLastName());
+        assertFalse(ItemNameIndex.load(new File(directory, "missing")).isPresent());
+    }
+
+    @Test
+    public void readsOnlyTheBlocksAskedFor() throws Exception {
+        File csv = writeCsv();
+        ItemNameIndex index = ItemNameIndex.load(ItemNameIndex.fileFor(csv)).get();
+        assertTrue(index.matches(csv));
+        assertEquals(ITEMS / INTERVAL, index.getBlocks().size());
+
+        ItemNameFilter filter = ItemNameFilter.parse("item00000123,item0000050*");
+        long read = index.regionsFor(filter).stream().mapToLong(region -> region[1] - region[0]).sum();
+        // Two blocks out of twenty
+        assertTrue(read < csv.length() / 5);
+        List<String> expected = new ArrayList<>(Collections.singletonList(name(123)));
+        for (int i = 500; i < 510; i++) {
+            expected.add(name(i));
+        }
+        assertEquals(expected, names(csv, filter));
+    }
+
+    @Test
+    public void readsTheWholeFileWhenStale() throws Exception {
+        File csv = writeCsv();
+        try (FileOutputStream out = new FileOutputStream(csv, true)) {
+            out.write("item99999999,a,late\r\n".getBytes("UTF-8"));
+        }
+        assertFalse(ItemNameIndex.load(ItemNameIndex.fileFor(csv)).get().matches(csv));
+        assertEquals(Arrays.asList(name(7), "item99999999"), names(csv, ItemNameFilter.parse("item00000007,item9*")));
+    }
+
+    @Test
+    public void keepsBlocksWrittenBeforeResume() throws Exception {
+        File csv = new File(directory, "items.csv");
+        File indexFile = ItemNameIndex.fileFor(csv);
+        long position;
+        try (CsvStoreProvider store = new CsvStoreProvider(new FileOutputStream(csv)).withIndex(indexFile, INTERVAL)) {
+            store.initialize();
+            for (int i = 0; i < ITEMS / 2; i++) {
+                store.storeItem(item(i));
+            }
+            store.flush();
+            position = Long.parseLong(store.getPosition().get());
+            // Written after the checkpoint, and cut off when resumed
+            for (int i = ITEMS / 2; i < ITEMS / 2 + 20; i++) {
+                store.storeItem(item(i));
+            }
+            store.flush();
+        }
+        assertFalse("interrupted before complete", indexFile.exists());
+
+        try (RandomAccessFile raf = new RandomAccessFile(csv, "rw")) {
+            raf.setLength(position);
+        }
+        try (CsvStoreProvider store = new CsvStoreProvider(new FileOutputStream(csv, true))
+                .withResumedLength(position).withIndex(indexFile, INTERVAL)) {
+            store.initialize();
+            for (int i = ITEMS / 2; i < ITEMS; i++) {
+                store.storeItem(item(i));
+            }
+            store.flush();
+            store.complete();
+        }
+
+        ItemNameIndex index = ItemNameIndex.load(indexFile).get();
+        assertTrue(index.matches(csv));
+        assertEquals(ITEMS / INTERVAL, index.getBlocks().size());
+        for (ItemNameIndex.Block block : index.getBlocks()) {
+            assertEquals(INTERVAL, block.getItems());
+        }
+        ItemNameFilter filter = ItemNameFilter.parse("item00000123,item00000777");
+        long read = index.regionsFor(filter).stream().mapToLong(region -> region[1] - region[0]).sum();
+        assertTrue(read < csv.length() / 5);
+        assertEquals(Arrays.asList(name(123), name(777)), names(csv, filter));
+    }
+
+    private File writeCsv() throws IOException {
+        File csv = new File(directory, "items.csv");
+        try (CsvStoreProvider store = new CsvStoreProvider(new FileOutputStream(csv))
+                .withIndex(ItemNameIndex.fileFor(csv), INTERVAL)) {
+            store.initialize();
+            for (int i = 0; i < ITEMS; i++) {
+                store.storeItem(item(i));
+            }
+            store.flush();
+            store.complete();
+        }
+        return csv;
+    }
+
+    private static List<String> names(File csv, ItemNameFilter filter) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (IndexedCsvSourceProvider source = new IndexedCsvSourceProvider(csv, filter)) {
+            source.initialize();
+            source.iterateItems(item -> names.add(item.getName()));
+        }
+        return names;
+    }
+
+    private static ItemNameIndex.Block block(long offset, String first, String last) {
+        return new ItemNameIndex.Block(offset, 1, Optional.of(first), Optional.of(last));
+    }
+
+    private static void assertRegions(List<long[]> regions, long... bounds) {
+        long[] flat = new long[2 * regions.size()];
+        for (int i = 0; i < regions.size(); i++) {
+            flat[2 * i] = regions.get(i)[0];
+            flat[2 * i + 1] = regions.get(i)[1];
+        }
+        assertArrayEquals(bounds, flat);
+    }
+
+    private static Item item(int i) {
+        return new Item(name(i), Arrays.asList(new Attribute("a", "x" + i), new Attribute("b", "y")));
+    }
+
+    private static String name(int i) {
+        return String.format("item%08d", i);
+    }
+}
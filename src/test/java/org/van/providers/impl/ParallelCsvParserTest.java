@@ -0,0 +1,97 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Item;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.supercsv.io.CsvListWriter;
+import org.supercsv.prefs.CsvPreference;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelCsvParserTest {
+
+    private static File csv;
+    private static List<Item> expected;
+
+    /**
+     * Write a CSV of several chunks, with values full of quotes and line ends so that chunks
+     * split inside quotes, and an item larger than a chunk so that some chunks start no item.
+     */
+    @BeforeClass
+    public static void writeCsv() throws IOException {
+        csv = File.createTempFile("parallel-", ".csv");
+        Random random = new Random(7);
+        String[] pieces = {"x", "\"", "\n", "\"\n\"", ",", "\r\n", "é"};
+        try (CsvListWriter writer = new CsvListWriter(
+                new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8), CsvPreference.EXCEL_PREFERENCE)) {
+            writer.write("itemName", "attributeName", "attributeValue");
+            for (int item = 0; item < 20000; item++) {
+                int rows = (5000 == item) ? 60000 : 1 + random.nextInt(5);
+                for (int row = 0; row < rows; row++) {
+                    StringBuilder value = new StringBuilder();
+                    for (int i = random.nextInt(40); i > 0; i--) {
+                        value.append(pieces[random.nextInt(pieces.length)]);
+                    }
+                    writer.write("item" + item, "attr" + row, value.toString());
+                }
+            }
+        }
+        assertTrue(csv.length() > 4L * ParallelCsvParser.CHUNK_SIZE);
+        expected = new ArrayList<>();
+        try (FileInputStream in = new FileInputStream(csv)) {
+            CsvItemParser parser = new CsvItemParser(in.getChannel(), 0);
+            parser.skipRow();
+            parser.parseItems(expected::add, offset -> {});
+        }
+    }
+
+    @AfterClass
+    public static void deleteCsv() {
+        csv.delete();
+    }
+
+    @Test
+    public void parsesLikeOneThread() throws Exception {
+        for (int parallelism : new int[]{1, 4}) {
+            List<Item> items = new ArrayList<>();
+            List<Long> boundaries = new ArrayList<>();
+            try (FileInputStream in = new FileInputStream(csv)) {
+                new ParallelCsvParser(in.getChannel(), parallelism).parseItems(0, items::add, boundaries::add);
+            }
+            assertEquals(expected, items);
+            assertTrue(boundaries.size() > 1);
+        }
+    }
+
+    @Test
+    public void resumesFromEveryBoundary() throws Exception {
+        List<Long> boundaries = new ArrayList<>();
+        List<Integer> itemsBefore = new ArrayList<>();
+        try (FileInputStream in = new FileInputStream(csv)) {
+            int[] count = {0};
+            new ParallelCsvParser(in.getChannel(), 4).parseItems(0, item -> count[0]++, offset -> {
+                boundaries.add(offset);
+                itemsBefore.add(count[0]);
+            });
+        }
+        for (int i = 0; i < boundaries.size(); i++) {
+            List<Item> items = new ArrayList<>();
+            try (FileInputStream in = new FileInputStream(csv)) {
+                new ParallelCsvParser(in.getChannel(), 4).parseItems(boundaries.get(i), items::add, offset -> {});
+            }
+            assertEquals(expected.subList(itemsBefore.get(i), expected.size()), items);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+import org.junit.Test;
+import org.van.providers.ItemSourceProvider;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SelectExpressionTest {
+
+    @Test
+    public void quotesValuesAndNames() {
+        assertEquals("'it''s'", SelectExpression.quote("it's"));
+        assertEquals("''''''", SelectExpression.quote("''"));
+        assertEquals("`a``b`", SelectExpression.quoteName("a`b"));
+        assertEquals("`it's`", SelectExpression.quoteName("it's"));
+        assertEquals("select * from `my``domain`", new SelectExpression("my`domain").toQuery());
+    }
+
+    @Test
+    public void wrapsWhereInParentheses() {
+        SelectExpression expression = new SelectExpression("d", Optional.of("a = '1' or b = '2'"));
+        assertEquals("select * from `d` where (a = '1' or b = '2') and c is not null",
+            expression.and("c is not null").toQuery());
+        assertEquals("select * from `d` where c is not null", new SelectExpression("d").and("c is not null").toQuery());
+        assertEquals("select * from `d` where ((a = '1' or b = '2') and c = '3') and d = '4'",
+            expression.and("c = '3'").and("d = '4'").toQuery());
+    }
+
+    @Test
+    public void narrowsToRange() {
+        SelectExpression expression = new SelectExpression("d", Optional.of("a = '1'"))
+            .withAttributes(Arrays.asList("a", "b"));
+        assertEquals("select `a`, `b` from `d` where (a = '1') and itemName() >= 'k''1' and itemName() < 'm'",
+            expression.withinRange(new ItemNameRange(Optional.of("k'1"), Optional.of("m"))).toQuery());
+        assertEquals("select `a`, `b` from `d` where (a = '1') and itemName() < 'm'",
+            expression.withinRange(new ItemNameRange(Optional.empty(), Optional.of("m"))).toQuery());
+        assertEquals(expression.toQuery(), expression.withinRange(ItemNameRange.all()).toQuery());
+    }
+
+    @Test
+    public void countsWhatItSelects() {
+        SelectExpression expression = new SelectExpression("d", Optional.of("a = '1'"))
+            .withAttributes(Arrays.asList("a"));
+        assertEquals("select count(*) from `d` where (a = '1') and itemName() >= 'k'",
+            expression.withinRange(new ItemNameRange(Optional.of("k"), Optional.empty())).toCountQuery());
+        assertEquals("select count(*) from `d`", new SelectExpression("d").toCountQuery());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsAttributesToSelect() {
+        new SelectExpression("d").withAttributes(new ArrayList<>());
+    }
+
+    @Test
+    public void takesSelectFromUri() throws Exception {
+        RecordingSimpleDb simpleDb = new RecordingSimpleDb();
+        read(simpleDb, "sdb:///orders?attrs=total,%20status,&where=%60status%60%20%3D%20'open'&consistent=false");
+        assertEquals(1, simpleDb.requests.size());
+        SelectRequest request = simpleDb.requests.get(0);
+        assertEquals("select `total`, `status` from `orders` where `status` = 'open'", request.getSelectExpression());
+        assertFalse(request.getConsistentRead());
+
+        simpleDb.requests.clear();
+        read(simpleDb, "sdb:///orders?where=");
+        assertEquals("select * from `orders`", simpleDb.requests.get(0).getSelectExpression());
+        assertTrue(simpleDb.requests.get(0).getConsistentRead());
+    }
+
+    private static void read(RecordingSimpleDb simpleDb, String uri) throws Exception {
+        try (ItemSourceProvider source =
+                 SourceStoreProviderFactory.sourceProviderFor(new URI(uri), Optional.of(simpleDb))) {
+            source.initialize();
+            source.iterateItems(item -> {});
+        }
+    }
+
+    // Keeps the select requests, answering them with no items
+    private static final class RecordingSimpleDb extends LocalSimpleDb {
+        final List<SelectRequest> requests = new ArrayList<>();
+
+        @Override
+        public synchronized SelectResult select(SelectRequest request) {
+            requests.add(request);
+            return new SelectResult();
+        }
+    }
+}
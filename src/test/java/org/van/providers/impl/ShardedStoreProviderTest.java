@@ -0,0 +1,122 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.van.MemoryBudget;
+import org.van.TransferPipeline;
+import org.van.providers.ItemSourceProvider;
+import org.van.providers.ItemStoreProvider;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShardedStoreProviderTest {
+
+    private static final int ITEMS = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsBackCsvParts() throws Exception {
+        assertRoundTrip("file", "");
+    }
+
+    @Test
+    public void readsBackCompressedBinaryParts() throws Exception {
+        assertRoundTrip("bin", "&compression=gzip");
+    }
+
+    @Test
+    public void savesNoManifestForFailedExport() throws Exception {
+        File directory = folder.newFolder("failed");
+        // A manifest left by an earlier export of the directory
+        transfer(new ItemsSource(items(10), -1), storeUri("file", directory, ""));
+        try {
+            transfer(new ItemsSource(items(ITEMS), ITEMS / 2), storeUri("file", directory, ""));
+            fail("The source failure was not reported");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertFalse(new File(directory, ShardManifest.FILE_NAME).exists());
+    }
+
+    private void assertRoundTrip(String scheme, String query) throws Exception {
+        File directory = folder.newFolder(scheme);
+        List<Item> items = items(ITEMS);
+        transfer(new ItemsSource(items, -1), storeUri(scheme, directory, query));
+        ShardManifest manifest = ShardManifest.load(directory).get();
+        assertEquals(4, manifest.getParts().size());
+        assertEquals(ITEMS, manifest.getParts().stream().mapToLong(ShardManifest.Part::getItems).sum());
+
+        List<Item> read = new ArrayList<>();
+        // Smaller than the items the parts queue
+        MemoryBudget budget = new MemoryBudget(10000);
+        try (ItemSourceProvider source = SourceStoreProviderFactory.sourceProviderFor(
+            new URI(scheme + ":///" + directory.getPath() + "/"))) {
+            new TransferPipeline().withMemoryBudget(budget).transfer(source.initialize(), new ItemStoreProvider() {
+                @Override
+                public void storeItem(Item item) {
+                    read.add(item);
+                }
+            });
+        }
+        read.sort(Comparator.comparing(Item::getName));
+        assertEquals(items, read);
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    private static URI storeUri(String scheme, File directory, String query) throws Exception {
+        // An absolute path takes one more slash, see SourceStoreProviderFactory.fileUri
+        return new URI(scheme + ":///" + directory.getPath() + "/?parts=4" + query);
+    }
+
+    private static void transfer(ItemSourceProvider source, URI storeUri) throws Exception {
+        try (ItemStoreProvider store = SourceStoreProviderFactory.storeProviderFor(storeUri)) {
+            new TransferPipeline().transfer(source.initialize(), store.initialize());
+        }
+    }
+
+    private static List<Item> items(int count) {
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(new Item(String.format("item%08d", i), Arrays.asList(
+                new Attribute("a", String.valueOf(i)), new Attribute("b", "value, \"quoted\"\n" + i))));
+        }
+        return items;
+    }
+
+    private static final class ItemsSource extends ItemSourceProvider {
+
+        private final List<Item> items;
+        private final int failAt;
+
+        ItemsSource(List<Item> items, int failAt) {
+            this.items = items;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public void iterateItems(Consumer<Item> consumer) {
+            for (int i = 0; i < items.size(); i++) {
+                if (i == failAt) {
+                    throw new IllegalStateException("source failed");
+                }
+                consumer.accept(items.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.CreateDomainRequest;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import com.amazonaws.services.simpledb.model.ReplaceableAttribute;
+import org.junit.Test;
+import org.van.MemoryBudget;
+import org.van.TransferPipeline;
+import org.van.providers.ItemStoreProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimpleDbSourceProviderTest {
+
+    private static final String DOMAIN = "source-test";
+    private static final String UPDATED = "updated";
+
+    @Test
+    public void tellsHighestValueBeforeIterating() throws Exception {
+        LocalSimpleDb simpleDb = new LocalSimpleDb();
+        simpleDb.createDomain(new CreateDomainRequest(DOMAIN));
+        put(simpleDb, "a", "2015-11-03");
+        put(simpleDb, "b", "2015-11-05");
+        put(simpleDb, "c", "2015-11-04");
+        try (SimpleDbSourceProvider source = source(simpleDb)) {
+            assertEquals(Optional.of("2015-11-05"), source.highestValueOf(UPDATED));
+        }
+    }
+
+    @Test
+    public void tellsLowestValueWithoutAttribute() throws Exception {
+        LocalSimpleDb simpleDb = new LocalSimpleDb();
+        simpleDb.createDomain(new CreateDomainRequest(DOMAIN));
+        try (SimpleDbSourceProvider source = source(simpleDb)) {
+            assertEquals(Optional.of(""), source.highestValueOf(UPDATED));
+        }
+    }
+
+    @Test
+    public void picksUpChangesMadeWhileIterating() throws Exception {
+        LocalSimpleDb simpleDb = new LocalSimpleDb();
+        simpleDb.createDomain(new CreateDomainRequest(DOMAIN));
+        put(simpleDb, "b", "2015-11-03");
+        put(simpleDb, "c", "2015-11-04");
+        Optional<String> mark;
+        try (SimpleDbSourceProvider source = source(simpleDb)) {
+            mark = source.highestValueOf(UPDATED);
+            source.initialize().iterateItems(item -> {
+                if ("b".equals(item.getName())) {
+                    // Changed behind the iteration, and before a later change it does see
+                    put(simpleDb, "a", "2015-11-05");
+                    put(simpleDb, "d", "2015-11-06");
+                }
+            });
+        }
+        List<String> changed = new ArrayList<>();
+        try (SimpleDbSourceProvider source = source(simpleDb)) {
+            source.changedSince(UPDATED, mark).initialize().iterateItems(item -> changed.add(item.getName()));
+        }
+        Collections.sort(changed);
+        assertEquals(Arrays.asList("a", "c", "d"), changed);
+    }
+
+    @Test(timeout = 30000)
+    public void readsAheadWithinBudget() throws Exception {
+        LocalSimpleDb simpleDb = new LocalSimpleDb().withGeneratedDomain(DOMAIN, 3000);
+        // Smaller than a page
+        MemoryBudget budget = new MemoryBudget(10000);
+        Set<String> names = new HashSet<>();
+        try (SimpleDbSourceProvider source = source(simpleDb).withSegments(4).withPrefetch(2)) {
+            source.initialize();
+            new TransferPipeline(100).withMemoryBudget(budget).transfer(source, new ItemStoreProvider() {
+                @Override
+                public void storeItem(Item item) {
+                    names.add(item.getName());
+                }
+            });
+        }
+        assertEquals(3000, names.size());
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test(timeout = 30000)
+    public void letsGoOfPagesNotPassedOn() throws Exception {
+        LocalSimpleDb simpleDb = new LocalSimpleDb().withGeneratedDomain(DOMAIN, 3000);
+        MemoryBudget budget = new MemoryBudget(1000000);
+        try (SimpleDbSourceProvider source = source(simpleDb).withSegments(4).withPrefetch(2)) {
+            assertTrue(source.holdItemsIn(budget));
+            int[] passed = {0};
+            source.initialize().iterateItems(item -> {
+                // The items passed on are the consumer's to give back
+                budget.release(MemoryBudget.sizeOf(item));
+                if (150 == ++passed[0]) {
+                    throw new IllegalStateException("consumer failed");
+                }
+            });
+            fail("The consumer failure was not reported");
+        } catch (IllegalStateException ex) {
+            assertEquals("consumer failed", ex.getMessage());
+        }
+        // Workers still reading let go of their pages as they stop
+        while (0 != budget.getUsedBytes()) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static SimpleDbSourceProvider source(LocalSimpleDb simpleDb) {
+        return new SimpleDbSourceProvider(Optional.of(simpleDb), new SelectExpression(DOMAIN), Optional.empty());
+    }
+
+    private static void put(LocalSimpleDb simpleDb, String name, String updated) {
+        simpleDb.putAttributes(new PutAttributesRequest(DOMAIN, name,
+            Collections.singletonList(new ReplaceableAttribute(UPDATED, updated, true))));
+    }
+}
@@ -0,0 +1,172 @@
+package org.van.providers.impl;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.BatchPutAttributesRequest;
+import com.amazonaws.services.simpledb.model.GetAttributesRequest;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.PutAttributesRequest;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SimpleDbStoreProviderTest {
+
+    private static final String DOMAIN = "store-test";
+    private static final String POISON = "poison";
+
+    @Test
+    public void keepsOrderWhenBatchFails() throws Exception {
+        RejectingSimpleDb simpleDb = new RejectingSimpleDb(false);
+        try (SimpleDbStoreProvider store = new SimpleDbStoreProvider(Optional.of(simpleDb), DOMAIN)
+            .withBatchSize(2).withAsyncWindow(4)) {
+            store.initialize();
+            store.storeItem(item("x", "v1"));
+            store.storeItem(item(POISON, "v1"));  // fails the first batch
+            store.storeItem(item("x", "v2"));
+            store.storeItem(item("y", "v1"));
+            store.flush();
+        }
+        assertEquals("v2", value(simpleDb, "x"));
+        assertEquals("v1", value(simpleDb, POISON));
+        assertEquals("v1", value(simpleDb, "y"));
+    }
+
+    @Test
+    public void reportsItemsThatCannotBeStored() throws Exception {
+        RejectingSimpleDb simpleDb = new RejectingSimpleDb(true);
+        SimpleDbStoreProvider store = new SimpleDbStoreProvider(Optional.of(simpleDb), DOMAIN)
+            .withBatchSize(2).withAsyncWindow(4);
+        store.initialize();
+        store.storeItem(item("x", "v1"));
+        store.storeItem(item(POISON, "v1"));
+        try {
+            store.close();
+            fail("The item rejected was not reported");
+        } catch (RuntimeException ex) {
+            assertTrue(String.valueOf(ex.getCause()).contains(POISON));
+        }
+        assertEquals("v1", value(simpleDb, "x"));
+    }
+
+    @Test
+    public void releasesItemsOnceWritten() throws Exception {
+        for (int window : new int[]{1, 4}) {
+            AtomicInteger released = new AtomicInteger();
+            try (SimpleDbStoreProvider store = new SimpleDbStoreProvider(Optional.of(new LocalSimpleDb()), DOMAIN)
+                .withBatchSize(5).withAsyncWindow(window)) {
+                store.initialize();
+                for (int i = 0; i < 4; i++) {
+                    store.storeItem(item("x" + i, "v"), released::incrementAndGet);
+                }
+                assertEquals("still in the batch", 0, released.get());
+                store.flush();
+                assertEquals(4, released.get());
+            }
+        }
+    }
+
+    @Test
+    public void releasesItemsThatCannotBeStored() throws Exception {
+        AtomicInteger released = new AtomicInteger();
+        SimpleDbStoreProvider store = new SimpleDbStoreProvider(Optional.of(new RejectingSimpleDb(true)), DOMAIN)
+            .withBatchSize(2).withAsyncWindow(4);
+        store.initialize();
+        store.storeItem(item("x", "v1"), released::incrementAndGet);
+        store.storeItem(item(POISON, "v1"), released::incrementAndGet);
+        try {
+            store.close();
+            fail("The item rejected was not reported");
+        } catch (RuntimeException ex) {
+            assertEquals(2, released.get());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void letsGoOfWriteInterruptedBeforeSent() throws Exception {
+        LocalSimpleDb simpleDb = new LocalSimpleDb().withLatency(200, 0);
+        AtomicInteger released = new AtomicInteger();
+        try (SimpleDbStoreProvider store = new SimpleDbStoreProvider(Optional.of(simpleDb), DOMAIN)
+            .withAsyncWindow(2)) {
+            store.initialize();
+            store.storeItem(item("x0", "v"));
+            store.storeItem(item("x1", "v"));
+            // The window is full, so the write waits for a slot and is interrupted
+            Thread.currentThread().interrupt();
+            try {
+                store.storeItem(item("y", "v1"), released::incrementAndGet);
+                fail("The interruption was not reported");
+            } catch (RuntimeException ex) {
+                assertTrue(Thread.interrupted());
+            }
+            assertEquals(1, released.get());
+
+            // Neither the item name nor the slot is still taken
+            store.storeItem(item("y", "v2"), released::incrementAndGet);
+            store.flush();
+            assertEquals(2, released.get());
+        }
+        assertEquals("v2", value(simpleDb, "y"));
+    }
+
+    private static Item item(String name, String value) {
+        return new Item(name, Collections.singletonList(new Attribute("a", value)));
+    }
+
+    private static String value(LocalSimpleDb simpleDb, String name) {
+        List<Attribute> attributes = simpleDb.getAttributes(new GetAttributesRequest(DOMAIN, name)).getAttributes();
+        assertEquals(1, attributes.size());
+        return attributes.get(0).getValue();
+    }
+
+    /**
+     * Rejects the batches naming the poison item, and its own writes if asked to, with an error
+     * that is not retried.
+     */
+    private static final class RejectingSimpleDb extends LocalSimpleDb {
+
+        private final boolean rejectItem;
+
+        RejectingSimpleDb(boolean rejectItem) {
+            this.rejectItem = rejectItem;
+        }
+
+        @Override
+        public Future<Void> batchPutAttributesAsync(BatchPutAttributesRequest request,
+                                                    AsyncHandler<BatchPutAttributesRequest,Void> asyncHandler) {
+            if (request.getItems().stream().anyMatch(item -> POISON.equals(item.getName()))) {
+                return reject(asyncHandler);
+            }
+            return super.batchPutAttributesAsync(request, asyncHandler);
+        }
+
+        @Override
+        public Future<Void> putAttributesAsync(PutAttributesRequest request,
+                                               AsyncHandler<PutAttributesRequest,Void> asyncHandler) {
+            if (rejectItem && POISON.equals(request.getItemName())) {
+                return reject(asyncHandler);
+            }
+            return super.putAttributesAsync(request, asyncHandler);
+        }
+
+        private static <Q extends com.amazonaws.AmazonWebServiceRequest> Future<Void> reject(AsyncHandler<Q,Void> asyncHandler) {
+            AmazonServiceException ex = new AmazonServiceException("Rejected");
+            ex.setErrorCode("InvalidParameterValue");
+            ex.setStatusCode(400);
+            asyncHandler.onError(ex);
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+            return future;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.van.providers.impl;
+
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import org.junit.Test;
+import org.van.MemoryBudget;
+import org.van.providers.ItemSourceProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SortingSourceProviderTest {
+
+    private static final int NAMES = 3000;
+
+    @Test
+    public void sortsInMemory() throws Exception {
+        assertSortedAndMerged(SortingSourceProvider.DEFAULT_MEMORY_LIMIT);
+    }
+
+    @Test
+    public void spillsAndMergesRuns() throws Exception {
+        // Small enough for more runs than are merged at once
+        long limit = MemoryBudget.sizeOf(partial(0, 0)) * 20;
+        assertSortedAndMerged(limit);
+    }
+
+    @Test
+    public void keepsNullNamesAndValues() throws Exception {
+        List<Item> items = Arrays.asList(
+            new Item("b", Collections.singletonList(new Attribute("x", null))),
+            new Item(null, Collections.singletonList(new Attribute("x", "1"))),
+            new Item("a", Collections.singletonList(new Attribute(null, "2"))),
+            new Item("b", Collections.singletonList(new Attribute("y", "3"))));
+        for (long limit : new long[]{1, SortingSourceProvider.DEFAULT_MEMORY_LIMIT}) {
+            List<Item> sorted = sort(items, limit);
+            assertEquals(3, sorted.size());
+            assertNull(sorted.get(0).getName());
+            assertEquals(new Item("a", Collections.singletonList(new Attribute(null, "2"))), sorted.get(1));
+            assertEquals(new Item("b", Arrays.asList(new Attribute("x", null), new Attribute("y", "3"))), sorted.get(2));
+        }
+    }
+
+    private static void assertSortedAndMerged(long memoryLimit) throws Exception {
+        // Every name comes in three partial items, spread over the source
+        List<Item> items = new ArrayList<>();
+        for (int part = 0; part < 3; part++) {
+            for (int i = NAMES - 1; i >= 0; i--) {
+                items.add(partial((i * 7919) % NAMES, part));
+            }
+        }
+        List<Item> sorted = sort(items, memoryLimit);
+        assertEquals(NAMES, sorted.size());
+        for (int i = 0; i < NAMES; i++) {
+            Item item = sorted.get(i);
+            assertEquals(name(i), item.getName());
+            // In the order of the source
+            assertEquals(Arrays.asList(attribute(i, 0), attribute(i, 1), attribute(i, 2)), item.getAttributes());
+        }
+    }
+
+    private static List<Item> sort(List<Item> items, long memoryLimit) throws Exception {
+        List<Item> sorted = new ArrayList<>();
+        try (SortingSourceProvider source = new SortingSourceProvider(new ListSource(items)).withMemoryLimit(memoryLimit)) {
+            source.initialize().iterateItems(sorted::add);
+        }
+        return sorted;
+    }
+
+    private static String name(int i) {
+        return String.format("item%08d", i);
+    }
+
+    private static Attribute attribute(int i, int part) {
+        return new Attribute("attribute" + part, i + "-" + part);
+    }
+
+    private static Item partial(int i, int part) {
+        return new Item(name(i), Collections.singletonList(attribute(i, part)));
+    }
+
+    private static final class ListSource extends ItemSourceProvider {
+
+        private final List<Item> items;
+
+        ListSource(List<Item> items) {
+            this.items = items;
+        }
+
+        @Override
+        public void iterateItems(Consumer<Item> consumer) {
+            items.forEach(consumer);
+        }
+    }
+}